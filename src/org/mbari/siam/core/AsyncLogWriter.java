@@ -0,0 +1,464 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import org.apache.log4j.Logger;
+import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.InvalidPropertyException;
+import org.mbari.siam.distributed.SensorDataPacket;
+
+/**
+   AsyncLogWriter appends packets to device logs on a node-wide writer
+   thread, so that services logging packets don't wait for storage.
+   <p>
+   log() numbers a copy of the packet (see DeviceLog.assignSequenceNos()),
+   sets the same numbers on the caller's packet, queues the copy and
+   returns. The writer thread takes up to maxBatchPackets queued packets
+   at a time, appends those for each log with one
+   DeviceLog.appendPackets() call, then calls each packet's Callback:
+   packetLogged() if the append succeeded, logFailed() if it threw.
+   Packets of a log are appended in the order they were queued.
+   <p>
+   When the queue is full, log() either waits for room (BLOCK) or
+   discards the packet (DISCARD). flush() waits until packets queued
+   before the call have been written; services flush before closing
+   their logs, and the node flushes when entering safe mode.
+
+   @see DeviceLog#appendPackets(DevicePacket[], int)
+*/
+public class AsyncLogWriter implements Runnable {
+
+    /** Log4j logger */
+    static private Logger _log4j = Logger.getLogger(AsyncLogWriter.class);
+
+    /** Backpressure policy: log() waits for room in a full queue */
+    public static final int BLOCK = 0;
+
+    /** Backpressure policy: log() discards the packet if the queue is
+	full */
+    public static final int DISCARD = 1;
+
+    /** Called on the writer thread after a queued packet is appended,
+	or its append fails */
+    public interface Callback {
+	/** Packet has been appended; packet is the queued copy. */
+	public void packetLogged(DevicePacket packet);
+
+	/** Packet could not be appended, because of failure; packet is
+	    the queued copy. */
+	public void logFailed(DevicePacket packet, Exception failure);
+    }
+
+    /** Node-wide writer */
+    private static AsyncLogWriter _instance = null;
+
+    private int _capacity;
+    private int _maxBatchPackets;
+    private int _policy;
+
+    // Queue, as circular arrays
+    private DeviceLog[] _logs;
+    private DevicePacket[] _packets;
+    private Callback[] _callbacks;
+    private long[] _queuedMsec;
+    private int _head = 0;
+    private int _size = 0;
+
+    /** Number of packets queued, and of packets written (or failed) */
+    private long _nQueued = 0;
+    private long _nWritten = 0;
+
+    // Statistics
+    private long _nDiscarded = 0;
+    private long _nFailed = 0;
+    private long _nBatches = 0;
+    private int _maxDepth = 0;
+    private long _totalLatencyMsec = 0;
+    private long _maxLatencyMsec = 0;
+
+    private Thread _thread;
+
+
+    /** Create writer with queue of specified capacity, which appends up
+	to maxBatchPackets packets at a time, with specified backpressure
+	policy (BLOCK or DISCARD). */
+    public AsyncLogWriter(int capacity, int maxBatchPackets, int policy) {
+	if (capacity < 1) {
+	    capacity = 1;
+	}
+	if (maxBatchPackets < 1) {
+	    maxBatchPackets = 1;
+	}
+	_capacity = capacity;
+	_maxBatchPackets = maxBatchPackets;
+	_policy = (policy == DISCARD ? DISCARD : BLOCK);
+
+	_logs = new DeviceLog[capacity];
+	_packets = new DevicePacket[capacity];
+	_callbacks = new Callback[capacity];
+	_queuedMsec = new long[capacity];
+
+	_thread = new Thread(this, "AsyncLogWriter");
+	_thread.setDaemon(true);
+	_thread.start();
+    }
+
+
+    /** Return the node-wide writer, creating it as configured by node
+	properties on first use. */
+    public static synchronized AsyncLogWriter 
+	getInstance(NodeProperties properties) 
+	throws InvalidPropertyException {
+
+	if (_instance == null) {
+	    _instance = new AsyncLogWriter(properties.logAsyncQueueCapacity(),
+					   properties.logMaxBatchPackets(),
+					   properties.logAsyncPolicy());
+
+	    _log4j.info("started: " + _instance);
+
+	    final AsyncLogWriter writer = _instance;
+	    Metrics.gauge("log.asyncQueueDepth", new Metrics.Gauge() {
+		    public long value() {
+			return writer.getQueueDepth();
+		    }
+		});
+	    Metrics.gauge("log.asyncMaxQueueDepth", new Metrics.Gauge() {
+		    public long value() {
+			return writer.getMaxQueueDepth();
+		    }
+		});
+	}
+	return _instance;
+    }
+
+
+    /** Flush the node-wide writer, if it has been created; wait no more
+	than timeoutMsec. */
+    public static void flushInstance(long timeoutMsec) {
+	AsyncLogWriter writer;
+	synchronized (AsyncLogWriter.class) {
+	    writer = _instance;
+	}
+	if (writer != null) {
+	    writer.flush(timeoutMsec);
+	}
+    }
+
+
+    /** Queue packet to be appended to log. The packet's sequence number
+	and metadata reference are set before returning; callback (if not
+	null) is called once the packet has been appended. Returns false
+	if the packet was discarded because the queue was full, or the
+	calling thread was interrupted while waiting for room. */
+    public boolean log(DeviceLog log, DevicePacket packet, Callback callback) {
+	return log(log, packet, callback, true);
+    }
+
+
+    /** Queue packet to be appended to log, as log(log, packet, callback).
+	If copyPacket is false the packet itself is queued, and the caller
+	must not modify it until callback is called (or this method returns
+	false); this avoids copying packets which the caller manages, e.g.
+	in a SensorDataPacketPool. */
+    public boolean log(DeviceLog log, DevicePacket packet, Callback callback,
+		       boolean copyPacket) {
+
+	DevicePacket copy = packet;
+	if (copyPacket) {
+	    try {
+		copy = copy(packet);
+	    }
+	    catch (Exception e) {
+		_log4j.error("log(): can't copy packet; not logged", e);
+		return false;
+	    }
+	}
+
+	synchronized (this) {
+	    while (_size >= _capacity) {
+		if (_policy == DISCARD || Thread.currentThread() == _thread) {
+		    // The writer thread (e.g. in a callback) can't wait 
+		    // for itself
+		    discarded(log);
+		    return false;
+		}
+		try {
+		    wait();
+		}
+		catch (InterruptedException e) {
+		    discarded(log);
+		    Thread.currentThread().interrupt();
+		    return false;
+		}
+	    }
+
+	    // Number the packet now, so numbers follow queue order
+	    log.assignSequenceNos(copy);
+	    if (copy != packet) {
+		packet.setSequenceNo(copy.sequenceNo());
+		packet.setMetadataRef(copy.metadataRef());
+	    }
+
+	    int tail = (_head + _size) % _capacity;
+	    _logs[tail] = log;
+	    _packets[tail] = copy;
+	    _callbacks[tail] = callback;
+	    _queuedMsec[tail] = System.currentTimeMillis();
+	    _size++;
+	    _nQueued++;
+	    if (_size > _maxDepth) {
+		_maxDepth = _size;
+	    }
+	    notifyAll();
+	}
+	return true;
+    }
+
+
+    /** Wait until packets queued before this call have been written, or
+	timeoutMsec elapse (0 waits indefinitely); return true if they
+	were written. */
+    public boolean flush(long timeoutMsec) {
+	if (Thread.currentThread() == _thread) {
+	    // Called from a callback; can't wait for itself
+	    return false;
+	}
+
+	long deadline = System.currentTimeMillis() + timeoutMsec;
+
+	synchronized (this) {
+	    long target = _nQueued;
+	    while (_nWritten < target) {
+		long wait = 0;
+		if (timeoutMsec > 0) {
+		    wait = deadline - System.currentTimeMillis();
+		    if (wait <= 0) {
+			_log4j.warn("flush(): timed out with " +
+				    (target - _nWritten) + " packets unwritten");
+			return false;
+		    }
+		}
+		try {
+		    wait(wait);
+		}
+		catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+
+    /** Writer thread: append queued packets in batches. */
+    public void run() {
+
+	DeviceLog[] logs = new DeviceLog[_maxBatchPackets];
+	DevicePacket[] packets = new DevicePacket[_maxBatchPackets];
+	Callback[] callbacks = new Callback[_maxBatchPackets];
+	long[] queuedMsec = new long[_maxBatchPackets];
+	Exception[] failures = new Exception[_maxBatchPackets];
+	DevicePacket[] logPackets = new DevicePacket[_maxBatchPackets];
+	int[] logIndexes = new int[_maxBatchPackets];
+
+	while (true) {
+	    int n;
+	    synchronized (this) {
+		while (_size == 0) {
+		    try {
+			wait();
+		    }
+		    catch (InterruptedException e) {
+			// Keep writing; the node flushes before exiting
+		    }
+		}
+
+		n = Math.min(_size, _maxBatchPackets);
+		for (int i = 0; i < n; i++) {
+		    int j = (_head + i) % _capacity;
+		    logs[i] = _logs[j];
+		    packets[i] = _packets[j];
+		    callbacks[i] = _callbacks[j];
+		    queuedMsec[i] = _queuedMsec[j];
+		    _logs[j] = null;
+		    _packets[j] = null;
+		    _callbacks[j] = null;
+		}
+		_head = (_head + n) % _capacity;
+		_size -= n;
+
+		// Make room for waiting loggers
+		notifyAll();
+	    }
+
+	    // Append each log's packets with one call
+	    for (int i = 0; i < n; i++) {
+		DeviceLog log = logs[i];
+		if (log == null) {
+		    continue;
+		}
+		int nLogPackets = 0;
+		for (int j = i; j < n; j++) {
+		    if (logs[j] == log) {
+			logIndexes[nLogPackets] = j;
+			logPackets[nLogPackets++] = packets[j];
+			if (j > i) {
+			    logs[j] = null;
+			}
+		    }
+		}
+		try {
+		    log.appendPackets(logPackets, nLogPackets);
+		}
+		catch (Exception e) {
+		    _log4j.error("run(): failed to append " + nLogPackets +
+				 " packets for device " + log.getDeviceId(), e);
+		    synchronized (this) {
+			_nFailed += nLogPackets;
+		    }
+		    for (int j = 0; j < nLogPackets; j++) {
+			failures[logIndexes[j]] = e;
+		    }
+		}
+		for (int j = 0; j < nLogPackets; j++) {
+		    logPackets[j] = null;
+		}
+	    }
+
+	    long now = System.currentTimeMillis();
+	    for (int i = 0; i < n; i++) {
+		if (callbacks[i] != null) {
+		    try {
+			if (failures[i] == null) {
+			    callbacks[i].packetLogged(packets[i]);
+			}
+			else {
+			    callbacks[i].logFailed(packets[i], failures[i]);
+			}
+		    }
+		    catch (Exception e) {
+			_log4j.error("run(): callback failed", e);
+		    }
+		}
+		logs[i] = null;
+		packets[i] = null;
+		callbacks[i] = null;
+		failures[i] = null;
+	    }
+
+	    synchronized (this) {
+		for (int i = 0; i < n; i++) {
+		    long latency = now - queuedMsec[i];
+		    _totalLatencyMsec += latency;
+		    if (latency > _maxLatencyMsec) {
+			_maxLatencyMsec = latency;
+		    }
+		}
+		_nWritten += n;
+		_nBatches++;
+		notifyAll();
+	    }
+	}
+    }
+
+
+    /** Return copy of packet that later changes to packet don't affect. */
+    static DevicePacket copy(DevicePacket packet) throws Exception {
+
+	if (packet.getClass() == SensorDataPacket.class) {
+	    // Common case; avoid serialization
+	    SensorDataPacket source = (SensorDataPacket )packet;
+	    SensorDataPacket copy = new SensorDataPacket(source.sourceID(), 0);
+	    copy.setSystemTime(source.systemTime());
+	    copy.setSequenceNo(source.sequenceNo());
+	    copy.setMetadataRef(source.metadataRef());
+	    copy.setParentId(source.getParentId());
+	    copy.setRecordType(source.getRecordType());
+	    byte[] data = source.dataBuffer();
+	    if (data != null) {
+		byte[] dataCopy = new byte[data.length];
+		System.arraycopy(data, 0, dataCopy, 0, data.length);
+		copy.setDataBuffer(dataCopy);
+	    }
+	    return copy;
+	}
+
+	DevicePacketCodec codec = new DevicePacketCodec();
+	int length = codec.encode(packet, DevicePacketCodec.SERIALIZED_FORMAT);
+	return DevicePacketCodec.decode(codec.getBuffer(), 0, length);
+    }
+
+
+    /** Count packet discarded for log. */
+    private void discarded(DeviceLog log) {
+	_nDiscarded++;
+	if (_nDiscarded % 100 == 1) {
+	    _log4j.error("log(): queue full; discarded packet for device " +
+			 log.getDeviceId() + " (" + _nDiscarded +
+			 " discarded so far)");
+	}
+    }
+
+
+    /** Return number of packets currently queued. */
+    public synchronized int getQueueDepth() {
+	return _size;
+    }
+
+    /** Return largest number of packets that have been queued at once. */
+    public synchronized int getMaxQueueDepth() {
+	return _maxDepth;
+    }
+
+    /** Return queue capacity. */
+    public int getCapacity() {
+	return _capacity;
+    }
+
+    /** Return number of packets written, including failed appends. */
+    public synchronized long getPacketsWritten() {
+	return _nWritten;
+    }
+
+    /** Return number of packets discarded because the queue was full. */
+    public synchronized long getPacketsDiscarded() {
+	return _nDiscarded;
+    }
+
+    /** Return number of packets whose append failed. */
+    public synchronized long getPacketsFailed() {
+	return _nFailed;
+    }
+
+    /** Return number of batches written. */
+    public synchronized long getBatches() {
+	return _nBatches;
+    }
+
+    /** Return mean time (msec) from queueing to write of packets. */
+    public synchronized long getMeanLatencyMsec() {
+	return (_nWritten == 0 ? 0 : _totalLatencyMsec / _nWritten);
+    }
+
+    /** Return longest time (msec) from queueing to write of a packet. */
+    public synchronized long getMaxLatencyMsec() {
+	return _maxLatencyMsec;
+    }
+
+
+    public synchronized String toString() {
+	return "AsyncLogWriter capacity=" + _capacity +
+	    ", maxBatchPackets=" + _maxBatchPackets +
+	    ", policy=" + (_policy == DISCARD ? "discard" : "block") +
+	    ", depth=" + _size + ", maxDepth=" + _maxDepth +
+	    ", written=" + _nWritten + ", batches=" + _nBatches +
+	    ", discarded=" + _nDiscarded + ", failed=" + _nFailed +
+	    ", meanLatencyMsec=" + getMeanLatencyMsec() +
+	    ", maxLatencyMsec=" + _maxLatencyMsec;
+    }
+}
@@ -26,6 +26,7 @@ import org.mbari.siam.core.Scheduler.ScheduleKey;
 import org.mbari.siam.distributed.jddac.DummyBlock;
 import org.mbari.siam.distributed.jddac.InstrumentServiceBlock;
 import org.mbari.siam.distributed.jddac.SummaryBlock;
+import org.mbari.siam.utils.BufferPool;
 import org.mbari.siam.utils.StreamUtils;
 
 import org.apache.log4j.Logger;
@@ -215,11 +216,20 @@ public abstract class BaseInstrumentService
 		/** Big buffer for raw samples. */
 		private byte[] _bigSampleBuf;
 		
+		/** Largest size to which an HTTP sample can grow the sample buffer */
+		static final int MAX_GROWN_SAMPLE_BYTES = 16 * 1024 * 1024;
+		
 		/** SensorDataPacket to be returned to clients. */
 		protected SensorDataPacket _sensorDataPacket = null;
 		
-		/** Buffer for sensor data packet's payload */
-		private byte[] _sensorDataBuf = null;
+		/** Reusable sensor data packets */
+		protected SensorDataPacketPool _packetPool = null;
+		
+		/** Packet that processSample() took from _packetPool for the 
+			current sample, until it is logged; only this packet is 
+			queued to the log writer without a copy, since subclasses 
+			may reuse other packets (e.g. _sensorDataPacket) in place */
+		private SensorDataPacket _freshSample = null;
 		
 		/** Most recent SensorDataPacket sent */
 		protected SensorDataPacket _lastSensorDataPacket = null;
@@ -230,6 +240,24 @@ public abstract class BaseInstrumentService
 		/** Sensor log for persistent packet storage. */
 		protected FilteredDeviceLog _packetLog = null;
 		
+		/** Node-wide writer of logged packets; null if packets are
+		 written by the logging thread */
+		protected AsyncLogWriter _logWriter = null;
+		
+		/** Publishes events for packets written by _logWriter */
+		private AsyncLogWriter.Callback _loggedCallback = new LoggedCallback();
+		
+		/** Maximum time (msec) to wait for queued packets to be written */
+		static final long LOG_FLUSH_TIMEOUT_MSEC = 60000;
+		
+		/** Parent node ID, cached by parentId() */
+		private long _parentId = 0;
+		private boolean _parentIdValid = false;
+
+		/** If true, packets requested with the portal's filtered
+		 retrieval are marked as retrieved in the packet log */
+		private boolean _compactRetrieved = false;
+		
 		/** Default record type */
 		protected static final long RECORDTYPE_UNDEFINED = -1;
 		
@@ -373,9 +401,11 @@ public abstract class BaseInstrumentService
 				throw new RangeException("argument must be positive");
 			
 			_maxSampleBytes = maxBytes;
-			// This for the GC, if _bigSampleBuf already exists
-			_bigSampleBuf = null;
-			_bigSampleBuf = new byte[_maxSampleBytes];
+			// Return any previous buffer to the shared pool
+			BufferPool pool = BufferPool.getInstance();
+			byte[] oldBuf = _bigSampleBuf;
+			_bigSampleBuf = pool.get(_maxSampleBytes);
+			pool.release(oldBuf);
 			/*
 			 * This should be independend of setting MaxSampleBytes Property...
 			 * Having it here causes initialization ordering problems (sensor ID is
@@ -483,12 +513,38 @@ public abstract class BaseInstrumentService
 		}
 		
 		/** initialize a set of reusable data packet objects 
-			Base class creates only one.
-		    subclasses may override to support larger pool for different types
+			Base class creates a pool of SensorDataPackets, from which
+			processSample() takes each sample's packet.
+		    subclasses may override to support larger pool for different types,
+			but must call this method.
 		 */
 		protected void initializePooledResources(long id, int len){
-			// Create (reusable ) data packet
-			_sensorDataPacket = new SensorDataPacket(id,len);
+			// Create pool of reusable data packets, and the initial
+			// "current" packet
+			_packetPool = 
+				new SensorDataPacketPool(id, SensorDataPacketPool.DEFAULT_MAX_PACKETS);
+			_sensorDataPacket = _packetPool.acquire();
+			if (len > 0) {
+				_sensorDataPacket.setDataBuffer(new byte[len]);
+			}
+		}
+		
+		/** Add a reference to packet, if it comes from this service's pool;
+			the packet won't be reused for another sample until the 
+			reference is removed with releaseSample(). */
+		public void retainSample(SensorDataPacket packet) {
+			SensorDataPacketPool pool = _packetPool;
+			if (pool != null) {
+				pool.retain(packet);
+			}
+		}
+		
+		/** Remove a reference added by retainSample(). */
+		public void releaseSample(SensorDataPacket packet) {
+			SensorDataPacketPool pool = _packetPool;
+			if (pool != null) {
+				pool.release(packet);
+			}
 		}
 		
 		/**
@@ -510,6 +566,12 @@ public abstract class BaseInstrumentService
 				}
 			}
 			
+			if (_instrumentPort instanceof HttpInstrumentPort) {
+				// Bound HTTP requests by the sample timeout
+				((HttpInstrumentPort )_instrumentPort).setResponseTimeout(
+					_instrumentAttributes.sampleTimeoutMsec);
+			}
+			
 			// Create sampling schedule
 			_log4j.debug("run() - create default sampling schedule");
 			try {
@@ -802,6 +864,8 @@ public abstract class BaseInstrumentService
 			
 			
 			SensorDataPacket packet = null;
+			long start = (Metrics.enabled() ? System.currentTimeMillis() : 0);
+			_freshSample = null;
 			try {
 				packet = acquire(logPacket);
 				
@@ -815,6 +879,10 @@ public abstract class BaseInstrumentService
 			finally {
 				// Done with device access
 				endDeviceAccess();
+				
+				if (start != 0) {
+					recordAcquisition(start, packet);
+				}
 			}
 			
 			/*
@@ -833,6 +901,17 @@ public abstract class BaseInstrumentService
 			return packet;
 		}
 		
+		/** Record latency of sample acquisition begun at start, or count
+			its failure if packet is null. */
+		private void recordAcquisition(long start, SensorDataPacket packet) {
+			if (packet == null) {
+				Metrics.count(portMetric("acquireFailures"), 1);
+				return;
+			}
+			Metrics.record(portMetric("acquireMsec"),
+						   System.currentTimeMillis() - start);
+		}
+		
 		/** Do overhead tasks needed to prepare for sample cycle.
 		 It is broken out into a separate method to allow other
 		 methods (e.g., when a service wants to override acquire())
@@ -1022,44 +1101,103 @@ public abstract class BaseInstrumentService
 		IOException, Exception {
 			
 			if (_instrumentPort instanceof HttpInstrumentPort) {
-				
-				HttpInstrumentPort httpPort = (HttpInstrumentPort )_instrumentPort;
-				
-				// Need to continually read HTTP port's input stream until 
-				// no more is available.
-				boolean done = false;
-				int totalBytesRead = 0;
-				
-				while (!done) {
-					
-					int offset = totalBytesRead;
-					int len = getSampleBuf().length - totalBytesRead;
-					
-					// Expect InputStream.read() to block until end-of-file. 
-					// But for some reason it returns even though the entire
-					// HTTP page content has not yet been returned...
-					totalBytesRead += httpPort.getInputStream().read(sample, 
-																	 offset, len);
-					
-					// Wait a bit before checking for more available bytes.
-					// This is arbitrarily set to 1000 msec...
-					Thread.sleep(1000);
-					
-					int nAvailable = httpPort.getInputStream().available();
-					_log4j.info("AxisCamera.readSample(): " + nAvailable +
-								" bytes still available");
-					
-					if (nAvailable == 0) {
-						done = true;
-					}
+				return readHttpSample((HttpInstrumentPort )_instrumentPort,
+									  sample);
+			}
+			
+			// Read from serial port until sample terminator encountered 
+			long start = (Metrics.enabled() ? System.currentTimeMillis() : 0);
+			try {
+				return StreamUtils.readUntil(_fromDevice, sample, _sampleTerminator,
+											 _instrumentAttributes.sampleTimeoutMsec);
+			}
+			finally {
+				if (start != 0) {
+					Metrics.record(portMetric("readUntilMsec"),
+								   System.currentTimeMillis() - start);
 				}
+			}
+		}
+		
+		/**
+		 * Read body of HTTP response to sample request into sample, within
+		 * sampleTimeoutMsec. If sample is the service's sample buffer, a
+		 * response too long for it is read into a larger (pooled) buffer,
+		 * which replaces it (see getSampleBuf()); else it is an error.
+		 *
+		 * @return number of bytes read
+		 */
+		protected int readHttpSample(HttpInstrumentPort httpPort, byte[] sample)
+		throws TimeoutException, IOException, Exception {
+			
+			long timeout = _instrumentAttributes.sampleTimeoutMsec;
+			long start = System.currentTimeMillis();
+			
+			// Bound later requests' connect and reads too
+			httpPort.setResponseTimeout(timeout);
+			
+			int contentLength = httpPort.getContentLength(timeout);
+			if (contentLength > sample.length) {
+				sample = growSampleBuf(sample, contentLength, 0);
+			}
+			
+			int nBytes = 0;
+			while (true) {
+				long remaining = timeout - (System.currentTimeMillis() - start);
+				nBytes += httpPort.readResponse(sample, nBytes, 
+												sample.length - nBytes,
+												remaining);
 				
-				return totalBytesRead;
+				if (httpPort.endOfResponse()) {
+					break;
+				}
+				// Buffer is full, but there's more; fail only once the 
+				// buffer has reached its largest size
+				if (sample.length >= MAX_GROWN_SAMPLE_BYTES) {
+					throw new IOException("sample exceeds " + 
+										  MAX_GROWN_SAMPLE_BYTES + " bytes");
+				}
+				sample = growSampleBuf(sample, 
+									   Math.min(2 * sample.length,
+												MAX_GROWN_SAMPLE_BYTES),
+									   nBytes);
 			}
 			
-			// Read from serial port until sample terminator encountered 
-			return StreamUtils.readUntil(_fromDevice, sample, _sampleTerminator,
-										 _instrumentAttributes.sampleTimeoutMsec);
+			if (_log4j.isDebugEnabled()) {
+				_log4j.debug("readHttpSample(): read " + nBytes + " bytes in " +
+							 (System.currentTimeMillis() - start) + " msec");
+			}
+			return nBytes;
+		}
+		
+		/**
+		 * Replace sample buffer with a pooled buffer of nBytes, keeping its
+		 * first nValid bytes; return the new buffer. Throws IOException if
+		 * sample isn't the sample buffer, or nBytes exceeds 
+		 * MAX_GROWN_SAMPLE_BYTES.
+		 */
+		private byte[] growSampleBuf(byte[] sample, int nBytes, int nValid) 
+		throws IOException {
+			
+			if (sample != _bigSampleBuf) {
+				throw new IOException("sample exceeds " + sample.length + 
+									  "-byte buffer");
+			}
+			if (nBytes > MAX_GROWN_SAMPLE_BYTES) {
+				throw new IOException("sample exceeds " + 
+									  MAX_GROWN_SAMPLE_BYTES + " bytes");
+			}
+			
+			_log4j.info("growSampleBuf(): growing sample buffer to " + 
+						nBytes + " bytes");
+			
+			BufferPool pool = BufferPool.getInstance();
+			byte[] newBuf = pool.get(nBytes);
+			System.arraycopy(sample, 0, newBuf, 0, nValid);
+			_bigSampleBuf = newBuf;
+			_maxSampleBytes = nBytes;
+			pool.release(sample);
+			return newBuf;
 		}
 		
 		/**
@@ -1083,7 +1221,9 @@ public abstract class BaseInstrumentService
 		/**
 		 * Process raw sample bytes, return TimeStampedData object. By default, raw
 		 * sample is encapsulated in TimeStampedData object, and no additional
-		 * processing is done.
+		 * processing is done. The packet is taken from the service's packet 
+		 * pool, and becomes _sensorDataPacket; the previous packet is reused 
+		 * once its data listeners, log writer and events are done with it.
 		 *
 		 * @param sample
 		 *            raw sample
@@ -1092,34 +1232,39 @@ public abstract class BaseInstrumentService
 		 */
 		protected SensorDataPacket processSample(byte[] sample, int nBytes)
 		throws Exception  {
+			SensorDataPacket packet = _packetPool.acquire();
+			
 			// Set timestamp
-			_sensorDataPacket.setSystemTime(System.currentTimeMillis());
+			packet.setSystemTime(sampleTime());
 			
 			// Set record type; subclasses must set _recordType when they
 			// submit data other than the default record format
-			_sensorDataPacket.setRecordType(_recordType);
-			
-			// Make sure that sensor data packet buffer is exactly the right
-			// size
-			if (_sensorDataBuf == null || nBytes != _sensorDataBuf.length) {
-				// (Re-)allocate sensor data buffer to be exactly the 
-				// right size for incoming sample. 
-				_sensorDataBuf = new byte[nBytes];
-				
-				// Set sensor data packet's buffer reference
-				_sensorDataPacket.setDataBuffer(_sensorDataBuf);
-			}
-			// Copy data from big sample buffer to correctly-sized sensor
-			// data buffer
-			System.arraycopy(sample, 0, _sensorDataBuf, 0, nBytes);
+			packet.setRecordType(_recordType);
+			
+			// Copy data from big sample buffer to packet's buffer, which
+			// is exactly the right size
+			_packetPool.setData(packet, sample, nBytes);
+			
+			// Done with the previous sample; it is reused once any other
+			// holders release it
+			_packetPool.release(_sensorDataPacket);
+			_sensorDataPacket = packet;
+			_freshSample = packet;
 
 			// Call the DataListeners that have registered for dataCallbacks
-			callDataListeners(_sensorDataPacket);
+			callDataListeners(packet);
 			
-			return _sensorDataPacket;
+			return packet;
 		}
 		
 
+		/** Return timestamp for the sample being processed by 
+			processSample(); by default, the current time. */
+		protected long sampleTime() {
+			return System.currentTimeMillis();
+		}
+
+		
 		/** Call any DataListeners that have registered for dataCallbacks,
 		 * for the given SensorDataPacket */
 		public void callDataListeners(SensorDataPacket packet)
@@ -1269,7 +1414,7 @@ public abstract class BaseInstrumentService
 			
 			packet.setSystemTime(System.currentTimeMillis());
 			
-			packet.setParentId(_parentNode.getParentId());
+			packet.setParentId(parentId());
 			
 			if (logPacket) {
 				logPacket(packet);
@@ -1433,6 +1578,29 @@ public abstract class BaseInstrumentService
 			
 			_packetLog = new FilteredDeviceLog(getId(), _logDirectory, filters,
 											   shelfLifeMsec);
+
+			// Index any records written but not indexed before a
+			// power loss
+			_packetLog.recover();
+
+			_packetLog.setMappedIndex(_nodeProperties.logMapIndex());
+			_packetLog.setRecordFormat(_nodeProperties.logRecordFormat());
+			_packetLog.setSegmentLimits(_nodeProperties.logSegmentMaxBytes(),
+										_nodeProperties.logSegmentMsec());
+			_packetLog.setRetention(_nodeProperties.logRetentionMsec(),
+									_nodeProperties.logMaxSegments());
+			_compactRetrieved = _nodeProperties.logCompactRetrieved();
+			_packetLog.setCacheBytes(_nodeProperties.logCacheBytes());
+
+			if (_nodeProperties.logGroupCommit()) {
+				_packetLog.enableGroupCommit(_nodeProperties.logMaxBatchPackets(),
+											 _nodeProperties.logFlushIntervalMsec(),
+											 _nodeProperties.logDurability());
+			}
+
+			if (_nodeProperties.logAsync()) {
+				_logWriter = AsyncLogWriter.getInstance(_nodeProperties);
+			}
 		}
 		
 		/**
@@ -1509,6 +1677,7 @@ public abstract class BaseInstrumentService
 		public DevicePacketSet getPackets(long startTime, long stopTime)
 		throws NoDataException {
 			
+			flushLogWriter();
 			return _packetLog.getPackets(startTime, stopTime,
 										 _instrumentAttributes.packetSetSize);
 		}
@@ -1524,9 +1693,42 @@ public abstract class BaseInstrumentService
 										  boolean excludeStale)
 		throws NoDataException {
 			
+			return getPackets(startTime, stopTime, filters, excludeStale,
+							  Integer.MAX_VALUE);
+		}
+		
+		
+		/**
+		 * Return logged data packets having creation time within specified
+		 * time window, that pass specified packet filters; the returned
+		 * set is incomplete once it holds maxBytes of packets.
+		 */
+		public DevicePacketSet getPackets(long startTime, long stopTime,
+										  PacketFilter[] filters, 
+										  boolean excludeStale,
+										  int maxBytes)
+		throws NoDataException {
+			
+			flushLogWriter();
 			return _packetLog.getPackets(startTime, stopTime,
 										 _instrumentAttributes.packetSetSize,
-										 filters, excludeStale);
+										 filters, excludeStale, maxBytes);
+		}
+		
+		
+		/**
+		 * Note that the portal has stored nPackets packets with keys from
+		 * firstKey through lastKey; if DeviceLog.compactRetrieved is set,
+		 * and these are all the packets logged since those previously
+		 * retrieved, they become eligible for compaction.
+		 * @see DeviceLog#acknowledgeRetrieved(long, long, int)
+		 */
+		public void packetsRetrieved(long firstKey, long lastKey, 
+									 int nPackets) {
+			if (_compactRetrieved && _packetLog != null) {
+				flushLogWriter();
+				_packetLog.acknowledgeRetrieved(firstKey, lastKey, nPackets);
+			}
 		}
 		
 		
@@ -1746,17 +1948,20 @@ public abstract class BaseInstrumentService
 			_recordType = type;
 		}
 		
-		/** Centralized packet logging logic */
+		/** Centralized packet logging logic. If the node logs 
+			asynchronously, the packet is numbered and queued, and the 
+			SampleLogged event is published once it has been written. */
 		public synchronized void logPacket(DevicePacket devicePacket) {
 			
-			if (devicePacket instanceof MeasurementPacket) {
+			if (devicePacket instanceof MeasurementPacket && 
+				_log4j.isDebugEnabled()) {
 				_log4j.debug("logPacket() - measurement=" +
 							 devicePacket.toString());
 			}
 			
 			// set the parentID field
 			try {
-				devicePacket.setParentId(_parentNode.getParentId());
+				devicePacket.setParentId(parentId());
 			} catch (RemoteException e) {
 				_log4j.error(e);
 				_log4j.debug("Failed to set devicePacket parentId", e);
@@ -1764,20 +1969,102 @@ public abstract class BaseInstrumentService
 			
 			if (devicePacket instanceof SensorDataPacket) {
 				
-				_log4j.debug("sendPacket: got SensorDataPacket _recordType = "
-							 + ((SensorDataPacket)devicePacket).getRecordType());
+				SensorDataPacket sample = (SensorDataPacket)devicePacket;
+				
+				if (_log4j.isDebugEnabled()) {
+					_log4j.debug("sendPacket: got SensorDataPacket _recordType = "
+								 + sample.getRecordType());
+				}
 				
-				_lastSensorDataPacket = (SensorDataPacket)devicePacket;
+				// Keep the latest sample for getLastSample()
+				retainSample(sample);
+				releaseSample(_lastSensorDataPacket);
+				_lastSensorDataPacket = sample;
 				
 			}
 			// MessagePackets and others pass through to here
 			
+			// Only a packet fresh from this cycle's processSample() can
+			// be queued without a copy
+			boolean fresh = 
+				(devicePacket == _freshSample && _packetPool != null);
+			if (devicePacket instanceof SensorDataPacket) {
+				_freshSample = null;
+			}
+			
+			if (_logWriter != null) {
+				if (fresh) {
+					// Queue the pooled packet itself, rather than a copy;
+					// LoggedCallback releases it once written
+					SensorDataPacket sample = (SensorDataPacket)devicePacket;
+					retainSample(sample);
+					if (!_logWriter.log(_packetLog, sample, _loggedCallback, 
+										false)) {
+						releaseSample(sample);
+					}
+				}
+				else {
+					_logWriter.log(_packetLog, devicePacket, _loggedCallback);
+				}
+				_lastPacket = devicePacket;
+				return;
+			}
+			
 			_packetLog.appendPacket(devicePacket, true, true);
 			_lastPacket = devicePacket;
-			_log4j.debug("Publishing SampleLogged event for Id " + getId());
+			publishLogged(devicePacket);
+		}
+		
+		
+		/** Publish SampleLogged event for packet. Pooled packets are held
+			by the event until all its listeners have been called. */
+		protected void publishLogged(DevicePacket devicePacket) {
+			if (_log4j.isDebugEnabled()) {
+				_log4j.debug("Publishing SampleLogged event for Id " + getId());
+			}
 			
 			_parentNode.publish(new LogSampleServiceEvent(this, LogSampleServiceEvent.SAMPLE_LOGGED,
-														  (int)getId(), devicePacket));
+														  (int)getId(), devicePacket,
+														  _packetPool));
+		}
+		
+		
+		/** Publishes SampleLogged events for packets written by the 
+			node's AsyncLogWriter, then releases pooled packets; packets
+			that failed to be written are released without an event */
+		private class LoggedCallback implements AsyncLogWriter.Callback {
+			public void packetLogged(DevicePacket packet) {
+				publishLogged(packet);
+				if (packet instanceof SensorDataPacket) {
+					releaseSample((SensorDataPacket)packet);
+				}
+			}
+			
+			public void logFailed(DevicePacket packet, Exception failure) {
+				if (packet instanceof SensorDataPacket) {
+					releaseSample((SensorDataPacket)packet);
+				}
+			}
+		}
+		
+		
+		/** Wait until packets this service has queued have been written 
+			to its log */
+		protected void flushLogWriter() {
+			if (_logWriter != null) {
+				_logWriter.flush(LOG_FLUSH_TIMEOUT_MSEC);
+			}
+		}
+		
+		
+		/** Return parent node ID; it is fetched from the parent once, 
+			since it doesn't change while the node runs. */
+		protected long parentId() throws RemoteException {
+			if (!_parentIdValid) {
+				_parentId = _parentNode.getParentId();
+				_parentIdValid = true;
+			}
+			return _parentId;
 		}
 		
 		
@@ -2130,6 +2417,8 @@ public abstract class BaseInstrumentService
 			// Close packet log and remove its object
 			try {
 				if (_packetLog != null) {
+					// Write any queued packets first
+					flushLogWriter();
 					_packetLog.close();
 				}
 				_packetLog = null;
@@ -2286,6 +2575,10 @@ public abstract class BaseInstrumentService
 			// a scheduled task is executing.
 			_samplerWakeupTime = System.currentTimeMillis() + seconds * 1000;
 			
+			// SleepManager waits for a change while the sampler task runs;
+			// tell it that the task is now sleeping
+			WakeupMonitor.changed();
+			
 			// Note that Thread.sleep() does not reliably return at the
 			// correct time when the MMC node is sleep-managed. Instead we
 			// utilize the SiamTimer and SiamTimerTask classes, which are
@@ -2299,21 +2592,27 @@ public abstract class BaseInstrumentService
 			
 			_log4j.debug("snooze() - sleep for " + seconds*1000 + " msec");
 			
-			// Wait for WakeupTask.run() notification to the _sleepLock object
-			_log4j.debug("snooze() - get _sleepLock");
-			synchronized (_sleepLock) {
-				_log4j.debug("snooze() - call _sleepLock.wait()");
-				_sleepLock.wait();
-				_log4j.debug("snooze() - done with _sleepLock.wait(); cancel timer");
+			try {
+				// Wait for WakeupTask.run() notification to the _sleepLock 
+				// object
+				_log4j.debug("snooze() - get _sleepLock");
+				synchronized (_sleepLock) {
+					_log4j.debug("snooze() - call _sleepLock.wait()");
+					_sleepLock.wait();
+					_log4j.debug("snooze() - done with _sleepLock.wait()");
+				}
+				_log4j.debug("snooze() - done with sleep");
+			}
+			finally {
 				timer.cancel();
+				
+				// Task needs the CPU again
+				_samplerWakeupTime = 0;
+				WakeupMonitor.changed();
+				
+				// Restore status as it was prior to sleeping
+				setStatus(status);
 			}
-			
-			_log4j.debug("snooze() - done with sleep");
-			
-			_samplerWakeupTime = 0;
-			
-			// Restore status as it was prior to sleeping
-			setStatus(status);
 		}
 		
 		class WakeupTask extends SiamTimerTask {
@@ -314,6 +314,9 @@ public class CommsLeaseListener implements LeaseListener {
 	    }
 	}
 
+	// Comms may no longer keep CPU awake
+	SleepManager.rollCallChanged();
+
 	_log4j.debug("leaseTerminatedCallback("+leaseID+") done");
     }
 
@@ -352,6 +355,10 @@ public class CommsLeaseListener implements LeaseListener {
 		_log4j.error("leaseEstablishCallback() - got exception from switchCommsOff(): " + e);
 	    }
 	}
+
+	// Comms may no longer keep CPU awake
+	SleepManager.rollCallChanged();
+
 	_log4j.debug("leaseExpiredCallback("+leaseID+") done");
     }
 
@@ -62,6 +62,9 @@ public class CpuLeaseSleepRollcallListener implements SleepRollCallListener
 		_lessees.add(lessee);
 	}
 	_logger.debug("There are " +_lessees.size() + " leases.");
+
+	// Have SleepManager check the new lease
+	SleepManager.rollCallChanged();
     }
 
 
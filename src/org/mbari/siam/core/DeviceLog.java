@@ -5,21 +5,18 @@ home directory.
 */
 package org.mbari.siam.core;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.StreamCorruptedException;
 import java.io.RandomAccessFile;
 
 import java.util.Vector;
 import java.util.NoSuchElementException;
-import java.text.DateFormat;
-import java.util.Date;
+import java.util.Properties;
 
 import org.mbari.siam.utils.StopWatch;
 
@@ -29,7 +26,6 @@ import org.mbari.siam.distributed.DevicePacket;
 import org.mbari.siam.distributed.DevicePacketSet;
 import org.mbari.siam.distributed.MetadataPacket;
 import org.mbari.siam.distributed.SensorDataPacket;
-import org.mbari.siam.distributed.MeasurementPacket;
 import org.mbari.siam.distributed.DeviceMessagePacket;
 import org.mbari.siam.distributed.SummaryPacket;
 import org.mbari.siam.distributed.NoDataException;
@@ -43,6 +39,16 @@ import org.mbari.siam.distributed.RangeException;
    record retrieval class. It utilizes two subordinate classes, 
    <code>DeviceLogData</code> and <code>DeviceLogIndex</code> to implement 
    indexed random access record storage. 
+   <p>
+   A log opened with <code>DeviceLog(deviceId, directory)</code> may
+   be divided into segments (see setSegmentLimits()); packets are 
+   appended to the newest ("active") segment, and older segments are
+   described by a <code>DeviceLogSegment</code> directory so that key
+   range queries open only the segments that overlap the range. Closed
+   segments may be deleted by age or count (setRetention()), and 
+   rewritten without the packets already retrieved by the portal 
+   (setRetrievedKey(), compact()). A log with a single segment uses 
+   the same files as earlier versions.
  
    @see DeviceLogData
    @see DeviceLogIndex
@@ -65,7 +71,13 @@ public class DeviceLog {
 
     private static final Object _classLock = DeviceLog.class;
     private long _deviceId = 0;
+
+    /** Sequence number of the last numbered metadata packet */
     private long _metadataRef = 0;
+
+    /** Guards _sequenceNumber and _metadataRef, so that packets can be
+	numbered while the log is busy writing (see assignSequenceNos()) */
+    private final Object _sequenceLock = new Object();
 	
     // Timestamp on last (i.e. highest-indexed) packet in file
     private long _lastTimestamp = 0;
@@ -74,25 +86,84 @@ public class DeviceLog {
     protected DeviceLogData  _data;
     protected StopWatch _writeTimer = new StopWatch(false);	
 
+    /** Group-commit durability policy: force data and index files to
+	storage on every flush. */
+    public static final int SYNC_ON_FLUSH = 0;
+
+    /** Group-commit durability policy: leave write-back of flushed
+	batches to the operating system. */
+    public static final int SYNC_NONE = 1;
+
+    /** Timer shared by all logs to flush group-commit batches */
+    private static SiamTimer _flushTimer = null;
+
+    // Group-commit state (see enableGroupCommit())
+    private boolean _groupCommit = false;
+    private int _maxBatchPackets = 1;
+    private long _flushIntervalMsec = 0;
+    private int _durability = SYNC_ON_FLUSH;
+    private byte[] _batchBuf = new byte[0];
+    private int _batchBytes = 0;
+    private DeviceLogIndex.Entry[] _batchEntries = null;
+    private int _batchPackets = 0;
+    private SiamTimerTask _flushTask = null;
+
+    /** Encodes appended packets */
+    private DevicePacketCodec _codec = new DevicePacketCodec();
+
+    /** Format of appended records (see DevicePacketCodec) */
+    private int _recordFormat = DevicePacketCodec.SERIALIZED_FORMAT;
+
+    /** Suffix of segment files written by compact() */
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    /** Timer shared by all logs for retention and compaction */
+    private static SiamTimer _compactTimer = null;
+
+    // Segment state (see setSegmentLimits())
+    private String _directory;
+    private int _segmentNum;
+
+    /** Closed segments (DeviceLogSegment), oldest first; null if this
+	log is a view of a single segment. */
+    private Vector _segments = null;
+
+    private long _segmentMaxBytes = 0;
+    private long _segmentMaxMsec = 0;
+    private long _retentionMsec = 0;
+    private int _maxSegments = 0;
+
+    /** Packets with keys up to _retrievedKey have been retrieved */
+    private long _retrievedKey = Long.MIN_VALUE;
+
+    /** Closed segments with keys up to _compactedKey are compacted */
+    private long _compactedKey = Long.MIN_VALUE;
+
+    private SiamTimerTask _compactTask = null;
+
+    /** Default maximum bytes of recently appended records to cache;
+	the cache is disabled by default */
+    public static final long DEFAULT_CACHE_BYTES = 0;
+
+    /** Recently appended records */
+    private DevicePacketCache _cache = null;
+
     /**
-       Create DeviceLog for specified device, sequence number, in
-       specified directory.
+       Create DeviceLog for specified device, segment number, in
+       specified directory. The log is a view of that segment only.
     */
     protected DeviceLog(long deviceId, int segmentNum, String directory) 
 	throws IOException, FileNotFoundException {
 	this._deviceId = deviceId;
-		
-	// NOTE: this version of DeviceLog only supports one 'set' of
-	// index and data classes. This will be fixed with the addition
-	// of a DeviceLogEntry class
+	_directory = directory;
+	_segmentNum = segmentNum;
 		
 	_index = new DeviceLogIndex(_deviceId, segmentNum, directory);
 	_data  = new DeviceLogData(_deviceId, segmentNum, directory);
-	long startSequence = _index.getLastSequenceNumber();
 	try {
 	    _sequenceNumber = 
 		new SequenceNumber(Long.MIN_VALUE, Long.MAX_VALUE, 
-				   startSequence);
+				   _index.getLastSequenceNumber());
 	}
 	catch (RangeException e) {
 	    throw new IOException(e.getMessage());
@@ -120,7 +191,60 @@ public class DeviceLog {
     public DeviceLog(long deviceId, String directory) 
 	throws FileNotFoundException, IOException {
 		
-	this(deviceId, 0, directory);
+	this(deviceId, lastSegmentNum(deviceId, directory), directory);
+	openSegmentDirectory();
+	setCacheBytes(DEFAULT_CACHE_BYTES);
+    }
+
+
+    /** Return number of newest segment in directory, or 0 if none. */
+    private static int lastSegmentNum(long deviceId, String directory) {
+	int[] segments = DeviceLogSegment.list(deviceId, directory);
+	if (segments.length == 0) {
+	    return 0;
+	}
+	return segments[segments.length - 1];
+    }
+
+
+    /** Build the directory of closed segments; if the active segment
+	is empty, continue numbering from the newest closed segment. */
+    private void openSegmentDirectory() throws IOException {
+
+	_segments = new Vector();
+
+	int[] numbers = DeviceLogSegment.list(_deviceId, _directory);
+	for (int i = 0; i < numbers.length && numbers[i] < _segmentNum; i++) {
+	    try {
+		_segments.addElement(DeviceLogSegment.read(_deviceId, 
+							   numbers[i],
+							   _directory));
+	    }
+	    catch (IOException e) {
+		_log4j.error("Device " + _deviceId + ": can't read segment " + 
+			     numbers[i], e);
+	    }
+	}
+
+	readMarks();
+
+	if (_index.getMaxIndex() > 0 || _segments.size() == 0) {
+	    return;
+	}
+
+	DeviceLogSegment last = 
+	    (DeviceLogSegment )_segments.lastElement();
+
+	try {
+	    _sequenceNumber = 
+		new SequenceNumber(Long.MIN_VALUE, Long.MAX_VALUE, 
+				   last._nextSequenceNumber);
+	}
+	catch (RangeException e) {
+	    throw new IOException(e.getMessage());
+	}
+	_metadataRef = Math.max(_metadataRef, last._lastMetadataRef);
+	_lastTimestamp = last._maxKey;
     }
 	
 	
@@ -152,11 +276,12 @@ public class DeviceLog {
 	// system, so disable it here.
 	checkTime = false;
 
-	ByteArrayOutputStream byteOutput = null;
-	ObjectOutputStream objectOutput = null;
+	if (segmentFull(packet.systemTime())) {
+	    rollSegment();
+	}
+
 	DeviceLogIndex.Entry newIndexEntry;
 	long key;
-	byte[] serializedPacket = null;
 	int objectSize = 0;
 		
 	// TODO: check packet validity
@@ -166,15 +291,14 @@ public class DeviceLog {
 	boolean timeError = false;
 
 	if (setSequenceNos) {
-	    long sequenceNumber = _sequenceNumber.getNext();
-	    packet.setSequenceNo(sequenceNumber);
-			
-	    packet.setMetadataRef(_metadataRef);
-			
-	    if(packet instanceof MetadataPacket){
-		_metadataRef = sequenceNumber;
-		_index.updateMetadataRef(_metadataRef);
-	    }
+	    assignSequenceNos(packet);
+	}
+
+	// Record the newest numbered metadata packet in the journal;
+	// in group-commit mode the journal is written on flush
+	if (packet instanceof MetadataPacket && 
+	    packet.sequenceNo() == numberedMetadataRef()) {
+	    _index.updateMetadataRef(packet.sequenceNo(), !_groupCommit);
 	}
 		
 	key = packet.systemTime();
@@ -194,20 +318,13 @@ public class DeviceLog {
 		
 	// serialize the packet
 	try {
-	    byteOutput = new ByteArrayOutputStream();	
-	    byteOutput.write(SYNC_PATTERN);
-	    objectOutput = new ObjectOutputStream(byteOutput);
-			
-	    objectOutput.writeObject(packet);
-	    //packet.serialize(objectOutput);
-	    objectOutput.flush();
-			
-	    serializedPacket = byteOutput.toByteArray();
-	    objectSize = serializedPacket.length;
+	    objectSize = _codec.encode(packet, _recordFormat);
 	}
 	catch (Exception e) {
 	    _log4j.error("appendPacket: serialization exception", e);
+	    return;
 	}
+	byte[] serializedPacket = _codec.getBuffer();
 		
 	newIndexEntry = new DeviceLogIndex.Entry();
 		
@@ -215,70 +332,1009 @@ public class DeviceLog {
 	newIndexEntry.setDataSize(objectSize);
 		
 	newIndexEntry.setSequenceNumber(packet.sequenceNo());
+	newIndexEntry.setColumns(packet);
 		
 	// give the serialized packet to the DeviceLogData object to
 	// insert the indexing data
 		
 	//create a running stopwatch to time the file write to logs
 	//StopWatch writeTimer = new StopWatch(true);
-	if(_log4j.isDebugEnabled()==true){
+	if (_cache != null) {
+	    _cache.add(serializedPacket, objectSize, key);
+	}
+
+	if (_groupCommit) {
+	    appendToBatch(serializedPacket, objectSize, newIndexEntry);
+	}
+	else if (Metrics.enabled() || _log4j.isDebugEnabled()) {
 	_writeTimer.clear();
 	_writeTimer.start();
 
-	_data.appendLogData(serializedPacket, newIndexEntry);
+	_data.appendLogData(serializedPacket, objectSize, newIndexEntry);
+
+	_writeTimer.stop();
+	Metrics.record("log.dataAppendMsec", _writeTimer.read());
+	if ( _writeTimer.read() > 1000)
+	    _log4j.warn("_data.appendLogData() took " + 
+			 _writeTimer.read() + " ms");
+	// now add the complete indexing entry with DeviceLogIndex object
+	_writeTimer.clear();
+	_writeTimer.start();
+
+	_index.addIndexEntry(newIndexEntry);
+
+	_writeTimer.stop();
+	Metrics.record("log.indexAppendMsec", _writeTimer.read());
+	if ( _writeTimer.read() > 1000)
+	    _log4j.warn("_data.addDeviceLogIndex() took " + 
+			 _writeTimer.read() + " ms");
+	}else{
+	_data.appendLogData(serializedPacket, objectSize, newIndexEntry);
+	_index.addIndexEntry(newIndexEntry);
+	}
+		
+	if (timeError) {
+	    // Time rollback was detected; append a message packet to log
+	    DeviceMessagePacket message = 
+		new DeviceMessagePacket(packet.sourceID());
+			
+	    message.setMessage(System.currentTimeMillis(), 
+			       ("Time rollback detected in packet seqNo=" + 
+				packet.sequenceNo()).getBytes());
+			
+	    appendPacket(message, true, false);
+	}
+		
+	return;
+    }
+	
+    /** Set packet's sequence number and metadata reference, as 
+	appendPacket() does when setSequenceNos is true. This lets a 
+	packet be numbered when it is queued for writing, without waiting
+	for a write in progress; it must then be appended with 
+	setSequenceNos false, in the order packets were numbered.
+	@see AsyncLogWriter
+    */
+    public void assignSequenceNos(DevicePacket packet) {
+	synchronized (_sequenceLock) {
+	    long sequenceNumber = _sequenceNumber.getNext();
+	    packet.setSequenceNo(sequenceNumber);
+	    packet.setMetadataRef(_metadataRef);
+
+	    if (packet instanceof MetadataPacket) {
+		_metadataRef = sequenceNumber;
+	    }
+	}
+    }
+
+
+    /** Return sequence number of last numbered metadata packet. */
+    private long numberedMetadataRef() {
+	synchronized (_sequenceLock) {
+	    return _metadataRef;
+	}
+    }
+
+
+    /** Append packets, which must already be numbered (see 
+	assignSequenceNos()), with one write of the data file, index and
+	journal. In group-commit mode the packets join the pending batch
+	instead.
+	@param packets packets to append, in order
+	@param nPackets number of packets to append
+    */
+    public synchronized void appendPackets(DevicePacket[] packets, 
+					   int nPackets) {
+	if (_groupCommit) {
+	    for (int i = 0; i < nPackets; i++) {
+		appendPacket(packets[i], false, true);
+	    }
+	    return;
+	}
+
+	// Use a one-time group-commit batch
+	_groupCommit = true;
+	_maxBatchPackets = nPackets + 1;
+	_flushIntervalMsec = 0;
+	_durability = SYNC_ON_FLUSH;
+	if (_batchEntries == null || _batchEntries.length < _maxBatchPackets) {
+	    _batchEntries = new DeviceLogIndex.Entry[_maxBatchPackets];
+	}
+	try {
+	    for (int i = 0; i < nPackets; i++) {
+		appendPacket(packets[i], false, true);
+	    }
+	    flush();
+	}
+	finally {
+	    _groupCommit = false;
+	}
+    }
+
+
+    /** This method appends the specified <code>DevicePacket</code> object to
+	the log that is being maintained. The object is serialized and 
+	subsequently written to a data file while indexing information is 
+	maintained. This version of appendPacket() will automatically set 
+	the packet's sequence number and metadata reference.
+	@param packet <code>DevicePacket</code> object to append to active log
+    */
+    public synchronized void appendPacket(DevicePacket packet) {
+	appendPacket(packet, true, true);
+    }
+
+
+    /**
+       Enable group-commit mode. Appended packets are held in memory
+       and written to the data file, index and journal with one write 
+       each when maxBatchPackets packets have accumulated, or 
+       flushIntervalMsec after the first packet of the batch was 
+       appended, whichever comes first. Any read of the log flushes
+       the pending batch first, so readers always see every appended 
+       packet. Packets in an unflushed batch are lost if the node
+       loses power; records that reached the data file but not the 
+       index are recovered by recover(), which the node calls when it
+       opens the log.
+       @param maxBatchPackets maximum number of packets per batch
+       @param flushIntervalMsec maximum time a packet may remain 
+       unwritten; zero or less disables time-based flushes
+       @param durability SYNC_ON_FLUSH or SYNC_NONE
+    */
+    public synchronized void enableGroupCommit(int maxBatchPackets,
+					       long flushIntervalMsec,
+					       int durability) {
+	flush();
+
+	if (maxBatchPackets < 1) {
+	    maxBatchPackets = 1;
+	}
+	if (durability != SYNC_NONE) {
+	    durability = SYNC_ON_FLUSH;
+	}
+	_maxBatchPackets = maxBatchPackets;
+	_flushIntervalMsec = flushIntervalMsec;
+	_durability = durability;
+	_batchEntries = new DeviceLogIndex.Entry[maxBatchPackets];
+	_groupCommit = true;
+
+	_log4j.debug("enableGroupCommit() for device " + _deviceId + 
+		     ": maxBatchPackets=" + maxBatchPackets + 
+		     ", flushIntervalMsec=" + flushIntervalMsec + 
+		     ", durability=" + durability);
+    }
+
+
+    /** Flush any pending batch and return to writing each packet as
+	it is appended. */
+    public synchronized void disableGroupCommit() {
+	flush();
+	_groupCommit = false;
+	_batchEntries = null;
+	_batchBuf = new byte[0];
+    }
+
+
+    /** Enable or disable index searches through a memory-mapped view
+	of the index file. Mapped searches read entries directly from
+	memory instead of issuing a seek and several reads per entry, 
+	which matters for retrievals over large logs; the mapping uses
+	address space roughly equal to the index file size. */
+    public synchronized void setMappedIndex(boolean enable) {
+	_index.setMappedReads(enable);
+    }
+
+
+    /** Return true if index searches use a memory-mapped view. */
+    public boolean mappedIndexEnabled() {
+	return _index.mappedReadsEnabled();
+    }
+
+
+    /** Set format of subsequently appended records, either
+	DevicePacketCodec.SERIALIZED_FORMAT (Java serialization, 
+	readable by all SIAM versions) or DevicePacketCodec.COMPACT_FORMAT.
+	Records of both formats may be mixed within a log. */
+    public synchronized void setRecordFormat(int format) {
+	if (format != DevicePacketCodec.COMPACT_FORMAT) {
+	    format = DevicePacketCodec.SERIALIZED_FORMAT;
+	}
+	_recordFormat = format;
+    }
+
+
+    /** Return format of appended records. */
+    public int getRecordFormat() {
+	return _recordFormat;
+    }
+
+
+    /** Set maximum bytes of recently appended records held in memory
+	to answer retrievals of the newest packets; zero disables the
+	cache. */
+    public synchronized void setCacheBytes(long maxBytes) {
+	if (maxBytes <= 0) {
+	    _cache = null;
+	}
+	else if (_cache != null) {
+	    _cache.setMaxBytes(maxBytes);
+	}
+	else {
+	    // Packets already in the log aren't cached
+	    long floorKey = Long.MIN_VALUE;
+	    if (nPackets() > 0) {
+		floorKey = getMaxTimestamp();
+	    }
+	    _cache = new DevicePacketCache(maxBytes, floorKey);
+	}
+    }
+
+
+    /** Return number of retrievals answered from the recent-packet 
+	cache. */
+    public long getCacheHits() {
+	DevicePacketCache cache = _cache;
+	return (cache == null ? 0 : cache.getHits());
+    }
+
+
+    /** Return number of retrievals that could not be answered from the
+	recent-packet cache. */
+    public long getCacheMisses() {
+	DevicePacketCache cache = _cache;
+	return (cache == null ? 0 : cache.getMisses());
+    }
+
+
+    /** Return packets in key range from the recent-packet cache, or 
+	null if they aren't all cached. */
+    DevicePacketSet getCachedPackets(long startKey, long endKey, 
+				     int maxEntries) {
+	DevicePacketCache cache = _cache;
+	if (cache == null) {
+	    return null;
+	}
+	return cache.getPackets(startKey, endKey, maxEntries);
+    }
+
+
+    /** Return true if group-commit mode is enabled. */
+    public boolean groupCommitEnabled() {
+	return _groupCommit;
+    }
+
+
+    /** Write any packets pending in the group-commit batch to the 
+	data file, then the index entries, then the journal. */
+    public synchronized void flush() {
+
+	if (_batchPackets == 0) {
+	    return;
+	}
+
+	if (_flushTask != null) {
+	    _flushTask.cancel();
+	    _flushTask = null;
+	}
+
+	boolean sync = (_durability == SYNC_ON_FLUSH);
+	long start = (Metrics.enabled() ? System.currentTimeMillis() : 0);
+
+	if (_data.appendLogData(_batchBuf, _batchBytes, sync)) {
+	    _index.addIndexEntries(_batchEntries, _batchPackets, sync);
+	}
+	else {
+	    _log4j.error("flush(): lost " + _batchPackets + 
+			 " packets for device " + _deviceId);
+	}
+
+	if (start != 0) {
+	    Metrics.record("log.batchAppendMsec", 
+			   System.currentTimeMillis() - start);
+	}
+
+	for (int i = 0; i < _batchPackets; i++) {
+	    _batchEntries[i] = null;
+	}
+	_batchPackets = 0;
+	_batchBytes = 0;
+    }
+
+
+    /** Add serialized packet and its index entry to the group-commit 
+	batch, flushing if the batch is full. */
+    private void appendToBatch(byte[] serializedPacket, int length,
+			       DeviceLogIndex.Entry entry) {
+
+	entry.setDataOffset(_data.getExtent() + _batchBytes);
+	entry.setDataSize(length);
+
+	if (_batchBytes + length > _batchBuf.length) {
+	    byte[] newBuf = 
+		new byte[Math.max(2 * _batchBuf.length, 
+				  _batchBytes + length)];
+
+	    System.arraycopy(_batchBuf, 0, newBuf, 0, _batchBytes);
+	    _batchBuf = newBuf;
+	}
+	System.arraycopy(serializedPacket, 0, _batchBuf, _batchBytes, 
+			 length);
+
+	_batchBytes += length;
+	_batchEntries[_batchPackets++] = entry;
+
+	if (_batchPackets >= _maxBatchPackets) {
+	    flush();
+	}
+	else if (_flushTask == null && _flushIntervalMsec > 0) {
+	    _flushTask = new FlushTask();
+	    try {
+		getFlushTimer().schedule(_flushTask, _flushIntervalMsec);
+	    }
+	    catch (IllegalStateException e) {
+		_log4j.error("appendToBatch(): can't schedule flush", e);
+		flush();
+	    }
+	}
+    }
+
+
+    /** Return timer shared by all logs for interval flushes. */
+    private static SiamTimer getFlushTimer() {
+	synchronized (_classLock) {
+	    if (_flushTimer == null) {
+		_flushTimer = new SiamTimer(true);
+		_flushTimer.setThreadName("DeviceLog-flush");
+	    }
+	    return _flushTimer;
+	}
+    }
+
+
+    /** Flushes the group-commit batch when the flush interval expires. */
+    private class FlushTask extends SiamTimerTask {
+	public void run() {
+	    flush();
+	}
+    }
+
+
+    /**
+       Start a new segment when the active segment's data file reaches
+       maxBytes, or when its packets span maxMsec; zero disables the
+       corresponding limit. Has no effect on a log opened on a single
+       segment.
+       @param maxBytes maximum data file size of a segment
+       @param maxMsec maximum time spanned by packets in a segment
+    */
+    public synchronized void setSegmentLimits(long maxBytes, long maxMsec) {
+	if (_segments == null) {
+	    _log4j.warn("setSegmentLimits(): log is a single-segment view");
+	    return;
+	}
+	_segmentMaxBytes = Math.max(maxBytes, 0);
+	_segmentMaxMsec = Math.max(maxMsec, 0);
+    }
+
+
+    /**
+       Delete closed segments whose newest packet is older than 
+       maxAgeMsec, and the oldest closed segments in excess of 
+       maxSegments; zero disables the corresponding limit. The newest
+       closed segment is always kept, since it carries the sequence 
+       numbering when the active segment is empty. Segments are deleted
+       in the background, and whenever a segment is closed.
+    */
+    public synchronized void setRetention(long maxAgeMsec, int maxSegments) {
+	_retentionMsec = Math.max(maxAgeMsec, 0);
+	_maxSegments = Math.max(maxSegments, 0);
+	scheduleMaintenance();
+    }
+
+
+    /**
+       Note that all packets with keys up to and including key have been
+       retrieved by the portal. Closed segments that lie entirely within 
+       the retrieved range are compacted in the background: the retrieved
+       packets are removed, except metadata packets (which later packets 
+       reference) and the segment's last packet. The retrieved key 
+       persists across restarts and never decreases.
+    */
+    public synchronized void setRetrievedKey(long key) {
+	if (key <= _retrievedKey) {
+	    return;
+	}
+	_retrievedKey = key;
+	writeMarks();
+
+	if (nextCompactable() != null) {
+	    scheduleMaintenance();
+	}
+    }
+
+
+    /**
+       Note that a retriever has stored nPackets packets with keys from
+       firstKey through lastKey. The retrieved key (see setRetrievedKey())
+       is advanced to lastKey only if these are all of the log's packets
+       in that range, and the log holds no packets between the retrieved
+       key and firstKey; packets that were filtered out or skipped are 
+       thus never compacted. Such packets hold the retrieved key back 
+       until retention deletes them. Returns true if the retrieved key 
+       was advanced.
+    */
+    public synchronized boolean acknowledgeRetrieved(long firstKey, 
+						     long lastKey,
+						     int nPackets) {
+	if (lastKey <= _retrievedKey || firstKey > lastKey) {
+	    return false;
+	}
+
+	if (firstKey > _retrievedKey + 1 && 
+	    nPackets(_retrievedKey + 1, firstKey - 1) > 0) {
+	    _log4j.debug("acknowledgeRetrieved(): packets between " + 
+			 _retrievedKey + " and " + firstKey + 
+			 " weren't retrieved");
+	    return false;
+	}
+
+	int nLogged = nPackets(firstKey, lastKey);
+	if (nLogged != nPackets) {
+	    _log4j.debug("acknowledgeRetrieved(): " + nPackets + " of " +
+			 nLogged + " packets retrieved between " + firstKey +
+			 " and " + lastKey);
+	    return false;
+	}
+
+	setRetrievedKey(lastKey);
+	return true;
+    }
+
+
+    /** Return key through which packets have been retrieved. */
+    public long getRetrievedKey() {
+	return _retrievedKey;
+    }
+
+
+    /** Return number of segments, including the active segment. */
+    public synchronized int nSegments() {
+	return (_segments == null ? 1 : _segments.size() + 1);
+    }
+
+
+    /**
+       Delete closed segments per the retention limits, then compact 
+       closed segments whose packets have all been retrieved (see 
+       setRetrievedKey()). Normally called from a background timer; 
+       the log remains usable while a segment is rewritten.
+    */
+    public void compact() {
+
+	applyRetention();
+
+	DeviceLogSegment segment;
+	while ((segment = nextCompactable()) != null) {
+	    if (!compactSegment(segment)) {
+		break;
+	    }
+	}
+    }
+
+
+    /**
+       Record packet type and size in the index of every packet that
+       was logged before the index held them, so that filtered 
+       retrievals need not read those packets; returns number of 
+       index entries updated. FilteredDeviceLog also updates the 
+       entries of the writer's log (see recover()) as it reads their
+       packets.
+    */
+    public int upgradeIndexColumns() {
+
+	flush();
+
+	int nUpdated = 0;
+	Vector segments = segmentsInRange(Long.MIN_VALUE, Long.MAX_VALUE);
+
+	for (int s = 0; s <= segments.size(); s++) {
+	    DeviceLog log = this;
+	    if (s < segments.size()) {
+		log = openSegment((DeviceLogSegment )segments.elementAt(s));
+		if (log == null) {
+		    continue;
+		}
+	    }
+	    try {
+		nUpdated += log.upgradeSegmentColumns();
+	    }
+	    finally {
+		closeSegment(log);
+	    }
+	}
+	_log4j.info("Device " + _deviceId + ": upgraded " + nUpdated + 
+		    " index entries");
+
+	return nUpdated;
+    }
+
+
+    /** Record packet type and size of this segment's index entries 
+	that lack them. */
+    private synchronized int upgradeSegmentColumns() {
+
+	_index.openForWriting();
+
+	final int chunkSize = 256;
+	int nUpdated = 0;
+	int maxIndex = _index.getMaxIndex();
+
+	for (int first = 1; first <= maxIndex; first += chunkSize) {
+	    Vector entries;
+	    try {
+		entries = _index.getEntries(first, chunkSize);
+	    }
+	    catch (NoDataException e) {
+		break;
+	    }
+	    if (entries == null) {
+		break;
+	    }
+	    _index.readColumns(entries);
+
+	    for (int i = 0; i < entries.size(); i++) {
+		DeviceLogIndex.Entry entry = 
+		    (DeviceLogIndex.Entry )entries.elementAt(i);
+
+		if (entry.hasColumns()) {
+		    continue;
+		}
+		try {
+		    DevicePacket packet = getPacket(entry);
+		    if (packet != null) {
+			entry.setColumns(packet);
+			_index.writeColumns(entry);
+			nUpdated++;
+		    }
+		}
+		catch (NoDataException e) {
+		    _log4j.warn("upgradeSegmentColumns(): can't read entry " +
+				entry.getEntryIndex() + ": " + e.getMessage());
+		}
+	    }
+	}
+	return nUpdated;
+    }
+
+
+    /** Return true if the active segment should be closed before
+	appending a packet with specified key. */
+    private boolean segmentFull(long key) {
+
+	if (_segments == null || _index.getMaxIndex() == 0) {
+	    return false;
+	}
+	if (_segmentMaxBytes > 0 && 
+	    _data.getExtent() + _batchBytes >= _segmentMaxBytes) {
+	    return true;
+	}
+	if (_segmentMaxMsec > 0 && 
+	    key - _index.getMinTimestamp() >= _segmentMaxMsec) {
+	    return true;
+	}
+	return false;
+    }
+
+
+    /** Close the active segment and start the next one. */
+    private void rollSegment() {
+
+	flush();
+
+	int closedNum = _segmentNum;
+	boolean mapped = _index.mappedReadsEnabled();
+	long metadataRef = _index.getLastMetadataRef();
+
+	try {
+	    _index.close();
+	    _data.close();
+	    _segments.addElement(DeviceLogSegment.read(_deviceId, closedNum,
+						       _directory));
+
+	    _index = new DeviceLogIndex(_deviceId, closedNum + 1, _directory);
+	    _data = new DeviceLogData(_deviceId, closedNum + 1, _directory);
+	    _segmentNum = closedNum + 1;
+	}
+	catch (IOException e) {
+	    _log4j.error("rollSegment(): can't start segment " + 
+			 (closedNum + 1) + " of device " + _deviceId + 
+			 "; segmentation disabled", e);
+
+	    _segmentMaxBytes = _segmentMaxMsec = 0;
+	    reopenSegment(closedNum);
+	}
+
+	_log4j.info("Device " + _deviceId + ": started segment " + 
+		    _segmentNum);
+
+	_index.setMappedReads(mapped);
+	_index.updateMetadataRef(metadataRef, true);
+
+	scheduleMaintenance();
+    }
+
+
+    /** Continue appending to specified segment after rollSegment()
+	failed. */
+    private void reopenSegment(int segmentNum) {
+
+	if (_segments.size() > 0 && 
+	    ((DeviceLogSegment )_segments.lastElement())._segmentNum == 
+	    segmentNum) {
+	    _segments.removeElementAt(_segments.size() - 1);
+	}
+	try {
+	    _index = new DeviceLogIndex(_deviceId, segmentNum, _directory);
+	    _data = new DeviceLogData(_deviceId, segmentNum, _directory);
+	    _segmentNum = segmentNum;
+	}
+	catch (IOException e) {
+	    _log4j.error("reopenSegment(): can't reopen segment " + 
+			 segmentNum + " of device " + _deviceId, e);
+	}
+    }
+
+
+    /** Return closed segments overlapping the specified key range, 
+	oldest first. */
+    synchronized Vector segmentsInRange(long startKey, long endKey) {
+
+	Vector segments = new Vector();
+	if (_segments == null) {
+	    return segments;
+	}
+	for (int i = 0; i < _segments.size(); i++) {
+	    DeviceLogSegment segment = 
+		(DeviceLogSegment )_segments.elementAt(i);
+
+	    if (segment.overlaps(startKey, endKey)) {
+		segments.addElement(segment);
+	    }
+	}
+	return segments;
+    }
+
+
+    /** Open a single-segment view of a closed segment, or return null 
+	if it has since been deleted or can't be opened. Caller must 
+	close the returned log. */
+    synchronized DeviceLog openSegment(DeviceLogSegment segment) {
+
+	if (_segments == null || !_segments.contains(segment)) {
+	    return null;
+	}
+	try {
+	    DeviceLog log = new DeviceLog(_deviceId, segment._segmentNum, 
+					  _directory);
+
+	    log.setMappedIndex(mappedIndexEnabled());
+	    if (_index.writable()) {
+		// Segment views of the writer's log may record columns
+		log._index.openForWriting();
+	    }
+	    return log;
+	}
+	catch (IOException e) {
+	    _log4j.error("openSegment(): can't open segment " + 
+			 segment._segmentNum + " of device " + _deviceId, e);
+	    return null;
+	}
+    }
+
+
+    /** Close single-segment view returned by openSegment(). */
+    void closeSegment(DeviceLog log) {
+	if (log == null || log == this) {
+	    return;
+	}
+	try {
+	    log.close();
+	}
+	catch (IOException e) {
+	    _log4j.error("closeSegment(): " + e);
+	}
+    }
+
+
+    /** Return all closed segments, including empty ones, oldest
+	first. */
+    synchronized Vector segments() {
+	Vector segments = new Vector();
+	if (_segments != null) {
+	    segments.addAll(_segments);
+	}
+	return segments;
+    }
+
+
+    /** Return number of the segment this log appends to (or views). */
+    int segmentNum() {
+	return _segmentNum;
+    }
+
+
+    /** Return name of the data file of this log's segment. */
+    String dataFileName() {
+	return DeviceLogSegment.dataFileName(_deviceId, _segmentNum, "",
+					     _directory);
+    }
+
+
+    /** Delete closed segments per the retention limits. */
+    private synchronized void applyRetention() {
+
+	if (_segments == null) {
+	    return;
+	}
+	long oldest = System.currentTimeMillis() - _retentionMsec;
+
+	while (_segments.size() > 1) {
+	    DeviceLogSegment segment = 
+		(DeviceLogSegment )_segments.firstElement();
+
+	    boolean expired = 
+		(_retentionMsec > 0 && segment._maxKey < oldest);
+
+	    boolean excess = 
+		(_maxSegments > 0 && _segments.size() > _maxSegments);
+
+	    if (!expired && !excess) {
+		break;
+	    }
+	    _log4j.info("Device " + _deviceId + ": deleting " + segment);
+	    segment.delete(_deviceId, _directory);
+	    _segments.removeElementAt(0);
+	}
+    }
+
+
+    /** Return oldest closed segment that has been entirely retrieved
+	but not compacted, or null if none. */
+    private synchronized DeviceLogSegment nextCompactable() {
+
+	if (_segments == null) {
+	    return null;
+	}
+	for (int i = 0; i < _segments.size(); i++) {
+	    DeviceLogSegment segment = 
+		(DeviceLogSegment )_segments.elementAt(i);
+
+	    if (segment._maxKey > _retrievedKey) {
+		return null;
+	    }
+	    if (segment._maxKey > _compactedKey) {
+		return segment;
+	    }
+	}
+	return null;
+    }
+
+
+    /** Rewrite closed segment without its retrieved packets; return 
+	false on failure. */
+    private boolean compactSegment(DeviceLogSegment segment) {
+
+	long retrievedKey = _retrievedKey;
+	int nKept = 0;
+	int nEntries = 0;
+	DeviceLog source = null;
+	DeviceLogIndex index = null;
+	DeviceLogData data = null;
+
+	// Segment files are no longer written, so they are copied without
+	// holding this log's lock
+	try {
+	    source = openSegment(segment);
+	    if (source == null) {
+		return false;
+	    }
+	    new File(DeviceLogSegment.indexFileName(_deviceId, 
+						    segment._segmentNum,
+						    COMPACT_SUFFIX, 
+						    _directory)).delete();
+	    new File(DeviceLogSegment.dataFileName(_deviceId, 
+						   segment._segmentNum,
+						   COMPACT_SUFFIX, 
+						   _directory)).delete();
+	    new File(DeviceLogIndexColumns.fileName(_deviceId, 
+						    segment._segmentNum,
+						    COMPACT_SUFFIX, 
+						    _directory)).delete();
+	    new File(DeviceLogIndexBuckets.fileName(_deviceId, 
+						    segment._segmentNum,
+						    COMPACT_SUFFIX, 
+						    _directory)).delete();
+
+	    index = new DeviceLogIndex(_deviceId, segment._segmentNum, 
+				       COMPACT_SUFFIX, _directory);
+	    data = new DeviceLogData(_deviceId, segment._segmentNum, 
+				     COMPACT_SUFFIX, _directory);
+
+	    nEntries = source._index.getMaxIndex();
+	    DeviceLogIndex.Entry[] kept = new DeviceLogIndex.Entry[nEntries];
+
+	    for (int i = 1; i <= nEntries; i++) {
+		DeviceLogIndex.Entry entry = new DeviceLogIndex.Entry();
+		source._index.getIndexEntry(i, entry);
+
+		byte[] record = source._data.readLogData(entry);
+		if (record == null) {
+		    continue;
+		}
+		source._index.readColumns(entry);
+		if (!entry.hasColumns()) {
+		    DevicePacket packet = readRecord(record);
+		    if (packet != null) {
+			entry.setColumns(packet);
+		    }
+		}
+		if (i < nEntries && entry.getKey() <= retrievedKey && 
+		    entry.getTypeFlag() != DevicePacket.METADATA_FLAG) {
+		    continue;
+		}
+		entry.setDataOffset(data.getExtent());
+		data.appendLogData(record, record.length, i == nEntries);
+		kept[nKept++] = entry;
+	    }
+
+	    index.updateMetadataRef(source.getLastMetadataRef(), false);
+	    index.addIndexEntries(kept, nKept, true);
+	}
+	catch (Exception e) {
+	    _log4j.error("compactSegment(): failed to compact segment " + 
+			 segment._segmentNum + " of device " + _deviceId, e);
+	    return false;
+	}
+	finally {
+	    closeSegment(source);
+	    try {
+		if (index != null) {
+		    index.close();
+		}
+		if (data != null) {
+		    data.close();
+		}
+	    }
+	    catch (IOException e) {
+		_log4j.error("compactSegment(): " + e);
+	    }
+	}
+
+	synchronized (this) {
+	    if (!_segments.contains(segment) || 
+		!segment.replaceWith(_deviceId, COMPACT_SUFFIX, _directory)) {
+		return false;
+	    }
+	    try {
+		segment.copy(DeviceLogSegment.read(_deviceId, 
+						   segment._segmentNum,
+						   _directory));
+	    }
+	    catch (IOException e) {
+		_log4j.error("compactSegment(): can't read segment " + 
+			     segment._segmentNum, e);
+	    }
+	    _compactedKey = segment._maxKey;
+	    writeMarks();
+	}
+
+	_log4j.info("Device " + _deviceId + ": compacted segment " + 
+		    segment._segmentNum + " from " + nEntries + " to " + 
+		    nKept + " packets");
+
+	return true;
+    }
+
+
+    /** Deserialize record; return null if it can't be read. */
+    private DevicePacket readRecord(byte[] record) {
+	try {
+	    return decodePacket(record);
+	}
+	catch (Exception e) {
+	    return null;
+	}
+    }
+
+
+    /** Schedule retention and compaction on the shared background 
+	timer. */
+    private synchronized void scheduleMaintenance() {
+
+	if (_segments == null || _compactTask != null) {
+	    return;
+	}
+	_compactTask = new CompactTask();
+	try {
+	    getCompactTimer().schedule(_compactTask, 0);
+	}
+	catch (IllegalStateException e) {
+	    _log4j.error("scheduleMaintenance(): can't schedule", e);
+	    _compactTask = null;
+	}
+    }
+
+
+    /** Return timer shared by all logs for retention and compaction. */
+    private static SiamTimer getCompactTimer() {
+	synchronized (_classLock) {
+	    if (_compactTimer == null) {
+		_compactTimer = new SiamTimer(true);
+		_compactTimer.setThreadName("DeviceLog-compact");
+	    }
+	    return _compactTimer;
+	}
+    }
+
 
-	_writeTimer.stop();
-	if ( _writeTimer.read() > 1000)
-	    _log4j.warn("_data.appendLogData() took " + 
-			 _writeTimer.read() + " ms");
-	// now add the complete indexing entry with DeviceLogIndex object
-	_writeTimer.clear();
-	_writeTimer.start();
+    /** Applies retention and compaction in the background. */
+    private class CompactTask extends SiamTimerTask {
+	public void run() {
+	    synchronized (DeviceLog.this) {
+		_compactTask = null;
+	    }
+	    compact();
+	}
+    }
 
-	_index.addIndexEntry(newIndexEntry);
 
-	_writeTimer.stop();
-	if ( _writeTimer.read() > 1000)
-	    _log4j.warn("_data.addDeviceLogIndex() took " + 
-			 _writeTimer.read() + " ms");
-	}else{
-	_data.appendLogData(serializedPacket, newIndexEntry);
-	_index.addIndexEntry(newIndexEntry);
+    /** Return name of file holding retrieved and compacted keys. */
+    private String marksFileName() {
+	return _directory + File.separator + _deviceId + ".seg";
+    }
+
+
+    /** Read retrieved and compacted keys. */
+    private void readMarks() {
+
+	File file = new File(marksFileName());
+	if (!file.exists()) {
+	    return;
 	}
+	Properties marks = new Properties();
 	try {
-	    // close objectOutput, byteOutput
-	    objectOutput.close();
-	    byteOutput.close();
-	}
-	catch(Exception e) {
-	    _log4j.error("appendPacket:append exception on close", 
-			  e);
+	    FileInputStream input = new FileInputStream(file);
+	    marks.load(input);
+	    input.close();
+	    _retrievedKey = 
+		Long.parseLong(marks.getProperty("retrievedKey", 
+						 "" + Long.MIN_VALUE));
+	    _compactedKey = 
+		Long.parseLong(marks.getProperty("compactedKey", 
+						 "" + Long.MIN_VALUE));
 	}
-		
-	if (timeError) {
-	    // Time rollback was detected; append a message packet to log
-	    DeviceMessagePacket message = 
-		new DeviceMessagePacket(packet.sourceID());
-			
-	    message.setMessage(System.currentTimeMillis(), 
-			       ("Time rollback detected in packet seqNo=" + 
-				packet.sequenceNo()).getBytes());
-			
-	    appendPacket(message, true, false);
+	catch (Exception e) {
+	    _log4j.error("readMarks(): can't read " + file, e);
 	}
-		
-	return;
     }
-	
-    /** This method appends the specified <code>DevicePacket</code> object to
-	the log that is being maintained. The object is serialized and 
-	subsequently written to a data file while indexing information is 
-	maintained. This version of appendPacket() will automatically set 
-	the packet's sequence number and metadata reference.
-	@param packet <code>DevicePacket</code> object to append to active log
-    */
-    public synchronized void appendPacket(DevicePacket packet) {
-	appendPacket(packet, true, true);
+
+
+    /** Write retrieved and compacted keys. */
+    private void writeMarks() {
+
+	if (_segments == null) {
+	    return;
+	}
+	Properties marks = new Properties();
+	marks.setProperty("retrievedKey", "" + _retrievedKey);
+	marks.setProperty("compactedKey", "" + _compactedKey);
+	try {
+	    FileOutputStream output = new FileOutputStream(marksFileName());
+	    marks.store(output, "DeviceLog " + _deviceId);
+	    output.close();
+	}
+	catch (IOException e) {
+	    _log4j.error("writeMarks(): can't write " + marksFileName(), e);
+	}
     }
 
 
@@ -297,6 +1353,71 @@ public class DeviceLog {
 				      int maxEntries) 
 	throws NoDataException {
 		
+	flush();
+
+	DevicePacketSet cached = 
+	    getCachedPackets(startKey, endKey, maxEntries);
+
+	if (cached != null) {
+	    if (cached._packets.size() == 0) {
+		_log4j.info("No data for device " + _deviceId);
+		throw new NoDataException();
+	    }
+	    return cached;
+	}
+
+	Vector segments = segmentsInRange(startKey, endKey);
+	if (segments.size() == 0) {
+	    return getSegmentPackets(startKey, endKey, maxEntries);
+	}
+
+	// Collect packets from the overlapping closed segments, oldest
+	// first, then from the active segment
+	Vector packets = new Vector();
+	boolean complete = true;
+
+	for (int i = 0; i <= segments.size() && complete; i++) {
+	    int remaining = maxEntries - packets.size();
+	    DeviceLog log = this;
+	    if (i < segments.size()) {
+		log = openSegment((DeviceLogSegment )segments.elementAt(i));
+		if (log == null) {
+		    continue;
+		}
+	    }
+	    try {
+		if (remaining <= 0) {
+		    // Set is incomplete if any packets remain in range
+		    complete = (log._index.nEntries(startKey, endKey) == 0);
+		    break;
+		}
+		DevicePacketSet set = 
+		    log.getSegmentPackets(startKey, endKey, remaining);
+
+		packets.addAll(set._packets);
+		complete = set.complete();
+	    }
+	    catch (NoDataException e) {
+		// No packets in range in this segment
+	    }
+	    finally {
+		closeSegment(log);
+	    }
+	}
+
+	if (packets.size() == 0) {
+	    _log4j.info("No data for device " + _deviceId);
+	    throw new NoDataException();
+	}
+	return new DevicePacketSet(packets, complete);
+    }
+
+
+    /** Return packets in key range from this log's active segment. */
+    private DevicePacketSet getSegmentPackets(long startKey, long endKey,
+					      int maxEntries) 
+	throws NoDataException {
+
 	// query the range and get the number of index entries
 	int nEntries = _index.nEntries(startKey, endKey);
 		
@@ -364,6 +1485,33 @@ public class DeviceLog {
      */
     public DevicePacket getLastPacket() throws NoDataException {
 
+	flush();
+
+	DevicePacketCache cache = _cache;
+	if (cache != null) {
+	    DevicePacket packet = cache.getLastPacket();
+	    if (packet != null) {
+		return packet;
+	    }
+	}
+
+	if (_index.getMaxIndex() == 0 && _segments != null && 
+	    _segments.size() > 0) {
+	    // Active segment is empty; get packet from newest closed segment
+	    DeviceLog log = 
+		openSegment((DeviceLogSegment )_segments.lastElement());
+
+	    if (log == null) {
+		throw new NoDataException("can't open last segment");
+	    }
+	    try {
+		return log.getLastPacket();
+	    }
+	    finally {
+		closeSegment(log);
+	    }
+	}
+
 	DeviceLogIndex.Entry entry = new DeviceLogIndex.Entry();
 		
 	_index.getIndexEntry(_index.getMaxIndex(), entry);
@@ -373,9 +1521,11 @@ public class DeviceLog {
 	
 	
     /** returns the next unread DevicePacket in sequential order. 
+	Sequential access is limited to the active segment.
 	@see org.mbari.siam.distributed.DevicePacket
     */
     public DevicePacket getNextPacket() throws NoDataException {
+	flush();
 	if (_index.nUnreadEntries() > 0) {
 	    DeviceLogIndex.Entry indexEntry = _index.getNextIndexEntry();
 	    return this.getPacket(indexEntry);
@@ -393,8 +1543,6 @@ public class DeviceLog {
 
 	DevicePacket retPacket = null;
 	byte[] serializedPacket;
-	ByteArrayInputStream byteInput;
-	ObjectInputStream objectInput;
 		
 
 	if (indexEntry == null) {
@@ -405,35 +1553,7 @@ public class DeviceLog {
 		
 	if (serializedPacket != null) {
 	    try {
-		byteInput = new ByteArrayInputStream(serializedPacket);
-		byteInput.mark(SYNC_PATTERN.length);
-		if (byteInput.read(_syncByteBuf, 0, SYNC_PATTERN.length) != 
-		    SYNC_PATTERN.length) {
-		    throw new NoDataException("couldn't read sync bytes");
-		}
-		// Check for sync pattern bytes
-		boolean gotSync = true;
-		for (int i = 0; i < SYNC_PATTERN.length; i++) {
-		    if (_syncByteBuf[i] != SYNC_PATTERN[i]) {
-			gotSync = false;
-			break;
-		    }
-		}
-
-		if (!gotSync) {
-		    _log4j.warn("getPacket: Sync not found");
-		    byteInput.reset();
-		}
-
-		objectInput = new ObjectInputStream(byteInput);		
-
-
-		retPacket = (DevicePacket)objectInput.readObject();
-		//retPacket=DevicePacket.deserialize((DevicePacket)retPacket,objectInput);
-				
-		objectInput.close();
-		byteInput.close();
-				
+		retPacket = decodePacket(serializedPacket);
 	    } catch (StreamCorruptedException sce) {
 		_log4j.error("getPacket: object deserialize error",
 			      sce);
@@ -453,11 +1573,224 @@ public class DeviceLog {
 
 	return (DevicePacket)retPacket;	
     }
+
+
+    /** Deserialize packet from a record read from the data file. */
+    private DevicePacket decodePacket(byte[] serializedPacket) 
+	throws IOException, ClassNotFoundException {
+
+	return DevicePacketCodec.decode(serializedPacket, 0, 
+					serializedPacket.length);
+    }
+
+
+    /**
+       Rebuild index entries for records at the end of the data file
+       that were never indexed, e.g. because power was lost during a
+       group-commit flush after the data was written, and discard index
+       entries that were written but not journaled. This writes the
+       index, so only the node's writer calls it, when it opens the log;
+       logs opened just to be read (e.g. by LogUtility or 
+       DeviceLogChecker) are left as they are.
+       @return number of records recovered
+    */
+    public synchronized int recover() throws IOException {
+
+	_index.openForWriting();
+	_index.discardUnjournaledEntries();
+
+	int nRecovered = recoverUnindexedRecords();
+	if (nRecovered == 0) {
+	    return 0;
+	}
+
+	// Index now ends with the last recovered record
+	try {
+	    _sequenceNumber = 
+		new SequenceNumber(Long.MIN_VALUE, Long.MAX_VALUE, 
+				   _index.getLastSequenceNumber() + 1);
+	}
+	catch (RangeException e) {
+	    throw new IOException(e.getMessage());
+	}
+	_metadataRef = _index.getLastMetadataRef();
+	try {
+	    _lastTimestamp = getLastPacket().systemTime();
+	}
+	catch (Exception e) {
+	    _log4j.error("recover(): can't read last packet: " + e);
+	}
+	return nRecovered;
+    }
+
+
+    /**
+       Index unindexed records at the end of the data file. Records are
+       located by their sync patterns. A record that does not decode up
+       to the next sync pattern may contain the pattern in its data; it
+       is extended over following patterns, as long as the data after 
+       them isn't itself a readable record. A record that still can't 
+       be decoded (e.g. it was partly written) is skipped.
+       @return number of records recovered
+    */
+    private int recoverUnindexedRecords() throws IOException {
+
+	long start = 0;
+	if (_index.validIndex(_index.getMaxIndex())) {
+	    DeviceLogIndex.Entry last = new DeviceLogIndex.Entry();
+	    try {
+		_index.getIndexEntry(_index.getMaxIndex(), last);
+	    }
+	    catch (NoDataException e) {
+		_log4j.error("recoverUnindexedRecords(): can't read index", e);
+		return 0;
+	    }
+	    start = last.getDataOffset() + last.getDataSize();
+	}
+
+	long extent = _data.getExtent();
+	if (start >= extent) {
+	    return 0;
+	}
+
+	_log4j.warn("Device " + _deviceId + ": " + (extent - start) + 
+		    " unindexed data bytes at offset " + start + 
+		    "; recovering");
+
+	Vector entries = new Vector();
+	DevicePacketCodec codec = new DevicePacketCodec();
+	long syncStart = findSync(start, extent);
+
+	while (syncStart >= 0) {
+	    long next = findSync(syncStart + SYNC_PATTERN.length, extent);
+	    long end = (next >= 0 ? next : extent);
+	    DevicePacket packet = readRecord(syncStart, end, null);
+
+	    while (packet == null && end < extent && 
+		   readRecordAt(end, extent) == null) {
+		// Pattern at end may be part of this record's data
+		long following = findSync(end + SYNC_PATTERN.length, extent);
+		end = (following >= 0 ? following : extent);
+		packet = readRecord(syncStart, end, codec);
+	    }
+
+	    if (packet == null) {
+		_log4j.warn("recoverUnindexedRecords(): skipping unreadable " +
+			    "record at offset " + syncStart);
+		syncStart = next;
+		continue;
+	    }
+
+	    DeviceLogIndex.Entry entry = 
+		new DeviceLogIndex.Entry(packet.systemTime(),
+					 (int )(end - syncStart),
+					 syncStart,
+					 packet.sequenceNo());
+	    entry.setColumns(packet);
+	    entries.add(entry);
+
+	    if (packet instanceof MetadataPacket) {
+		_index.updateMetadataRef(packet.sequenceNo(), false);
+	    }
+	    syncStart = (end < extent ? end : EOF);
+	}
+
+	if (entries.size() > 0) {
+	    DeviceLogIndex.Entry[] array = 
+		new DeviceLogIndex.Entry[entries.size()];
+
+	    entries.copyInto(array);
+	    _index.addIndexEntries(array, array.length, true);
+	}
+
+	_log4j.warn("Device " + _deviceId + ": recovered " + entries.size() +
+		    " records");
+
+	return entries.size();
+    }
+
+
+    /** Return offset of first sync pattern at or after offset and
+	before extent, or EOF if there is none; reads the data file a
+	block at a time. */
+    private long findSync(long offset, long extent) throws IOException {
+
+	byte[] buf = new byte[4096];
+	int overlap = SYNC_PATTERN.length - 1;
+
+	while (offset + SYNC_PATTERN.length <= extent) {
+	    int nBytes = _data.readData(offset, buf, 0, buf.length);
+	    for (int i = 0; i + SYNC_PATTERN.length <= nBytes; i++) {
+		int j = 0;
+		while (j < SYNC_PATTERN.length && 
+		       buf[i + j] == SYNC_PATTERN[j]) {
+		    j++;
+		}
+		if (j == SYNC_PATTERN.length) {
+		    return offset + i;
+		}
+	    }
+	    if (nBytes < buf.length) {
+		break;
+	    }
+	    // Next block overlaps this one, in case it split a pattern
+	    offset += nBytes - overlap;
+	}
+	return EOF;
+    }
+
+
+    /** Read and decode record that starts at specified data file offset
+	and ends at the next sync pattern (or extent); return null if it
+	can't be read. */
+    private DevicePacket readRecordAt(long start, long extent) 
+	throws IOException {
+
+	long next = findSync(start + SYNC_PATTERN.length, extent);
+	return readRecord(start, (next >= 0 ? next : extent), null);
+    }
+
+
+    /** Read and deserialize record between specified data file offsets;
+	return null if it can't be read. If codec isn't null, a compact 
+	record must also re-encode to exactly the bytes read, since 
+	compact decoding ignores trailing bytes (e.g. those of a 
+	following record). */
+    private DevicePacket readRecord(long start, long end, 
+				    DevicePacketCodec codec) {
+
+	DeviceLogIndex.Entry entry = 
+	    new DeviceLogIndex.Entry(0, (int )(end - start), start, 0);
+
+	byte[] bytes = _data.readLogData(entry);
+	if (bytes == null) {
+	    return null;
+	}
+	try {
+	    DevicePacket packet = decodePacket(bytes);
+	    if (codec != null && 
+		DevicePacketCodec.recordFormat(bytes, 0, bytes.length) == 
+		DevicePacketCodec.COMPACT_FORMAT &&
+		codec.encode(packet, DevicePacketCodec.COMPACT_FORMAT) != 
+		bytes.length) {
+		_log4j.debug("readRecord(): trailing bytes after record at " +
+			     start);
+		return null;
+	    }
+	    return packet;
+	}
+	catch (Exception e) {
+	    _log4j.debug("readRecord(): no packet at " + start + ": " + e);
+	    return null;
+	}
+    }
 	
 	
     /** Return total number of packets in log. */
     public int nPackets() {
 		
+	flush();
+
 	// grab the journal entry
 	DeviceLogIndex.JournalEntry journalEntry =
 	    _index.getJournalEntry();
@@ -468,7 +1801,110 @@ public class DeviceLog {
 	}
 		
 	// Return number of entries 
-	return journalEntry.getNumEntries();
+	return journalEntry.getNumEntries() + closedSegmentPackets();
+    }
+
+
+    /** Return number of packets with keys between startKey and endKey
+	(inclusive). Counts are taken from the segment directory and the
+	index time buckets, so only the index entries at either end of the
+	range are read. */
+    public int nPackets(long startKey, long endKey) {
+
+	flush();
+
+	int nPackets = 0;
+	Vector segments = segmentsInRange(startKey, endKey);
+	for (int s = 0; s <= segments.size(); s++) {
+	    if (s < segments.size()) {
+		DeviceLogSegment segment = 
+		    (DeviceLogSegment )segments.elementAt(s);
+
+		if (segment._minKey >= startKey && segment._maxKey <= endKey) {
+		    // Whole segment is in range
+		    nPackets += segment._nEntries;
+		    continue;
+		}
+	    }
+	    DeviceLog log = segmentLog(segments, s);
+	    if (log == null) {
+		continue;
+	    }
+	    try {
+		nPackets += log._index.nEntries(startKey, endKey);
+	    }
+	    catch (NoDataException e) {
+	    }
+	    finally {
+		closeSegment(log);
+	    }
+	}
+	return nPackets;
+    }
+
+
+    /** Return number of bytes logged for packets with keys between
+	startKey and endKey (inclusive), e.g. to find how much data is 
+	waiting to be retrieved. Byte counts are those of the log records,
+	taken from the segment directory and the index time buckets. */
+    public long nBytes(long startKey, long endKey) {
+
+	flush();
+
+	long nBytes = 0;
+	Vector segments = segmentsInRange(startKey, endKey);
+	for (int s = 0; s <= segments.size(); s++) {
+	    if (s < segments.size()) {
+		DeviceLogSegment segment = 
+		    (DeviceLogSegment )segments.elementAt(s);
+
+		if (segment._minKey >= startKey && segment._maxKey <= endKey) {
+		    // Whole segment is in range
+		    nBytes += segment._dataBytes;
+		    continue;
+		}
+	    }
+	    DeviceLog log = segmentLog(segments, s);
+	    if (log == null) {
+		continue;
+	    }
+	    try {
+		nBytes += log._index.dataBytes(startKey, endKey);
+	    }
+	    catch (NoDataException e) {
+	    }
+	    finally {
+		closeSegment(log);
+	    }
+	}
+	return nBytes;
+    }
+
+
+    /** Return view of the s-th of the specified closed segments, or this
+	log (the active segment) if s is past the last one. */
+    private DeviceLog segmentLog(Vector segments, int s) {
+	if (s < segments.size()) {
+	    return openSegment((DeviceLogSegment )segments.elementAt(s));
+	}
+	return this;
+    }
+
+
+    /** Return number of packets in closed segments. */
+    private synchronized int closedSegmentPackets() {
+	int nPackets = 0;
+	for (int i = 0; _segments != null && i < _segments.size(); i++) {
+	    nPackets += ((DeviceLogSegment )_segments.elementAt(i))._nEntries;
+	}
+	return nPackets;
+    }
+
+
+    /** Return number of packets in the active segment. */
+    int segmentPackets() {
+	flush();
+	return _index.getMaxIndex();
     }
 	
 	
@@ -487,7 +1923,15 @@ public class DeviceLog {
 	@see DeviceLog#getPacketKeyRange
     */
     public long getMinTimestamp() {
-	return _index.getMinTimestamp();
+	flush();
+	long minTimestamp = _index.getMinTimestamp();
+	Vector segments = segmentsInRange(Long.MIN_VALUE, Long.MAX_VALUE);
+	for (int i = 0; i < segments.size(); i++) {
+	    minTimestamp = 
+		Math.min(minTimestamp, 
+			 ((DeviceLogSegment )segments.elementAt(i))._minKey);
+	}
+	return minTimestamp;
     }
 	
     /** returns the maximum key that has been registered by all DevicePacket
@@ -495,13 +1939,26 @@ public class DeviceLog {
 	@see DeviceLog#getPacketKeyRange
     */
     public long getMaxTimestamp() {
-	return _index.getMaxTimestamp();
+	flush();
+	long maxTimestamp = _index.getMaxTimestamp();
+	Vector segments = segmentsInRange(Long.MIN_VALUE, Long.MAX_VALUE);
+	for (int i = 0; i < segments.size(); i++) {
+	    maxTimestamp = 
+		Math.max(maxTimestamp, 
+			 ((DeviceLogSegment )segments.elementAt(i))._maxKey);
+	}
+	return maxTimestamp;
     }
 	
 	
     /** Close the DeviceLog and associated files. This DeviceLog instance
 	is no longer usable after close() has been called. */
     public synchronized void close() throws IOException {
+	flush();
+	if (_compactTask != null) {
+	    _compactTask.cancel();
+	    _compactTask = null;
+	}
 	_index.close();
 	_data.close();
     }
@@ -605,12 +2062,14 @@ public class DeviceLog {
 
        Other logView options (e.g. filters) are ignored inside check.
 
-       The check() method works by traversing the binary sync patterns
-       in the data (.dat) file. When it finds a sync pattern, it
+       The check works by traversing the binary sync patterns
+       in the data (.dat) files. When it finds a sync pattern, it
        finds the next sync pattern and attempts to read everything 
        between as a DevicePacket. If the read succeeds, a new 
        IndexEntry is added to the new index (.idx) file. Otherwise,
-       an error is counted, and the process repeats.
+       an error is counted, and the process repeats. The data files
+       are read in large ranges, decoded in parallel and resumable;
+       see DeviceLogChecker.
 
        Note that because the index and its journal contain no
        information about what types of packets are in the log,
@@ -623,291 +2082,10 @@ public class DeviceLog {
        a missing packet for the first packet, and would fail
        to detect when a reference value comes before its 
        metadata packet (which should not happen in general).
-
-       Originally, this used a FileInputStream wrapper around the
-       RandomAccessFile, but this resulted in an IOException with
-       a "handle not valid" message.
-
-       Alternatively, a read implementation has been implented
-       (DeviceLogData.readBytes()) that uses RandomAcessFile.read() 
-       directly.
-
     */
     public static void check(DeviceLog log,boolean repair){
-	int recordIndex=0;
-	DeviceLogIndex.Entry _indexEntry = new DeviceLogIndex.Entry();
-	DeviceLogIndex newIndex=null;
-
-	long offset=0L;
-	long syncStart=0L;
-	boolean foundSyncStart=false;
-	boolean gotSync=true;
-	boolean eof=false;
-
-	boolean readingRecord=false;
-	int test;
-	int readSizeMismatchErrors=0;
-	int eofErrors=0;
-	int corruptErrors=0;
-	int indexErrors=0;
-	int unknownErrors=0;
-	int missingMetadataErrors=0;
-	int newIndices=0;
-
-	long metadataPackets=0L;
-	long sensorDataPackets=0L;
-	long summaryPackets=0L;
-	long messagePackets=0L;
-	long measurementPackets=0L;
-
-	long seqNo=0L;
-	long mdRef=0L;
-	Vector mdRefs=new Vector();
-	Vector missingMDRefs=new Vector();
-	Vector parentIDs=new Vector();
-
-	long syncTest;
 	try{
-
-	    if(repair==true){
-		newIndex=new DeviceLogIndex(log._data._deviceId,log._data._segment,".rebuilt",".");
-	    }
-	    log._data.seek(0L);
-
-	    //FileInputStream fis=log._data.getFileInputStream();
-
-	    while(eof==false){
-		// find the next sync pattern
-		gotSync=false;
-		syncTest=getNextSync(log, offset);
-		_log4j.debug("next sync from offset "+offset+" is "+syncTest);
-
-		// if we don't find a sync pattern
-		// we're done
-		if(syncTest>=0L){
-		    syncStart=syncTest;
-		    offset=syncStart+DeviceLog.SYNC_PATTERN.length;
-		    gotSync=true;
-		}else{
-		    break;
-		}
-
-		// if complete sync pattern detected, 
-		// continue checking record and index 
-		// entry for errors, 
-		// else keep going
-		if(gotSync){
-
-		    _log4j.debug("got sync at "+syncStart);
-
-		    try {
-
-			// find the next sync pattern
-			// to compute data size
-			long dataStart=syncStart;
-			long dataStop=getNextSync(log,offset);
-			if(dataStop<=0L){
-			    dataStop=log._data.getLength();
-			}
-			long dataSize=(dataStop-dataStart);
-			_log4j.debug("dataStart:"+dataStart+" dataStop:"+dataStop+" data size:"+dataSize);
-			_log4j.debug("current offset:"+offset+" next offset:"+dataStop);
-
-			// increase recordIndex 
-			// (before trying to read record, otherwise
-			// an exception could cause it not get incremented)
-			recordIndex++;
-
-			// point to the start of the record
-			// (just after the sync pattern)
-			log._data.seek(syncStart+DeviceLog.SYNC_PATTERN.length);
-
-			// read the number of record bytes 
-			// (distance to next sync pattern)
-			// into a byte array
-			int readLen=(int)(dataSize-DeviceLog.SYNC_PATTERN.length);
-			byte[] objectBytes=new byte[readLen];
-			//int recordBytes=fis.read(objectBytes);
-			int recordBytes=log._data.readBytes(objectBytes,0,readLen);
-
-			// compare bytes read (not including sync pattern)
-			// to bytes expected
-			if(recordBytes!=(dataSize-DeviceLog.SYNC_PATTERN.length)){
-			    _log4j.warn("Read size mismatch - record:"+(recordIndex-1)+" offset:"+offset);
-			    _log4j.warn("expected:"+(dataSize-DeviceLog.SYNC_PATTERN.length)+" read:"+recordBytes);
-			    readSizeMismatchErrors++;
-			}
-
-
-			// create an input stream to read the record
-			// (use a ByteArrayInputStream wrapped in an
-			// ObjectInputStream)
-			ByteArrayInputStream byteInput = 
-			    new ByteArrayInputStream(objectBytes);
-			//_log4j.debug("byteInput.available:"+byteInput.available());
-			ObjectInputStream objectInput = 
-			    new ObjectInputStream(byteInput);
-
-			// Try to read the packet from the input
-			// stream.
-			DevicePacket packet = null;
-			_log4j.debug("reading packet....");
-			readingRecord=true;
-			packet = (DevicePacket)objectInput.readObject();			    
-			readingRecord=false;
-			_log4j.debug("packet read OK....");
-			_log4j.debug("data:\n"+packet.toString());
-			
-			// grab the sequence number and 
-			// metadata reference since we'll
-			// need them in multiple places below
-			// and want to reduce overhead.
-			seqNo=packet.sequenceNo();
-			mdRef=packet.metadataRef();
-			Long lmd=new Long(mdRef);
-
-			// do packet type stats and 
-			// metadata ref calcs
-			if(packet instanceof MetadataPacket){
-			    metadataPackets++;
-			    if(mdRefs.contains(new Long(seqNo))==false){
-				mdRefs.add(new Long(seqNo));
-			    }
-			}
-			if(packet instanceof SensorDataPacket)
-			    sensorDataPackets++;
-			if(packet instanceof SummaryPacket)
-			    summaryPackets++;
-			if(packet instanceof DeviceMessagePacket)
-			    messagePackets++;
-			if(packet instanceof MeasurementPacket)
-			    measurementPackets++;
-
-			if(mdRefs.contains(lmd)==false){
-			    missingMetadataErrors++;
-			    if(missingMDRefs.contains(lmd)==false)
-				missingMDRefs.add(lmd);
-			    _log4j.warn("Missing Metadata - record:"+(recordIndex-1)+" offset:"+offset+" mdRef:"+mdRef);
-			}
-
-			Long parentID=new Long(packet.getParentId());
-			if(parentIDs.contains(parentID)==false){
-			    parentIDs.add(parentID);
-			}
-
-			// if repair option specified, generate a
-			// new DeviceLogIndex.Entry based on the 
-			// DevicePacket header info
-			if(repair==true){
-			    DeviceLogIndex.Entry tempEntry = 
-				new DeviceLogIndex.Entry(packet.systemTime(),
-							 (int)dataSize,
-							 dataStart,
-							 seqNo);
-			    _log4j.debug("writing new index entry:"+tempEntry);
-			    newIndex.addIndexEntry(tempEntry);
-			    if(packet instanceof MetadataPacket)
-				newIndex.updateMetadataRef(seqNo);
-			    newIndices++;
-			    _log4j.debug("writing index entry OK");
-			}
-
-			// adjust offset past bytes read
-			// so we don't go through them again
-			// looking for next sync
-			// (note that if the read fails, we pick
-			// up after just after the sync pattern
-			// that failed)
-			offset+=recordBytes;
-
-			try {
-			    // close objectOutput, byteOutput
-			    objectInput.close();
-			    byteInput.close();
-			}
-			catch(Exception e) {
-			    _log4j.error("exception closing input streams", 
-					 e);
-			}
-			
-		    }catch(StreamCorruptedException s){
-			_log4j.warn("StreamCorruptedException - record:"+(recordIndex-1)+" offset:"+offset);
-			_log4j.debug(s);
-			corruptErrors++;
-			// could dump bad data to a file
-		    }catch(EOFException e){
-			if(readingRecord==true){
-			    _log4j.warn("EOFException - record:"+(recordIndex-1)+" offset:"+offset);
-			    eofErrors++;
-			}else{
-			    _log4j.debug("EOFException - record:"+(recordIndex-1)+
-					 " offset:"+offset+" (not reading record)");
-			}
-		    }catch(Exception e){
-			_log4j.warn("Exception ("+e.getMessage()+") - record:"+(recordIndex-1)+" offset:"+offset);
-			_log4j.debug(e);
-			unknownErrors++;
-		    }
-		}
-	    }
-
-	    // print a summary of the findings
-	    System.out.println("");
-	    System.out.println("Log Check Summary:");
-	    System.out.println("");
-	    System.out.println("Device ID        : "+log.getDeviceId());
-	    System.out.println("repair index     : "+(repair==true?"YES":"NO"));
-	    System.out.println("sync patterns    : "+recordIndex);
-	    System.out.println("valid records    : "+(metadataPackets+sensorDataPackets+
-							 summaryPackets+messagePackets+
-							 measurementPackets));
-	    System.out.println("parentIDs        : "+parentIDs.size());
-	    System.out.println("");
-	    System.out.println("# Index Summary");
-	    System.out.println(" entries         : "+log._index.getJournalEntry().getNumEntries());
-	    long minKey=log._index.getJournalEntry().getMinKey();
-	    long maxKey=log._index.getJournalEntry().getMaxKey();
-	    String mindate=DateFormat.getDateTimeInstance().format(new Date(minKey));
-	    String maxdate=DateFormat.getDateTimeInstance().format(new Date(maxKey));
-	    System.out.println(" min key         : "+minKey+" ("+mindate+")");
-	    System.out.println(" max key         : "+maxKey+" ("+maxdate+")");
-	    System.out.println(" last seq number : "+log._index.getJournalEntry().getLastSequenceNumber());
-	    System.out.println(" last md ref     : "+log._index.getJournalEntry().getLastMetadataRef());
-	    System.out.println(" total md refs   : "+(mdRefs.size()+missingMDRefs.size()));
-
-	    if(repair==true){
-		System.out.println("");
-		System.out.println("# New Index Summary");
-		System.out.println(" entries         : "+newIndex.getJournalEntry().getNumEntries());
-		minKey=newIndex.getJournalEntry().getMinKey();
-		maxKey=newIndex.getJournalEntry().getMaxKey();
-		mindate=DateFormat.getDateTimeInstance().format(new Date(minKey));
-		maxdate=DateFormat.getDateTimeInstance().format(new Date(maxKey));
-		System.out.println(" min key         : "+minKey+" ("+mindate+")");
-		System.out.println(" max key         : "+maxKey+" ("+maxdate+")");
-		System.out.println(" last seq number : "+newIndex.getJournalEntry().getLastSequenceNumber());
-		System.out.println(" last md ref     : "+newIndex.getJournalEntry().getLastMetadataRef());
-	    }
-	    System.out.println("");
-	    System.out.println("# Record Summary");
-	    System.out.println(" metadataPackets    : "+metadataPackets);
-	    System.out.println(" sensorDataPackets  : "+sensorDataPackets);
-	    System.out.println(" summaryPackets     : "+summaryPackets);
-	    System.out.println(" messagePackets     : "+messagePackets);
-	    System.out.println(" measurementPackets : "+measurementPackets);
-
-	    System.out.println("");
-	    System.out.println("# Error Summary");
-	    System.out.println(" stream corrupted   : "+corruptErrors);
-	    System.out.println(" eof errors         : "+eofErrors);
-	    System.out.println(" metadata not found : "+missingMetadataErrors);
-	    System.out.println(" invalid md packets : "+missingMDRefs.size());
-	    System.out.println(" unknown errors     : "+unknownErrors);
-	    System.out.println(" read size mismatch : "+readSizeMismatchErrors);
-
-	    if(repair==true)
-		newIndex.close();
-
+	    new DeviceLogChecker(log, repair).check();
 	}catch(IOException e){
 	    e.printStackTrace();
 	}
@@ -0,0 +1,790 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+import edu.emory.mathcs.backport.java.util.concurrent.Callable;
+import edu.emory.mathcs.backport.java.util.concurrent.ExecutionException;
+import edu.emory.mathcs.backport.java.util.concurrent.ExecutorService;
+import edu.emory.mathcs.backport.java.util.concurrent.Executors;
+import edu.emory.mathcs.backport.java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.MeasurementPacket;
+
+/**
+   DeviceLogChecker reads every record of a DeviceLog's data files,
+   reports errors and statistics, and optionally writes a rebuilt index
+   for each segment (&lt;id&gt;_&lt;segment&gt;.rebuilt.idx, in the output
+   directory) that refers only to records that can be read. The original
+   index and data files are not changed.
+   <p>
+   Records are located by their sync patterns, as described for
+   <code>DeviceLog.check()</code>. Each data file is split into ranges
+   that are searched and decoded by a pool of threads, each reading its
+   range with a few large reads; the results are then merged in file
+   order, which also checks metadata references and writes the rebuilt
+   index. After each group of ranges the progress is saved in
+   &lt;id&gt;.check in the output directory, so that an interrupted check
+   of a large log can be resumed (see setResume()).
+
+   @see DeviceLog
+*/
+public class DeviceLogChecker {
+
+    /** Log4j logger */
+    static private Logger _log4j = Logger.getLogger(DeviceLogChecker.class);
+
+    /** Default bytes of data file decoded by each task */
+    public static final int DEFAULT_RANGE_BYTES = 4 * 1024 * 1024;
+
+    /** Suffix of rebuilt index files */
+    static final String REBUILT_SUFFIX = ".rebuilt";
+
+    /** Bytes read past end of range to find the end of its last record */
+    private static final int LOOKAHEAD_BYTES = 64 * 1024;
+
+    /** Record status */
+    private static final int RECORD_OK = 0;
+    private static final int RECORD_CORRUPT = 1;
+    private static final int RECORD_EOF = 2;
+    private static final int RECORD_UNKNOWN = 3;
+
+    private DeviceLog _log;
+    private boolean _repair;
+    private boolean _resume = false;
+    private int _nThreads = Runtime.getRuntime().availableProcessors();
+    private int _rangeBytes = DEFAULT_RANGE_BYTES;
+    private String _outputDirectory = ".";
+    private PrintStream _progress = null;
+
+    // Statistics over all segments
+    private int _syncPatterns = 0;
+    private int _corruptErrors = 0;
+    private int _eofErrors = 0;
+    private int _unknownErrors = 0;
+    private int _missingMetadataErrors = 0;
+    private int _newIndices = 0;
+    private long _metadataPackets = 0;
+    private long _sensorDataPackets = 0;
+    private long _summaryPackets = 0;
+    private long _messagePackets = 0;
+    private long _measurementPackets = 0;
+    private HashSet _mdRefs = new HashSet();
+    private HashSet _missingMDRefs = new HashSet();
+    private HashSet _parentIDs = new HashSet();
+
+    // Rebuilt index summary
+    private int _rebuiltEntries = 0;
+    private long _rebuiltMinKey = Long.MAX_VALUE;
+    private long _rebuiltMaxKey = Long.MIN_VALUE;
+    private long _rebuiltLastSequenceNumber = 0;
+    private long _rebuiltLastMetadataRef = 0;
+
+    // State of segment being merged
+    private long _nextFree;
+    private long _indexedTo;
+    private DeviceLogIndex _newIndex;
+    private Vector _newEntries = new Vector();
+
+
+    /** Create checker for specified log; if repair is true, write
+	rebuilt index files. */
+    public DeviceLogChecker(DeviceLog log, boolean repair) {
+	_log = log;
+	_repair = repair;
+    }
+
+
+    /** Set number of threads that decode the data files. */
+    public void setThreads(int nThreads) {
+	_nThreads = Math.max(nThreads, 1);
+    }
+
+
+    /** Set number of data file bytes decoded by each task. */
+    public void setRangeBytes(int rangeBytes) {
+	_rangeBytes = Math.max(rangeBytes, 1024);
+    }
+
+
+    /** If true, continue from the progress saved by an interrupted
+	check of the same log; otherwise start from the beginning. */
+    public void setResume(boolean resume) {
+	_resume = resume;
+    }
+
+
+    /** Set directory for rebuilt index and progress files (default is
+	the working directory). */
+    public void setOutputDirectory(String directory) {
+	_outputDirectory = directory;
+    }
+
+
+    /** Print progress to specified stream; null for no progress. */
+    public void setProgress(PrintStream progress) {
+	_progress = progress;
+    }
+
+
+    /** Check all segments of the log, then print a summary to
+	System.out. */
+    public void check() throws IOException {
+
+	_log.flush();
+
+	Vector segments = _log.segments();
+
+	int resumeSegment = -1;
+	long resumeOffset = 0;
+	if (_resume) {
+	    Properties checkpoint = readCheckpoint();
+	    if (checkpoint != null) {
+		resumeSegment =
+		    Integer.parseInt(checkpoint.getProperty("segment"));
+		resumeOffset =
+		    Long.parseLong(checkpoint.getProperty("offset"));
+		restoreStatistics(checkpoint);
+		System.out.println("Resuming check at segment " +
+				   resumeSegment + ", offset " + resumeOffset);
+	    }
+	}
+
+	ExecutorService pool = Executors.newFixedThreadPool(_nThreads);
+	try {
+	    for (int s = 0; s <= segments.size(); s++) {
+		DeviceLog log = _log;
+		if (s < segments.size()) {
+		    log = _log.openSegment((DeviceLogSegment )segments.elementAt(s));
+		    if (log == null) {
+			continue;
+		    }
+		}
+		try {
+		    int segmentNum = log.segmentNum();
+		    if (segmentNum < resumeSegment) {
+			summarizeRebuiltIndex(segmentNum);
+		    }
+		    else if (segmentNum == resumeSegment) {
+			checkSegment(log, resumeOffset, pool);
+		    }
+		    else {
+			checkSegment(log, 0, pool);
+		    }
+		}
+		finally {
+		    _log.closeSegment(log);
+		}
+	    }
+	}
+	finally {
+	    pool.shutdownNow();
+	}
+
+	new File(checkpointFileName()).delete();
+
+	printSummary();
+    }
+
+
+    /** Check data file of one segment, starting at specified offset. */
+    private void checkSegment(DeviceLog log, long startOffset,
+			      ExecutorService pool)
+	throws IOException {
+
+	int segmentNum = log.segmentNum();
+	String dataFile = log.dataFileName();
+	long length = new File(dataFile).length();
+
+	_nextFree = startOffset;
+	_indexedTo = 0;
+	_newIndex = null;
+
+	if (_repair) {
+	    if (startOffset == 0) {
+		new File(DeviceLogSegment.indexFileName(_log.getDeviceId(),
+							segmentNum,
+							REBUILT_SUFFIX,
+							_outputDirectory)).delete();
+		new File(DeviceLogIndexColumns.fileName(_log.getDeviceId(),
+							segmentNum,
+							REBUILT_SUFFIX,
+							_outputDirectory)).delete();
+		new File(DeviceLogIndexBuckets.fileName(_log.getDeviceId(),
+							segmentNum,
+							REBUILT_SUFFIX,
+							_outputDirectory)).delete();
+	    }
+	    _newIndex = new DeviceLogIndex(_log.getDeviceId(), segmentNum,
+					   REBUILT_SUFFIX, _outputDirectory);
+
+	    // Records already in the rebuilt index (e.g. written just
+	    // before an interruption) aren't added again
+	    int maxIndex = _newIndex.getMaxIndex();
+	    if (maxIndex > 0) {
+		DeviceLogIndex.Entry last = new DeviceLogIndex.Entry();
+		try {
+		    _newIndex.getIndexEntry(maxIndex, last);
+		    _indexedTo = last.getDataOffset() + last.getDataSize();
+		}
+		catch (Exception e) {
+		    _log4j.error("checkSegment(): can't read rebuilt index", e);
+		}
+	    }
+	}
+
+	try {
+	    long pos = startOffset;
+	    while (pos < length) {
+
+		// Decode a range per thread
+		Vector futures = new Vector();
+		long windowEnd = pos;
+		for (int t = 0; t < _nThreads && windowEnd < length; t++) {
+		    long end = Math.min(length, windowEnd + _rangeBytes);
+		    futures.addElement(pool.submit(new RangeTask(dataFile,
+								 windowEnd,
+								 end,
+								 length)));
+		    windowEnd = end;
+		}
+
+		// Merge results in file order
+		for (int t = 0; t < futures.size(); t++) {
+		    Vector records = waitFor((Future )futures.elementAt(t));
+		    for (int i = 0; i < records.size(); i++) {
+			merge((Record )records.elementAt(i));
+		    }
+		}
+
+		if (_newIndex != null && _newEntries.size() > 0) {
+		    DeviceLogIndex.Entry[] entries =
+			new DeviceLogIndex.Entry[_newEntries.size()];
+		    _newEntries.copyInto(entries);
+		    _newIndex.addIndexEntries(entries, entries.length, true);
+		    _newEntries.clear();
+		}
+
+		pos = windowEnd;
+		writeCheckpoint(segmentNum, Math.max(pos, _nextFree));
+
+		if (_progress != null) {
+		    _progress.println("segment " + segmentNum + ": " +
+				      (length > 0 ? 100 * pos / length : 100) +
+				      "% (" + pos + " of " + length +
+				      " bytes), " + _syncPatterns +
+				      " sync patterns, " + errors() +
+				      " errors");
+		}
+	    }
+	}
+	finally {
+	    if (_newIndex != null) {
+		summarizeRebuiltIndex(_newIndex);
+		_newIndex.close();
+		_newIndex = null;
+	    }
+	}
+    }
+
+
+    /** Return result of range task. */
+    private Vector waitFor(Future future) throws IOException {
+	try {
+	    return (Vector )future.get();
+	}
+	catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof IOException) {
+		throw (IOException )cause;
+	    }
+	    throw new IOException("range task failed: " + cause);
+	}
+	catch (InterruptedException e) {
+	    throw new IOException("interrupted");
+	}
+    }
+
+
+    /** Add record to statistics and rebuilt index, in file order. */
+    private void merge(Record record) {
+
+	if (record._offset < _nextFree) {
+	    // Sync pattern within a record that has been read
+	    return;
+	}
+	_syncPatterns++;
+
+	switch (record._status) {
+	case RECORD_CORRUPT:
+	    _log4j.warn("StreamCorruptedException - offset:" + record._offset);
+	    _corruptErrors++;
+	    break;
+	case RECORD_EOF:
+	    _log4j.warn("EOFException - offset:" + record._offset);
+	    _eofErrors++;
+	    break;
+	case RECORD_UNKNOWN:
+	    _log4j.warn("Exception - offset:" + record._offset);
+	    _unknownErrors++;
+	    break;
+	}
+
+	if (record._status != RECORD_OK) {
+	    // Continue with the next sync pattern
+	    _nextFree = record._offset + DeviceLog.SYNC_PATTERN.length;
+	    return;
+	}
+
+	DeviceLogIndex.Entry entry = record._entry;
+
+	switch (entry.getTypeFlag()) {
+	case DevicePacket.METADATA_FLAG:
+	    _metadataPackets++;
+	    _mdRefs.add(new Long(entry.getSequenceNumber()));
+	    break;
+	case DevicePacket.SENSORDATA_FLAG:
+	    if (record._measurement) {
+		_measurementPackets++;
+	    }
+	    _sensorDataPackets++;
+	    break;
+	case DevicePacket.SUMMARY_FLAG:
+	    _summaryPackets++;
+	    break;
+	case DevicePacket.DEVICEMESSAGE_FLAG:
+	    _messagePackets++;
+	    break;
+	}
+
+	Long mdRef = new Long(record._metadataRef);
+	if (!_mdRefs.contains(mdRef)) {
+	    _missingMetadataErrors++;
+	    _missingMDRefs.add(mdRef);
+	    _log4j.warn("Missing Metadata - offset:" + record._offset +
+			" mdRef:" + record._metadataRef);
+	}
+	_parentIDs.add(new Long(record._parentId));
+
+	if (_newIndex != null && record._offset >= _indexedTo) {
+	    if (entry.getTypeFlag() == DevicePacket.METADATA_FLAG) {
+		_newIndex.updateMetadataRef(entry.getSequenceNumber(), false);
+	    }
+	    _newEntries.addElement(entry);
+	    _newIndices++;
+	}
+	_nextFree = record._offset + entry.getDataSize();
+    }
+
+
+    /** Return total number of errors. */
+    private int errors() {
+	return _corruptErrors + _eofErrors + _unknownErrors +
+	    _missingMetadataErrors;
+    }
+
+
+    /** Add journal of rebuilt index to rebuilt index summary. */
+    private void summarizeRebuiltIndex(DeviceLogIndex index) {
+	DeviceLogIndex.JournalEntry journal = index.getJournalEntry();
+	if (journal.getNumEntries() == 0) {
+	    return;
+	}
+	_rebuiltEntries += journal.getNumEntries();
+	_rebuiltMinKey = Math.min(_rebuiltMinKey, journal.getMinKey());
+	_rebuiltMaxKey = Math.max(_rebuiltMaxKey, journal.getMaxKey());
+	_rebuiltLastSequenceNumber = journal.getLastSequenceNumber();
+	_rebuiltLastMetadataRef = journal.getLastMetadataRef();
+    }
+
+
+    /** Add rebuilt index of segment checked before resuming to rebuilt
+	index summary. */
+    private void summarizeRebuiltIndex(int segmentNum) throws IOException {
+	if (!_repair) {
+	    return;
+	}
+	DeviceLogIndex index =
+	    new DeviceLogIndex(_log.getDeviceId(), segmentNum, REBUILT_SUFFIX,
+			       _outputDirectory);
+	summarizeRebuiltIndex(index);
+	index.close();
+    }
+
+
+    /** Return name of progress file. */
+    private String checkpointFileName() {
+	return _outputDirectory + File.separator + _log.getDeviceId() +
+	    ".check";
+    }
+
+
+    /** Save progress: data before specified offset of segment has been
+	checked. */
+    private void writeCheckpoint(int segmentNum, long offset) {
+
+	Properties checkpoint = new Properties();
+	checkpoint.setProperty("segment", Integer.toString(segmentNum));
+	checkpoint.setProperty("offset", Long.toString(offset));
+	checkpoint.setProperty("syncPatterns", Integer.toString(_syncPatterns));
+	checkpoint.setProperty("corruptErrors",
+			       Integer.toString(_corruptErrors));
+	checkpoint.setProperty("eofErrors", Integer.toString(_eofErrors));
+	checkpoint.setProperty("unknownErrors",
+			       Integer.toString(_unknownErrors));
+	checkpoint.setProperty("missingMetadataErrors",
+			       Integer.toString(_missingMetadataErrors));
+	checkpoint.setProperty("newIndices", Integer.toString(_newIndices));
+	checkpoint.setProperty("metadataPackets",
+			       Long.toString(_metadataPackets));
+	checkpoint.setProperty("sensorDataPackets",
+			       Long.toString(_sensorDataPackets));
+	checkpoint.setProperty("summaryPackets",
+			       Long.toString(_summaryPackets));
+	checkpoint.setProperty("messagePackets",
+			       Long.toString(_messagePackets));
+	checkpoint.setProperty("measurementPackets",
+			       Long.toString(_measurementPackets));
+	checkpoint.setProperty("mdRefs", toString(_mdRefs));
+	checkpoint.setProperty("missingMDRefs", toString(_missingMDRefs));
+	checkpoint.setProperty("parentIDs", toString(_parentIDs));
+
+	// Write a new file and rename it, so that an interruption leaves
+	// the previous checkpoint
+	File file = new File(checkpointFileName());
+	File temp = new File(checkpointFileName() + ".tmp");
+	try {
+	    FileOutputStream output = new FileOutputStream(temp);
+	    checkpoint.store(output, "DeviceLogChecker progress");
+	    output.getFD().sync();
+	    output.close();
+	    file.delete();
+	    if (!temp.renameTo(file)) {
+		_log4j.error("writeCheckpoint(): can't rename " + temp);
+	    }
+	}
+	catch (IOException e) {
+	    _log4j.error("writeCheckpoint(): " + e);
+	}
+    }
+
+
+    /** Read saved progress; return null if there is none. */
+    private Properties readCheckpoint() {
+
+	File file = new File(checkpointFileName());
+	if (!file.exists()) {
+	    return null;
+	}
+	Properties checkpoint = new Properties();
+	try {
+	    FileInputStream input = new FileInputStream(file);
+	    checkpoint.load(input);
+	    input.close();
+	}
+	catch (IOException e) {
+	    _log4j.error("readCheckpoint(): " + e);
+	    return null;
+	}
+	if (checkpoint.getProperty("segment") == null ||
+	    checkpoint.getProperty("offset") == null) {
+	    return null;
+	}
+	return checkpoint;
+    }
+
+
+    /** Restore statistics from saved progress. */
+    private void restoreStatistics(Properties checkpoint) {
+	_syncPatterns = getInt(checkpoint, "syncPatterns");
+	_corruptErrors = getInt(checkpoint, "corruptErrors");
+	_eofErrors = getInt(checkpoint, "eofErrors");
+	_unknownErrors = getInt(checkpoint, "unknownErrors");
+	_missingMetadataErrors = getInt(checkpoint, "missingMetadataErrors");
+	_newIndices = getInt(checkpoint, "newIndices");
+	_metadataPackets = getLong(checkpoint, "metadataPackets");
+	_sensorDataPackets = getLong(checkpoint, "sensorDataPackets");
+	_summaryPackets = getLong(checkpoint, "summaryPackets");
+	_messagePackets = getLong(checkpoint, "messagePackets");
+	_measurementPackets = getLong(checkpoint, "measurementPackets");
+	fromString(checkpoint.getProperty("mdRefs", ""), _mdRefs);
+	fromString(checkpoint.getProperty("missingMDRefs", ""),
+		   _missingMDRefs);
+	fromString(checkpoint.getProperty("parentIDs", ""), _parentIDs);
+    }
+
+
+    private static int getInt(Properties properties, String key) {
+	return Integer.parseInt(properties.getProperty(key, "0"));
+    }
+
+
+    private static long getLong(Properties properties, String key) {
+	return Long.parseLong(properties.getProperty(key, "0"));
+    }
+
+
+    /** Return space-separated values of set of Longs. */
+    private static String toString(HashSet set) {
+	StringBuffer buf = new StringBuffer();
+	for (Iterator i = set.iterator(); i.hasNext(); ) {
+	    buf.append(i.next()).append(' ');
+	}
+	return buf.toString();
+    }
+
+
+    /** Add space-separated Long values to set. */
+    private static void fromString(String values, HashSet set) {
+	StringTokenizer tokens = new StringTokenizer(values);
+	while (tokens.hasMoreTokens()) {
+	    set.add(new Long(tokens.nextToken()));
+	}
+    }
+
+
+    /** Print summary of check. */
+    private void printSummary() {
+
+	DeviceLogIndex.JournalEntry journal = _log._index.getJournalEntry();
+
+	System.out.println("");
+	System.out.println("Log Check Summary:");
+	System.out.println("");
+	System.out.println("Device ID        : "+_log.getDeviceId());
+	System.out.println("repair index     : "+(_repair==true?"YES":"NO"));
+	System.out.println("segments         : "+_log.nSegments());
+	System.out.println("sync patterns    : "+_syncPatterns);
+	System.out.println("valid records    : "+(_metadataPackets+_sensorDataPackets+
+						 _summaryPackets+_messagePackets+
+						 _measurementPackets));
+	System.out.println("parentIDs        : "+_parentIDs.size());
+	System.out.println("");
+	System.out.println("# Index Summary");
+	System.out.println(" entries         : "+_log.nPackets());
+	printKeys(_log.getMinTimestamp(), _log.getMaxTimestamp());
+	System.out.println(" last seq number : "+journal.getLastSequenceNumber());
+	System.out.println(" last md ref     : "+journal.getLastMetadataRef());
+	System.out.println(" total md refs   : "+(_mdRefs.size()+_missingMDRefs.size()));
+
+	if (_repair) {
+	    System.out.println("");
+	    System.out.println("# New Index Summary");
+	    System.out.println(" entries         : "+_rebuiltEntries);
+	    printKeys(_rebuiltMinKey, _rebuiltMaxKey);
+	    System.out.println(" last seq number : "+_rebuiltLastSequenceNumber);
+	    System.out.println(" last md ref     : "+_rebuiltLastMetadataRef);
+	}
+	System.out.println("");
+	System.out.println("# Record Summary");
+	System.out.println(" metadataPackets    : "+_metadataPackets);
+	System.out.println(" sensorDataPackets  : "+_sensorDataPackets);
+	System.out.println(" summaryPackets     : "+_summaryPackets);
+	System.out.println(" messagePackets     : "+_messagePackets);
+	System.out.println(" measurementPackets : "+_measurementPackets);
+
+	System.out.println("");
+	System.out.println("# Error Summary");
+	System.out.println(" stream corrupted   : "+_corruptErrors);
+	System.out.println(" eof errors         : "+_eofErrors);
+	System.out.println(" metadata not found : "+_missingMetadataErrors);
+	System.out.println(" invalid md packets : "+_missingMDRefs.size());
+	System.out.println(" unknown errors     : "+_unknownErrors);
+    }
+
+
+    private static void printKeys(long minKey, long maxKey) {
+	String mindate=DateFormat.getDateTimeInstance().format(new Date(minKey));
+	String maxdate=DateFormat.getDateTimeInstance().format(new Date(maxKey));
+	System.out.println(" min key         : "+minKey+" ("+mindate+")");
+	System.out.println(" max key         : "+maxKey+" ("+maxdate+")");
+    }
+
+
+    /** Result of decoding the record following one sync pattern. */
+    private static class Record {
+
+	/** Data file offset of sync pattern */
+	long _offset;
+
+	/** RECORD_OK or error */
+	int _status;
+
+	/** Index entry for record; valid if _status is RECORD_OK */
+	DeviceLogIndex.Entry _entry;
+
+	long _metadataRef;
+	long _parentId;
+	boolean _measurement;
+    }
+
+
+    /** Finds the sync patterns within one range of a data file, and
+	decodes the record following each one, up to the next sync
+	pattern. */
+    private static class RangeTask implements Callable {
+
+	String _fileName;
+	long _start;
+	long _end;
+	long _length;
+
+	/** Data read from file */
+	byte[] _buf;
+
+	/** File offset of _buf[0] */
+	long _bufStart;
+
+	/** Number of valid bytes in _buf */
+	int _bufLength = 0;
+
+	RandomAccessFile _file;
+
+	RangeTask(String fileName, long start, long end, long length) {
+	    _fileName = fileName;
+	    _start = start;
+	    _end = end;
+	    _length = length;
+	}
+
+	/** Return Vector of Records for sync patterns starting within
+	    the range, in file order. */
+	public Object call() throws IOException {
+
+	    Vector records = new Vector();
+
+	    _file = new RandomAccessFile(_fileName, "r");
+	    try {
+		_bufStart = _start;
+		_buf = new byte[(int )Math.min(_length - _start,
+					       _end - _start +
+					       LOOKAHEAD_BYTES)];
+		fill();
+
+		long sync = nextSync(_start);
+		while (sync >= 0 && sync < _end) {
+		    long next = nextSync(sync + DeviceLog.SYNC_PATTERN.length);
+		    long recordEnd = (next >= 0 ? next : _length);
+
+		    records.addElement(decode(sync, recordEnd));
+		    sync = next;
+		}
+	    }
+	    finally {
+		_file.close();
+		_buf = null;
+	    }
+	    return records;
+	}
+
+	/** Decode record between specified file offsets. */
+	private Record decode(long start, long end) {
+
+	    Record record = new Record();
+	    record._offset = start;
+
+	    int bodyOffset =
+		(int )(start - _bufStart) + DeviceLog.SYNC_PATTERN.length;
+	    int bodyLength = (int )(end - start) - DeviceLog.SYNC_PATTERN.length;
+
+	    try {
+		DevicePacket packet =
+		    DevicePacketCodec.decodeBody(_buf, bodyOffset, bodyLength);
+
+		DeviceLogIndex.Entry entry =
+		    new DeviceLogIndex.Entry(packet.systemTime(),
+					     (int )(end - start), start,
+					     packet.sequenceNo());
+		entry.setColumns(packet);
+
+		record._entry = entry;
+		record._metadataRef = packet.metadataRef();
+		record._parentId = packet.getParentId();
+		record._measurement = (packet instanceof MeasurementPacket);
+		record._status = RECORD_OK;
+	    }
+	    catch (StreamCorruptedException e) {
+		record._status = RECORD_CORRUPT;
+	    }
+	    catch (EOFException e) {
+		record._status = RECORD_EOF;
+	    }
+	    catch (Exception e) {
+		_log4j.debug("decode(): " + e);
+		record._status = RECORD_UNKNOWN;
+	    }
+	    return record;
+	}
+
+	/** Return file offset of next sync pattern at or after specified
+	    offset, or -1 if there is none; reads more of the file as
+	    needed. */
+	private long nextSync(long offset) throws IOException {
+
+	    byte[] sync = DeviceLog.SYNC_PATTERN;
+
+	    while (true) {
+		int last = _bufLength - sync.length;
+		for (int i = (int )(offset - _bufStart); i <= last; i++) {
+		    if (_buf[i] != sync[0]) {
+			continue;
+		    }
+		    int j = 1;
+		    while (j < sync.length && _buf[i + j] == sync[j]) {
+			j++;
+		    }
+		    if (j == sync.length) {
+			return _bufStart + i;
+		    }
+		}
+		if (_bufStart + _bufLength >= _length) {
+		    return -1;
+		}
+		// Record extends past buffered data
+		offset = Math.max(offset,
+				  _bufStart + _bufLength - sync.length + 1);
+		grow();
+	    }
+	}
+
+	/** Double the buffer and read more of the file into it. */
+	private void grow() throws IOException {
+	    long size = Math.min(2L * _buf.length, _length - _bufStart);
+	    if (size > Integer.MAX_VALUE) {
+		throw new IOException("record at offset " + _bufStart +
+				      " too large");
+	    }
+	    byte[] buf = new byte[(int )size];
+	    System.arraycopy(_buf, 0, buf, 0, _bufLength);
+	    _buf = buf;
+	    fill();
+	}
+
+	/** Read file into unused part of buffer. */
+	private void fill() throws IOException {
+	    _file.seek(_bufStart + _bufLength);
+	    _file.readFully(_buf, _bufLength, _buf.length - _bufLength);
+	    _bufLength = _buf.length;
+	}
+    }
+}
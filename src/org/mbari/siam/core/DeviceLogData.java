@@ -86,8 +86,23 @@ public class DeviceLogData {
 	 */
 	protected synchronized void appendLogData(byte[] serializedData, 
 			DeviceLogIndex.Entry indexEntry) {
+		if (serializedData == null) {
+			_logger.error("DeviceLogData:appendLogData: null data");
+			return;
+		}
+		appendLogData(serializedData, serializedData.length, indexEntry);
+	}
+
+	/** this routine appends the first dataLength bytes of serializedData 
+	 to the data log according to the information contained in the 
+	 <code>DeviceLogIndex.Entry</code> that is passed in
+	 @param indexEntry index entry used to write data
+	 @see DeviceLogIndex.Entry
+	 */
+	protected synchronized void appendLogData(byte[] serializedData, 
+			int dataLength,
+			DeviceLogIndex.Entry indexEntry) {
 		long seekOffset = _currentDataFileExtent;
-		int dataLength;
 		FileDescriptor fd;
 		
 		if ((indexEntry == null) || (serializedData == null)) {
@@ -95,8 +110,6 @@ public class DeviceLogData {
 			return;
 		}
 		
-		dataLength = serializedData.length;
-		
 		// update DeviceLogIndex.Entry with current offset, length
 		
 		indexEntry._dataOffset = seekOffset;
@@ -104,7 +117,7 @@ public class DeviceLogData {
 		
 		try {
 			_dataFile.seek(seekOffset);
-			_dataFile.write(serializedData);
+			_dataFile.write(serializedData, 0, dataLength);
 			
 		}
 		catch (IOException ioe) {
@@ -127,6 +140,44 @@ public class DeviceLogData {
 		_currentDataFileExtent += dataLength;
 	}
 	
+	/** this routine appends a block of one or more serialized records
+	 to the end of the data log with a single write. The caller is
+	 responsible for having set each record's index entry offset, 
+	 starting at getExtent().
+	 @param buf buffer holding records
+	 @param length number of bytes of buf to write
+	 @param sync if true, force data file to storage after writing
+	 @return false if the block could not be written
+	 */
+	protected synchronized boolean appendLogData(byte[] buf, int length, 
+						     boolean sync) {
+		try {
+			_dataFile.seek(_currentDataFileExtent);
+			_dataFile.write(buf, 0, length);
+		}
+		catch (IOException ioe) {
+			_logger.error("appendLogData: seek/write exception", ioe);
+			return false;
+		}
+		
+		_currentDataFileExtent += length;
+
+		if (sync) {
+			try {
+				_dataFile.getFD().sync();
+			}
+			catch (IOException ioe) {
+				_logger.error("appendLogData: fd sync failed");
+			}
+		}
+		return true;
+	}
+
+	/** Return offset at which next record will be appended. */
+	protected synchronized long getExtent() {
+		return _currentDataFileExtent;
+	}
+	
 	/** this routine reads a byte array of serialized class data from the
 	 data log according to the information contained in the 
 	 <code>DeviceLogIndex.Entry</code> that is passed in
@@ -179,6 +230,23 @@ public class DeviceLogData {
 		return result;
 	}
 	
+	/** Read up to length bytes starting at specified data file offset
+	 into buf; returns number of bytes read, which is less than length 
+	 only at the end of the file. */
+	protected synchronized int readData(long dataOffset, byte[] buf, 
+					    int offset, int length) 
+	    throws IOException {
+		
+		int nBytes = (int )Math.max(0, Math.min(length, 
+						       _currentDataFileExtent - 
+						       dataOffset));
+		if (nBytes > 0) {
+			_dataFile.seek(dataOffset);
+			_dataFile.readFully(buf, offset, nBytes);
+		}
+		return nBytes;
+	}
+	
 	/** Close the data file. This DeviceLogData instance is no longer usable
 	 after close() has been called. */
 	protected void close() throws IOException {
@@ -18,6 +18,7 @@ import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.PropertyConfigurator;
+import org.mbari.siam.distributed.DevicePacket;
 import org.mbari.siam.distributed.NoDataException;
 
 /* $Id: DeviceLogIndex.java,v 1.4 2012/12/17 21:32:42 oreilly Exp $ */
@@ -81,6 +82,33 @@ public class DeviceLogIndex {
 	
     // For internal use
     private Entry _indexEntry = new Entry();
+
+    /** Memory-mapped view used for entry reads; null if disabled */
+    private DeviceLogIndexMap _map = null;
+
+    /** Packet type and size of each entry */
+    private DeviceLogIndexColumns _columns;
+
+    /** True once the index has been opened for writing; until then its
+	companion files are only read */
+    private boolean _writable = false;
+
+    /** Entries appended one at a time since the companion files were
+	last written */
+    private int _nUnflushed = 0;
+
+    /** Entries appended one at a time between writes of the companion
+	files */
+    private static final int COMPANION_FLUSH_ENTRIES = 64;
+
+    /** Entries summarized by time bucket; read on first use, so that
+	the buckets of segments that aren't searched aren't loaded */
+    private DeviceLogIndexBuckets _buckets;
+
+    private boolean _bucketsLoaded = false;
+
+    /** Index entries read at a time when rebuilding the buckets */
+    private static final int BUCKET_REBUILD_CHUNK = 1024;
 	
 	
     /**
@@ -144,7 +172,18 @@ public class DeviceLogIndex {
 			
 	    initJournalEntry();
 	}
-		
+
+	_columns = 
+	    new DeviceLogIndexColumns(DeviceLogIndexColumns.fileName(deviceId,
+								     segmentNum,
+								     suffix,
+								     directory));
+
+	_buckets = 
+	    new DeviceLogIndexBuckets(DeviceLogIndexBuckets.fileName(deviceId,
+								     segmentNum,
+								     suffix,
+								     directory));
     }
 	
     /** Return name of index file. */
@@ -176,6 +215,10 @@ public class DeviceLogIndex {
     }
 	
     private void updateJournalEntry() {
+	updateJournalEntry(true);
+    }
+
+    private void updateJournalEntry(boolean sync) {
 	JournalEntry journalEntry = 
 	    new JournalEntry(_maxIndex, _sequentialAccessedIndex, 
 			     _minTimestamp, _maxTimestamp,
@@ -188,7 +231,7 @@ public class DeviceLogIndex {
 	}
 		
 	// write the journal entry
-	journalEntry.toFile(_idxFile);
+	journalEntry.toFile(_idxFile, sync);
     }
 	
     private void restoreJournalInfo() {
@@ -213,6 +256,35 @@ public class DeviceLogIndex {
 		
 	_lastSequenceNumber = journalEntry.getLastSequenceNumber() + 1;
 	_lastMetadataRef = journalEntry.getLastMetadataRef();
+
+	// Entries written after the last journal update (e.g. an interrupted
+	// group commit) are ignored, and overwritten by the next append; 
+	// the file is left as it is until the writer calls 
+	// discardUnjournaledEntries().
+	long journaledExtent = JournalEntry.LOG_JOURNAL_ENTRY_SIZE + 
+	    (long )_maxIndex * Entry.LOG_INDEX_ENTRY_SIZE;
+
+	if (_currentIdxFileExtent > journaledExtent) {
+	    _logger.debug("restoreJournalInfo(): ignoring " + 
+			  (_currentIdxFileExtent - journaledExtent) + 
+			  " unjournaled index bytes for device " + _deviceId);
+	    _currentIdxFileExtent = journaledExtent;
+	}
+    }
+
+    /** Truncate index file to its journaled entries, discarding entries
+	written after the last journal update. Only the log's writer calls
+	this (see DeviceLog.recover()); DeviceLog rebuilds the discarded
+	entries from the data file. */
+    protected synchronized void discardUnjournaledEntries() 
+	throws IOException {
+
+	long length = _idxFile.length();
+	if (length > _currentIdxFileExtent) {
+	    _logger.warn("discarding " + (length - _currentIdxFileExtent) + 
+			 " unjournaled index bytes for device " + _deviceId);
+	    _idxFile.setLength(_currentIdxFileExtent);
+	}
     }
 	
     /**
@@ -236,6 +308,11 @@ public class DeviceLogIndex {
 	    return;
 	}
 
+	openForWriting();
+
+	// Read buckets before the entry is added
+	DeviceLogIndexBuckets buckets = buckets();
+
 	long key = entry.getKey();
 		
 	if (key < _minTimestamp) {
@@ -262,6 +339,14 @@ public class DeviceLogIndex {
 		
 	// update the index file extent
 	_currentIdxFileExtent += Entry.LOG_INDEX_ENTRY_SIZE;
+
+	// Columns aren't journaled; they are written with those of the 
+	// following entries
+	_columns.write(entry);
+	buckets.add(entry);
+	if (++_nUnflushed >= COMPANION_FLUSH_ENTRIES) {
+	    flushCompanions();
+	}
 		
 	//update the last packet Sequence Number
 	_lastSequenceNumber = entry.getSequenceNumber();
@@ -271,6 +356,71 @@ public class DeviceLogIndex {
 
     }
 	
+    /**
+     * adds a batch of <code>Entry</code> objects to the current index
+     * file with a single write, followed by a single journal update.
+     * 
+     * @param entries
+     *            index entries to add, in key order
+     * @param nEntries
+     *            number of valid elements in entries
+     * @param sync
+     *            if true, force index file to storage after writing
+     */
+    protected synchronized void addIndexEntries(Entry[] entries, int nEntries,
+						boolean sync) {
+
+	if (nEntries <= 0) {
+	    return;
+	}
+
+	if (_maxIndex > java.lang.Integer.MAX_VALUE - nEntries) {
+	    _logger.warn("addIndexEntries: invalid maxIndex");
+	    return;
+	}
+
+	openForWriting();
+
+	// Read buckets before the entries are added
+	DeviceLogIndexBuckets buckets = buckets();
+
+	byte[] buf = new byte[nEntries * Entry.LOG_INDEX_ENTRY_SIZE];
+
+	for (int i = 0; i < nEntries; i++) {
+	    Entry entry = entries[i];
+	    long key = entry.getKey();
+
+	    if (key < _minTimestamp) {
+		_minTimestamp = key;
+	    }
+	    if (key > _maxTimestamp) {
+		_maxTimestamp = key;
+	    }
+	    entry.setEntryIndex(_maxIndex + 1 + i);
+	    entry.toBytes(buf, i * Entry.LOG_INDEX_ENTRY_SIZE);
+	}
+
+	try {
+	    _idxFile.seek(_currentIdxFileExtent);
+	    _idxFile.write(buf);
+	} catch (IOException ioe) {
+	    _logger.error("addIndexEntries: IOException on write", ioe);
+	    return;
+	}
+
+	_maxIndex += nEntries;
+	_currentIdxFileExtent += buf.length;
+	_lastSequenceNumber = entries[nEntries - 1].getSequenceNumber();
+
+	_columns.write(entries, nEntries);
+	buckets.add(entries, nEntries);
+	flushCompanions();
+
+	// The journal is written last, so that a partially written batch 
+	// is discarded on restart
+	updateJournalEntry(sync);
+    }
+
     /**
      * retrieve the <code>Entry</code> corresponding to the
      * given <code>entryIndex</code> in the index file
@@ -298,9 +448,13 @@ public class DeviceLogIndex {
 		
 	// seek to the appropriate file position
 		
-	long entryOffset = 
-	    (((entryIndex - 1) * Entry.LOG_INDEX_ENTRY_SIZE) + JournalEntry.LOG_JOURNAL_ENTRY_SIZE);
+	long entryOffset = entryOffset(entryIndex);
 		
+	if (_map != null && 
+	    _map.readEntry(entryOffset, _currentIdxFileExtent, entry)) {
+	    return entry;
+	}
+
 	if (entryOffset < _currentIdxFileExtent) {
 	    try {
 		_idxFile.seek(entryOffset);
@@ -316,6 +470,248 @@ public class DeviceLogIndex {
 	return entry;
     }
 	
+    /** Read up to buf.length / Entry.LOG_INDEX_ENTRY_SIZE consecutive
+	entries, starting at specified (1-based) index, into buf with a
+	single read; returns number of entries read. Entries are decoded
+	with Entry.fromBytes(). */
+    protected synchronized int readEntries(int firstIndex, byte[] buf) 
+	throws IOException {
+
+	if (!validIndex(firstIndex)) {
+	    return 0;
+	}
+	int nEntries = Math.min(buf.length / Entry.LOG_INDEX_ENTRY_SIZE,
+				_maxIndex - firstIndex + 1);
+
+	_idxFile.seek(entryOffset(firstIndex));
+	_idxFile.readFully(buf, 0, nEntries * Entry.LOG_INDEX_ENTRY_SIZE);
+
+	return nEntries;
+    }
+
+    /** Fill in packet type and size of entries, as returned by
+	getEntries(). Entries whose packet attributes haven't been recorded
+	are marked as such (see Entry.hasColumns()). */
+    protected void readColumns(Vector entries) {
+	_columns.read(entries);
+    }
+
+    /** Fill in packet type and size of entry. */
+    protected void readColumns(Entry entry) {
+	_columns.read(entry);
+    }
+
+    /** Record packet type and size of an existing entry, e.g. one added
+	before these were kept in the index; does nothing unless the index
+	has been opened for writing. */
+    protected synchronized void writeColumns(Entry entry) {
+	if (_writable && validIndex(entry.getEntryIndex())) {
+	    Entry oldEntry = new Entry(entry);
+	    _columns.read(oldEntry);
+	    _columns.write(entry);
+	    _columns.flush();
+	    buckets().update(oldEntry, entry);
+	}
+    }
+
+    /** Open the index's companion files for writing, creating them if
+	needed. The log's writer calls this (see DeviceLog.recover()), and
+	it is called before entries are added; until then the companion 
+	files are only read, and are used only if they describe the 
+	index. */
+    protected synchronized void openForWriting() {
+	if (_writable) {
+	    return;
+	}
+	_writable = true;
+	_columns.openForWriting();
+	if (_buckets.openForWriting()) {
+	    // Read them again, rebuilding them if they are stale
+	    _bucketsLoaded = false;
+	}
+    }
+
+    /** Return true if the index has been opened for writing. */
+    protected boolean writable() {
+	return _writable;
+    }
+
+    /** Write companion file changes kept since they were last 
+	written. */
+    private void flushCompanions() {
+	_columns.flush();
+	_buckets.flush();
+	_nUnflushed = 0;
+    }
+
+    /** Return index of first entry, at or after entryIndex, that isn't
+	in a time bucket holding only packets of the specified types
+	(DevicePacket type flags). */
+    protected int skipEntries(int entryIndex, int typeFlags) {
+	return buckets().skip(entryIndex, typeFlags);
+    }
+
+    /** Return number of data file bytes (including sync patterns) of
+	the entries with keys between beginKey and endKey (inclusive).
+	Only the entries of the time buckets at either end of the range are
+	read. */
+    protected long dataBytes(long beginKey, long endKey) 
+	throws NoDataException {
+
+	int nEntries = nEntries(beginKey, endKey);
+	if (nEntries <= 0) {
+	    return 0;
+	}
+	int index = firstIndex(beginKey);
+	int end = index + nEntries;
+
+	long nBytes = 0;
+	while (index < end) {
+	    int b = buckets().bucketOfIndex(index);
+	    int bucketEnd = end;
+	    if (b >= 0) {
+		bucketEnd = buckets().getFirstIndex(b) + buckets().getCount(b);
+		if (buckets().getFirstIndex(b) == index && bucketEnd <= end) {
+		    // Whole bucket is in range
+		    nBytes += buckets().getDataBytes(b);
+		    index = bucketEnd;
+		    continue;
+		}
+	    }
+	    bucketEnd = Math.min(bucketEnd, end);
+	    nBytes += readDataBytes(index, bucketEnd - index);
+	    index = bucketEnd;
+	}
+	return nBytes;
+    }
+
+    /** Return sum of data sizes of nEntries entries, starting at
+	specified index, reading the entries. */
+    private long readDataBytes(int firstIndex, int nEntries) {
+	byte[] buf = new byte[Math.min(nEntries, BUCKET_REBUILD_CHUNK) * 
+			      Entry.LOG_INDEX_ENTRY_SIZE];
+	long nBytes = 0;
+	try {
+	    while (nEntries > 0) {
+		int n = Math.min(readEntries(firstIndex, buf), nEntries);
+		if (n <= 0) {
+		    break;
+		}
+		for (int i = 0; i < n; i++) {
+		    // Entry.toBytes() layout: entryIndex, dataSize, ...
+		    nBytes += getInt(buf, i * Entry.LOG_INDEX_ENTRY_SIZE + 4);
+		}
+		firstIndex += n;
+		nEntries -= n;
+	    }
+	}
+	catch (IOException e) {
+	    _logger.error("readDataBytes(): IOException", e);
+	}
+	return nBytes;
+    }
+
+    /** Return time buckets, reading them on first use. Buckets that 
+	don't describe this index are rebuilt if the index is open for
+	writing, and otherwise disabled. */
+    private synchronized DeviceLogIndexBuckets buckets() {
+
+	if (!_bucketsLoaded) {
+	    _bucketsLoaded = true;
+	    _buckets.load();
+	    if (!_buckets.covers(_maxIndex) && !_buckets.writable()) {
+		// Only reading; searches read the index instead
+		_logger.debug("time buckets don't describe index of device " +
+			      _deviceId);
+		_buckets.disable();
+	    }
+	    else if (!_buckets.covers(_maxIndex)) {
+		try {
+		    rebuildBuckets();
+		}
+		catch (IOException e) {
+		    // Searches then read the index instead
+		    _logger.error("can't rebuild time buckets", e);
+		    _buckets.disable();
+		}
+	    }
+	}
+	return _buckets;
+    }
+
+    /** Summarize all index entries in new time buckets, e.g. for an index
+	written by an older version, or after unjournaled entries were
+	discarded. */
+    private void rebuildBuckets() throws IOException {
+
+	_logger.info("rebuilding time buckets of " + _maxIndex + 
+		     " index entries for device " + _deviceId);
+	_buckets.clear();
+
+	byte[] buf = new byte[BUCKET_REBUILD_CHUNK * Entry.LOG_INDEX_ENTRY_SIZE];
+	int index = FIRST_DATA_INDEX;
+	while (index <= _maxIndex) {
+	    int nEntries = readEntries(index, buf);
+	    if (nEntries <= 0) {
+		break;
+	    }
+	    Entry[] entries = new Entry[nEntries];
+	    Vector entryVector = new Vector(nEntries);
+	    for (int i = 0; i < nEntries; i++) {
+		entries[i] = new Entry();
+		entries[i].fromBytes(buf, i * Entry.LOG_INDEX_ENTRY_SIZE);
+		entryVector.addElement(entries[i]);
+	    }
+	    _columns.read(entryVector);
+	    _buckets.add(entries, nEntries);
+	    index += nEntries;
+	}
+	_buckets.flush();
+    }
+	
+    /** Return key of entry at specified (1-based) index; uses the mapped
+	view if enabled, otherwise reads the index file. */
+    protected synchronized long getEntryKey(int entryIndex) 
+	throws NoDataException {
+
+	if (_map != null && validIndex(entryIndex)) {
+	    long key = _map.readKey(entryOffset(entryIndex), 
+				    _currentIdxFileExtent);
+	    if (key != Long.MIN_VALUE) {
+		return key;
+	    }
+	}
+	return getIndexEntry(entryIndex, _indexEntry).getKey();
+    }
+
+
+    /** Return file offset of entry at specified (1-based) index */
+    private long entryOffset(int entryIndex) {
+	return ((long )(entryIndex - 1) * Entry.LOG_INDEX_ENTRY_SIZE) + 
+	    JournalEntry.LOG_JOURNAL_ENTRY_SIZE;
+    }
+
+
+    /** Enable or disable reads of index entries through a memory-mapped
+	view of the index file. Mapped reads avoid a seek and several
+	read calls per entry during key searches and range retrievals, 
+	at the cost of address space roughly equal to the index size. */
+    protected synchronized void setMappedReads(boolean enable) {
+	if (enable && _map == null) {
+	    _map = new DeviceLogIndexMap(_idxFile);
+	}
+	else if (!enable && _map != null) {
+	    _map.release();
+	    _map = null;
+	}
+    }
+
+
+    /** Return true if index entries are read through a mapped view. */
+    protected boolean mappedReadsEnabled() {
+	return (_map != null);
+    }
+
     protected synchronized JournalEntry getJournalEntry(
 							JournalEntry journalEntry) {
 		
@@ -383,8 +779,18 @@ public class DeviceLogIndex {
      * set the lastMetadataRef value that has been registered
      */
     protected void updateMetadataRef(long mdref) {
+	updateMetadataRef(mdref, true);
+    }
+
+    /**
+     * set the lastMetadataRef value; if writeJournal is false, the
+     * value is written with the next journal update.
+     */
+    protected void updateMetadataRef(long mdref, boolean writeJournal) {
 	_lastMetadataRef = mdref;
-	updateJournalEntry();
+	if (writeJournal) {
+	    updateJournalEntry();
+	}
     }
 	
     /**
@@ -419,6 +825,14 @@ public class DeviceLogIndex {
 	    return 0;
 	}
 		
+	if (buckets().ordered()) {
+	    int beginIndex = firstKeyIndex(beginKey);
+	    int endIndex = (endKey == Long.MAX_VALUE ? _maxIndex : 
+			    firstKeyIndex(endKey + 1) - 1);
+
+	    return Math.max(endIndex - beginIndex + 1, 0);
+	}
+
 	int beginIndex = findKeyIndex(beginKey, SearchType.FIND_UPPER);
 	int endIndex = findKeyIndex(endKey, SearchType.FIND_LOWER);
 	if (beginIndex == -1 || endIndex == -1) {
@@ -452,9 +866,32 @@ public class DeviceLogIndex {
 	_logger.debug("getEntries(), _deviceId=" + _deviceId + ", beginKey="
 		      + beginKey + ", nEntries=" + nEntries);
 		
-	// Find first entry with key >= beginKey
-	int index = 0;
-	if ((index = findKeyIndex(beginKey, SearchType.FIND_UPPER)) == -1) {
+	return getEntries(firstIndex(beginKey), nEntries);
+    }
+
+    /**
+     * returns index of the first entry with key >= beginKey
+     * 
+     * @param beginKey
+     *            starting key value (inclusive)
+     * @throws NoDataException if all keys are less than beginKey
+     */
+    protected int firstIndex(long beginKey) 
+	throws NoDataException {
+
+	int index = -1;
+	if (buckets().ordered()) {
+	    index = firstKeyIndex(beginKey);
+	    if (!validIndex(index)) {
+		index = -1;
+	    }
+	}
+	else if ((index = findKeyIndex(beginKey, SearchType.FIND_UPPER)) != -1) {
+	    Range range = getDuplicateTimestampRange(index);
+	    index = range.lowIndex;
+	}
+
+	if (index == -1) {
 	    _logger.info("beginKey " + beginKey + " out of range for device " +
 			 _deviceId);
 			
@@ -463,13 +900,7 @@ public class DeviceLogIndex {
 	    throw new NoDataException("beginKey out of range of device " +
 				      _deviceId + " log");
 	}
-		
-	Range range = getDuplicateTimestampRange(index);
-	index = range.lowIndex;
-
-	return getEntries(index, nEntries);
-
-
+	return index;
     }
 
     /**
@@ -548,7 +979,41 @@ public class DeviceLogIndex {
      * after close() has been called.
      */
     protected void close() throws IOException {
+	setMappedReads(false);
 	_idxFile.close();
+	_columns.close();
+	_buckets.close();
+    }
+	
+	
+    /** Return index of first entry with key >= targetKey, or 
+     * _maxIndex + 1 if there is none. Only the entries of the time 
+     * bucket holding targetKey are searched. Valid if 
+     * buckets().ordered(). */
+    private synchronized int firstKeyIndex(long targetKey) 
+	throws NoDataException {
+
+	int b = buckets().firstBucket(targetKey);
+	if (b == buckets().nBuckets()) {
+	    return _maxIndex + 1;
+	}
+
+	// Keys before the bucket are less than targetKey, keys after it
+	// are greater
+	int low = buckets().getFirstIndex(b) - 1;
+	int high = buckets().getFirstIndex(b) + buckets().getCount(b);
+	int probe;
+
+	while (high - low > 1) {
+	    probe = (high + low) / 2;
+	    if (getEntryKey(probe) < targetKey) {
+		low = probe;
+	    }
+	    else {
+		high = probe;
+	    }
+	}
+	return high;
     }
 	
 	
@@ -562,8 +1027,7 @@ public class DeviceLogIndex {
 		
 	while (high - low > 1) {
 	    probe = (high + low) / 2;
-	    getIndexEntry(probe, _indexEntry);
-	    if (_indexEntry.getKey() < targetKey) {
+	    if (getEntryKey(probe) < targetKey) {
 		low = probe;
 	    }
 	    else {
@@ -572,8 +1036,7 @@ public class DeviceLogIndex {
 	}
 		
 	if (validIndex(high)) {
-	    getIndexEntry(high, _indexEntry);
-	    long highKey = _indexEntry.getKey();
+	    long highKey = getEntryKey(high);
 	    if (highKey == targetKey) {
 		// Found exact match
 		return high;
@@ -607,13 +1070,11 @@ public class DeviceLogIndex {
 	throws NoDataException {
 	Range range = new Range();
 		
-	getIndexEntry(index, _indexEntry);
-	long key = _indexEntry.getKey();
+	long key = getEntryKey(index);
 	int i;
 	// Look for underlying duplicate keys
 	for (i = index-1; i >= FIRST_DATA_INDEX; i--) {
-	    getIndexEntry(i, _indexEntry);
-	    if (_indexEntry.getKey() != key) {
+	    if (getEntryKey(i) != key) {
 		break;
 	    }
 	}
@@ -621,8 +1082,7 @@ public class DeviceLogIndex {
 		
 	// Look for overlying duplicate keys
 	for (i = index+1; i <= _maxIndex; i++) {
-	    getIndexEntry(i, _indexEntry);
-	    if (_indexEntry.getKey() != key) {
+	    if (getEntryKey(i) != key) {
 		break;
 	    }
 	}
@@ -726,15 +1186,29 @@ public class DeviceLogIndex {
 	    @param file <code>RandomAccessFile</code> to write index entry to 
 	*/
 	protected synchronized void toFile(RandomAccessFile file) {
+	    toFile(file, true);
+	}
+
+	/** serializes this journal entry and writes it to the index file
+	    with a single write
+	    @param file <code>RandomAccessFile</code> to write entry to 
+	    @param sync if true, force file to storage after writing
+	*/
+	protected synchronized void toFile(RandomAccessFile file, 
+					   boolean sync) {
 	    FileDescriptor fd;
-			
+	    byte[] buf = new byte[LOG_JOURNAL_ENTRY_SIZE];
+	    int off = 0;
+
+	    off = putInt(buf, off, _numEntries);
+	    off = putInt(buf, off, _lastEntryAccessed);
+	    off = putLong(buf, off, _minKey);
+	    off = putLong(buf, off, _maxKey);
+	    off = putLong(buf, off, _lastSequenceNumber);
+	    off = putLong(buf, off, _lastMetadataRef);
+
 	    try {
-		file.writeInt(_numEntries);
-		file.writeInt(_lastEntryAccessed);
-		file.writeLong(_minKey);
-		file.writeLong(_maxKey);
-		file.writeLong(_lastSequenceNumber);
-		file.writeLong(_lastMetadataRef);
+		file.write(buf);
 				
 		// caller has to update index file extent
 		// currentIdxFileExtent += 
@@ -743,6 +1217,10 @@ public class DeviceLogIndex {
 	    catch(IOException ioe) {
 		_log4j.error("! IOException on journal entry write");
 	    }
+
+	    if (!sync) {
+		return;
+	    }
 			
 	    try {
 		fd = file.getFD();
@@ -792,6 +1270,11 @@ public class DeviceLogIndex {
 	protected long _dataOffset;
 	protected long _key;
 	protected long _sequenceNumber; // remember to adjust LOG_INDEX_ENTRY_SIZE if this is removed
+
+	// Packet attributes, kept in the DeviceLogIndexColumns file
+	protected int  _typeFlag = DeviceLogIndexColumns.UNKNOWN_TYPE;
+	protected int  _payloadBytes;
+	protected long _recordType;
 		
 	/** optional constructor
 	    @param key initial value of the key associated with this index entry
@@ -814,6 +1297,9 @@ public class DeviceLogIndex {
 	    _sequenceNumber=e.getSequenceNumber();
 	    _entryIndex=e.getEntryIndex();
 	    _sequenceNumber = e.getSequenceNumber();
+	    _typeFlag = e._typeFlag;
+	    _payloadBytes = e._payloadBytes;
+	    _recordType = e._recordType;
 	} 
 		
 	/** default constructor */
@@ -881,14 +1367,13 @@ public class DeviceLogIndex {
 	*/
 	protected synchronized void toFile(RandomAccessFile file) {
 	    FileDescriptor fd;
+	    byte[] buf = new byte[LOG_INDEX_ENTRY_SIZE];
+
+	    toBytes(buf, 0);
 			
 	    try {
 
-		file.writeInt(_entryIndex);
-		file.writeInt(_dataSize);
-		file.writeLong(_dataOffset);
-		file.writeLong(_key);
-		file.writeLong(_sequenceNumber);
+		file.write(buf);
 				
 		// caller has to update index file extent
 		//currentIdxFileExtent += slie.LOG_INDEX_ENTRY_SIZE;
@@ -912,6 +1397,71 @@ public class DeviceLogIndex {
 			
 	}
 		
+	/** encodes this index entry into buf at specified offset, using
+	    the same layout as toFile()
+	*/
+	protected synchronized void toBytes(byte[] buf, int offset) {
+	    offset = putInt(buf, offset, _entryIndex);
+	    offset = putInt(buf, offset, _dataSize);
+	    offset = putLong(buf, offset, _dataOffset);
+	    offset = putLong(buf, offset, _key);
+	    offset = putLong(buf, offset, _sequenceNumber);
+	}
+
+	/** sets the packet attributes of this entry from the packet 
+	    it refers to
+	*/
+	protected void setColumns(DevicePacket packet) {
+	    _typeFlag = DeviceLogIndexColumns.typeFlag(packet);
+	    _payloadBytes = DeviceLogIndexColumns.payloadBytes(packet);
+	    _recordType = packet.getRecordType();
+	}
+
+	/** returns true if packet attributes of this entry are known */
+	protected boolean hasColumns() {
+	    return _typeFlag != DeviceLogIndexColumns.UNKNOWN_TYPE;
+	}
+
+	/** returns the DevicePacket type flag of the packet */
+	protected int getTypeFlag() {
+	    return _typeFlag;
+	}
+
+	/** returns packet size, not counting the DevicePacket header */
+	protected int getPayloadBytes() {
+	    return _payloadBytes;
+	}
+
+	/** returns the record type of the packet */
+	protected long getRecordType() {
+	    return _recordType;
+	}
+
+	/** encodes packet attributes into buf at specified offset */
+	protected void columnsToBytes(byte[] buf, int offset) {
+	    offset = putInt(buf, offset, _typeFlag);
+	    offset = putInt(buf, offset, _payloadBytes);
+	    offset = putLong(buf, offset, _recordType);
+	}
+
+	/** decodes packet attributes from buf at specified offset */
+	protected void columnsFromBytes(byte[] buf, int offset) {
+	    _typeFlag = getInt(buf, offset);
+	    _payloadBytes = getInt(buf, offset + 4);
+	    _recordType = getLong(buf, offset + 8);
+	}
+
+	/** decodes this index entry from buf at specified offset, as
+	    written by toBytes()
+	*/
+	protected void fromBytes(byte[] buf, int offset) {
+	    _entryIndex = getInt(buf, offset);
+	    _dataSize = getInt(buf, offset + 4);
+	    _dataOffset = getLong(buf, offset + 8);
+	    _key = getLong(buf, offset + 16);
+	    _sequenceNumber = getLong(buf, offset + 24);
+	}
+
 	/** deserializes this index entry from the index file
 	    @param file <code>RandomAccessFile</code> to read index entry from
 	*/
@@ -939,6 +1489,37 @@ public class DeviceLogIndex {
     }
 
 
+    /** Write big-endian int into buf at offset (same byte order as
+	RandomAccessFile.writeInt()); return offset past written bytes. */
+    static int putInt(byte[] buf, int offset, int value) {
+	buf[offset++] = (byte )(value >>> 24);
+	buf[offset++] = (byte )(value >>> 16);
+	buf[offset++] = (byte )(value >>> 8);
+	buf[offset++] = (byte )value;
+	return offset;
+    }
+
+    /** Write big-endian long into buf at offset (same byte order as
+	RandomAccessFile.writeLong()); return offset past written bytes. */
+    static int putLong(byte[] buf, int offset, long value) {
+	offset = putInt(buf, offset, (int )(value >>> 32));
+	return putInt(buf, offset, (int )value);
+    }
+
+    /** Read big-endian int from buf at offset */
+    static int getInt(byte[] buf, int offset) {
+	return ((buf[offset] & 0xff) << 24) | 
+	    ((buf[offset + 1] & 0xff) << 16) |
+	    ((buf[offset + 2] & 0xff) << 8) | 
+	    (buf[offset + 3] & 0xff);
+    }
+
+    /** Read big-endian long from buf at offset */
+    static long getLong(byte[] buf, int offset) {
+	return ((long )getInt(buf, offset) << 32) | 
+	    (getInt(buf, offset + 4) & 0xffffffffL);
+    }
+
     /** Enumeration for search type. */
     static class SearchType {
 	
@@ -0,0 +1,624 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.log4j.Logger;
+import org.mbari.siam.distributed.DevicePacket;
+
+/**
+   DeviceLogIndexBuckets summarizes the entries of a
+   <code>DeviceLogIndex</code> by time bucket, in a companion
+   &lt;deviceID&gt;_&lt;segment&gt;.bkt file. Each bucket covers the
+   entries whose keys fall in one interval of the bucket width, and 
+   records the index of its first entry, its number of entries, their 
+   record and payload bytes, and their number of each packet type. Since
+   keys are appended in ascending order, buckets hold consecutive 
+   entries, and the entries in a key range or the bytes waiting to be 
+   retrieved can be found from the buckets, reading only the entries of
+   the buckets at either end of the range.
+   <p>
+   The width starts at BUCKET_MSEC and is doubled, merging pairs of
+   buckets, whenever the segment would need more than MAX_BUCKETS; the
+   width thus follows the segment's span and rate, and the buckets of a
+   segment never take more than MAX_BUCKETS * BUCKET_SIZE bytes.
+<pre>
+   header:  bucketMsec(8) flags(4) unused(4)
+   bucket:  bucket(8) firstIndex(4) count(4) dataBytes(8) payloadBytes(8)
+            typeCount(4) * N_TYPES
+</pre>
+   Changed buckets are written by flush(), which the index calls with
+   each group commit, every few single appends and on close. The file
+   isn't journaled; if its buckets don't count the same number of 
+   entries as the index (e.g. an index written by an older version, or
+   a crash before buckets were flushed), the index's writer rebuilds 
+   them, and readers search the index without them. The file is opened
+   read-only, and not at all if it doesn't exist, until the index is 
+   written (see openForWriting()), so logs that are only read are 
+   never changed. If a key is appended out of order the buckets can no
+   longer locate keys (see ordered()), but their counts remain valid.
+
+   @see DeviceLogIndex
+*/
+class DeviceLogIndexBuckets {
+
+    /** Log4j logger */
+    static private Logger _log4j = Logger.getLogger(DeviceLogIndexBuckets.class);
+
+    /** Initial key interval covered by each bucket (msec) */
+    static final long BUCKET_MSEC = 60000;
+
+    /** Maximum number of buckets; the width is doubled beyond this */
+    static final int MAX_BUCKETS = 1024;
+
+    /** Packet type counts per bucket */
+    static final int N_TYPES = 6;
+
+    static final int HEADER_SIZE = 8+4+4;
+    static final int BUCKET_SIZE = 8+4+4+8+8+4*N_TYPES;
+
+    /** Header flag: keys were appended in ascending order */
+    private static final int ORDERED_FLAG = 1;
+
+    private String _fileName;
+
+    /** Bucket file; null if it doesn't exist and isn't writable */
+    private RandomAccessFile _file = null;
+
+    private boolean _writable = false;
+
+    private long _bucketMsec = BUCKET_MSEC;
+    private int _nEntries = 0;
+    private boolean _ordered = true;
+
+    // Buckets, in key order
+    private int _nBuckets = 0;
+    private long[] _bucket = new long[16];
+    private int[] _first = new int[16];
+    private int[] _count = new int[16];
+    private long[] _dataBytes = new long[16];
+    private long[] _payloadBytes = new long[16];
+    private int[] _typeCounts = new int[16 * N_TYPES];
+
+    // Buckets from _firstDirty on, and the header if _headerDirty, 
+    // haven't been written
+    private int _firstDirty = Integer.MAX_VALUE;
+    private boolean _headerDirty = false;
+
+    private boolean _disabled = false;
+
+
+    /** Open specified bucket file for reading, if it exists; the 
+	buckets are read by load(). */
+    DeviceLogIndexBuckets(String fileName) {
+	_fileName = fileName;
+	if (new File(fileName).exists()) {
+	    try {
+		_file = new RandomAccessFile(fileName, "r");
+	    }
+	    catch (FileNotFoundException e) {
+		_log4j.warn("can't read " + fileName + ": " + e);
+	    }
+	}
+    }
+
+
+    /** Open (or create) bucket file for writing; return false if it 
+	can't be, in which case buckets aren't written. Buckets must then
+	be loaded again. */
+    synchronized boolean openForWriting() {
+
+	if (_writable) {
+	    return true;
+	}
+	try {
+	    RandomAccessFile file = new RandomAccessFile(_fileName, "rw");
+	    if (_file != null) {
+		_file.close();
+	    }
+	    _file = file;
+	    _writable = true;
+	}
+	catch (IOException e) {
+	    _log4j.error("can't write " + _fileName + ": " + e);
+	}
+	return _writable;
+    }
+
+
+    /** Return true if the bucket file is open for writing. */
+    synchronized boolean writable() {
+	return _writable;
+    }
+
+
+    /** Read header and buckets from file; the entries counted by the
+	buckets are those they describe. */
+    synchronized void load() {
+	_disabled = false;
+	try {
+	    read();
+	}
+	catch (IOException e) {
+	    _log4j.error("load(): can't read buckets: " + e);
+	    clear();
+	    _nEntries = -1;
+	}
+    }
+
+
+    /** Return true if the buckets describe exactly nEntries entries. */
+    synchronized boolean covers(int nEntries) {
+	return _nEntries == nEntries;
+    }
+
+
+    /** Return true if keys were appended in ascending order, so that
+	entries can be located with firstBucket(). */
+    synchronized boolean ordered() {
+	return _ordered;
+    }
+
+
+    /** Return key interval covered by each bucket (msec). */
+    synchronized long bucketMsec() {
+	return _bucketMsec;
+    }
+
+
+    /** Remove all buckets and stop adding entries, e.g. if the buckets
+	can't be rebuilt; no entries are then skipped or located using 
+	the buckets. */
+    synchronized void disable() {
+	clear();
+	_ordered = false;
+	_disabled = true;
+    }
+
+
+    /** Remove all buckets. */
+    synchronized void clear() {
+	_nEntries = 0;
+	_nBuckets = 0;
+	_ordered = true;
+	_bucketMsec = BUCKET_MSEC;
+	_firstDirty = Integer.MAX_VALUE;
+	_headerDirty = true;
+	if (_writable) {
+	    try {
+		_file.setLength(0);
+	    }
+	    catch (IOException e) {
+		_log4j.error("clear(): IOException", e);
+	    }
+	}
+    }
+
+
+    /** Add nEntries entries, which must follow the entries already
+	added, with their columns if known; the changed buckets are 
+	written by the next flush(). */
+    synchronized void add(DeviceLogIndex.Entry[] entries, int nEntries) {
+
+	if (nEntries <= 0 || _disabled) {
+	    return;
+	}
+	if (entries[0].getEntryIndex() != _nEntries + 1) {
+	    _log4j.error("add(): entry " + entries[0].getEntryIndex() +
+			 " doesn't follow " + _nEntries);
+	    return;
+	}
+
+	_firstDirty = Math.min(_firstDirty, Math.max(_nBuckets - 1, 0));
+
+	for (int i = 0; i < nEntries; i++) {
+	    DeviceLogIndex.Entry entry = entries[i];
+	    long bucket = bucket(entry.getKey());
+
+	    if (_nBuckets == MAX_BUCKETS && bucket > _bucket[_nBuckets - 1]) {
+		coarsen();
+		bucket = bucket(entry.getKey());
+	    }
+
+	    if (_nBuckets == 0 || bucket > _bucket[_nBuckets - 1]) {
+		if (_nBuckets == _bucket.length) {
+		    grow();
+		}
+		_bucket[_nBuckets] = bucket;
+		_first[_nBuckets] = entry.getEntryIndex();
+		_count[_nBuckets] = 0;
+		_dataBytes[_nBuckets] = 0;
+		_payloadBytes[_nBuckets] = 0;
+		for (int t = 0; t < N_TYPES; t++) {
+		    _typeCounts[_nBuckets * N_TYPES + t] = 0;
+		}
+		_nBuckets++;
+	    }
+	    else if (bucket < _bucket[_nBuckets - 1] && _ordered) {
+		// Counted in the last bucket
+		_log4j.warn("add(): key " + entry.getKey() +
+			    " out of order; buckets won't locate keys");
+		_ordered = false;
+		_headerDirty = true;
+	    }
+
+	    int b = _nBuckets - 1;
+	    _count[b]++;
+	    _dataBytes[b] += entry.getDataSize();
+	    addColumns(b, entry, 1);
+	}
+	_nEntries += nEntries;
+    }
+
+
+    /** Add one entry. */
+    void add(DeviceLogIndex.Entry entry) {
+	add(new DeviceLogIndex.Entry[] {entry}, 1);
+    }
+
+
+    /** Replace the columns of an entry that has been added. */
+    synchronized void update(DeviceLogIndex.Entry oldEntry,
+			     DeviceLogIndex.Entry entry) {
+
+	int b = bucketOfIndex(entry.getEntryIndex());
+	if (b < 0) {
+	    return;
+	}
+	addColumns(b, oldEntry, -1);
+	addColumns(b, entry, 1);
+	_firstDirty = Math.min(_firstDirty, b);
+	flush();
+    }
+
+
+    /** Write changed buckets, and the header if it changed. */
+    synchronized void flush() {
+
+	if (!_writable) {
+	    return;
+	}
+	try {
+	    if (_headerDirty) {
+		writeHeader();
+		_headerDirty = false;
+	    }
+	    if (_firstDirty < _nBuckets) {
+		write(_firstDirty, _nBuckets - _firstDirty);
+	    }
+	    _firstDirty = Integer.MAX_VALUE;
+	}
+	catch (IOException e) {
+	    _log4j.error("flush(): IOException", e);
+	}
+    }
+
+
+    /** Return index of first bucket whose keys may be at least key, or
+	number of buckets if there is none. */
+    synchronized int firstBucket(long key) {
+
+	long bucket = bucket(key);
+	int low = -1;
+	int high = _nBuckets;
+	while (high - low > 1) {
+	    int probe = (low + high) / 2;
+	    if (_bucket[probe] < bucket) {
+		low = probe;
+	    }
+	    else {
+		high = probe;
+	    }
+	}
+	return high;
+    }
+
+
+    /** Return index of bucket holding specified entry, or -1. */
+    synchronized int bucketOfIndex(int entryIndex) {
+
+	int low = -1;
+	int high = _nBuckets;
+	while (high - low > 1) {
+	    int probe = (low + high) / 2;
+	    if (_first[probe] <= entryIndex) {
+		low = probe;
+	    }
+	    else {
+		high = probe;
+	    }
+	}
+	if (low < 0 || entryIndex >= _first[low] + _count[low]) {
+	    return -1;
+	}
+	return low;
+    }
+
+
+    /** Return index of first entry, at or after entryIndex, that isn't
+	in a bucket holding only packets of the specified types. */
+    synchronized int skip(int entryIndex, int typeFlags) {
+
+	if (typeFlags == 0) {
+	    return entryIndex;
+	}
+
+	int b = bucketOfIndex(entryIndex);
+	while (b >= 0 && b < _nBuckets && onlyTypes(b, typeFlags)) {
+	    entryIndex = _first[b] + _count[b];
+	    b++;
+	}
+	return entryIndex;
+    }
+
+
+    synchronized int nBuckets() {
+	return _nBuckets;
+    }
+
+    synchronized int getFirstIndex(int b) {
+	return _first[b];
+    }
+
+    synchronized int getCount(int b) {
+	return _count[b];
+    }
+
+    synchronized long getDataBytes(int b) {
+	return _dataBytes[b];
+    }
+
+    synchronized long getPayloadBytes(int b) {
+	return _payloadBytes[b];
+    }
+
+
+    /** Write changed buckets and close the bucket file. */
+    synchronized void close() throws IOException {
+	flush();
+	if (_file != null) {
+	    _file.close();
+	}
+    }
+
+
+    /** Double the bucket width, merging pairs of adjacent buckets, and
+	truncate the file to the merged buckets. */
+    private void coarsen() {
+
+	_bucketMsec *= 2;
+	int n = 0;
+	for (int b = 0; b < _nBuckets; b++) {
+	    // Floor of half the bucket number, also if negative
+	    long bucket = _bucket[b] >> 1;
+	    if (n > 0 && _bucket[n - 1] == bucket) {
+		_count[n - 1] += _count[b];
+		_dataBytes[n - 1] += _dataBytes[b];
+		_payloadBytes[n - 1] += _payloadBytes[b];
+		for (int t = 0; t < N_TYPES; t++) {
+		    _typeCounts[(n - 1) * N_TYPES + t] += 
+			_typeCounts[b * N_TYPES + t];
+		}
+		continue;
+	    }
+	    _bucket[n] = bucket;
+	    _first[n] = _first[b];
+	    _count[n] = _count[b];
+	    _dataBytes[n] = _dataBytes[b];
+	    _payloadBytes[n] = _payloadBytes[b];
+	    for (int t = 0; t < N_TYPES; t++) {
+		_typeCounts[n * N_TYPES + t] = _typeCounts[b * N_TYPES + t];
+	    }
+	    n++;
+	}
+	_nBuckets = n;
+	_firstDirty = 0;
+	_headerDirty = true;
+
+	if (_writable) {
+	    try {
+		_file.setLength(HEADER_SIZE + (long )n * BUCKET_SIZE);
+	    }
+	    catch (IOException e) {
+		_log4j.error("coarsen(): IOException", e);
+	    }
+	}
+	_log4j.debug("coarsen(): bucket width now " + _bucketMsec + 
+		     " msec, " + n + " buckets");
+    }
+
+
+    /** Return true if bucket holds only packets of the specified types. */
+    private boolean onlyTypes(int b, int typeFlags) {
+	int nTypes = 0;
+	for (int t = 0; t < N_TYPES; t++) {
+	    if ((typeFlags & typeFlag(t)) != 0) {
+		nTypes += _typeCounts[b * N_TYPES + t];
+	    }
+	}
+	return nTypes == _count[b];
+    }
+
+
+    /** Add columns of entry to bucket, times sign. */
+    private void addColumns(int b, DeviceLogIndex.Entry entry, int sign) {
+	_typeCounts[b * N_TYPES + typeIndex(entry)] += sign;
+	if (entry.hasColumns()) {
+	    _payloadBytes[b] += sign * entry.getPayloadBytes();
+	}
+    }
+
+
+    /** Return type count of entry's packet type. */
+    private static int typeIndex(DeviceLogIndex.Entry entry) {
+
+	if (!entry.hasColumns()) {
+	    return 5;
+	}
+	switch (entry.getTypeFlag()) {
+	case DevicePacket.SENSORDATA_FLAG:
+	    return 0;
+	case DevicePacket.METADATA_FLAG:
+	    return 1;
+	case DevicePacket.DEVICEMESSAGE_FLAG:
+	    return 2;
+	case DevicePacket.SUMMARY_FLAG:
+	    return 3;
+	default:
+	    return 4;
+	}
+    }
+
+
+    /** Return type flag of type count; OTHER_TYPE and UNKNOWN_TYPE
+	never match the types given to skip(). */
+    private static int typeFlag(int typeIndex) {
+	switch (typeIndex) {
+	case 0:
+	    return DevicePacket.SENSORDATA_FLAG;
+	case 1:
+	    return DevicePacket.METADATA_FLAG;
+	case 2:
+	    return DevicePacket.DEVICEMESSAGE_FLAG;
+	case 3:
+	    return DevicePacket.SUMMARY_FLAG;
+	default:
+	    return 0;
+	}
+    }
+
+
+    /** Return bucket number of key. */
+    private long bucket(long key) {
+	long bucket = key / _bucketMsec;
+	if (key < 0 && bucket * _bucketMsec != key) {
+	    bucket--;
+	}
+	return bucket;
+    }
+
+
+    /** Read header and buckets from file. */
+    private void read() throws IOException {
+
+	long length = (_file == null ? 0 : _file.length());
+	if (length < HEADER_SIZE) {
+	    clear();
+	    return;
+	}
+
+	int nBuckets = (int )((length - HEADER_SIZE) / BUCKET_SIZE);
+	if (nBuckets > MAX_BUCKETS || 
+	    HEADER_SIZE + (long )nBuckets * BUCKET_SIZE != length) {
+	    // Not written by this version, or partially written
+	    _log4j.warn("load(): invalid bucket file length " + length);
+	    clear();
+	    _nEntries = -1;
+	    return;
+	}
+
+	byte[] buf = new byte[HEADER_SIZE + nBuckets * BUCKET_SIZE];
+	_file.seek(0);
+	_file.readFully(buf);
+
+	_bucketMsec = DeviceLogIndex.getLong(buf, 0);
+	_ordered = (DeviceLogIndex.getInt(buf, 8) & ORDERED_FLAG) != 0;
+
+	if (_bucketMsec <= 0) {
+	    clear();
+	    _nEntries = -1;
+	    return;
+	}
+
+	while (_bucket.length < nBuckets) {
+	    grow();
+	}
+	_nBuckets = nBuckets;
+	int nEntries = 0;
+	for (int b = 0; b < nBuckets; b++) {
+	    int off = HEADER_SIZE + b * BUCKET_SIZE;
+	    _bucket[b] = DeviceLogIndex.getLong(buf, off);
+	    _first[b] = DeviceLogIndex.getInt(buf, off + 8);
+	    _count[b] = DeviceLogIndex.getInt(buf, off + 12);
+	    _dataBytes[b] = DeviceLogIndex.getLong(buf, off + 16);
+	    _payloadBytes[b] = DeviceLogIndex.getLong(buf, off + 24);
+	    for (int t = 0; t < N_TYPES; t++) {
+		_typeCounts[b * N_TYPES + t] = DeviceLogIndex.getInt(buf, off + 32 + 4 * t);
+	    }
+	    nEntries += _count[b];
+	}
+	_nEntries = nEntries;
+    }
+
+
+    /** Write n buckets, starting at bucket b. */
+    private void write(int b, int n) throws IOException {
+
+	byte[] buf = new byte[n * BUCKET_SIZE];
+	for (int i = 0; i < n; i++) {
+	    int off = i * BUCKET_SIZE;
+	    DeviceLogIndex.putLong(buf, off, _bucket[b + i]);
+	    DeviceLogIndex.putInt(buf, off + 8, _first[b + i]);
+	    DeviceLogIndex.putInt(buf, off + 12, _count[b + i]);
+	    DeviceLogIndex.putLong(buf, off + 16, _dataBytes[b + i]);
+	    DeviceLogIndex.putLong(buf, off + 24, _payloadBytes[b + i]);
+	    for (int t = 0; t < N_TYPES; t++) {
+		DeviceLogIndex.putInt(buf, off + 32 + 4 * t, _typeCounts[(b + i) * N_TYPES + t]);
+	    }
+	}
+
+	_file.seek(HEADER_SIZE + (long )b * BUCKET_SIZE);
+	_file.write(buf);
+    }
+
+
+    private void writeHeader() throws IOException {
+	byte[] buf = new byte[HEADER_SIZE];
+	DeviceLogIndex.putLong(buf, 0, _bucketMsec);
+	DeviceLogIndex.putInt(buf, 8, _ordered ? ORDERED_FLAG : 0);
+	_file.seek(0);
+	_file.write(buf);
+    }
+
+
+    /** Double the capacity of the bucket arrays. */
+    private void grow() {
+	int size = 2 * _bucket.length;
+
+	long[] bucket = new long[size];
+	int[] first = new int[size];
+	int[] count = new int[size];
+	long[] dataBytes = new long[size];
+	long[] payloadBytes = new long[size];
+	int[] typeCounts = new int[size * N_TYPES];
+
+	System.arraycopy(_bucket, 0, bucket, 0, _nBuckets);
+	System.arraycopy(_first, 0, first, 0, _nBuckets);
+	System.arraycopy(_count, 0, count, 0, _nBuckets);
+	System.arraycopy(_dataBytes, 0, dataBytes, 0, _nBuckets);
+	System.arraycopy(_payloadBytes, 0, payloadBytes, 0, _nBuckets);
+	System.arraycopy(_typeCounts, 0, typeCounts, 0, _nBuckets * N_TYPES);
+
+	_bucket = bucket;
+	_first = first;
+	_count = count;
+	_dataBytes = dataBytes;
+	_payloadBytes = payloadBytes;
+	_typeCounts = typeCounts;
+    }
+
+
+    /** Return name of bucket file. */
+    static String fileName(long deviceId, int segmentNum, String suffix,
+			   String directory) {
+	return directory + File.separator + deviceId + "_" + segmentNum +
+	    suffix + ".bkt";
+    }
+}
@@ -0,0 +1,277 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Vector;
+
+import org.apache.log4j.Logger;
+import org.mbari.siam.distributed.DeviceMessagePacket;
+import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.MetadataPacket;
+import org.mbari.siam.distributed.SensorDataPacket;
+import org.mbari.siam.distributed.SummaryPacket;
+
+/**
+   DeviceLogIndexColumns holds per-entry packet attributes of a
+   <code>DeviceLogIndex</code> in a companion &lt;deviceID&gt;_&lt;segment&gt;.col
+   file, so that packets can be selected by type and sized without
+   reading them from the data file. The column record of index entry n
+   (1-based) is at offset (n-1) * COLUMN_SIZE:
+<pre>
+   typeFlag(4) payloadBytes(4) recordType(8)
+</pre>
+   A typeFlag of UNKNOWN_TYPE (e.g. a region of the file that was never
+   written, in an index created before the column file existed) means
+   the attributes must be read from the packet itself. The index file
+   format is unchanged, so logs remain readable by older tools.
+   <p>
+   The file is opened read-only, and not at all if it doesn't exist, 
+   until the index is written (see openForWriting()); logs that are 
+   only read, e.g. by shore tools, are thus never changed. Written
+   columns are kept until flush(), so that the columns of a run of
+   appended entries cost one write.
+
+   @see DeviceLogIndex
+*/
+class DeviceLogIndexColumns {
+
+    /** Log4j logger */
+    static private Logger _log4j = Logger.getLogger(DeviceLogIndexColumns.class);
+
+    /** Bytes per column record */
+    static final int COLUMN_SIZE = 4+4+8;
+
+    /** Type flag of entry whose attributes haven't been recorded */
+    static final int UNKNOWN_TYPE = 0;
+
+    /** Type flag of packet that is not one of the filterable types;
+	outside DevicePacket.ALL_TYPES */
+    static final int OTHER_TYPE = 0x10000;
+
+    private String _fileName;
+
+    /** Column file; null if it doesn't exist and isn't writable */
+    private RandomAccessFile _file = null;
+
+    private boolean _writable = false;
+
+    // Columns written since the last flush(), of consecutive entries
+    // starting at _pendingIndex
+    private byte[] _pending = new byte[16 * COLUMN_SIZE];
+    private int _nPending = 0;
+    private int _pendingIndex = 0;
+
+
+    /** Open specified column file for reading, if it exists. */
+    DeviceLogIndexColumns(String fileName) {
+	_fileName = fileName;
+	if (new File(fileName).exists()) {
+	    try {
+		_file = new RandomAccessFile(fileName, "r");
+	    }
+	    catch (FileNotFoundException e) {
+		_log4j.warn("can't read " + fileName + ": " + e);
+	    }
+	}
+    }
+
+
+    /** Open (or create) column file for writing; return false if it 
+	can't be, in which case columns aren't written. */
+    synchronized boolean openForWriting() {
+
+	if (_writable) {
+	    return true;
+	}
+	try {
+	    RandomAccessFile file = new RandomAccessFile(_fileName, "rw");
+	    if (_file != null) {
+		_file.close();
+	    }
+	    _file = file;
+	    _writable = true;
+	}
+	catch (IOException e) {
+	    _log4j.error("can't write " + _fileName + ": " + e);
+	}
+	return _writable;
+    }
+
+
+    /** Write columns of nEntries entries, which must have consecutive
+	entry indices; they are written to the file by flush(). */
+    synchronized void write(DeviceLogIndex.Entry[] entries, int nEntries) {
+
+	if (nEntries <= 0 || !_writable) {
+	    return;
+	}
+
+	int first = entries[0].getEntryIndex();
+	if (_nPending > 0 && first != _pendingIndex + _nPending) {
+	    flush();
+	}
+	if (_nPending == 0) {
+	    _pendingIndex = first;
+	}
+
+	int size = (_nPending + nEntries) * COLUMN_SIZE;
+	if (size > _pending.length) {
+	    byte[] pending = new byte[Math.max(size, 2 * _pending.length)];
+	    System.arraycopy(_pending, 0, pending, 0, _nPending * COLUMN_SIZE);
+	    _pending = pending;
+	}
+	for (int i = 0; i < nEntries; i++) {
+	    entries[i].columnsToBytes(_pending, 
+				      (_nPending + i) * COLUMN_SIZE);
+	}
+	_nPending += nEntries;
+    }
+
+
+    /** Write columns kept since the last flush() with one write. */
+    synchronized void flush() {
+
+	if (_nPending == 0) {
+	    return;
+	}
+	try {
+	    _file.seek(offset(_pendingIndex));
+	    _file.write(_pending, 0, _nPending * COLUMN_SIZE);
+	}
+	catch (IOException e) {
+	    _log4j.error("flush(): IOException", e);
+	}
+	_nPending = 0;
+    }
+
+
+    /** Write columns of one entry. */
+    void write(DeviceLogIndex.Entry entry) {
+	write(new DeviceLogIndex.Entry[] {entry}, 1);
+    }
+
+
+    /** Fill in columns of entries, which must have ascending,
+	consecutive entry indices, with a single read. Entries beyond the
+	end of the column file are marked UNKNOWN_TYPE. */
+    synchronized void read(Vector entries) {
+
+	if (entries.size() == 0) {
+	    return;
+	}
+
+	DeviceLogIndex.Entry first =
+	    (DeviceLogIndex.Entry )entries.elementAt(0);
+
+	flush();
+
+	byte[] buf = new byte[entries.size() * COLUMN_SIZE];
+	int nBytes = 0;
+	try {
+	    long start = offset(first.getEntryIndex());
+	    long length = (_file == null ? 0 : _file.length());
+	    nBytes = (int )Math.max(0, Math.min(buf.length, length - start));
+	    if (nBytes > 0) {
+		_file.seek(start);
+		_file.readFully(buf, 0, nBytes);
+	    }
+	}
+	catch (IOException e) {
+	    _log4j.error("read(): IOException", e);
+	    nBytes = 0;
+	}
+
+	for (int i = 0; i < entries.size(); i++) {
+	    DeviceLogIndex.Entry entry =
+		(DeviceLogIndex.Entry )entries.elementAt(i);
+
+	    if ((i + 1) * COLUMN_SIZE <= nBytes) {
+		entry.columnsFromBytes(buf, i * COLUMN_SIZE);
+	    }
+	    else {
+		entry._typeFlag = UNKNOWN_TYPE;
+	    }
+	}
+    }
+
+
+    /** Fill in columns of one entry. */
+    void read(DeviceLogIndex.Entry entry) {
+	Vector entries = new Vector(1);
+	entries.add(entry);
+	read(entries);
+    }
+
+
+    /** Write kept columns and close the column file. */
+    synchronized void close() throws IOException {
+	flush();
+	if (_file != null) {
+	    _file.close();
+	}
+    }
+
+
+    /** Return file offset of column record of specified (1-based) entry. */
+    private static long offset(int entryIndex) {
+	return (long )(entryIndex - 1) * COLUMN_SIZE;
+    }
+
+
+    /** Return type flag of specified packet, matching the type tests
+	of PacketFilter. */
+    static int typeFlag(DevicePacket packet) {
+
+	if (packet instanceof SensorDataPacket) {
+	    return DevicePacket.SENSORDATA_FLAG;
+	}
+	else if (packet instanceof MetadataPacket) {
+	    return DevicePacket.METADATA_FLAG;
+	}
+	else if (packet instanceof DeviceMessagePacket) {
+	    return DevicePacket.DEVICEMESSAGE_FLAG;
+	}
+	else if (packet instanceof SummaryPacket) {
+	    return DevicePacket.SUMMARY_FLAG;
+	}
+	return OTHER_TYPE;
+    }
+
+
+    /** Return number of payload bytes in specified packet, i.e. its size
+	not counting the DevicePacket header. */
+    static int payloadBytes(DevicePacket packet) {
+
+	byte[] payload = null;
+
+	if (packet instanceof SensorDataPacket) {
+	    payload = ((SensorDataPacket )packet).dataBuffer();
+	}
+	else if (packet instanceof MetadataPacket) {
+	    payload = ((MetadataPacket )packet).getBytes();
+	}
+	else if (packet instanceof SummaryPacket) {
+	    payload = ((SummaryPacket )packet).getData();
+	}
+	else if (packet instanceof DeviceMessagePacket) {
+	    payload = ((DeviceMessagePacket )packet).getMessage();
+	}
+
+	return (payload == null ? 0 : payload.length);
+    }
+
+
+    /** Return name of column file. */
+    static String fileName(long deviceId, int segmentNum, String suffix,
+			   String directory) {
+	return directory + File.separator + deviceId + "_" + segmentNum +
+	    suffix + ".col";
+    }
+}
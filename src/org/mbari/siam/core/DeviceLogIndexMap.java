@@ -0,0 +1,134 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DeviceLogIndexMap is a read-only, memory-mapped view of a
+ * <code>DeviceLogIndex</code> file. Index entries are decoded directly
+ * from mapped memory, so key searches do not issue a seek and several
+ * reads per probe. The mapping covers the index file extent at the
+ * time of the last read, and is remapped when the file has grown.
+ * Entries appended through the <code>RandomAccessFile</code> are
+ * visible through the mapping, since both share the page cache.
+ * <p>
+ * Note that a mapping is released only when garbage-collected, so each
+ * remap temporarily holds on to address space.
+ *
+ * @see DeviceLogIndex
+ */
+class DeviceLogIndexMap {
+
+    /** log4j logger */
+    static Logger _log4j = Logger.getLogger(DeviceLogIndexMap.class);
+
+    /** Offsets of fields within an index entry */
+    private static final int DATA_SIZE_OFFSET = 4;
+    private static final int DATA_OFFSET_OFFSET = 8;
+    private static final int KEY_OFFSET = 16;
+    private static final int SEQUENCE_NUMBER_OFFSET = 24;
+
+    private FileChannel _channel;
+
+    private MappedByteBuffer _buffer = null;
+
+    /** Number of bytes currently mapped */
+    private long _mappedExtent = 0;
+
+
+    /** Create view of specified index file. */
+    DeviceLogIndexMap(RandomAccessFile file) {
+	_channel = file.getChannel();
+    }
+
+
+    /** Decode entry at specified file offset into entry; return false
+	if it can't be read from the mapping, in which case caller should
+	read the file directly.
+	@param entryOffset file offset of entry
+	@param fileExtent current extent of index file
+	@param entry entry to fill in
+    */
+    boolean readEntry(long entryOffset, long fileExtent,
+		      DeviceLogIndex.Entry entry) {
+
+	if (!isMapped(entryOffset, fileExtent)) {
+	    return false;
+	}
+
+	int pos = (int )entryOffset;
+
+	entry._entryIndex = _buffer.getInt(pos);
+	entry._dataSize = _buffer.getInt(pos + DATA_SIZE_OFFSET);
+	entry._dataOffset = _buffer.getLong(pos + DATA_OFFSET_OFFSET);
+	entry._key = _buffer.getLong(pos + KEY_OFFSET);
+	entry._sequenceNumber = _buffer.getLong(pos + SEQUENCE_NUMBER_OFFSET);
+
+	return true;
+    }
+
+
+    /** Return key of entry at specified file offset, or Long.MIN_VALUE
+	if it can't be read from the mapping. Long.MIN_VALUE is never a
+	valid packet timestamp. */
+    long readKey(long entryOffset, long fileExtent) {
+
+	if (!isMapped(entryOffset, fileExtent)) {
+	    return Long.MIN_VALUE;
+	}
+
+	return _buffer.getLong((int )entryOffset + KEY_OFFSET);
+    }
+
+
+    /** Release the current mapping. */
+    void release() {
+	_buffer = null;
+	_mappedExtent = 0;
+    }
+
+
+    /** Return true if entry at specified offset is mapped, remapping
+	if the file has grown past the current mapping. */
+    private boolean isMapped(long entryOffset, long fileExtent) {
+
+	long entryEnd = entryOffset + DeviceLogIndex.Entry.LOG_INDEX_ENTRY_SIZE;
+
+	if (entryEnd > _mappedExtent && fileExtent > _mappedExtent) {
+	    remap(fileExtent);
+	}
+
+	return (_buffer != null && entryEnd <= _mappedExtent);
+    }
+
+
+    /** Map the first fileExtent bytes of the index file. */
+    private void remap(long fileExtent) {
+
+	// A MappedByteBuffer is limited to Integer.MAX_VALUE bytes; larger
+	// indices are read from the file.
+	if (fileExtent > Integer.MAX_VALUE) {
+	    release();
+	    return;
+	}
+
+	try {
+	    _buffer = _channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				   fileExtent);
+	    _mappedExtent = fileExtent;
+	}
+	catch (IOException e) {
+	    _log4j.error("remap(): can't map " + fileExtent + " bytes", e);
+	    release();
+	}
+    }
+}
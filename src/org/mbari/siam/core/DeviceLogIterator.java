@@ -5,17 +5,19 @@ home directory.
 */
 package org.mbari.siam.core;
 
-import java.io.ByteArrayInputStream;
-import java.io.ObjectInputStream;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Vector;
 
 import org.apache.log4j.Logger;
+import org.mbari.siam.distributed.DevicePacket;
 import org.mbari.siam.distributed.NoDataException;
 
 /**
- * DeviceLogIterator iterates over DevicePackets stored in a DeviceLog. NOTE:
+ * DeviceLogIterator iterates over DevicePackets stored in a DeviceLog,
+ * including any closed segments of the log, oldest first. For bulk
+ * scans, setReadAhead() makes the iterator read the log files 
+ * sequentially through a large buffer. NOTE:
  * This implementation is not thread-safe!
  * 
  * @author Tom O'Reilly
@@ -24,30 +26,45 @@ public class DeviceLogIterator implements Iterator {
 
     static Logger _log4j = Logger.getLogger(DeviceLogIterator.class);
 
-    private byte[] _syncByteBuf = new byte[DeviceLog.SYNC_PATTERN.length];
-
     DeviceLog _log = null;
 
     DeviceLogIndex.Entry _indexEntry = null;
 
+    /** Closed segments not yet iterated (DeviceLogSegment) */
+    Vector _segments = null;
+
+    /** Log being iterated; either a closed segment or _log */
+    DeviceLog _segmentLog = null;
+
     // Note that DeviceLog classes have been implemented with 'int'
     // instead of long, which may be too limiting. But we are stuck
     // with int for now...
-    int _nPackets = 0; // Number of packets in log
+    int _nPackets = 0; // Number of packets in _segmentLog
 
-    int _packetIndex = 0; // Current packet index
+    int _packetIndex = 0; // Current packet index within _segmentLog
 
     long _startTime = 0L;
 
+    /** Default read-ahead buffer size for bulk scans */
+    public static final int DEFAULT_READ_AHEAD_BYTES = 1024 * 1024;
+
+    /** Sequential reader; null unless read-ahead is enabled */
+    DeviceLogReadAhead _readAhead = null;
+
     /** Create iterator, passing in DeviceLog on which to iterate
 	and specify a start time so that a binary search can be
 	done (by getEntryIndex) to quickly find the first record.
     */
     public DeviceLogIterator(DeviceLog log, long start) {
-	this(log);
+	_log = log;
+	_log.flush();
+	_indexEntry = new DeviceLogIndex.Entry();
+	_segments = log.segmentsInRange(start, Long.MAX_VALUE);
+	nextSegment();
+
 	if(start>=0L){
 	    try{
-		Vector v=log._index.getEntries(start, 1);
+		Vector v=_segmentLog._index.getEntries(start, 1);
 		if(v.size()>0){
 		    DeviceLogIndex.Entry entry=(DeviceLogIndex.Entry)v.elementAt(0);
 		    _packetIndex=entry.getEntryIndex();
@@ -62,18 +79,20 @@ public class DeviceLogIterator implements Iterator {
     /** Create iterator, passing in DeviceLog on which to iterate. */
     public DeviceLogIterator(DeviceLog log) {
 	_log = log;
+	_log.flush();
 	_indexEntry = new DeviceLogIndex.Entry();
-
-	_nPackets = _log.nPackets();
-	_packetIndex = 0;
+	_segments = log.segmentsInRange(Long.MIN_VALUE, Long.MAX_VALUE);
+	nextSegment();
     }
 
     /** Returns true if DeviceLog has more packets. */
     public boolean hasNext() {
-	if (_packetIndex < _nPackets)
-	    return true;
-	else
-	    return false;
+	while (_packetIndex >= _nPackets) {
+	    if (!nextSegment()) {
+		return false;
+	    }
+	}
+	return true;
     }
 
     /** Returns next DevicePacket from DeviceLog. */
@@ -83,67 +102,102 @@ public class DeviceLogIterator implements Iterator {
 	    throw new NoSuchElementException("no more packets");
 	}
 
+	if (_readAhead != null) {
+	    return readAhead();
+	}
+
 	// Load index entry (note that 'index' argument is 1-based!)
 	try {
-	    _log._index.getIndexEntry(_packetIndex + 1, _indexEntry);
+	    _segmentLog._index.getIndexEntry(_packetIndex + 1, _indexEntry);
 	    _packetIndex++;
 	} catch (NoDataException e) {
 	    throw new NoSuchElementException(
 					     "NoDataException from getIndexEntry()");
 	}
 
-	byte[] objectBytes = _log._data.readLogData(_indexEntry);
+	byte[] objectBytes = _segmentLog._data.readLogData(_indexEntry);
 	if (objectBytes == null) {
 	    throw new NoSuchElementException("null object bytes");
 	}
 
 	Object packet = null;
 	try {
-	    ByteArrayInputStream byteInput = 
-		new ByteArrayInputStream(objectBytes);
-
-	    int nBytes = 0;
-	    _log4j.debug("get " + DeviceLog.SYNC_PATTERN.length + 
-			 "bytes...");
-
-	    byteInput.mark(DeviceLog.SYNC_PATTERN.length);
-
-	    if ((nBytes = byteInput.read(_syncByteBuf, 0, 
-				 DeviceLog.SYNC_PATTERN.length)) != 
+	    packet = DevicePacketCodec.decode(objectBytes, 0, 
+					      objectBytes.length);
+	} catch (Exception e) {
+	    _log4j.error(e);
+	    throw new NoSuchElementException(e.getMessage());
+	}
 
-		DeviceLog.SYNC_PATTERN.length) {
-		_log4j.error("couldn't read sync; got " + 
-			     nBytes + " bytes");
-	    }
-	    // Check for sync pattern bytes
-	    boolean gotSync = true;
-	    for (int i = 0; i < DeviceLog.SYNC_PATTERN.length; i++) {
-		if (_syncByteBuf[i] != DeviceLog.SYNC_PATTERN[i]) {
-		    gotSync = false;
-		    break;
-		}
-	    }
+	if (packet == null) {
+	    throw new NoSuchElementException("null packet object");
+	}
 
-	    if (!gotSync) {
-		_log4j.warn("Sync not found.");
-		byteInput.reset();
-	    }
+	return packet;
+    }
 
-	    ObjectInputStream objectInput = 
-		new ObjectInputStream(byteInput);
+    /** Read packets sequentially through a buffer of the specified size,
+	which should be large enough to hold many packets; a size of zero
+	reads each packet separately (the default). Read-ahead suits scans
+	of whole logs, e.g. by offline tools. */
+    public void setReadAhead(int bufferBytes) {
+	if (bufferBytes <= 0) {
+	    _readAhead = null;
+	}
+	else {
+	    _readAhead = new DeviceLogReadAhead(bufferBytes);
+	    _readAhead.setLog(_segmentLog);
+	}
+    }
 
-	    packet = objectInput.readObject();
+    /** Return next packet using the sequential reader. */
+    private Object readAhead() throws NoSuchElementException {
 
-	} catch (Exception e) {
+	try {
+	    // Note that entry index is 1-based
+	    DevicePacket packet = _readAhead.read(_packetIndex + 1);
+	    _packetIndex++;
+	    return packet;
+	}
+	catch (Exception e) {
 	    _log4j.error(e);
 	    throw new NoSuchElementException(e.getMessage());
 	}
+    }
 
-	if (packet == null) {
-	    throw new NoSuchElementException("null packet object");
+    /** Release the closed segment being iterated, if any. Iteration
+	over a log with closed segments should end with close() unless
+	hasNext() has returned false. */
+    public void close() {
+	_log.closeSegment(_segmentLog);
+	_segmentLog = _log;
+	_segments.clear();
+	_packetIndex = _nPackets = 0;
+    }
+
+    /** Advance to the next closed segment, or to the active segment; 
+	return false if there are no more segments. */
+    private boolean nextSegment() {
+
+	if (_segmentLog == _log) {
+	    return false;
 	}
+	_log.closeSegment(_segmentLog);
+	_segmentLog = null;
 
-	return packet;
+	while (_segmentLog == null && _segments.size() > 0) {
+	    _segmentLog = 
+		_log.openSegment((DeviceLogSegment )_segments.remove(0));
+	}
+	if (_segmentLog == null) {
+	    _segmentLog = _log;
+	}
+	_nPackets = _segmentLog.segmentPackets();
+	_packetIndex = 0;
+	if (_readAhead != null) {
+	    _readAhead.setLog(_segmentLog);
+	}
+	return true;
     }
 
     /** Not supported. */
@@ -0,0 +1,130 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.mbari.siam.distributed.DevicePacket;
+
+/**
+   DeviceLogReadAhead reads the packets of one DeviceLog segment in
+   index order for <code>DeviceLogIterator</code>. Since records are
+   appended to the data file in index order, the data file is read
+   sequentially through a large buffer and packets are decoded in place;
+   index entries are likewise read a chunk at a time. A full scan of a
+   log therefore takes a few large reads per buffer instead of a seek
+   and several small reads per packet. The sync pattern may occur within
+   a record, so record boundaries are still taken from the index.
+
+   @see DeviceLogIterator
+*/
+class DeviceLogReadAhead {
+
+    /** Log4j logger */
+    static private Logger _log4j = Logger.getLogger(DeviceLogReadAhead.class);
+
+    /** Index entries read at a time */
+    static final int INDEX_CHUNK = 1024;
+
+    /** Segment being read */
+    private DeviceLog _log;
+
+    /** Index entries read ahead */
+    private byte[] _indexBuf =
+	new byte[INDEX_CHUNK * DeviceLogIndex.Entry.LOG_INDEX_ENTRY_SIZE];
+
+    /** Index of first entry in _indexBuf */
+    private int _firstIndex = 0;
+
+    /** Number of entries in _indexBuf */
+    private int _nIndexEntries = 0;
+
+    /** Data read ahead */
+    private byte[] _dataBuf;
+
+    /** Data file offset of _dataBuf[0] */
+    private long _dataStart = 0;
+
+    /** Number of valid bytes in _dataBuf */
+    private int _dataLength = 0;
+
+    private DeviceLogIndex.Entry _entry = new DeviceLogIndex.Entry();
+
+
+    /** Create reader with specified data buffer size. */
+    DeviceLogReadAhead(int bufferBytes) {
+	_dataBuf = new byte[Math.max(bufferBytes, 1024)];
+    }
+
+
+    /** Start reading specified segment; buffers are reused. */
+    void setLog(DeviceLog log) {
+	_log = log;
+	_nIndexEntries = 0;
+	_dataLength = 0;
+    }
+
+
+    /** Read and decode packet at specified (1-based) index entry. */
+    DevicePacket read(int entryIndex)
+	throws IOException, ClassNotFoundException {
+
+	DeviceLogIndex.Entry entry = entry(entryIndex);
+
+	long dataOffset = entry.getDataOffset();
+	int dataSize = entry.getDataSize();
+
+	if (dataOffset < _dataStart ||
+	    dataOffset + dataSize > _dataStart + _dataLength) {
+	    fill(dataOffset, dataSize);
+	}
+
+	return DevicePacketCodec.decode(_dataBuf,
+					(int )(dataOffset - _dataStart),
+					dataSize);
+    }
+
+
+    /** Return index entry at specified index, reading the next chunk
+	of entries if needed. */
+    private DeviceLogIndex.Entry entry(int entryIndex) throws IOException {
+
+	if (entryIndex < _firstIndex ||
+	    entryIndex >= _firstIndex + _nIndexEntries) {
+
+	    _firstIndex = entryIndex;
+	    _nIndexEntries = _log._index.readEntries(entryIndex, _indexBuf);
+	    if (_nIndexEntries == 0) {
+		throw new IOException("no index entry " + entryIndex);
+	    }
+	}
+	_entry.fromBytes(_indexBuf, (entryIndex - _firstIndex) *
+			 DeviceLogIndex.Entry.LOG_INDEX_ENTRY_SIZE);
+	return _entry;
+    }
+
+
+    /** Read data starting at specified offset into buffer, growing the
+	buffer if a record is larger. */
+    private void fill(long dataOffset, int dataSize) throws IOException {
+
+	if (dataSize > _dataBuf.length) {
+	    _log4j.debug("fill(): growing buffer for " + dataSize +
+			 "-byte record");
+	    _dataBuf = new byte[dataSize];
+	}
+	_dataStart = dataOffset;
+	_dataLength = _log._data.readData(dataOffset, _dataBuf, 0,
+					  _dataBuf.length);
+
+	if (_dataLength < dataSize) {
+	    throw new IOException("short record at offset " + dataOffset +
+				  ": " + _dataLength + " of " + dataSize +
+				  " bytes");
+	}
+    }
+}
@@ -0,0 +1,239 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+   DeviceLogSegment describes one closed segment of a segmented
+   <code>DeviceLog</code>, i.e. one &lt;deviceID&gt;_&lt;segment&gt;.idx
+   and .dat file pair that is no longer appended to. The description
+   is read from the segment's index journal entry, so the segment files
+   need only be opened when a query overlaps the segment's key range.
+
+   @see DeviceLog
+*/
+class DeviceLogSegment {
+
+    /** Log4j logger */
+    static private Logger _log4j = Logger.getLogger(DeviceLogSegment.class);
+
+    /** Segment number */
+    int _segmentNum;
+
+    /** Number of packets in segment */
+    int _nEntries;
+
+    /** Minimum key in segment */
+    long _minKey;
+
+    /** Maximum key in segment */
+    long _maxKey;
+
+    /** Sequence number following the last packet in segment */
+    long _nextSequenceNumber;
+
+    /** Last metadata reference in segment */
+    long _lastMetadataRef;
+
+    /** Size of segment data file */
+    long _dataBytes;
+
+
+    /** Read description of specified segment from its index journal. */
+    static DeviceLogSegment read(long deviceId, int segmentNum,
+				 String directory) throws IOException {
+
+	DeviceLogSegment segment = new DeviceLogSegment();
+	segment._segmentNum = segmentNum;
+
+	RandomAccessFile file =
+	    new RandomAccessFile(indexFileName(deviceId, segmentNum, "",
+					       directory), "r");
+
+	try {
+	    if (file.length() < DeviceLogIndex.JournalEntry.LOG_JOURNAL_ENTRY_SIZE) {
+		throw new IOException("no journal in segment " + segmentNum +
+				      " of device " + deviceId);
+	    }
+	    file.seek(DeviceLogIndex.JOURNAL_ENTRY_OFFSET);
+	    DeviceLogIndex.JournalEntry journal =
+		new DeviceLogIndex.JournalEntry();
+
+	    journal.fromFile(file);
+
+	    segment._nEntries = journal.getNumEntries();
+	    segment._minKey = journal.getMinKey();
+	    segment._maxKey = journal.getMaxKey();
+	    segment._nextSequenceNumber = journal.getLastSequenceNumber() + 1;
+	    segment._lastMetadataRef = journal.getLastMetadataRef();
+	}
+	finally {
+	    file.close();
+	}
+
+	segment._dataBytes =
+	    new File(dataFileName(deviceId, segmentNum, "", directory)).length();
+
+	return segment;
+    }
+
+
+    /** Copy description of segment after it has been rewritten. */
+    void copy(DeviceLogSegment segment) {
+	_nEntries = segment._nEntries;
+	_minKey = segment._minKey;
+	_maxKey = segment._maxKey;
+	_nextSequenceNumber = segment._nextSequenceNumber;
+	_lastMetadataRef = segment._lastMetadataRef;
+	_dataBytes = segment._dataBytes;
+    }
+
+
+    /** Return true if segment holds packets with keys between startKey and
+	endKey (inclusive). */
+    boolean overlaps(long startKey, long endKey) {
+	return (_nEntries > 0 && _minKey <= endKey && _maxKey >= startKey);
+    }
+
+
+    /** Delete the segment's files. */
+    boolean delete(long deviceId, String directory) {
+	boolean deleted =
+	    new File(indexFileName(deviceId, _segmentNum, "", directory)).delete();
+
+	deleted &=
+	    new File(dataFileName(deviceId, _segmentNum, "", directory)).delete();
+
+	// Column and bucket files may not exist in logs written by older
+	// versions
+	new File(DeviceLogIndexColumns.fileName(deviceId, _segmentNum, "",
+						directory)).delete();
+	new File(DeviceLogIndexBuckets.fileName(deviceId, _segmentNum, "",
+						directory)).delete();
+
+	if (!deleted) {
+	    _log4j.error("delete(): couldn't delete segment " + _segmentNum +
+			 " of device " + deviceId);
+	}
+	return deleted;
+    }
+
+
+    /** Replace the segment's files with the files having the specified
+	suffix (as written by DeviceLogIndex and DeviceLogData). */
+    boolean replaceWith(long deviceId, String suffix, String directory) {
+
+	File index = new File(indexFileName(deviceId, _segmentNum, "",
+					    directory));
+	File data = new File(dataFileName(deviceId, _segmentNum, "",
+					  directory));
+	File columns = 
+	    new File(DeviceLogIndexColumns.fileName(deviceId, _segmentNum, "",
+						    directory));
+	File buckets = 
+	    new File(DeviceLogIndexBuckets.fileName(deviceId, _segmentNum, "",
+						    directory));
+
+	// File.renameTo() won't replace an existing file on all platforms
+	index.delete();
+	data.delete();
+	columns.delete();
+	buckets.delete();
+
+	boolean renamed =
+	    new File(indexFileName(deviceId, _segmentNum, suffix,
+				   directory)).renameTo(index);
+
+	renamed &=
+	    new File(dataFileName(deviceId, _segmentNum, suffix,
+				  directory)).renameTo(data);
+
+	renamed &=
+	    new File(DeviceLogIndexColumns.fileName(deviceId, _segmentNum, 
+						    suffix, 
+						    directory)).renameTo(columns);
+
+	renamed &=
+	    new File(DeviceLogIndexBuckets.fileName(deviceId, _segmentNum, 
+						    suffix, 
+						    directory)).renameTo(buckets);
+
+	if (!renamed) {
+	    _log4j.error("replaceWith(): couldn't rename segment " +
+			 _segmentNum + " of device " + deviceId);
+	}
+	return renamed;
+    }
+
+
+    /** Return numbers of all segments of the specified device's log
+	found in directory, in ascending order. */
+    static int[] list(long deviceId, String directory) {
+
+	final String prefix = deviceId + "_";
+
+	String[] names = new File(directory).list(new FilenameFilter() {
+		public boolean accept(File dir, String name) {
+		    return (name.startsWith(prefix) && name.endsWith(".idx"));
+		}
+	    });
+
+	if (names == null) {
+	    return new int[0];
+	}
+
+	int[] segments = new int[names.length];
+	int nSegments = 0;
+	for (int i = 0; i < names.length; i++) {
+	    String number =
+		names[i].substring(prefix.length(),
+				   names[i].length() - ".idx".length());
+	    try {
+		// Skip e.g. <id>_0.rebuilt.idx
+		segments[nSegments] = Integer.parseInt(number);
+		if (segments[nSegments] >= 0) {
+		    nSegments++;
+		}
+	    }
+	    catch (NumberFormatException e) {
+	    }
+	}
+
+	int[] sorted = new int[nSegments];
+	System.arraycopy(segments, 0, sorted, 0, nSegments);
+	Arrays.sort(sorted);
+	return sorted;
+    }
+
+
+    /** Return name of segment index file. */
+    static String indexFileName(long deviceId, int segmentNum,
+				String suffix, String directory) {
+	return directory + File.separator + deviceId + "_" + segmentNum +
+	    suffix + ".idx";
+    }
+
+
+    /** Return name of segment data file. */
+    static String dataFileName(long deviceId, int segmentNum,
+			       String suffix, String directory) {
+	return directory + File.separator + deviceId + "_" + segmentNum +
+	    suffix + ".dat";
+    }
+
+
+    public String toString() {
+	return "segment " + _segmentNum + ": " + _nEntries + " packets, keys " +
+	    _minKey + "-" + _maxKey + ", " + _dataBytes + " bytes";
+    }
+}
@@ -23,12 +23,8 @@ import org.mbari.siam.distributed.Device;
 import org.mbari.siam.distributed.DeviceNotFound;
 import org.mbari.siam.distributed.DevicePacket;
 import org.mbari.siam.distributed.DevicePacketSet;
-import org.mbari.siam.distributed.DeviceMessagePacket;
 import org.mbari.siam.distributed.FilteredDeviceLogIF;
-import org.mbari.siam.distributed.MetadataPacket;
 import org.mbari.siam.distributed.NoDataException;
-import org.mbari.siam.distributed.SensorDataPacket;
-import org.mbari.siam.distributed.SummaryPacket;
 import org.mbari.siam.distributed.PacketFilter;
 import org.mbari.siam.distributed.PacketSubsampler;
 import org.mbari.siam.distributed.TimeoutException;
@@ -338,23 +334,10 @@ public class DevicePacketAggregator implements ServiceListener
 	/** Determine size of DevicePacket in bytes */
 	protected int pktSize(DevicePacket pkt)
 	{
-	    int size = 0;
-
-	    try {
-		if (pkt instanceof SensorDataPacket)
-		    size = ((SensorDataPacket)pkt).dataBuffer().length;
-		else if (pkt instanceof MetadataPacket)
-		    size = ((MetadataPacket)pkt).getBytes().length;
-		else if (pkt instanceof SummaryPacket)
-		    size = ((SummaryPacket)pkt).getData().length;
-		else if (pkt instanceof DeviceMessagePacket)
-		    size = ((DeviceMessagePacket)pkt).getMessage().length;
-
-	    } catch (Exception e) {
-		_log4j.error("Unknown packet type: " + e);
-	    }
-
-	    return(size + DevicePacket.HEADER_BYTES);
+	    // Same size as recorded in the DeviceLog index, which
+	    // FilteredDeviceLog uses to stop at the byte limit
+	    return(DeviceLogIndexColumns.payloadBytes(pkt) + 
+		   DevicePacket.HEADER_BYTES);
 	}
 
 	/** Return the ISI ID we're servicing */
@@ -436,7 +419,9 @@ public class DevicePacketAggregator implements ServiceListener
 		    while ((totBytes < request._numBytes) && !complete &&
 			   !request._interrupted) {
 			try {
-			    pktSet = _pktSource.getPackets(curKey, request._endKey, typeFilters);
+			    pktSet = _pktSource.getPackets(curKey, request._endKey, 
+							   typeFilters,
+							   request._numBytes - totBytes);
 			} catch (NoDataException e) {
 			    complete = true;
 			    break;
@@ -518,6 +503,12 @@ public class DevicePacketAggregator implements ServiceListener
 					     PacketFilter[] filters)
 	    throws NoDataException, InterruptedException;
 
+	/** Get packets having key within specified range; the returned
+	    set may be incomplete once it holds maxBytes (see pktSize()). */
+	public DevicePacketSet getPackets(long startKey, long endKey,
+					  PacketFilter[] filters, int maxBytes)
+	    throws NoDataException, InterruptedException;
+
 	public boolean verify(long isiId) throws DeviceNotFound;
     }
 
@@ -540,6 +531,18 @@ public class DevicePacketAggregator implements ServiceListener
 	    return(_log.getPackets(startKey, endKey, 10, filters, true));
 	}
 
+	public DevicePacketSet getPackets(long startKey, long endKey, 
+					  PacketFilter[] filters, int maxBytes)
+	    throws NoDataException
+	{
+	    if (_log instanceof FilteredDeviceLog) {
+		return(((FilteredDeviceLog)_log).getPackets(startKey, endKey, 
+							    10, filters, true,
+							    maxBytes));
+	    }
+	    return(getPackets(startKey, endKey, filters));
+	}
+
 	public boolean verify(long isiId) throws DeviceNotFound
 	{
 	    return(_log.getDeviceId() == isiId);
@@ -566,6 +569,14 @@ public class DevicePacketAggregator implements ServiceListener
 	    return(_instrument.getPackets(startKey, endKey, filters, true));
 	}
 
+	public DevicePacketSet getPackets(long startKey, long endKey, 
+					  PacketFilter[] filters, int maxBytes)
+	    throws NoDataException
+	{
+	    return(_instrument.getPackets(startKey, endKey, filters, true,
+					  maxBytes));
+	}
+
 	public boolean verify(long isiId) throws DeviceNotFound
 	{
 	    try {
@@ -597,7 +608,15 @@ public class DevicePacketAggregator implements ServiceListener
 					  PacketFilter[] filters)
 	    throws NoDataException
 	{
-	    DevicePacketSet set = _log.getPackets(startKey, endKey, 10, filters, true);
+	    return(getPackets(startKey, endKey, filters, Integer.MAX_VALUE));
+	}
+
+	public DevicePacketSet getPackets(long startKey, long endKey, 
+					  PacketFilter[] filters, int maxBytes)
+	    throws NoDataException
+	{
+	    DevicePacketSet set = _log.getPackets(startKey, endKey, 10, filters,
+						  true, maxBytes);
 
 	    if (_delay > 0) {
 		try {
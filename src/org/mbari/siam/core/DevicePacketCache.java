@@ -0,0 +1,248 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.util.Vector;
+
+import org.apache.log4j.Logger;
+import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.DevicePacketSet;
+
+/**
+   DevicePacketCache holds the records most recently appended to a
+   <code>DeviceLog</code>, so that retrievals of the newest packets
+   (the usual portal request) need not read the index and data files.
+   Records are cached in encoded form, since appended packet objects
+   are often reused by their producer; each record is decoded on its
+   first retrieval and the decoded packet is kept in its place, so
+   repeated retrievals don't decode it again. Cached packets are shared
+   by all callers and must not be modified. The oldest records are
+   evicted when the cached (encoded) bytes exceed the limit.
+   <p>
+   The cache holds every logged packet with a key greater than its
+   "floor" key, which is the largest key the log held when the cache
+   was created or that has since been evicted. Requests whose start key
+   is above the floor can therefore be answered from the cache alone.
+
+   @see DeviceLog
+*/
+class DevicePacketCache {
+
+    /** Log4j logger */
+    static private Logger _log4j = Logger.getLogger(DevicePacketCache.class);
+
+    /** Cached records, in append order, in a circular buffer; each
+	is an encoded record (byte[]) or its decoded DevicePacket */
+    private Object[] _records = new Object[16];
+
+    /** Encoded sizes of cached records */
+    private int[] _sizes = new int[16];
+
+    /** Keys of cached records */
+    private long[] _keys = new long[16];
+
+    /** Buffer position of oldest record */
+    private int _first = 0;
+
+    /** Number of cached records */
+    private int _count = 0;
+
+    /** Bytes in cached records */
+    private long _bytes = 0;
+
+    /** Maximum bytes in cached records */
+    private long _maxBytes;
+
+    /** Log may hold packets with keys up to _floorKey that aren't cached */
+    private long _floorKey;
+
+    private long _hits = 0;
+    private long _misses = 0;
+
+
+    /** Create cache of at most maxBytes of records, for a log holding
+	packets with keys up to floorKey. */
+    DevicePacketCache(long maxBytes, long floorKey) {
+	_maxBytes = maxBytes;
+	_floorKey = floorKey;
+    }
+
+
+    /** Add copy of the first length bytes of record, with specified key. */
+    synchronized void add(byte[] record, int length, long key) {
+
+	if (length > _maxBytes) {
+	    // Too large to cache; packets up to key are no longer all cached
+	    clear(key);
+	    return;
+	}
+
+	if (_count == _records.length) {
+	    grow();
+	}
+
+	byte[] copy = new byte[length];
+	System.arraycopy(record, 0, copy, 0, length);
+
+	int last = (_first + _count) % _records.length;
+	_records[last] = copy;
+	_sizes[last] = length;
+	_keys[last] = key;
+	_count++;
+	_bytes += length;
+
+	evict(_maxBytes);
+    }
+
+
+    /** Set maximum bytes in cached records. */
+    synchronized void setMaxBytes(long maxBytes) {
+	_maxBytes = Math.max(maxBytes, 0);
+	evict(_maxBytes);
+    }
+
+
+    /** Return maximum bytes in cached records. */
+    long getMaxBytes() {
+	return _maxBytes;
+    }
+
+
+    /**
+       Return packets with keys between startKey and endKey (inclusive),
+       in append order and at most maxPackets, or null if the log may hold
+       packets in the range that aren't cached. The returned set is empty
+       if there are no packets in the range.
+    */
+    synchronized DevicePacketSet getPackets(long startKey, long endKey,
+					    int maxPackets) {
+
+	if (startKey <= _floorKey || startKey > endKey) {
+	    _misses++;
+	    return null;
+	}
+
+	Vector packets = new Vector();
+	boolean complete = true;
+
+	for (int i = 0; i < _count; i++) {
+	    int pos = (_first + i) % _records.length;
+	    if (_keys[pos] < startKey || _keys[pos] > endKey) {
+		continue;
+	    }
+	    if (packets.size() >= maxPackets) {
+		complete = false;
+		break;
+	    }
+	    DevicePacket packet = decode(pos);
+	    if (packet == null) {
+		_misses++;
+		return null;
+	    }
+	    packets.addElement(packet);
+	}
+
+	_hits++;
+	return new DevicePacketSet(packets, complete);
+    }
+
+
+    /** Return most recently appended packet, or null if none is cached. */
+    synchronized DevicePacket getLastPacket() {
+
+	if (_count == 0) {
+	    _misses++;
+	    return null;
+	}
+	DevicePacket packet = decode((_first + _count - 1) % _records.length);
+	if (packet == null) {
+	    _misses++;
+	}
+	else {
+	    _hits++;
+	}
+	return packet;
+    }
+
+
+    /** Return number of retrievals answered from the cache. */
+    synchronized long getHits() {
+	return _hits;
+    }
+
+
+    /** Return number of retrievals that had to read the log files. */
+    synchronized long getMisses() {
+	return _misses;
+    }
+
+
+    /** Return number of cached packets. */
+    synchronized int size() {
+	return _count;
+    }
+
+
+    /** Return decoded record at specified buffer position, decoding
+	it if this is its first retrieval; return null if it can't be 
+	decoded. */
+    private DevicePacket decode(int pos) {
+	if (_records[pos] instanceof DevicePacket) {
+	    return (DevicePacket )_records[pos];
+	}
+	try {
+	    byte[] record = (byte[] )_records[pos];
+	    DevicePacket packet = 
+		DevicePacketCodec.decode(record, 0, record.length);
+	    _records[pos] = packet;
+	    return packet;
+	}
+	catch (Exception e) {
+	    _log4j.error("decode(): can't decode cached record", e);
+	    return null;
+	}
+    }
+
+
+    /** Evict oldest records until no more than maxBytes are cached. */
+    private void evict(long maxBytes) {
+
+	while (_count > 0 && _bytes > maxBytes) {
+	    _floorKey = Math.max(_floorKey, _keys[_first]);
+	    _bytes -= _sizes[_first];
+	    _records[_first] = null;
+	    _first = (_first + 1) % _records.length;
+	    _count--;
+	}
+    }
+
+
+    /** Empty the cache; log holds packets with keys up to key. */
+    private void clear(long key) {
+	evict(0);
+	_floorKey = Math.max(_floorKey, key);
+    }
+
+
+    /** Double the capacity of the circular buffer. */
+    private void grow() {
+
+	Object[] records = new Object[2 * _records.length];
+	int[] sizes = new int[2 * _sizes.length];
+	long[] keys = new long[2 * _keys.length];
+
+	for (int i = 0; i < _count; i++) {
+	    int pos = (_first + i) % _records.length;
+	    records[i] = _records[pos];
+	    sizes[i] = _sizes[pos];
+	    keys[i] = _keys[pos];
+	}
+	_records = records;
+	_sizes = sizes;
+	_keys = keys;
+	_first = 0;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+
+import org.apache.log4j.Logger;
+import org.mbari.siam.distributed.DeviceMessagePacket;
+import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.MetadataPacket;
+import org.mbari.siam.distributed.SensorDataPacket;
+import org.mbari.siam.distributed.SummaryPacket;
+
+/**
+   DevicePacketCodec encodes and decodes the records stored in a
+   <code>DeviceLogData</code> file. Each record starts with
+   <code>DeviceLog.SYNC_PATTERN</code>, followed by either a Java
+   serialization stream (the original format, which always starts with
+   the serialization magic number 0xACED) or by the
+   <code>COMPACT_FORMAT</code> marker and a hand-written layout similar
+   to the one used by <code>ExportablePacket</code>:
+<pre>
+   sync(4) marker(1) type(1)
+   sourceID(8) systemTime(8) sequenceNo(8) metadataRef(8)
+   parentID(8) recordType(8)
+   type-specific byte arrays, each preceded by its length(4)
+</pre>
+   Only the packet classes listed here are written in compact form;
+   subclasses of these (e.g. MeasurementPacket) and other packet
+   classes are always Java-serialized, so every record is readable
+   regardless of which format the writer used.
+
+   @see DeviceLog
+   @see org.mbari.siam.operations.utils.ExportablePacket
+*/
+public class DevicePacketCodec {
+
+    /** Log4j logger */
+    static private Logger _log4j = Logger.getLogger(DevicePacketCodec.class);
+
+    /** Record format: Java serialization */
+    public static final int SERIALIZED_FORMAT = 1;
+
+    /** Record format: compact binary layout */
+    public static final int COMPACT_FORMAT = 2;
+
+    /** Compact record packet types */
+    static final byte SENSORDATA_TYPE = 1;
+    static final byte METADATA_TYPE = 2;
+    static final byte DEVICEMESSAGE_TYPE = 3;
+    static final byte SUMMARY_TYPE = 4;
+
+    /** Bytes in compact record ahead of type-specific data */
+    static final int COMPACT_HEADER_BYTES =
+	DeviceLog.SYNC_PATTERN.length + 2 + DevicePacket.HEADER_BYTES;
+
+    /** Encoded record; grown as needed and reused between packets */
+    private byte[] _buf = new byte[1024];
+
+    /** Number of valid bytes in _buf */
+    private int _length = 0;
+
+    /** Serialized record; reused between packets */
+    private RecordOutputStream _serialized = new RecordOutputStream();
+
+
+    /** Encode packet as a complete record (including sync pattern)
+	in the specified format; returns record length. The record
+	is available from getBuffer() until the next call to encode(). */
+    public int encode(DevicePacket packet, int format) throws IOException {
+
+	if (format == COMPACT_FORMAT && compactType(packet) != 0) {
+	    encodeCompact(packet);
+	}
+	else {
+	    encodeSerialized(packet);
+	}
+	return _length;
+    }
+
+
+    /** Return buffer holding last encoded record. */
+    public byte[] getBuffer() {
+	return _buf;
+    }
+
+
+    /** Return length of last encoded record. */
+    public int getLength() {
+	return _length;
+    }
+
+
+    /** Decode packet from record bytes. If the record does not begin with
+	the sync pattern, decoding starts at its first byte. */
+    public static DevicePacket decode(byte[] record, int offset, int length)
+	throws IOException, ClassNotFoundException {
+
+	int end = offset + length;
+	int pos = offset;
+
+	if (length < DeviceLog.SYNC_PATTERN.length) {
+	    throw new EOFException("couldn't read sync bytes");
+	}
+
+	boolean gotSync = true;
+	for (int i = 0; i < DeviceLog.SYNC_PATTERN.length; i++) {
+	    if (record[offset + i] != DeviceLog.SYNC_PATTERN[i]) {
+		gotSync = false;
+		break;
+	    }
+	}
+
+	if (gotSync) {
+	    pos += DeviceLog.SYNC_PATTERN.length;
+	}
+	else {
+	    _log4j.warn("decode(): Sync not found");
+	}
+
+	return decodeBody(record, pos, end - pos);
+    }
+
+
+    /** Decode packet from the portion of a record that follows the sync
+	pattern. */
+    public static DevicePacket decodeBody(byte[] record, int offset, 
+					  int length)
+	throws IOException, ClassNotFoundException {
+
+	if (length > 0 && record[offset] == COMPACT_FORMAT) {
+	    return decodeCompact(record, offset + 1, offset + length);
+	}
+
+	ObjectInputStream objectInput =
+	    new ObjectInputStream(new ByteArrayInputStream(record, offset,
+							   length));
+
+	DevicePacket packet = (DevicePacket )objectInput.readObject();
+	objectInput.close();
+
+	return packet;
+    }
+
+
+    /** Return record format of specified record, or 0 if unknown. */
+    public static int recordFormat(byte[] record, int offset, int length) {
+
+	int pos = offset + DeviceLog.SYNC_PATTERN.length;
+	if (pos >= offset + length) {
+	    return 0;
+	}
+	if (record[pos] == COMPACT_FORMAT) {
+	    return COMPACT_FORMAT;
+	}
+	if (record[pos] == (byte )0xAC) {
+	    return SERIALIZED_FORMAT;
+	}
+	return 0;
+    }
+
+
+    /** Parse format name ("compact" or "serialized"). */
+    public static int parseFormat(String name)
+	throws IllegalArgumentException {
+
+	if (name.equalsIgnoreCase("compact")) {
+	    return COMPACT_FORMAT;
+	}
+	else if (name.equalsIgnoreCase("serialized")) {
+	    return SERIALIZED_FORMAT;
+	}
+	throw new IllegalArgumentException("Unknown record format \"" +
+					   name + "\"");
+    }
+
+
+    /** Return compact type of packet, or 0 if it must be serialized. */
+    static byte compactType(DevicePacket packet) {
+
+	Class c = packet.getClass();
+
+	if (c == SensorDataPacket.class) {
+	    if (((SensorDataPacket )packet).dataBuffer() != null) {
+		return SENSORDATA_TYPE;
+	    }
+	}
+	else if (c == MetadataPacket.class) {
+	    MetadataPacket metadata = (MetadataPacket )packet;
+	    if (metadata.cause() != null && metadata.getBytes() != null) {
+		return METADATA_TYPE;
+	    }
+	}
+	else if (c == DeviceMessagePacket.class) {
+	    if (((DeviceMessagePacket )packet).getMessage() != null) {
+		return DEVICEMESSAGE_TYPE;
+	    }
+	}
+	else if (c == SummaryPacket.class) {
+	    if (((SummaryPacket )packet).getData() != null) {
+		return SUMMARY_TYPE;
+	    }
+	}
+	return 0;
+    }
+
+
+    /** Write compact record into _buf. */
+    private void encodeCompact(DevicePacket packet) {
+
+	byte type = compactType(packet);
+	byte[] first = null;
+	byte[] second = null;
+
+	switch (type) {
+	case SENSORDATA_TYPE:
+	    first = ((SensorDataPacket )packet).dataBuffer();
+	    break;
+	case METADATA_TYPE:
+	    first = ((MetadataPacket )packet).cause();
+	    second = ((MetadataPacket )packet).getBytes();
+	    break;
+	case DEVICEMESSAGE_TYPE:
+	    first = ((DeviceMessagePacket )packet).getMessage();
+	    break;
+	case SUMMARY_TYPE:
+	    first = ((SummaryPacket )packet).getData();
+	    break;
+	}
+
+	int size = COMPACT_HEADER_BYTES + 4 + first.length;
+	if (second != null) {
+	    size += 4 + second.length;
+	}
+	ensureCapacity(size);
+
+	int pos = 0;
+	for (int i = 0; i < DeviceLog.SYNC_PATTERN.length; i++) {
+	    _buf[pos++] = DeviceLog.SYNC_PATTERN[i];
+	}
+	_buf[pos++] = COMPACT_FORMAT;
+	_buf[pos++] = type;
+	pos = DeviceLogIndex.putLong(_buf, pos, packet.sourceID());
+	pos = DeviceLogIndex.putLong(_buf, pos, packet.systemTime());
+	pos = DeviceLogIndex.putLong(_buf, pos, packet.sequenceNo());
+	pos = DeviceLogIndex.putLong(_buf, pos, packet.metadataRef());
+	pos = DeviceLogIndex.putLong(_buf, pos, packet.getParentId());
+	pos = DeviceLogIndex.putLong(_buf, pos, packet.getRecordType());
+
+	pos = putBytes(pos, first);
+	if (second != null) {
+	    pos = putBytes(pos, second);
+	}
+	_length = pos;
+    }
+
+
+    /** Write Java-serialized record into _buf. */
+    private void encodeSerialized(DevicePacket packet) throws IOException {
+
+	_serialized.reset();
+	_serialized.write(DeviceLog.SYNC_PATTERN);
+
+	// Each record is a complete serialization stream, so that it
+	// can be decoded by itself
+	ObjectOutputStream objectOutput = new ObjectOutputStream(_serialized);
+	objectOutput.writeObject(packet);
+	objectOutput.flush();
+
+	_length = _serialized.size();
+	ensureCapacity(_length);
+	System.arraycopy(_serialized.buffer(), 0, _buf, 0, _length);
+
+	objectOutput.close();
+    }
+
+
+    /** ByteArrayOutputStream whose buffer can be read without copying */
+    private static class RecordOutputStream extends ByteArrayOutputStream {
+	byte[] buffer() {
+	    return buf;
+	}
+    }
+
+
+    /** Decode compact record body, starting at packet type byte. */
+    private static DevicePacket decodeCompact(byte[] record, int pos, int end)
+	throws IOException {
+
+	if (end - pos < 1 + DevicePacket.HEADER_BYTES) {
+	    throw new EOFException("short compact record");
+	}
+
+	byte type = record[pos++];
+	long sourceID = DeviceLogIndex.getLong(record, pos);
+	long systemTime = DeviceLogIndex.getLong(record, pos + 8);
+	long sequenceNo = DeviceLogIndex.getLong(record, pos + 16);
+	long metadataRef = DeviceLogIndex.getLong(record, pos + 24);
+	long parentID = DeviceLogIndex.getLong(record, pos + 32);
+	long recordType = DeviceLogIndex.getLong(record, pos + 40);
+	pos += DevicePacket.HEADER_BYTES;
+
+	DevicePacket packet = null;
+	byte[] first = getBytes(record, pos, end);
+	pos += 4 + first.length;
+
+	switch (type) {
+	case SENSORDATA_TYPE:
+	    SensorDataPacket sensorData = new SensorDataPacket(sourceID, 0);
+	    sensorData.setDataBuffer(first);
+	    packet = sensorData;
+	    break;
+
+	case METADATA_TYPE:
+	    byte[] second = getBytes(record, pos, end);
+	    packet = new MetadataPacket(sourceID, first, second);
+	    break;
+
+	case DEVICEMESSAGE_TYPE:
+	    DeviceMessagePacket message = new DeviceMessagePacket(sourceID);
+	    message.setMessage(systemTime, first);
+	    packet = message;
+	    break;
+
+	case SUMMARY_TYPE:
+	    SummaryPacket summary = new SummaryPacket(sourceID);
+	    summary.setData(systemTime, first);
+	    packet = summary;
+	    break;
+
+	default:
+	    throw new StreamCorruptedException("unknown compact packet type " +
+					       type);
+	}
+
+	packet.setSystemTime(systemTime);
+	packet.setSequenceNo(sequenceNo);
+	packet.setMetadataRef(metadataRef);
+	packet.setParentId(parentID);
+	packet.setRecordType(recordType);
+
+	return packet;
+    }
+
+
+    /** Write length-prefixed byte array into _buf at pos. */
+    private int putBytes(int pos, byte[] bytes) {
+	pos = DeviceLogIndex.putInt(_buf, pos, bytes.length);
+	System.arraycopy(bytes, 0, _buf, pos, bytes.length);
+	return pos + bytes.length;
+    }
+
+
+    /** Read length-prefixed byte array from record at pos. */
+    private static byte[] getBytes(byte[] record, int pos, int end)
+	throws IOException {
+
+	if (end - pos < 4) {
+	    throw new EOFException("short compact record");
+	}
+	int length = DeviceLogIndex.getInt(record, pos);
+	if (length < 0 || length > end - pos - 4) {
+	    throw new StreamCorruptedException("invalid array length " +
+					       length);
+	}
+	byte[] bytes = new byte[length];
+	System.arraycopy(record, pos + 4, bytes, 0, length);
+	return bytes;
+    }
+
+
+    /** Make sure _buf holds at least size bytes. */
+    private void ensureCapacity(int size) {
+	if (size > _buf.length) {
+	    _buf = new byte[Math.max(size, 2 * _buf.length)];
+	}
+    }
+}
@@ -142,6 +142,12 @@ public abstract class DeviceService extends UnicastRemoteObject
 	return (_instrumentPort.getCommPortName()).getBytes();
     }
 
+    /** Return name of service's per-port metric (see Metrics), e.g.
+	"port.ttyS3.readUntilMsec". */
+    protected String portMetric(String metric) {
+	return "port." + _instrumentPort.getCommPortName() + "." + metric;
+    }
+
     /** Return remote serial port to client. */
     public RemoteSerialPort getRemoteSerialPort() throws IOException,
 							 UnknownHostException {
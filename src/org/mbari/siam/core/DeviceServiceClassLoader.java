@@ -9,12 +9,17 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.rmi.Remote;
+import java.security.MessageDigest;
 import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.StringTokenizer;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
+import org.mbari.siam.utils.ByteUtility;
 import org.mbari.siam.utils.JarClassLoader;
 import org.mbari.siam.utils.StopWatch;
 import org.mbari.siam.distributed.PacketParser;
@@ -23,6 +28,11 @@ import org.apache.log4j.Logger;
 
 /**
  * Load DeviceService classes from jar file.
+ * <p>
+ * getInstance() returns the loader already used for a jar with the same
+ * contents, if any of its classes are still in use (e.g. by a service 
+ * for an identical instrument on another port); so the jar's classes 
+ * are read and defined only once.
  * 
  * @author Mike Risi
  */
@@ -34,12 +44,52 @@ public class DeviceServiceClassLoader extends JarClassLoader {
 
     private static final String SERVICE_TAG = "Port-Service-Class";
 
+    /** WeakReferences to loaders, keyed by MD5 (hex) of their jar */
+    private static Hashtable _loaders = new Hashtable();
+
+    /** Codebase directory into which this loader installed class files */
+    private String _codebaseDirectory = null;
+
     /** Create new class loader from specified jar file. */
     public DeviceServiceClassLoader(String fileName) {
 	super(fileName);
 	_jarFileName = fileName;
     }
 
+    /** Return class loader for specified jar file, reusing the loader 
+	of a jar with the same contents if it is still in use. */
+    public static DeviceServiceClassLoader getInstance(String fileName) 
+	throws IOException, Exception {
+
+	String key = 
+	    ByteUtility.bytesToHexString(ServiceJarCache.checksum(new File(fileName)));
+
+	synchronized (_loaders) {
+	    WeakReference ref = (WeakReference )_loaders.get(key);
+	    DeviceServiceClassLoader loader = null;
+	    if (ref != null) {
+		loader = (DeviceServiceClassLoader )ref.get();
+	    }
+	    if (loader != null) {
+		_log4j.debug("getInstance() - reusing loader of " + 
+			     loader._jarFileName + " for " + fileName);
+		return loader;
+	    }
+
+	    // Forget loaders that have been collected
+	    Iterator it = _loaders.values().iterator();
+	    while (it.hasNext()) {
+		if (((WeakReference )it.next()).get() == null) {
+		    it.remove();
+		}
+	    }
+
+	    loader = new DeviceServiceClassLoader(fileName);
+	    _loaders.put(key, new WeakReference(loader));
+	    return loader;
+	}
+    }
+
     /** Load service and related classes; return service instance. */
     public DeviceService instantiateService(String codebaseDirectory) 
 	throws ClassNotFoundException,
@@ -61,6 +111,10 @@ public class DeviceServiceClassLoader extends JarClassLoader {
 
 	Class serviceClass = null;
 
+	// If this loader already installed its classes into the codebase,
+	// only replace class files that are missing or changed
+	boolean installed = codebaseDirectory.equals(_codebaseDirectory);
+
 	// Load all classes from JarFile
 	Enumeration zipEntries = jarFile.entries();
 	while (zipEntries.hasMoreElements()) {
@@ -87,7 +141,13 @@ public class DeviceServiceClassLoader extends JarClassLoader {
 		       occurred if class was only partially copied to the 
 		       codebase (e.g. if user terminated the app prematurely).
 		    */
-		    removeClassFile(entry, codebaseDirectory);
+		    boolean current = 
+			installed && isInstalled(jarFile, entry, 
+						 codebaseDirectory);
+
+		    if (!current) {
+			removeClassFile(entry, codebaseDirectory);
+		    }
 
 		    // Now load the class; will get loaded from the jar file, 
 		    // since we've deleted it from the codebase in previous 
@@ -98,9 +158,10 @@ public class DeviceServiceClassLoader extends JarClassLoader {
 		    // Stub files and remote interfaces need to be copied to 
 		    // codebase, so that they are available to clients across 
 		    // the network.
-		    if ((className.endsWith("_Stub") || isRemoteInterface(c)) || 
-			isPacketParser(c) || 
-			name.lastIndexOf(".class")>0) {
+		    if (!current && 
+			((className.endsWith("_Stub") || isRemoteInterface(c)) || 
+			 isPacketParser(c) || 
+			 name.lastIndexOf(".class")>0)) {
 			_log4j.debug("Installing classfile for " + className +
 				      " to codebase " + codebaseDirectory);
 						
@@ -134,6 +195,8 @@ public class DeviceServiceClassLoader extends JarClassLoader {
 
 	jarFile.close();
 
+	_codebaseDirectory = codebaseDirectory;
+
 	if (serviceClass == null) {
 	    _log4j.error("service class is null");
 	    throw new ClassNotFoundException("service class is null");
@@ -181,6 +244,35 @@ public class DeviceServiceClassLoader extends JarClassLoader {
     }
 
 
+    /** Return true if class file is installed in directory, with the
+	size and MD5 checksum of the jar file entry. */
+    boolean isInstalled(JarFile jarFile, ZipEntry zipEntry, 
+			String installDirectory) {
+	File classFile = new File(installDirectory + File.separator
+				  + zipEntry.getName());
+
+	if (!classFile.exists() || classFile.length() != zipEntry.getSize()) {
+	    return false;
+	}
+
+	try {
+	    InputStream input = jarFile.getInputStream(zipEntry);
+	    try {
+		return MessageDigest.isEqual(ServiceJarCache.checksum(input),
+					     ServiceJarCache.checksum(classFile));
+	    }
+	    finally {
+		input.close();
+	    }
+	}
+	catch (Exception e) {
+	    _log4j.warn("isInstalled() - can't compare " + classFile + 
+			": " + e);
+	    return false;
+	}
+    }
+
+
     /** Remove class file. */
     void removeClassFile(ZipEntry zipEntry,
 			 String installDirectory) throws Exception {
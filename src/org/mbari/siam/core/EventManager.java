@@ -8,6 +8,15 @@ package org.mbari.siam.core;
 import java.util.EventListener;
 import java.util.Vector;
 import java.util.Iterator;
+
+import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentHashMap;
+import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentLinkedQueue;
+import edu.emory.mathcs.backport.java.util.concurrent.ExecutorService;
+import edu.emory.mathcs.backport.java.util.concurrent.Executors;
+import edu.emory.mathcs.backport.java.util.concurrent.ThreadFactory;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicBoolean;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
 
 /**
@@ -34,6 +43,16 @@ import org.apache.log4j.Logger;
 
    Also with this revision, AWT or Swing events are no longer used.  rah, 6Dec2007.
 
+   EventDispatchers no longer have threads of their own. Each queues its
+   listener's events in a bounded, lock-free queue, and while events are
+   queued it runs on a thread from a pool shared by all dispatchers; so
+   listeners are still called in order, one event at a time, a rogue
+   listener still only hangs itself, and idle listeners cost no threads.
+   A LatestSampleListener's queue holds only the latest
+   LogSampleServiceEvent of each service. Dropped and coalesced events,
+   and the time events wait for dispatch, are recorded in Metrics
+   ("event.dropped", "event.coalesced", "event.dispatchMsec").
+
    Objects may register as listeners of various event types, or post
    events to the EventManager queue. 
    
@@ -60,6 +79,19 @@ public class EventManager
     /** Event Queue */
     protected Vector _listenerList = new Vector();
 
+    /** Threads that run the EventDispatchers */
+    protected ExecutorService _executor = 
+	Executors.newCachedThreadPool(new ThreadFactory() {
+		int _nThreads = 0;
+
+		public synchronized Thread newThread(Runnable runnable) {
+		    Thread thread = new Thread(runnable, 
+					       "EventDispatcher-" + (++_nThreads));
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+
     //Constructors
     private EventManager(){
     }
@@ -83,6 +115,8 @@ public class EventManager
 
 	if (listener instanceof ServiceListener)
 	    dispatcher = new ServiceEventDispatcher(listener);
+	else if (listener instanceof LatestSampleListener)
+	    dispatcher = new LatestSampleEventDispatcher(listener);
 	else if (listener instanceof LogSampleListener)
 	    dispatcher = new LogSampleEventDispatcher(listener);
 	else if (listener instanceof PowerListener)
@@ -95,7 +129,6 @@ public class EventManager
 	    dispatcher = new EventDispatcher(listener);
 
 	_listenerList.add(dispatcher);
-	dispatcher.start();
 
 	_log4j.debug("Added listener " + listener.getClass().getName() + " type " + type.getName()
 		     + " listener " + ", total " +  _listenerList.size() + " listeners");
@@ -114,17 +147,23 @@ public class EventManager
     /** Does actual work of discovering event type and calling 
 	appropriate methods for its listeners.  This base class
 	schedules any event not picked up by the subclasses below.
+	While events are queued, the dispatcher runs on a thread from
+	the EventManager's pool, calling its listener for each event in
+	turn.
      */
-    class EventDispatcher extends Thread
+    class EventDispatcher implements Runnable
     {
-	Vector	_eventQ;
+	ConcurrentLinkedQueue _eventQ;
+	AtomicInteger _queueSize;
+	AtomicBoolean _scheduled;
 	EventListener _listener;
 	int	_pktsDropped;
 
 	public EventDispatcher(EventListener listener)
 	{
-	    super();
-	    _eventQ = new Vector();
+	    _eventQ = new ConcurrentLinkedQueue();
+	    _queueSize = new AtomicInteger(0);
+	    _scheduled = new AtomicBoolean(false);
 	    _listener = listener;
 	    _log4j.debug("Created EventDispatcher: " + this.getClass().getName());
 	    _pktsDropped = 0;
@@ -136,62 +175,96 @@ public class EventManager
 		_log4j.debug("EventManager.dispatchEvent(): " + event.getClass().getName());
 	    }
 
-	    if (_eventQ.size() >= MAX_QUEUE_SIZE) {
+	    if (_queueSize.incrementAndGet() > MAX_QUEUE_SIZE) {
+		_queueSize.decrementAndGet();
+		Metrics.count("event.dropped", 1);
 		if ((_pktsDropped++ % LOG_MODULUS) == 0) {
-		    _log4j.warn("dispatchEvent(): queue size = " + _eventQ.size() +
+		    _log4j.warn("dispatchEvent(): queue size = " + _queueSize.get() +
 				" Dropping event, total dropped = " + _pktsDropped);
 		}
 	    }
 	    else {
-		synchronized(this) {
-		    _eventQ.add(event);
-		    notify();
+		eventQueued(event);
+		_eventQ.add(new QueuedEvent(event));
+		schedule();
+	    }
+	}
+
+	/** Called when event is queued for dispatch; eventDone() is 
+	    called after the listener has been called. */
+	protected void eventQueued(NodeEvent event)
+	{
+	}
+
+	/** Called after listener has been called for event */
+	protected void eventDone(NodeEvent event)
+	{
+	}
+
+	/** Return next queued event, or null if queue is empty */
+	protected QueuedEvent nextEvent()
+	{
+	    QueuedEvent queued = (QueuedEvent)_eventQ.poll();
+	    if (queued != null)
+		_queueSize.decrementAndGet();
+	    return queued;
+	}
+
+	/** Return true if events are queued */
+	protected boolean eventsQueued()
+	{
+	    return !_eventQ.isEmpty();
+	}
+
+	/** Run dispatcher on a pool thread, unless it's already running */
+	protected void schedule()
+	{
+	    if (_scheduled.compareAndSet(false, true)) {
+		try {
+		    _executor.execute(this);
+		} catch (Throwable e) {
+		    _scheduled.set(false);
+		    _log4j.error("schedule() - couldn't run dispatcher: " + e);
 		}
 	    }
 	}
 
+	/** Call listener for each queued event */
 	public void run()
 	{
-	    NodeEvent event;
+	    QueuedEvent queued;
 
-	    _log4j.debug("Starting EventDispatcher type " + this.getClass().getName());
-
-	    while(true)
+	    while (true)
 	    {
-		//Wait for an event
-		synchronized(this)
+		while ((queued = nextEvent()) != null)
 		{
-		    while (_eventQ.size() == 0)
-		    {
-			try {
-			    wait(2000);
-			} catch (InterruptedException e) {
-			} catch (Throwable e) {
-			    _log4j.warn("caught Throwable in run().wait()" + 
-					e);
-			}
+		    NodeEvent event = queued._event;
+
+		    if (Metrics.enabled()) {
+			Metrics.record("event.dispatchMsec", 
+				       System.currentTimeMillis() - queued._time);
 		    }
-		
+
+		    _log4j.debug("EventDispatcher for " + _listener.getClass().getName() +
+				 " got event:  " + event.getClass().getName());
+
 		    try {
-			event = (NodeEvent)(_eventQ.firstElement());
-			_eventQ.remove(0);
-		    } catch (Throwable e) {
-			_log4j.error("Caught throwable in getting request from Vector: " + 
-				     e);
-			continue;
+			callListener(event);
+		    }
+		    catch (Throwable e) {
+			_log4j.warn("run() - Caught throwable from callListener()" +
+				    e);
+		    }
+		    finally {
+			eventDone(event);
 		    }
 		}
 
-		_log4j.debug("EventDispatcher for " + _listener.getClass().getName() +
-			     " got event:  " + event.getClass().getName());
-
-		try {
-		    callListener(event);
-		}
-		catch (Throwable e) {
-		    _log4j.warn("run() - Caught throwable from callListener()" +
-				e);
-		}
+		// Give up the thread, unless an event was queued meanwhile
+		// and no other thread has taken over
+		_scheduled.set(false);
+		if (!eventsQueued() || !_scheduled.compareAndSet(false, true))
+		    return;
 	    }
 	}
 	
@@ -201,6 +274,19 @@ public class EventManager
 	}
     }
 
+    /** An event and the time it was queued */
+    static class QueuedEvent
+    {
+	NodeEvent _event;
+	long _time;
+
+	QueuedEvent(NodeEvent event)
+	{
+	    _event = event;
+	    _time = (Metrics.enabled() ? System.currentTimeMillis() : 0);
+	}
+    }
+
     /** Dispatcher for ServiceEvents
      */
     class ServiceEventDispatcher extends EventDispatcher
@@ -255,6 +341,76 @@ public class EventManager
 	{
 	    ((LogSampleListener)_listener).sampleLogged((LogSampleServiceEvent)event);
 	}
+
+	/** Hold pooled sample until listener is done with it */
+	protected void eventQueued(NodeEvent event)
+	{
+	    ((LogSampleServiceEvent)event).retainSample();
+	}
+
+	protected void eventDone(NodeEvent event)
+	{
+	    ((LogSampleServiceEvent)event).releaseSample();
+	}
+    }
+
+    /** Dispatcher for LatestSampleListeners; a service's queued event is
+	replaced by its next one.  The queue holds service IDs, in the
+	order of their oldest undelivered event, and _latest holds the
+	event to deliver for each.
+     */
+    class LatestSampleEventDispatcher extends LogSampleEventDispatcher
+    {
+	ConcurrentHashMap _latest = new ConcurrentHashMap();
+
+	public LatestSampleEventDispatcher(EventListener listener)
+	{
+	    super(listener);
+	}
+
+	public void dispatchEvent(NodeEvent event)
+	{
+	    if (!(event instanceof LogSampleServiceEvent)) {
+		return;
+	    }
+
+	    eventQueued(event);
+	    Integer serviceID = 
+		new Integer(((LogSampleServiceEvent)event).getServiceID());
+	    QueuedEvent replaced = 
+		(QueuedEvent)_latest.put(serviceID, new QueuedEvent(event));
+
+	    if (replaced != null) {
+		// Service's ID is still queued; it now delivers this event
+		Metrics.count("event.coalesced", 1);
+		eventDone(replaced._event);
+	    }
+	    else if (_queueSize.incrementAndGet() > MAX_QUEUE_SIZE) {
+		// More services than queue slots; shouldn't happen
+		_queueSize.decrementAndGet();
+		QueuedEvent dropped = (QueuedEvent)_latest.remove(serviceID);
+		if (dropped != null) {
+		    Metrics.count("event.dropped", 1);
+		    eventDone(dropped._event);
+		}
+	    }
+	    else {
+		_eventQ.add(serviceID);
+		schedule();
+	    }
+	}
+
+	protected QueuedEvent nextEvent()
+	{
+	    Object serviceID;
+	    while ((serviceID = _eventQ.poll()) != null) {
+		_queueSize.decrementAndGet();
+		QueuedEvent queued = (QueuedEvent)_latest.remove(serviceID);
+		if (queued != null)
+		    return queued;
+	    }
+	    return null;
+	}
     }
 
     /** Dispatcher for PowerEvents
@@ -305,7 +461,7 @@ public class EventManager
 
 	public void callListener(NodeEvent event)
 	{
-	    _log4j.debug("Dispatcher ("+this.getName()+") received CommEvent: " 
+	    _log4j.debug("Dispatcher ("+_listener.getClass().getName()+") received CommEvent: " 
 			 + event.getClass().getName());
 	}
     }
@@ -328,7 +484,7 @@ public class EventManager
 
 	public void callListener(NodeEvent event)
 	{
-	    _log4j.debug("Dispatcher ("+this.getName()+") received SchedulerEvent: "
+	    _log4j.debug("Dispatcher ("+_listener.getClass().getName()+") received SchedulerEvent: "
 			 + event.getClass().getName());
 	}
     }
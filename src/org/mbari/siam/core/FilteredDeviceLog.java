@@ -141,6 +141,28 @@ public class FilteredDeviceLog extends DeviceLog implements FilteredDeviceLogIF
 						   boolean excludeStale) 
 	throws NoDataException {
 
+	return getPackets(startKey, endKey, maxReturnedPackets, filters,
+			  excludeStale, Integer.MAX_VALUE);
+    }
+
+
+    /** 
+	Same as getPackets(startKey, endKey, maxReturnedPackets, filters,
+	excludeStale), but the returned packet set is also considered full
+	once it holds at least maxBytes, counting each packet's payload 
+	plus DevicePacket.HEADER_BYTES. Packet type and size are taken 
+	from the log index where possible, so that packets rejected by 
+	PacketSubsampler filters, or beyond the byte limit, are not read.
+    */
+    public synchronized DevicePacketSet getPackets(long startKey, long endKey,
+						   int maxReturnedPackets,
+						   PacketFilter[] filters, 
+						   boolean excludeStale,
+						   int maxBytes) 
+	throws NoDataException {
+
+	flush();
+
 	if (excludeStale) {
 	    // Don't get packets older than 'staleTime'
 	    long staleTime = System.currentTimeMillis() - _shelfLifeMsec;
@@ -159,102 +181,121 @@ public class FilteredDeviceLog extends DeviceLog implements FilteredDeviceLogIF
 	_log4j.debug("getPackets() - startKey=" + startKey + 
 		     ", endKey=" + endKey);
 
-	// Query the range and get the number of index entries
-	_log4j.debug("getPackets() - index.nEntries()");
-	int entriesInRange = _index.nEntries(startKey, endKey);
-	_log4j.debug("getPackets() - done with index.nEntries()");
-	if (entriesInRange <= 0) {
-	    _log4j.info("No data in range for device " + getDeviceId());
-	    throw new NoDataException("No data in range for device " + 
-				      getDeviceId());
+	_outputPackets.clear();
+	PacketSelector selector = 
+	    new PacketSelector(filters, maxReturnedPackets, maxBytes);
+
+	// Newest packets are usually in the recent-packet cache
+	DevicePacketSet cached = 
+	    getCachedPackets(startKey, endKey, Integer.MAX_VALUE);
+
+	if (cached != null) {
+	    boolean done = false;
+	    for (int i = 0; i < cached._packets.size() && !done; i++) {
+		done = !selector.offer((DevicePacket )cached._packets.elementAt(i));
+	    }
+	    return selectedPackets(selector, cached._packets.size(), !done);
 	}
 
-	boolean complete = false;
-	int nPassedPackets = 0;
-	boolean gotMaxPackets = false;
+	// Closed segments that overlap the range, followed by the active
+	// segment
+	Vector segments = segmentsInRange(startKey, endKey);
+
 	boolean done = false;
-	int entriesLeft = entriesInRange;
-	long lastTimestamp = -1;
-	_outputPackets.clear();
+	int totalInRange = 0;
 	int iter = 0;
-	while (!done) {
-	    // Get the next "chunk" of index entries within the search range
-	    int vecSize = Math.min(CHUNK_SIZE, entriesInRange);
-
-	    _log4j.debug("getPackets() - index.getEntries(), iter=" + iter++);
-	    Vector indexEntries = _index.getEntries(startKey, vecSize);
-	    _log4j.debug("getPackets() - done with index.getEntries()");
-
-	    // Iterate through the index vector, get packet at each index 
-	    // entry, pass through filters, and if passed add packet to output
-	    // vector.
-	    int entryIndex = 0;
-	    for (int i = 0; i < indexEntries.size(); i++) {
-
-		DeviceLogIndex.Entry entry = 
-		    (DeviceLogIndex.Entry)indexEntries.elementAt(i);
-
-		entryIndex = entry.getEntryIndex();
-
-		// Pass through filters
-		DevicePacket packet= getPacket(entry);
-
-		if (gotMaxPackets && packet.systemTime() != lastTimestamp) {
-		    // We've got or exceeded the maximum number of packets
-		    // in the returned packet set; quit as soon as the 
-		    // timestamp changes, to avoid possible duplicate 
-		    // retrievals later.
-		    done = true;
-		    break;
+	for (int s = 0; s <= segments.size() && !done; s++) {
+
+	    DeviceLog log = this;
+	    if (s < segments.size()) {
+		log = openSegment((DeviceLogSegment )segments.elementAt(s));
+		if (log == null) {
+		    continue;
 		}
-		lastTimestamp = packet.systemTime();
+	    }
 
-		entriesLeft--;
+	    try {
+		// Query the range and get the number of index entries
+		_log4j.debug("getPackets() - index.nEntries()");
+		int entriesInRange = log._index.nEntries(startKey, endKey);
+		_log4j.debug("getPackets() - done with index.nEntries()");
+		totalInRange += entriesInRange;
+		if (entriesInRange <= 0) {
+		    continue;
+		}
 
-		boolean pass = true;
-		_log4j.debug("getPackets(): apply filters");
-		for (int n = 0; n < filters.length; n++) {
-		    if (!filters[n].pass(packet)) {
-			pass = false;
+		// Page through the range by entry index
+		int chunkIndex = log._index.firstIndex(startKey);
+		int endIndex = chunkIndex + entriesInRange;
+		while (!done && chunkIndex < endIndex) {
+
+		    // Skip time buckets holding only packets that the
+		    // filters reject
+		    chunkIndex = log._index.skipEntries(chunkIndex, 
+							selector._rejectedTypes);
+		    if (chunkIndex >= endIndex) {
 			break;
 		    }
-		}
-		_log4j.debug("getPackets(): done with filters");
 
-		if (!pass) {
-		    // Packet didn't pass filters - process next packet
-		    _log4j.debug("packet " + i + " didn't pass");
-		    continue;
-		}
+		    // Get the next "chunk" of index entries within the search range
+		    int vecSize = Math.min(CHUNK_SIZE, endIndex - chunkIndex);
 
-		// Add packet to output vector.
-		_outputPackets.addElement((Object)packet);
-		nPassedPackets++;
-		_log4j.debug("getPackets() - got " + nPassedPackets + 
-			     " packets");
-
-		if (nPassedPackets > maxReturnedPackets) {
-		    // PacketSet is full; may be incomplete though (check 
-		    // below). We may still add packets until it is clear we
-		    // are out of a "run" of duplicate time-stamps, so that
-		    // the requestor can avoid duplicated packets when 
-		    // retrieving the next packet set.
-		    gotMaxPackets = true;
+		    _log4j.debug("getPackets() - index.getEntries(), iter=" + iter++);
+		    Vector indexEntries = log._index.getEntries(chunkIndex, vecSize);
+		    if (indexEntries == null) {
+			break;
+		    }
+		    log._index.readColumns(indexEntries);
+		    _log4j.debug("getPackets() - done with index.getEntries()");
+
+		    // Iterate through the index vector, pass each index entry
+		    // through filters, and if passed add its packet to output
+		    // vector.
+		    for (int i = 0; i < indexEntries.size(); i++) {
+
+			DeviceLogIndex.Entry entry = 
+			    (DeviceLogIndex.Entry)indexEntries.elementAt(i);
+
+			if (!selector.offer(log, entry)) {
+			    done = true;
+			    break;
+			}
+		    }
+
+		    // Starting index for next chunk read
+		    chunkIndex += indexEntries.size();
 		}
 	    }
-
-	    // Compute number of entries not yet processed
-	    if (entriesLeft <= 0) {
-		done = true;
-		// No more packets in time range
-		complete = true;
-		break;
+	    catch (NoDataException e) {
+		// No entries in range in this segment
+		_log4j.debug("getPackets(): no data in segment");
 	    }
-	    // Starting index for next chunk read
-	    startKey = lastTimestamp;
+	    finally {
+		closeSegment(log);
+	    }
+	}
+
+	// If we didn't stop at the maximum number of packets, there are
+	// no more packets in time range
+	return selectedPackets(selector, totalInRange, !done);
+    }
+
+
+    /** Return packet set holding the packets accepted by selector;
+	throw NoDataException if there were no packets in range, or if 
+	none passed the filters. */
+    private DevicePacketSet selectedPackets(PacketSelector selector, 
+					    int entriesInRange,
+					    boolean complete) 
+	throws NoDataException {
+
+	if (entriesInRange <= 0) {
+	    _log4j.info("No data in range for device " + getDeviceId());
+	    throw new NoDataException("No data in range for device " + 
+				      getDeviceId());
 	}
 
-	if (nPassedPackets == 0) {
+	if (selector._nPassed == 0) {
 	    _log4j.info("No packets for device " + getDeviceId() + 
 			" after filtering");
 
@@ -263,10 +304,167 @@ public class FilteredDeviceLog extends DeviceLog implements FilteredDeviceLogIF
 	}
 
 	// Trim to actual number of entries
-	_outputPackets.setSize(nPassedPackets);
+	_outputPackets.setSize(selector._nPassed);
 		
 	return new DevicePacketSet(_outputPackets, complete);
-	    
+    }
+
+
+    /** Adds packets that pass the filters to _outputPackets, until the
+	maximum number of packets or bytes has been exceeded and the 
+	timestamp changes. */
+    private class PacketSelector {
+
+	PacketFilter[] _filters;
+	int _maxPackets;
+	int _maxBytes;
+	int _nPassed = 0;
+	long _nBytes = 0;
+	boolean _gotMaxPackets = false;
+	long _lastTimestamp = -1;
+
+	/** True if all filters can be applied to index entries */
+	boolean _typeOnly = true;
+
+	/** Type flags of packets that the filters always reject; these
+	    needn't be offered */
+	int _rejectedTypes = 0;
+
+	PacketSelector(PacketFilter[] filters, int maxPackets, int maxBytes) {
+	    _filters = filters;
+	    _maxPackets = maxPackets;
+	    _maxBytes = maxBytes;
+
+	    for (int n = 0; n < _filters.length; n++) {
+		if (!(_filters[n] instanceof PacketSubsampler) ||
+		    !((PacketSubsampler )_filters[n]).typeOnly()) {
+		    _typeOnly = false;
+		}
+	    }
+
+	    int[] types = {DevicePacket.SENSORDATA_FLAG, 
+			   DevicePacket.METADATA_FLAG,
+			   DevicePacket.DEVICEMESSAGE_FLAG,
+			   DevicePacket.SUMMARY_FLAG};
+
+	    for (int t = 0; _typeOnly && t < types.length; t++) {
+		if (rejected(types[t])) {
+		    _rejectedTypes |= types[t];
+		}
+	    }
+	}
+
+	/** Return true if the filters reject every packet of the specified
+	    type, without changing their state. Valid if _typeOnly. */
+	private boolean rejected(int typeFlag) {
+	    for (int n = 0; n < _filters.length; n++) {
+		PacketSubsampler filter = (PacketSubsampler )_filters[n];
+		if (!filter.statelessType(typeFlag)) {
+		    return false;
+		}
+		if (!filter.passType(typeFlag)) {
+		    return true;
+		}
+	    }
+	    return false;
+	}
+
+	/** Offer packet to the selection; return false if the selection
+	    is full, in which case the packet is not added. */
+	boolean offer(DevicePacket packet) {
+
+	    if (full(packet.systemTime())) {
+		return false;
+	    }
+
+	    _log4j.debug("getPackets(): apply filters");
+	    for (int n = 0; n < _filters.length; n++) {
+		if (!_filters[n].pass(packet)) {
+		    // Packet didn't pass filters - process next packet
+		    _log4j.debug("packet didn't pass");
+		    return true;
+		}
+	    }
+	    _log4j.debug("getPackets(): done with filters");
+
+	    add(packet, DeviceLogIndexColumns.payloadBytes(packet));
+	    return true;
+	}
+
+	/** Offer packet referred to by index entry of specified log; 
+	    return false if the selection is full. The packet is read only
+	    if the filters can't be applied to the index entry, or if it 
+	    passes them. Entries lacking packet type and size get them
+	    recorded in the index. */
+	boolean offer(DeviceLog log, DeviceLogIndex.Entry entry) 
+	    throws NoDataException {
+
+	    if (full(entry.getKey())) {
+		return false;
+	    }
+
+	    if (!entry.hasColumns()) {
+		DevicePacket packet = log.getPacket(entry);
+		if (packet == null) {
+		    return true;
+		}
+		entry.setColumns(packet);
+		log._index.writeColumns(entry);
+		return offer(packet);
+	    }
+
+	    int typeFlag = entry.getTypeFlag();
+	    if (!_typeOnly || typeFlag == DeviceLogIndexColumns.OTHER_TYPE) {
+		DevicePacket packet = log.getPacket(entry);
+		return (packet == null || offer(packet));
+	    }
+
+	    for (int n = 0; n < _filters.length; n++) {
+		if (!((PacketSubsampler )_filters[n]).passType(typeFlag)) {
+		    // Packet didn't pass filters - don't read it
+		    return true;
+		}
+	    }
+
+	    DevicePacket packet = log.getPacket(entry);
+	    if (packet != null) {
+		add(packet, entry.getPayloadBytes());
+	    }
+	    return true;
+	}
+
+	/** Return true if the selection is full and can't take a packet 
+	    with the specified timestamp. */
+	private boolean full(long timestamp) {
+
+	    if (_gotMaxPackets && timestamp != _lastTimestamp) {
+		// We've got or exceeded the maximum number of packets
+		// in the returned packet set; quit as soon as the 
+		// timestamp changes, to avoid possible duplicate 
+		// retrievals later.
+		return true;
+	    }
+	    _lastTimestamp = timestamp;
+	    return false;
+	}
+
+	/** Add packet that passed the filters to output vector. */
+	private void add(DevicePacket packet, int payloadBytes) {
+
+	    _outputPackets.addElement((Object)packet);
+	    _nPassed++;
+	    _nBytes += payloadBytes + DevicePacket.HEADER_BYTES;
+	    _log4j.debug("getPackets() - got " + _nPassed + " packets");
+
+	    if (_nPassed > _maxPackets || _nBytes >= _maxBytes) {
+		// PacketSet is full; may be incomplete though. We may 
+		// still add packets until it is clear we are out of a 
+		// "run" of duplicate time-stamps, so that the requestor 
+		// can avoid duplicated packets when retrieving the next 
+		// packet set.
+		_gotMaxPackets = true;
+	    }
+	}
     }
 
 
@@ -5,6 +5,7 @@ home directory.
 */
 package org.mbari.siam.core;
 
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.MalformedURLException;
@@ -18,9 +19,20 @@ import org.mbari.siam.distributed.NotSupportedException;
 import org.mbari.siam.distributed.CommsMode;
 import org.mbari.siam.distributed.PowerPort;
 import org.mbari.siam.distributed.RangeException;
+import org.mbari.siam.distributed.TimeoutException;
 
 /**
    InstrumentPort implementation for Web-based instruments with URL interface.
+   <p>
+   readResponse() reads the body of the response to the latest request,
+   within a timeout. Once the whole body has been read the response is 
+   closed, so that the next request can reuse the HTTP connection
+   (keep-alive).
+   <p>
+   setResponseTimeout() bounds each blocking connect and read of 
+   subsequent requests, where the JVM's URLConnection supports 
+   setConnectTimeout() and setReadTimeout(); readResponse()'s timeout is
+   checked between reads.
 */
 public class HttpInstrumentPort 
     extends BaseInstrumentPort implements InstrumentPort {
@@ -34,6 +46,42 @@ public class HttpInstrumentPort
     protected InputStream _input;
     protected InstrumentPortOutputStream _output;
 
+    /** Stream that connects to URLs written to _output */
+    private OutputStream _urlOutput;
+
+    /** URLConnection.setConnectTimeout() and setReadTimeout(), if the
+	JVM has them */
+    private static Method _setConnectTimeout = null;
+    private static Method _setReadTimeout = null;
+
+    static {
+	try {
+	    Class[] args = new Class[] {Integer.TYPE};
+	    _setConnectTimeout = 
+		URLConnection.class.getMethod("setConnectTimeout", args);
+	    _setReadTimeout = 
+		URLConnection.class.getMethod("setReadTimeout", args);
+	}
+	catch (NoSuchMethodException e) {
+	    _log4j.warn("URLConnection timeouts not supported");
+	}
+    }
+
+    /** Connection whose response is being read by readResponse() */
+    private URLConnection _responseConnection = null;
+
+    /** Content length of response, or -1 if unknown */
+    private int _contentLength = -1;
+
+    /** Number of response body bytes read */
+    private int _bodyBytesRead = 0;
+
+    /** Set when whole response body has been read */
+    private boolean _endOfResponse = false;
+
+    /** Connect and read timeout (msec) of requests; 0 for none */
+    private long _responseTimeoutMsec = 0;
+
 
     public HttpInstrumentPort(String serverURLString, PowerPort powerPort) 
 	throws MalformedURLException, IOException {
@@ -43,6 +91,7 @@ public class HttpInstrumentPort
 	_name = new String(serverURLString);
 
 	OutputStream output = new OutputStream(serverURLString);
+	_urlOutput = output;
 	_output = new InstrumentPortOutputStream(this, output);
 
 	_input = new InputStream(output);
@@ -85,6 +134,124 @@ public class HttpInstrumentPort
 	return _output;
     }
 
+    /** Return length of response to the latest request, as given by its
+	Content-Length header, or -1 if not known (e.g. for a chunked 
+	response). Waits up to timeoutMsec for the response header. */
+    public int getContentLength(long timeoutMsec) 
+	throws IOException, TimeoutException {
+
+	startResponse(timeoutMsec);
+	return _contentLength;
+    }
+
+
+    /** Read up to len bytes of the body of the response to the latest 
+	request into buffer at offset; return number of bytes read. Returns
+	when the body ends (see endOfResponse()) or len bytes are read; 
+	throws TimeoutException if that takes longer than timeoutMsec. */
+    public int readResponse(byte[] buffer, int offset, int len, 
+			    long timeoutMsec) 
+	throws IOException, TimeoutException {
+
+	long deadline = System.currentTimeMillis() + timeoutMsec;
+	startResponse(timeoutMsec);
+	if (_endOfResponse) {
+	    return 0;
+	}
+
+	int nBytes = 0;
+	try {
+	    java.io.InputStream input = _responseConnection.getInputStream();
+
+	    while (nBytes < len) {
+		if (System.currentTimeMillis() > deadline) {
+		    throw new TimeoutException("HTTP response timed out after " +
+					       _bodyBytesRead + " bytes");
+		}
+		int nRead = input.read(buffer, offset + nBytes, len - nBytes);
+		if (nRead < 0) {
+		    _endOfResponse = true;
+		    break;
+		}
+		nBytes += nRead;
+		_bodyBytesRead += nRead;
+		if (_bodyBytesRead == _contentLength) {
+		    _endOfResponse = true;
+		    break;
+		}
+	    }
+
+	    if (_endOfResponse) {
+		// Release connection for reuse by next request
+		input.close();
+	    }
+	}
+	catch (java.net.SocketTimeoutException e) {
+	    throw new TimeoutException("HTTP response timed out after " + 
+				       _bodyBytesRead + " bytes");
+	}
+	return nBytes;
+    }
+
+
+    /** Return true if readResponse() has read the whole body of the 
+	response to the latest request. */
+    public boolean endOfResponse() {
+	return _endOfResponse;
+    }
+
+
+    /** If the latest request's response hasn't been started, wait up to 
+	timeoutMsec for its header. */
+    private void startResponse(long timeoutMsec) 
+	throws IOException, TimeoutException {
+
+	URLConnection connection = _urlOutput.getConnection();
+
+	if (connection == _responseConnection) {
+	    return;
+	}
+
+	try {
+	    // Sends request if necessary, and reads response header
+	    connection.getInputStream();
+	    _contentLength = connection.getContentLength();
+	}
+	catch (java.net.SocketTimeoutException e) {
+	    throw new TimeoutException("HTTP request timed out");
+	}
+
+	_responseConnection = connection;
+	_bodyBytesRead = 0;
+	_endOfResponse = (_contentLength == 0);
+    }
+
+
+    /** Set connect and read timeout (msec) of subsequent requests; 0
+	for none. */
+    public void setResponseTimeout(long timeoutMsec) {
+	_responseTimeoutMsec = timeoutMsec;
+    }
+
+
+    /** Bound connection's blocking connect and reads by timeoutMsec, if
+	supported; must be called before connecting. */
+    private void setTimeouts(URLConnection connection, long timeoutMsec) {
+	if (_setReadTimeout == null || timeoutMsec <= 0) {
+	    return;
+	}
+	Object[] args = 
+	    new Object[] {new Integer((int )Math.max(timeoutMsec, 1))};
+	try {
+	    _setConnectTimeout.invoke(connection, args);
+	    _setReadTimeout.invoke(connection, args);
+	}
+	catch (Exception e) {
+	    _log4j.warn("setTimeouts(): " + e);
+	}
+    }
+
+
     /** get a console to an Instrument **/
     public InstrumentConsole getInstrumentConsole() throws IOException {
 	throw new IOException("Not implemented for HttpInstrument");
@@ -130,6 +297,7 @@ public class HttpInstrumentPort
 		_log4j.debug("write(): currentURL = " + currentURL);
 
 		_currentConnection = currentURL.openConnection();
+		setTimeouts(_currentConnection, _responseTimeoutMsec);
 		_currentConnection.connect();
 		
 	    }
@@ -151,6 +319,7 @@ public class HttpInstrumentPort
 		_log4j.debug("write(3 args): currentURL = " + currentURL);
 
 		_currentConnection = currentURL.openConnection();
+		setTimeouts(_currentConnection, _responseTimeoutMsec);
 		_currentConnection.connect();
 		
 	    }
@@ -26,6 +26,45 @@ public class InstrumentConsole
         _toInstrument = os;
     }
 
+    /** write len bytes from b, starting at off, to the instrument */
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if ( !_instrumentPort.isSuspended()  )
+            throw new IOException("InstrumentPort not suspended");
+
+        _toInstrument.write(b, off, len);
+    }
+
+    /** read up to len bytes from the instrument into b, starting at off */
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if ( !_instrumentPort.isSuspended() )
+            throw new IOException("InstrumentPort not suspended");
+    
+        return _fromInstrument.read(b, off, len);
+    }
+
+    /** Have listener run when the instrument sends data (null removes
+        it); returns false if the port can't signal arriving data, in 
+        which case callers must poll available(). */
+    public boolean setDataAvailableListener(Runnable listener)
+    {
+        InputStream is;
+        try
+        {
+            is = _instrumentPort.getInputStream();
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+
+        if (is instanceof InstrumentPortInputStream)
+            return ((InstrumentPortInputStream)is).setDataAvailableListener(listener);
+
+        return false;
+    }
+
     /** write a byte to the instrument */
     public void write(int b) throws IOException
     {
@@ -3,12 +3,52 @@ package org.mbari.siam.core;
 
 import java.io.IOException;
 import java.io.InputStream;
+import org.mbari.siam.utils.DataAvailableWaiter;
+import org.mbari.siam.utils.StopWatch;
 
+/**
+   InputStream from an instrument, which fails with IOException while its
+   InstrumentPort is suspended. Array reads and skips are passed through
+   to the port's stream. An optional read-ahead buffer (see 
+   setReadAheadBytes()) lets readers of single bytes drain the port in 
+   bulk.
+*/
 public class InstrumentPortInputStream extends InputStream
+    implements DataAvailableWaiter
 {
+    /** Polling interval used by waitForData() if the port does not 
+	signal data available events */
+    static final int POLL_MSEC = 50;
+
     private InstrumentPort _instrumentPort = null;
     private InputStream _fromInstrument = null;
 
+    /** Notified when the port signals that data is available */
+    private Object _dataLock = new Object();
+
+    /** True if the port signals data available events */
+    private volatile boolean _eventDriven = false;
+
+    /** Run when the port signals data available events, or null */
+    private volatile Runnable _dataListener = null;
+
+    /** Read-ahead buffer, or null if read-ahead has never been enabled */
+    private byte[] _readAhead = null;
+
+    /** Size of read-ahead; 0 if disabled */
+    private int _readAheadBytes = 0;
+
+    /** Position of next byte in _readAhead */
+    private int _pos = 0;
+
+    /** Number of bytes in _readAhead */
+    private int _count = 0;
+
+    /** Bytes read from port, and reads from port; null until metrics
+	are first recorded */
+    private Metrics.Counter _bytesIn = null;
+    private Metrics.Counter _readCalls = null;
+
     /** Create a new InstrumentPortInputStream */
     public InstrumentPortInputStream(InstrumentPort port, InputStream is)
     {
@@ -18,38 +58,214 @@ public class InstrumentPortInputStream extends InputStream
 
     /** returns the number of bytes that can be read from this inputstream 
     without blocking */
-    public int available() throws IOException
+    public synchronized int available() throws IOException
     {
-        if ( _instrumentPort.isSuspended() )
-            throw new IOException("InstrumentPort suspended");
+        checkSuspended();
 
-        return _fromInstrument.available();
+        return (_count - _pos) + _fromInstrument.available();
     }
     
     /** close the inputstream */
     public void close() throws IOException 
     {
-        if ( _instrumentPort.isSuspended() )
-            throw new IOException("InstrumentPort suspended");
+        checkSuspended();
 
         _fromInstrument.close();
     }
     
     /** read a character from the inputstream */
-    public int read() throws IOException 
+    public synchronized int read() throws IOException 
     {
-        if ( _instrumentPort.isSuspended() )
-            throw new IOException("InstrumentPort suspended");
+        checkSuspended();
+
+        if (_pos >= _count)
+            fill();
 
-        return _fromInstrument.read();
+        if (_pos < _count)
+            return _readAhead[_pos++] & 0xff;
+
+        int b = _fromInstrument.read();
+        countRead(b < 0 ? -1 : 1);
+        return b;
+    }
+
+    /** read up to len bytes into b, starting at off; blocks only if no
+    bytes are available */
+    public synchronized int read(byte[] b, int off, int len) 
+        throws IOException
+    {
+        checkSuspended();
+
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+
+        if (len == 0)
+            return 0;
+
+        // Small reads are served from the read-ahead buffer
+        if (_pos >= _count && len < _readAheadBytes)
+            fill();
+
+        if (_pos < _count)
+        {
+            int n = Math.min(len, _count - _pos);
+            System.arraycopy(_readAhead, _pos, b, off, n);
+            _pos += n;
+            return n;
+        }
+
+        int n = _fromInstrument.read(b, off, len);
+        countRead(n);
+        return n;
     }
 
     /** skip n bytes of data from the inputstream */
-    public long skip(long n) throws IOException 
+    public synchronized long skip(long n) throws IOException 
     {
-        if ( _instrumentPort.isSuspended() )
-            throw new IOException("InstrumentPort suspended");
+        checkSuspended();
+
+        if (n <= 0)
+            return 0;
+
+        if (_pos < _count)
+        {
+            int skipped = (int )Math.min(n, _count - _pos);
+            _pos += skipped;
+            return skipped;
+        }
 
         return _fromInstrument.skip(n);
     }    
+
+    /** Set size of read-ahead buffer; reads smaller than this drain
+    all available bytes (up to nBytes) from the port at once. 0 disables
+    read-ahead (the default). */
+    public synchronized void setReadAheadBytes(int nBytes)
+    {
+        if (nBytes < 0)
+            nBytes = 0;
+
+        _readAheadBytes = nBytes;
+
+        if (nBytes > 0 && (_readAhead == null || _readAhead.length != nBytes))
+        {
+            // Keep any bytes already read ahead
+            int buffered = _count - _pos;
+            byte[] readAhead = new byte[Math.max(nBytes, buffered)];
+            if (buffered > 0)
+                System.arraycopy(_readAhead, _pos, readAhead, 0, buffered);
+
+            _readAhead = readAhead;
+            _pos = 0;
+            _count = buffered;
+        }
+    }
+
+    /** Return size of read-ahead buffer; 0 if disabled */
+    public synchronized int getReadAheadBytes()
+    {
+        return _readAheadBytes;
+    }
+
+    /** Refill the (empty) read-ahead buffer with bytes available from 
+    the port, without blocking. */
+    private void fill() throws IOException
+    {
+        _pos = _count = 0;
+
+        if (_readAheadBytes <= 0)
+            return;
+
+        int available = _fromInstrument.available();
+        if (available <= 0)
+            return;
+
+        int n = _fromInstrument.read(_readAhead, 0, 
+                                     Math.min(available, _readAheadBytes));
+        countRead(n);
+        if (n > 0)
+            _count = n;
+    }
+
+    /** Count a read of nBytes (-1 at end of stream) from the port, if
+	metrics are enabled */
+    private void countRead(int nBytes)
+    {
+        if (!Metrics.enabled())
+            return;
+
+        if (_bytesIn == null)
+        {
+            String prefix = "port." + _instrumentPort.getCommPortName();
+            _bytesIn = Metrics.counter(prefix + ".bytesIn");
+            _readCalls = Metrics.counter(prefix + ".reads");
+        }
+        _readCalls.add(1);
+        if (nBytes > 0)
+            _bytesIn.add(nBytes);
+    }
+
+    /** Throw IOException if the port is suspended */
+    private void checkSuspended() throws IOException
+    {
+        if ( _instrumentPort.isSuspended() )
+            throw new IOException("InstrumentPort suspended");
+    }
+
+    /** Specify whether the port calls dataAvailable() when input 
+	arrives; if not, waitForData() polls. */
+    void setEventDriven(boolean eventDriven)
+    {
+        _eventDriven = eventDriven;
+    }
+
+    /** Called by the port when input arrives; wakes threads blocked in
+	waitForData(). */
+    void dataAvailable()
+    {
+        synchronized (_dataLock)
+        {
+            _dataLock.notifyAll();
+        }
+
+        Runnable listener = _dataListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    /** Have listener run (on the port's event thread) each time the port
+	signals that input has arrived, whether or not the port is 
+	suspended; null removes the listener. Returns true if the port 
+	signals input, false if the caller must poll instead. */
+    boolean setDataAvailableListener(Runnable listener)
+    {
+        _dataListener = listener;
+        return _eventDriven;
+    }
+
+    /** Block until input is available or timeoutMsec elapse; return true
+	if input is available. */
+    public boolean waitForData(long timeoutMsec) 
+        throws IOException, InterruptedException
+    {
+        if (!_eventDriven)
+        {
+            if (available() > 0)
+                return true;
+
+            StopWatch.delay((int )Math.min(timeoutMsec, POLL_MSEC));
+            return available() > 0;
+        }
+
+        synchronized (_dataLock)
+        {
+            // Check under lock, so that an event can't be missed
+            if (available() > 0)
+                return true;
+
+            if (timeoutMsec > 0)
+                _dataLock.wait(timeoutMsec);
+        }
+        return available() > 0;
+    }
 }
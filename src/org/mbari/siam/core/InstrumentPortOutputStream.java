@@ -14,6 +14,9 @@ public class InstrumentPortOutputStream extends OutputStream {
     private OutputStream _toInstrument = null;
     private int _interByteMsec = DEFAULT_INTERBYTE_MSEC;
 
+    /** Bytes written to port; null until metrics are first recorded */
+    private Metrics.Counter _bytesOut = null;
+
     protected static Logger _log4j = 
 	Logger.getLogger(InstrumentPortOutputStream.class);
 
@@ -36,6 +39,7 @@ public class InstrumentPortOutputStream extends OutputStream {
             throw new IOException("InstrumentPort suspended");
 
         _toInstrument.write(b);
+	countWrite(1);
     }
 
     /** Writes b.length bytes from specified byte array to output stream,
@@ -53,6 +57,7 @@ public class InstrumentPortOutputStream extends OutputStream {
 	if (_interByteMsec == 0) {
 	    _log4j.debug("write() - no interbyte delay");
 	    _toInstrument.write(b, offset, nBytes);
+	    countWrite(nBytes);
 	}
 	else { 
 	    _log4j.debug("write() - enforce interbyte delay");
@@ -89,6 +94,20 @@ public class InstrumentPortOutputStream extends OutputStream {
     }
 
 
+    /** Count nBytes written to the port, if metrics are enabled. */
+    private void countWrite(int nBytes) {
+	if (!Metrics.enabled()) {
+	    return;
+	}
+	if (_bytesOut == null) {
+	    _bytesOut = Metrics.counter("port." + 
+					_instrumentPort.getCommPortName() +
+					".bytesOut");
+	}
+	_bytesOut.add(nBytes);
+    }
+
+
     /** Set inter-byte millisec delay to specified value. */
     public void setInterByteMsec(int interByteMsec) {
 	_interByteMsec = interByteMsec;
@@ -664,6 +664,7 @@ public abstract class InstrumentService extends DeviceService
 	}
 	
 	SensorDataPacket packet = null;
+	long start = (Metrics.enabled() ? System.currentTimeMillis() : 0);
 
 	try {
 	    packet =  acquire(logPacket);
@@ -678,6 +679,16 @@ public abstract class InstrumentService extends DeviceService
 		    _log4j.error("Didn't remove sampling thread");
 		}
 	    }
+
+	    if (start != 0) {
+		if (packet != null) {
+		    Metrics.record(portMetric("acquireMsec"), 
+				   System.currentTimeMillis() - start);
+		}
+		else {
+		    Metrics.count(portMetric("acquireFailures"), 1);
+		}
+	    }
 	}
 
 	return packet;
@@ -988,8 +999,17 @@ public abstract class InstrumentService extends DeviceService
 	// In the default case, this will be RECORDTYPE_DEFAULT
 	setRecordType(_recordType);
 
-	return StreamUtils.readUntil(_fromDevice, sample, _sampleTerminator,
-				     _instrumentAttributes.sampleTimeoutMsec);
+	long start = (Metrics.enabled() ? System.currentTimeMillis() : 0);
+	try {
+	    return StreamUtils.readUntil(_fromDevice, sample, _sampleTerminator,
+					 _instrumentAttributes.sampleTimeoutMsec);
+	}
+	finally {
+	    if (start != 0) {
+		Metrics.record(portMetric("readUntilMsec"), 
+			       System.currentTimeMillis() - start);
+	    }
+	}
     }
 
     /**
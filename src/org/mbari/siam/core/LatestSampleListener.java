@@ -0,0 +1,18 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+/** LatestSampleListener is a LogSampleListener that needs only the latest
+    sample logged by each service (e.g. to display or publish current
+    values). If the listener falls behind, EventManager discards queued
+    LogSampleServiceEvents of a service that has since logged another
+    sample, rather than queueing every sample and dropping new ones when
+    the queue fills.
+ */
+
+public interface LatestSampleListener extends LogSampleListener {
+
+} // end class LatestSampleListener
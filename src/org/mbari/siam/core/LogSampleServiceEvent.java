@@ -6,6 +6,7 @@ home directory.
 package org.mbari.siam.core;
 
 import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.SensorDataPacket;
 
 
 /** LogSample Service Event */
@@ -20,6 +21,9 @@ public class LogSampleServiceEvent extends NodeEvent {
     /** DevicePacket that is being published */
     protected DevicePacket _logSample = null;
 
+    /** Pool that _logSample may belong to, or null */
+    protected transient SensorDataPacketPool _pool = null;
+
     /** Constructs a LogSampleServiceEvent with the specified source, type, serviceID, and DevicePacket */
     public LogSampleServiceEvent(Object source, int id, int serviceID, DevicePacket logSample)
     {
@@ -29,6 +33,18 @@ public class LogSampleServiceEvent extends NodeEvent {
 	_logSample = logSample;
     }
 
+    /** Constructs a LogSampleServiceEvent for a sample that may belong to
+	the specified pool; EventManager holds a reference to the sample
+	(see SensorDataPacketPool) until each listener has handled the
+	event. */
+    public LogSampleServiceEvent(Object source, int id, int serviceID, 
+				 DevicePacket logSample, 
+				 SensorDataPacketPool pool)
+    {
+	this(source, id, serviceID, logSample);
+	_pool = pool;
+    }
+
     /** getServiceID() */
     public int getServiceID(){
 	return _serviceID;
@@ -44,6 +60,20 @@ public class LogSampleServiceEvent extends NodeEvent {
 	_logSample = logSample;
     }
 
+    /** Add a reference to pooled sample. */
+    void retainSample() {
+	if (_pool != null && _logSample instanceof SensorDataPacket) {
+	    _pool.retain((SensorDataPacket )_logSample);
+	}
+    }
+
+    /** Remove a reference added by retainSample(). */
+    void releaseSample() {
+	if (_pool != null && _logSample instanceof SensorDataPacket) {
+	    _pool.release((SensorDataPacket )_logSample);
+	}
+    }
+
 } // end class LogSampleServiceEvent
 
 
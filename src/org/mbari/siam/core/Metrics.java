@@ -0,0 +1,301 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+   Metrics is the node-wide registry of performance counters, latency
+   histograms and gauges (e.g. per-port bytes read, time spent waiting for
+   samples, log append latency, queue depths). Metrics are named by
+   dot-separated strings, such as "port.ttyS3.bytesIn"; report() lists them
+   all.
+   <p>
+   Recording is disabled by default. Instrumented code checks enabled()
+   before it reads the clock or looks up a metric, so that disabled
+   metrics cost a volatile read. Code on a hot path (e.g. a stream's read
+   methods) should keep the Counter or Histogram it records to, rather
+   than looking it up each time.
+*/
+public class Metrics
+{
+    /** Number of histogram buckets; bucket i > 0 counts values from
+	2^(i-1) to 2^i - 1, the last bucket everything larger */
+    public static final int N_BUCKETS = 24;
+
+    private static volatile boolean _enabled = false;
+
+    /** Metrics, by name */
+    private static Hashtable _metrics = new Hashtable();
+
+    private static long _resetTime = System.currentTimeMillis();
+
+
+    /** Return true if metrics are being recorded. */
+    public static boolean enabled()
+    {
+	return _enabled;
+    }
+
+
+    /** Enable or disable recording of metrics. */
+    public static void setEnabled(boolean enabled)
+    {
+	_enabled = enabled;
+    }
+
+
+    /** Return the named counter, creating it if necessary. */
+    public static Counter counter(String name)
+    {
+	synchronized (_metrics) {
+	    Object metric = _metrics.get(name);
+	    if (!(metric instanceof Counter)) {
+		metric = new Counter();
+		_metrics.put(name, metric);
+	    }
+	    return (Counter )metric;
+	}
+    }
+
+
+    /** Return the named histogram, creating it if necessary. */
+    public static Histogram histogram(String name)
+    {
+	synchronized (_metrics) {
+	    Object metric = _metrics.get(name);
+	    if (!(metric instanceof Histogram)) {
+		metric = new Histogram();
+		_metrics.put(name, metric);
+	    }
+	    return (Histogram )metric;
+	}
+    }
+
+
+    /** Register gauge under specified name, replacing any metric
+	of that name. */
+    public static void gauge(String name, Gauge gauge)
+    {
+	_metrics.put(name, gauge);
+    }
+
+
+    /** Remove the named metric. */
+    public static void remove(String name)
+    {
+	_metrics.remove(name);
+    }
+
+
+    /** Add n to the named counter, if metrics are enabled. */
+    public static void count(String name, long n)
+    {
+	if (_enabled) {
+	    counter(name).add(n);
+	}
+    }
+
+
+    /** Record value in the named histogram, if metrics are enabled. */
+    public static void record(String name, long value)
+    {
+	if (_enabled) {
+	    histogram(name).record(value);
+	}
+    }
+
+
+    /** Zero all counters and histograms. */
+    public static void reset()
+    {
+	synchronized (_metrics) {
+	    Enumeration e = _metrics.elements();
+	    while (e.hasMoreElements()) {
+		Object metric = e.nextElement();
+		if (metric instanceof Counter) {
+		    ((Counter )metric).reset();
+		}
+		else if (metric instanceof Histogram) {
+		    ((Histogram )metric).reset();
+		}
+	    }
+	    _resetTime = System.currentTimeMillis();
+	}
+    }
+
+
+    /** Return report of all metrics, one per line, sorted by name. */
+    public static String report()
+    {
+	String[] names;
+	synchronized (_metrics) {
+	    names = new String[_metrics.size()];
+	    Enumeration e = _metrics.keys();
+	    for (int i = 0; i < names.length; i++) {
+		names[i] = (String )e.nextElement();
+	    }
+	}
+	Arrays.sort(names);
+
+	StringBuffer buf = new StringBuffer(80 * (names.length + 1));
+	buf.append("metrics " + (_enabled ? "enabled" : "disabled") +
+		   ", " +
+		   (System.currentTimeMillis() - _resetTime) / 1000 +
+		   " sec since reset\n");
+
+	for (int i = 0; i < names.length; i++) {
+	    Object metric = _metrics.get(names[i]);
+	    if (metric == null) {
+		continue;
+	    }
+	    buf.append(names[i]);
+	    buf.append(": ");
+	    if (metric instanceof Gauge) {
+		try {
+		    buf.append(((Gauge )metric).value());
+		}
+		catch (Exception e) {
+		    buf.append(e);
+		}
+	    }
+	    else {
+		buf.append(metric);
+	    }
+	    buf.append('\n');
+	}
+	return new String(buf);
+    }
+
+
+    /** Counter is a running total. */
+    public static class Counter
+    {
+	private long _total = 0;
+
+	/** Add n to total. */
+	public synchronized void add(long n)
+	{
+	    _total += n;
+	}
+
+	/** Return total. */
+	public synchronized long get()
+	{
+	    return _total;
+	}
+
+	synchronized void reset()
+	{
+	    _total = 0;
+	}
+
+	public String toString()
+	{
+	    return Long.toString(get());
+	}
+    }
+
+
+    /** Histogram counts values (e.g. latencies in milliseconds) in
+	power-of-two buckets, and keeps their count, mean and maximum. */
+    public static class Histogram
+    {
+	private long[] _buckets = new long[N_BUCKETS];
+	private long _count = 0;
+	private long _sum = 0;
+	private long _max = 0;
+
+	/** Add value to histogram. */
+	public synchronized void record(long value)
+	{
+	    if (value < 0) {
+		value = 0;
+	    }
+	    _buckets[bucket(value)]++;
+	    _count++;
+	    _sum += value;
+	    if (value > _max) {
+		_max = value;
+	    }
+	}
+
+	/** Return number of values recorded. */
+	public synchronized long getCount()
+	{
+	    return _count;
+	}
+
+	/** Return largest value recorded. */
+	public synchronized long getMax()
+	{
+	    return _max;
+	}
+
+	/** Return mean of values recorded, or 0 if none. */
+	public synchronized long getMean()
+	{
+	    return (_count > 0 ? _sum / _count : 0);
+	}
+
+	/** Return upper bound of bucket holding the specified fraction
+	    (0 to 1) of recorded values; e.g. 0.99 approximates the 99th
+	    percentile. */
+	public synchronized long getPercentile(double fraction)
+	{
+	    long target = (long )Math.ceil(fraction * _count);
+	    long n = 0;
+	    for (int i = 0; i < N_BUCKETS - 1; i++) {
+		n += _buckets[i];
+		if (n >= target) {
+		    return Math.min((1L << i) - 1, _max);
+		}
+	    }
+	    return _max;
+	}
+
+	/** Return count of values in each bucket. */
+	public synchronized long[] getBuckets()
+	{
+	    return (long[] )_buckets.clone();
+	}
+
+	synchronized void reset()
+	{
+	    Arrays.fill(_buckets, 0);
+	    _count = _sum = _max = 0;
+	}
+
+	public synchronized String toString()
+	{
+	    return "n=" + _count + " mean=" + getMean() +
+		" p50<=" + getPercentile(0.5) +
+		" p99<=" + getPercentile(0.99) + " max=" + _max;
+	}
+
+	/** Return index of bucket holding value. */
+	static int bucket(long value)
+	{
+	    int i = 0;
+	    while (value > 0 && i < N_BUCKETS - 1) {
+		value >>>= 1;
+		i++;
+	    }
+	    return i;
+	}
+    }
+
+
+    /** Gauge reports a current value, such as a queue depth, when the
+	metrics are reported. */
+    public interface Gauge
+    {
+	/** Return current value. */
+	public long value();
+    }
+}
@@ -45,6 +45,7 @@ import org.mbari.siam.distributed.NodeConfigurator;
 import org.mbari.siam.distributed.NodePacketTypes;
 import org.mbari.siam.distributed.RangeException;
 import org.mbari.siam.moos.deployed.MOOSNodeConfigurator;
+import org.mbari.siam.registry.RegistryEntry;
 
 /**
 NodeManager implements node functionality, and instantiates component 
@@ -102,6 +103,9 @@ public class NodeManager implements Parent, ServiceListener {
     SiamTimer _nodeStatusTimer;
     SiamTimerTask _nodeStatusSampler;
 
+    /** TimerTask that logs the metrics report periodically, or null */
+    SiamTimerTask _metricsLogger = null;
+
     /** Method to get singleton instance. */
     public synchronized static NodeManager getInstance(NodeConfigurator configurator)
     {
@@ -168,6 +172,13 @@ public class NodeManager implements Parent, ServiceListener {
 	_nodeID = _nodeProperties.getNodeID();
 	_log4j.info("Node ID has been set to "+_nodeID);
 
+	// Start recording performance metrics before ports are scanned
+	Metrics.setEnabled(_nodeProperties.metricsEnabled());
+	_log4j.info("Metrics " + (Metrics.enabled() ? "enabled" : "disabled"));
+
+	// Size pool that calls InstrumentRegistry data listeners
+	RegistryEntry.setCallbackThreads(_nodeProperties.registryCallbackThreads());
+
 	// Create node log
 	_log4j.debug("create node log");
 	_log = _nodeConfigurator.createDeviceLog(_nodeID, _nodeProperties);
@@ -286,6 +297,21 @@ public class NodeManager implements Parent, ServiceListener {
 	    _log4j.error(e.getMessage());
 	}
 
+	try {
+	    // Log metrics report periodically, if metrics are enabled
+	    long interval = _nodeProperties.metricsLogIntervalSec() * 1000L;
+	    if (Metrics.enabled() && interval > 0) {
+		if (_nodeStatusTimer == null) {
+		    _nodeStatusTimer = new SiamTimer();
+		}
+		_metricsLogger = new MetricsLogger();
+		_nodeStatusTimer.schedule(_metricsLogger, interval, interval);
+	    }
+	}
+	catch (InvalidPropertyException e) {
+	    _log4j.error(e.getMessage());
+	}
+
 	// Now we can log messages; note start of application
 	logMessage("SIAM release " + _releaseName + ": NodeManager started");
 
@@ -534,6 +560,14 @@ public class NodeManager implements Parent, ServiceListener {
 	}
     }
 
+    /** MetricsLogger writes the metrics report to the node log. */
+    class MetricsLogger extends SiamTimerTask {
+
+	public void run() {
+	    logMessage(Metrics.report());
+	}
+    }
+
     /** Return summary of sleep manager operations. */
     public String getSleepSummary()
     {
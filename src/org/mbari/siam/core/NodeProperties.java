@@ -10,6 +10,7 @@ import org.mbari.siam.distributed.CommsMode;
 import org.mbari.siam.distributed.InvalidPropertyException;
 import org.mbari.siam.distributed.MissingPropertyException;
 import org.mbari.siam.distributed.PowerPort;
+import org.mbari.siam.registry.RegistryEntry;
 
 /**
    NodeProperties is responsible for parsing the Node properties file
@@ -40,6 +41,28 @@ public class NodeProperties extends SiamProperties {
     public static final String NVT_SERIAL_PORT_KEY = "NVTserialPort";
     public static final String MISC_PORT_KEY = "miscPort";
     public static final String PORT_ALIAS_KEY = "portAlias";
+    public static final String LOG_GROUP_COMMIT_KEY = "DeviceLog.groupCommit";
+    public static final String LOG_MAX_BATCH_PACKETS_KEY = "DeviceLog.maxBatchPackets";
+    public static final String LOG_FLUSH_INTERVAL_KEY = "DeviceLog.flushIntervalMsec";
+    public static final String LOG_DURABILITY_KEY = "DeviceLog.durability";
+    public static final String LOG_MAP_INDEX_KEY = "DeviceLog.mapIndex";
+    public static final String LOG_RECORD_FORMAT_KEY = "DeviceLog.recordFormat";
+    public static final String LOG_SEGMENT_MAX_BYTES_KEY = "DeviceLog.segmentMaxBytes";
+    public static final String LOG_SEGMENT_HOURS_KEY = "DeviceLog.segmentHours";
+    public static final String LOG_RETENTION_HOURS_KEY = "DeviceLog.retentionHours";
+    public static final String LOG_MAX_SEGMENTS_KEY = "DeviceLog.maxSegments";
+    public static final String LOG_COMPACT_RETRIEVED_KEY = "DeviceLog.compactRetrieved";
+    public static final String LOG_CACHE_BYTES_KEY = "DeviceLog.cacheBytes";
+    public static final String LOG_ASYNC_KEY = "DeviceLog.async";
+    public static final String LOG_ASYNC_QUEUE_CAPACITY_KEY = "DeviceLog.asyncQueueCapacity";
+    public static final String LOG_ASYNC_POLICY_KEY = "DeviceLog.asyncPolicy";
+    public static final String PORT_SCAN_THREADS_KEY = "PortManager.scanThreads";
+    public static final String PORT_SCAN_TIMEOUT_KEY = "PortManager.scanTimeoutSec";
+    public static final String PORT_SCAN_GROUP_KEY = "portScanGroup";
+    public static final String JAR_CACHE_BYTES_KEY = "PortManager.jarCacheBytes";
+    public static final String METRICS_ENABLED_KEY = "Metrics.enabled";
+    public static final String METRICS_LOG_INTERVAL_KEY = "Metrics.logIntervalSec";
+    public static final String REGISTRY_CALLBACK_THREADS_KEY = "InstrumentRegistry.callbackThreads";
 
     /** maximum number of ports to check for in siamPort.cfg */
     private static final int MAX_NODE_PORTS = 100;
@@ -311,5 +334,273 @@ public class NodeProperties extends SiamProperties {
 	}
 	return maxTries;
     }
-}
 
+
+    /** Return true if device logs should use group-commit mode 
+	(default false) */
+    public boolean logGroupCommit() {
+	Boolean value = Boolean.valueOf(getProperty(LOG_GROUP_COMMIT_KEY, "false"));
+	return value.booleanValue();
+    }
+
+
+    /** Return true if device log index searches should use a
+	memory-mapped view of the index file (default false) */
+    public boolean logMapIndex() {
+	Boolean value = Boolean.valueOf(getProperty(LOG_MAP_INDEX_KEY, "false"));
+	return value.booleanValue();
+    }
+
+
+    /** Return format of records appended to device logs; "serialized"
+	(default) uses Java serialization, "compact" uses the binary
+	layout of DevicePacketCodec. */
+    public int logRecordFormat() throws InvalidPropertyException {
+	String value = getProperty(LOG_RECORD_FORMAT_KEY, "serialized");
+	try {
+	    return DevicePacketCodec.parseFormat(value);
+	}
+	catch (IllegalArgumentException e) {
+	    throw new InvalidPropertyException("Invalid " + LOG_RECORD_FORMAT_KEY + 
+					       ": must be \"serialized\" or \"compact\"");
+	}
+    }
+
+
+    /** Return maximum number of packets in a device log group-commit
+	batch (default 32) */
+    public int logMaxBatchPackets() throws InvalidPropertyException {
+	int value = getIntegerProperty(LOG_MAX_BATCH_PACKETS_KEY, 32);
+	if (value < 1) {
+	    throw new InvalidPropertyException("Invalid " + LOG_MAX_BATCH_PACKETS_KEY + 
+					       ": must be positive integer");
+	}
+	return value;
+    }
+
+
+    /** Return maximum time (msec) a packet may wait in a device log
+	group-commit batch (default 5000) */
+    public long logFlushIntervalMsec() throws InvalidPropertyException {
+	long value = getLongProperty(LOG_FLUSH_INTERVAL_KEY, 5000L);
+	if (value < 0) {
+	    throw new InvalidPropertyException("Invalid " + LOG_FLUSH_INTERVAL_KEY + 
+					       ": must be non-negative integer");
+	}
+	return value;
+    }
+
+
+    /** Return device log group-commit durability policy; "sync" (default) 
+	forces each flush to storage, "none" leaves write-back to the OS. */
+    public int logDurability() throws InvalidPropertyException {
+	String value = getProperty(LOG_DURABILITY_KEY, "sync");
+	if (value.equalsIgnoreCase("sync")) {
+	    return DeviceLog.SYNC_ON_FLUSH;
+	}
+	else if (value.equalsIgnoreCase("none")) {
+	    return DeviceLog.SYNC_NONE;
+	}
+	throw new InvalidPropertyException("Invalid " + LOG_DURABILITY_KEY + 
+					   ": must be \"sync\" or \"none\"");
+    }
+
+
+    /** Return maximum size (bytes) of a device log segment's data file;
+	0 (default) means no limit. */
+    public long logSegmentMaxBytes() throws InvalidPropertyException {
+	long value = getLongProperty(LOG_SEGMENT_MAX_BYTES_KEY, 0L);
+	if (value < 0) {
+	    throw new InvalidPropertyException("Invalid " + LOG_SEGMENT_MAX_BYTES_KEY + 
+					       ": must be non-negative integer");
+	}
+	return value;
+    }
+
+
+    /** Return maximum time (msec) spanned by the packets of a device log
+	segment, from property specified in hours; 0 (default) means no 
+	limit. */
+    public long logSegmentMsec() throws InvalidPropertyException {
+	return getHoursMsec(LOG_SEGMENT_HOURS_KEY);
+    }
+
+
+    /** Return age (msec) after which closed device log segments are
+	deleted, from property specified in hours; 0 (default) means
+	segments are kept indefinitely. */
+    public long logRetentionMsec() throws InvalidPropertyException {
+	return getHoursMsec(LOG_RETENTION_HOURS_KEY);
+    }
+
+
+    /** Return maximum number of closed segments kept per device log;
+	0 (default) means no limit. */
+    public int logMaxSegments() throws InvalidPropertyException {
+	int value = getIntegerProperty(LOG_MAX_SEGMENTS_KEY, 0);
+	if (value < 0) {
+	    throw new InvalidPropertyException("Invalid " + LOG_MAX_SEGMENTS_KEY + 
+					       ": must be non-negative integer");
+	}
+	return value;
+    }
+
+
+    /** Return true if closed device log segments should be compacted
+	once the portal has retrieved their packets (default false) */
+    public boolean logCompactRetrieved() {
+	Boolean value = Boolean.valueOf(getProperty(LOG_COMPACT_RETRIEVED_KEY, "false"));
+	return value.booleanValue();
+    }
+
+
+    /** Return non-negative property value specified in hours as msec;
+	default is 0. */
+    private long getHoursMsec(String key) throws InvalidPropertyException {
+	String string = getProperty(key, "0");
+	float hours;
+	try {
+	    hours = Float.parseFloat(string);
+	}
+	catch(NumberFormatException e){
+	    throw new InvalidPropertyException("Invalid " + key + ": must be floating point");	
+	}
+	if (hours < 0) {
+	    throw new InvalidPropertyException("Invalid " + key + ": must be non-negative");
+	}
+	return (long )(hours * 3600000.);
+    }
+
+
+    /** Return maximum bytes of recently appended records each device
+	log keeps in memory; default 0 disables the cache. */
+    public long logCacheBytes() throws InvalidPropertyException {
+	long value = getLongProperty(LOG_CACHE_BYTES_KEY, 
+				     DeviceLog.DEFAULT_CACHE_BYTES);
+	if (value < 0) {
+	    throw new InvalidPropertyException("Invalid " + LOG_CACHE_BYTES_KEY + 
+					       ": must be non-negative integer");
+	}
+	return value;
+    }
+
+
+    /** Return true if services should queue packets for a node-wide 
+	writer thread rather than write them to their device logs while
+	sampling (default false) */
+    public boolean logAsync() {
+	Boolean value = Boolean.valueOf(getProperty(LOG_ASYNC_KEY, "false"));
+	return value.booleanValue();
+    }
+
+
+    /** Return maximum number of packets queued for the asynchronous
+	device log writer (default 1000) */
+    public int logAsyncQueueCapacity() throws InvalidPropertyException {
+	int value = getIntegerProperty(LOG_ASYNC_QUEUE_CAPACITY_KEY, 1000);
+	if (value < 1) {
+	    throw new InvalidPropertyException("Invalid " + LOG_ASYNC_QUEUE_CAPACITY_KEY + 
+					       ": must be positive integer");
+	}
+	return value;
+    }
+
+
+    /** Return what a service does when the asynchronous device log 
+	writer's queue is full; "block" (default) waits for room, "discard"
+	drops the packet. */
+    public int logAsyncPolicy() throws InvalidPropertyException {
+	String value = getProperty(LOG_ASYNC_POLICY_KEY, "block");
+	if (value.equalsIgnoreCase("block")) {
+	    return AsyncLogWriter.BLOCK;
+	}
+	else if (value.equalsIgnoreCase("discard")) {
+	    return AsyncLogWriter.DISCARD;
+	}
+	throw new InvalidPropertyException("Invalid " + LOG_ASYNC_POLICY_KEY + 
+					   ": must be \"block\" or \"discard\"");
+    }
+
+
+    /** Return number of threads that scan ports and start their services
+	(default 1, i.e. one port at a time) */
+    public int portScanThreads() throws InvalidPropertyException {
+	int value = getIntegerProperty(PORT_SCAN_THREADS_KEY, 1);
+	if (value < 1) {
+	    throw new InvalidPropertyException("Invalid " + PORT_SCAN_THREADS_KEY + 
+					       ": must be positive integer");
+	}
+	return value;
+    }
+
+
+    /** Return time (msec) that scanPorts() waits for any one port's scan;
+	default is 0, which waits indefinitely. */
+    public long portScanTimeoutMsec() throws InvalidPropertyException {
+	int value = getIntegerProperty(PORT_SCAN_TIMEOUT_KEY, 0);
+	if (value < 0) {
+	    throw new InvalidPropertyException("Invalid " + PORT_SCAN_TIMEOUT_KEY + 
+					       ": must be non-negative integer");
+	}
+	return value * 1000L;
+    }
+
+
+    /** Return scan group of specified port ("portScanGroupN = "), or null
+	if none. Ports in the same group (e.g. sharing power or hardware) 
+	are scanned one at a time, in port order. */
+    public String getPortScanGroup(int index) {
+	String group = getProperty(PORT_SCAN_GROUP_KEY + index);
+	if (group == null || group.trim().length() == 0) {
+	    return null;
+	}
+	return group.trim();
+    }
+
+
+    /** Return maximum total size (bytes) of service jars cached from 
+	PUCK payloads (default ServiceJarCache.DEFAULT_MAX_BYTES) */
+    public long jarCacheBytes() throws InvalidPropertyException {
+	long value = getLongProperty(JAR_CACHE_BYTES_KEY, 
+				     ServiceJarCache.DEFAULT_MAX_BYTES);
+	if (value < 0) {
+	    throw new InvalidPropertyException("Invalid " + JAR_CACHE_BYTES_KEY + 
+					       ": must be non-negative integer");
+	}
+	return value;
+    }
+
+
+    /** Return true if performance metrics (see Metrics) should be 
+	recorded (default false) */
+    public boolean metricsEnabled() {
+	Boolean value = Boolean.valueOf(getProperty(METRICS_ENABLED_KEY, "false"));
+	return value.booleanValue();
+    }
+
+
+    /** Return interval (seconds) at which the metrics report is written
+	to the node log, if metrics are enabled; 0 (the default) disables
+	logging. */
+    public int metricsLogIntervalSec() throws InvalidPropertyException {
+	int value = getIntegerProperty(METRICS_LOG_INTERVAL_KEY, 0);
+	if (value < 0) {
+	    throw new InvalidPropertyException("Invalid " + METRICS_LOG_INTERVAL_KEY + 
+					       ": must be non-negative integer");
+	}
+	return value;
+    }
+
+
+    /** Return number of threads that call InstrumentRegistry data
+	listeners (default RegistryEntry.DEFAULT_CALLBACK_THREADS) */
+    public int registryCallbackThreads() throws InvalidPropertyException {
+	int value = getIntegerProperty(REGISTRY_CALLBACK_THREADS_KEY, 
+				       RegistryEntry.DEFAULT_CALLBACK_THREADS);
+	if (value < 1) {
+	    throw new InvalidPropertyException("Invalid " + REGISTRY_CALLBACK_THREADS_KEY + 
+					       ": must be positive integer");
+	}
+	return value;
+    }
+}
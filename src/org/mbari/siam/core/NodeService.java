@@ -715,6 +715,9 @@ public class NodeService extends UnicastRemoteObject
 	    }
 	}
 
+	// Make sure packets logged during the transition are on disk
+	AsyncLogWriter.flushInstance(timeoutSec*1000L);
+
 	String msg="safe mode transition complete after "+(System.currentTimeMillis()-now)+" ms";
 	_nodeManager.logNodeConfiguration(msg);
 	_log4j.info(msg);
@@ -1417,6 +1420,17 @@ public class NodeService extends UnicastRemoteObject
 	return output.getBytes();
     }
 
+    /** Return report of node performance metrics, and optionally log 
+	it. */
+    public byte[] getMetrics(boolean logPacket) {
+
+	String report = Metrics.report();
+	if (logPacket) {
+	    _nodeManager.logMessage(report);
+	}
+	return report.getBytes();
+    }
+
     /** Reset port diagnostics. */
     public void resetPortDiagnostics() throws RemoteException {
     }
@@ -1926,6 +1940,25 @@ public class NodeService extends UnicastRemoteObject
 	_nodeManager.logMessage(new String(annotation));
     }
 
+    /** Acknowledge that the caller has stored nPackets packets from
+	specified device, with keys from firstKey through lastKey. */
+    public void packetsRetrieved(long deviceID, long firstKey, long lastKey,
+				 int nPackets)
+	throws DeviceNotFound, RemoteException {
+
+	// The node log is never compacted
+	if (deviceID == getId()) {
+	    return;
+	}
+
+	Device device = getDevice(deviceID);
+
+	if (device instanceof BaseInstrumentService) {
+	    ((BaseInstrumentService )device).packetsRetrieved(firstKey, lastKey,
+							      nPackets);
+	}
+    }
+
     /** Return true if specified device can supply Summary packets. */
     public boolean summarizing(long deviceID) 
 	throws DeviceNotFound, RemoteException {
@@ -33,6 +33,9 @@ public abstract class PolledInstrumentService
     private static Logger _log4j = 
 	Logger.getLogger(PolledInstrumentService.class);
 
+    /** Error messages of acquire(); reused between samples */
+    private StringBuffer _errMsg = new StringBuffer(80);
+
     /** Constructor. */
     public PolledInstrumentService() throws RemoteException {
 	super();
@@ -70,7 +73,9 @@ public abstract class PolledInstrumentService
 
 	assertSamplingState();
 
-	String name = new String(getName());
+	// Service name is allocated once by getName()
+	getName();
+	String name = _serviceName;
 
 	//prepare device for sampling
 	try {
@@ -86,7 +91,8 @@ public abstract class PolledInstrumentService
 	}
 
 	int tries;
-	StringBuffer errMsg = new StringBuffer("");
+	StringBuffer errMsg = _errMsg;
+	errMsg.setLength(0);
 	boolean interrupted = false;
 
 	for (tries = 0; 
@@ -101,14 +107,18 @@ public abstract class PolledInstrumentService
 	    }
 
 	    try {
-		_log4j.debug(name + ": calling requestSample()\n");
+		if (_log4j.isDebugEnabled()) {
+		    _log4j.debug(name + ": calling requestSample()\n");
+		}
 		// Send sample request to instrument
 		requestSample();
 
 		// Read raw sample from instrument
 		int nBytes;
 
-		_log4j.debug(name + ": calling readSample()\n");
+		if (_log4j.isDebugEnabled()) {
+		    _log4j.debug(name + ": calling readSample()\n");
+		}
 		if ((nBytes = readSample(getSampleBuf())) <= 0) {
 		    _log4j.warn(name + ": readSample() returned 0 bytes");
 		    errMsg.append("readSample returned 0 bytes;");
@@ -116,14 +126,18 @@ public abstract class PolledInstrumentService
 		    continue;
 		}
 
-		_log4j.debug("read " + nBytes + " sample bytes");
+		if (_log4j.isDebugEnabled()) {
+		    _log4j.debug("read " + nBytes + " sample bytes");
+		}
 
 		validateSample(getSampleBuf(), nBytes);
 
 		// Process the sample, generate TimeStampedData object
 		// (By default, base class' processSample() just
 		// puts raw data in output object)
-		_log4j.debug(name + ": calling processSample() \n");
+		if (_log4j.isDebugEnabled()) {
+		    _log4j.debug(name + ": calling processSample() \n");
+		}
 		SensorDataPacket dataPacket = 
 		    processSample(getSampleBuf(), nBytes);
                 
@@ -12,6 +12,7 @@ import java.io.InputStream;
 import java.rmi.NoSuchObjectException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.StringTokenizer;
@@ -46,6 +47,12 @@ import org.mbari.puck.Puck_1_3;
 
 /**
  * PortManager keeps track of devices installed on node ports.
+ * <p>
+ * scanPorts() can scan ports and start their services concurrently,
+ * with PortManager.scanThreads threads; ports that share power or
+ * hardware can be put in the same scan group (portScanGroupN), so that
+ * they are scanned one at a time. The time taken to scan each port is
+ * logged and available from getScanTimes().
  * 
  * @author Tom O'Reilly
  */
@@ -63,10 +70,6 @@ public class PortManager
 
     String _serviceJarLocation;
 
-    String _serviceXMLLocation = "service.xml";
-
-    String _servicePropertiesLocation = "service.properties";
-
     String _serviceCacheLocation = "service.cache";
 
     String _codebaseLocation;
@@ -86,6 +89,22 @@ public class PortManager
     /** Flag indicates whether to use PUCK payload (as opposed to registry) */
     private boolean _usePuckPayload = true;
 
+    /** Interval (msec) at which scanPorts() checks for timed-out scans */
+    private static final int _SCAN_POLL_MSEC = 1000;
+
+    /** DevicePorts being scanned, keyed by Long ISI ID of their service */
+    private Hashtable _scanIDs = new Hashtable();
+
+    /** Time (Long msec) taken by last scan of each port, keyed by port
+	name */
+    private Hashtable _scanTimes = new Hashtable();
+
+    /** Serializes installation of service classes into the codebase */
+    private Object _codebaseLock = new Object();
+
+    /** Service jars read from PUCK payloads, shared by all ports */
+    private ServiceJarCache _jarCache = null;
+
 
     /** Create PortManager object. */
     public PortManager(String siamHome, NodeProperties nodeProps)
@@ -117,6 +136,27 @@ public class PortManager
 	}
 	_log4j.debug("_usePuckPayload: " + _usePuckPayload);
 
+	try {
+	    _jarCache = 
+		new ServiceJarCache(_siamHome + File.separator + 
+				    _serviceJarLocation + File.separator + 
+				    "cache", _nodeProps.jarCacheBytes());
+
+	    final ServiceJarCache cache = _jarCache;
+	    Metrics.gauge("jarCache.hits", new Metrics.Gauge() {
+		    public long value() {
+			return cache.getHits();
+		    }
+		});
+	    Metrics.gauge("jarCache.misses", new Metrics.Gauge() {
+		    public long value() {
+			return cache.getMisses();
+		    }
+		});
+	}
+	catch (IOException e) {
+	    _log4j.error("Couldn't create service jar cache: " + e);
+	}
     }
 
     /** Get port configuration from properties file and store in vector. */
@@ -181,6 +221,29 @@ public class PortManager
     public void scanPort(DevicePort port, String serviceSource) 
 	throws LinkageError, PortOccupiedException, 
 	       IOException, DuplicateIdException, PortNotFound, Exception
+    {
+	long startTime = System.currentTimeMillis();
+	boolean started = false;
+	try {
+	    startService(port, serviceSource);
+	    started = true;
+	}
+	finally {
+	    releaseIsiID(port);
+
+	    long msec = System.currentTimeMillis() - startTime;
+	    _scanTimes.put(port._portName, new Long(msec));
+	    _log4j.info("scanPort() - port " + port._portName + 
+			(started ? " started service in " : " failed after ") +
+			msec + " msec");
+	}
+    }
+
+
+    /** Scan specified port and start its service. */
+    private void startService(DevicePort port, String serviceSource) 
+	throws LinkageError, PortOccupiedException, 
+	       IOException, DuplicateIdException, PortNotFound, Exception
     {
         if ( port._service != null )
             throw new PortOccupiedException(new String(port._service.getName()) + 
@@ -333,13 +396,17 @@ public class PortManager
 
 	    //hand the class loader the jar file in the sandBoxy
 	    DeviceServiceClassLoader classLoader = 
-		new DeviceServiceClassLoader(sandBox.getJarPath());
+		DeviceServiceClassLoader.getInstance(sandBox.getJarPath());
 
 	    _log4j.info("Starting service...");
 
 	    // Load service classes, install appropriate class files in 
-	    // codebase, and instantiate the service.
-	    port._service = classLoader.instantiateService(_codebaseLocation);
+	    // codebase, and instantiate the service. Services on other
+	    // ports may share class files, so install one at a time.
+	    synchronized (_codebaseLock) {
+		port._service = 
+		    classLoader.instantiateService(_codebaseLocation);
+	    }
 	}
 	catch (LinkageError e) {
 	    _log4j.error("LinkageError: ", e);
@@ -370,7 +437,7 @@ public class PortManager
 
 	// check ISI-ID against services already running
 	try {
-	    checkIsiID(sandBox.getJarPath());
+	    checkIsiID(sandBox.getJarPath(), port);
 	}
 	catch ( Exception e ) {
 	    logError("scanPort(), port " + port._portName + 
@@ -399,8 +466,9 @@ public class PortManager
 	    // Initialize service
 	    port._service.initialize(_nodeProps, NodeManager.getInstance(), 
 				     port._instrumentPort, sandBox,
-				     _serviceXMLLocation,
-				     _servicePropertiesLocation, 
+				     sandBox.getPath() + File.separator +
+				     "service.xml",
+				     sandBox.getPropertiesPath(),
 				     _serviceCacheLocation);
 
 
@@ -496,9 +564,6 @@ public class PortManager
 	//if there is no properties file extract it from the jar
 	File propFile = new File(sandBox.getPropertiesPath());
 
-	String servicePropertiesLocation = sandBox.getPath() + File.separator
-	    + sandBox.PROPERTIES_NAME;
-	_servicePropertiesLocation = servicePropertiesLocation;
 	if ( !propFile.exists() ) {
 	    zipEntry = jarFile.getEntry(sandBox.PROPERTIES_NAME);
 
@@ -518,7 +583,6 @@ public class PortManager
 	    String xmlFilename = "service.xml";
 	    String destinationName = sandBox.getPath() + File.separator
 		+ xmlFilename;
-	    _serviceXMLLocation = destinationName;
 	    _log4j.debug("Getting service.xml zipEntry");
 	    zipEntry = jarFile.getEntry(xmlFilename);
 	    if ( zipEntry == null ) {
@@ -547,8 +611,9 @@ public class PortManager
     }
 
 
-    /** Verify that each service has a unique ID. */
-    void checkIsiID(String jarFilename) 
+    /** Verify that each service has a unique ID, and reserve the ID of
+	the service in jarFilename for scanPort until its scan completes. */
+    void checkIsiID(String jarFilename, DevicePort scanPort) 
 	throws DuplicateIdException, Exception {
 
 	//create the jar file
@@ -579,27 +644,75 @@ public class PortManager
 	attributes.fromProperties(properties, false);
 	_log4j.debug("checkIsiID() - GOT attributes from properties");
 
-	//check ID against existing services
-	for ( int i = 0; i < _ports.size(); i++ ) {
-	    DevicePort port = (DevicePort) _ports.get(i);
+	Long id = new Long(attributes.isiID);
+
+	synchronized (_scanIDs) {
+	    //check ID against existing services
+	    for ( int i = 0; i < _ports.size(); i++ ) {
+		DevicePort port = (DevicePort) _ports.get(i);
 
-	    if ( port._service != null ) {
-		if ( port._service.getId() == attributes.isiID ) {
-		    String es = "service \""
-			+ new String(port._service.getName())
-			+ "\" on port \""
-			+ new String(port._service.getCommPortName())
-			+ "\" already has isiID " + attributes.isiID;
+		if ( port._service != null ) {
+		    if ( port._service.getId() == attributes.isiID ) {
+			String es = "service \""
+			    + new String(port._service.getName())
+			    + "\" on port \""
+			    + new String(port._service.getCommPortName())
+			    + "\" already has isiID " + attributes.isiID;
 
-		    throw new DuplicateIdException(es);
+			throw new DuplicateIdException(es);
+		    }
 		}
 	    }
+
+	    // ...and against services still being started on other ports
+	    DevicePort port = (DevicePort )_scanIDs.get(id);
+	    if ( port != null && port != scanPort ) {
+		throw new DuplicateIdException("service being started on port \""
+					       + port._portName 
+					       + "\" already has isiID " + 
+					       attributes.isiID);
+	    }
+	    _scanIDs.put(id, scanPort);
 	}
     }
 
-    /** Determine configuration of all ports. */
+
+    /** Release ISI ID reserved by checkIsiID() for port. */
+    private void releaseIsiID(DevicePort port) {
+	synchronized (_scanIDs) {
+	    Iterator it = _scanIDs.values().iterator();
+	    while (it.hasNext()) {
+		if (it.next() == port) {
+		    it.remove();
+		}
+	    }
+	}
+    }
+
+    /** Determine configuration of all ports. Ports are scanned by
+	PortManager.scanThreads threads; ports in the same scan group are 
+	scanned one at a time, in port order. If PortManager.scanTimeoutSec
+	is set, a port whose scan takes longer is interrupted and no longer
+	waited for; the rest of its group is skipped, and a new thread 
+	takes over the groups not yet scanned. */
     public void scanPorts()
     {
+	int nThreads = 1;
+	long timeoutMsec = 0;
+	try {
+	    nThreads = _nodeProps.portScanThreads();
+	    timeoutMsec = _nodeProps.portScanTimeoutMsec();
+	}
+	catch (InvalidPropertyException e) {
+	    logError("scanPorts() - scanning one port at a time", e);
+	    nThreads = 1;
+	    timeoutMsec = 0;
+	}
+
+	// Sort ports into scan groups, in port order
+	Vector groups = new Vector();
+	Hashtable namedGroups = new Hashtable();
+
 	for ( int i = 0; i < _ports.size(); i++ )
 	{
 	    DevicePort port = (DevicePort) _ports.elementAt(i);
@@ -615,35 +728,221 @@ public class PortManager
 		continue;
 	    }
 
-	    try {
-		_log4j.debug("scanPorts() - call scanPort() for " + 
-			      port._portName);
-		scanPort(port, serviceJarName);
-	    }
-	    catch ( PortOccupiedException e ) {
-		logError("scanPorts() - Service already running on port "
-			 + port._portName, e);
-	    }
-	    catch ( DuplicateIdException e ) {
-		logError("scanPorts() - Duplicate ID on port " + 
-			 port._portName, e);
-	    }
-	    catch ( PortNotFound e ) {
-		logError("scanPorts() - Port " + port + " not found ", e);
+	    String name = _nodeProps.getPortScanGroup(port.getIndex());
+	    ScanGroup group = null;
+	    if (name != null) {
+		group = (ScanGroup )namedGroups.get(name);
 	    }
-	    catch ( IOException e ) {
-		logError("scanPorts() failed on " + 
-			 port._portName, e);
+	    if (group == null) {
+		group = new ScanGroup();
+		groups.add(group);
+		if (name != null) {
+		    namedGroups.put(name, group);
+		}
 	    }
-	    catch ( LinkageError e ) {
-		logError("scanPorts() LinkageError on port" + 
-			 port._portName, e);
+	    group._ports.add(port);
+	}
+
+	if (groups.size() == 0) {
+	    return;
+	}
+
+	long startTime = System.currentTimeMillis();
+
+	Vector queue = new Vector(groups);
+	if (nThreads > groups.size()) {
+	    nThreads = groups.size();
+	}
+	_log4j.info("scanPorts() - scanning " + groups.size() + 
+		    " port groups with " + nThreads + " threads");
+
+	int nWorkers = 0;
+	while (nWorkers < nThreads) {
+	    new ScanWorker(queue, groups, nWorkers++).start();
+	}
+
+	// Wait for groups to complete, or their current scan to time out
+	synchronized (groups) {
+	    while (true) {
+		boolean pending = false;
+		long now = System.currentTimeMillis();
+
+		for (int i = 0; i < groups.size(); i++) {
+		    ScanGroup group = (ScanGroup )groups.elementAt(i);
+		    if (group._done || group._abandoned) {
+			continue;
+		    }
+		    if (timeoutMsec > 0 && group._current != null &&
+			now - group._startTime > timeoutMsec) {
+
+			logError("scanPorts() - scan of port " + 
+				 group._current._portName + 
+				 " timed out after " + (now - group._startTime) +
+				 " msec", null);
+
+			group._abandoned = true;
+			group._thread.interrupt();
+
+			// Remaining ports of the group may share the hung 
+			// hardware; skip them
+			int next = group._ports.indexOf(group._current) + 1;
+			for (int j = next; j < group._ports.size(); j++) {
+			    DevicePort port = (DevicePort )group._ports.elementAt(j);
+			    logError("scanPorts() - skipped port " + 
+				     port._portName + 
+				     " after scan timeout in its group", null);
+			}
+
+			// The thread may never return; replace it
+			if (!queue.isEmpty()) {
+			    new ScanWorker(queue, groups, nWorkers++).start();
+			}
+			continue;
+		    }
+		    pending = true;
+		}
+
+		if (!pending) {
+		    break;
+		}
+		try {
+		    groups.wait(_SCAN_POLL_MSEC);
+		}
+		catch (InterruptedException e) {
+		    _log4j.warn("scanPorts() interrupted");
+		    break;
+		}
 	    }
-	    catch ( Exception e ) {
-		logError("scanPorts() Exception on port " + 
-			 port._portName, e);
+	}
+
+	// Report startup time of each port
+	StringBuffer report = new StringBuffer("Scanned ports in " + 
+					       (System.currentTimeMillis() - 
+						startTime) + 
+					       " msec:");
+	for (int i = 0; i < groups.size(); i++) {
+	    ScanGroup group = (ScanGroup )groups.elementAt(i);
+	    for (int j = 0; j < group._ports.size(); j++) {
+		DevicePort port = (DevicePort )group._ports.elementAt(j);
+		Long msec = (Long )_scanTimes.get(port._portName);
+		report.append(" " + port._portName + "=" + 
+			      (msec == null ? "?" : msec.toString()));
 	    }
+	}
+	_log4j.info(report.toString());
+	NodeManager.getInstance().logMessage(report.toString());
+    }
+
+
+    /** Scan port, logging any failure. */
+    private void scanPortLogged(DevicePort port)
+    {
+	try {
+	    _log4j.debug("scanPorts() - call scanPort() for " + 
+			 port._portName);
+	    scanPort(port, port._jarName);
+	}
+	catch ( PortOccupiedException e ) {
+	    logError("scanPorts() - Service already running on port "
+		     + port._portName, e);
+	}
+	catch ( DuplicateIdException e ) {
+	    logError("scanPorts() - Duplicate ID on port " + 
+		     port._portName, e);
+	}
+	catch ( PortNotFound e ) {
+	    logError("scanPorts() - Port " + port + " not found ", e);
+	}
+	catch ( IOException e ) {
+	    logError("scanPorts() failed on " + 
+		     port._portName, e);
+	}
+	catch ( LinkageError e ) {
+	    logError("scanPorts() LinkageError on port" + 
+		     port._portName, e);
+	}
+	catch ( Exception e ) {
+	    logError("scanPorts() Exception on port " + 
+		     port._portName, e);
+	}
+    }
+
+
+    /** Return time (Long msec) taken by the last scan of each port, 
+	keyed by port name. */
+    public Hashtable getScanTimes() {
+	return (Hashtable )_scanTimes.clone();
+    }
+
+
+    /** Ports that are scanned one at a time, in order. Fields are 
+	guarded by the Vector of groups being scanned. */
+    class ScanGroup {
+	Vector _ports = new Vector();
+
+	/** Port being scanned, if any, and when its scan started */
+	DevicePort _current = null;
+	long _startTime = 0;
+
+	/** Thread scanning the group */
+	Thread _thread = null;
+
+	boolean _done = false;
+
+	/** Current scan timed out; scanPorts() no longer waits for group */
+	boolean _abandoned = false;
+    }
+
 
+    /** Thread that scans groups from a queue until it is empty. */
+    class ScanWorker extends Thread {
+	Vector _queue;
+	Vector _groups;
+
+	ScanWorker(Vector queue, Vector groups, int n) {
+	    super("PortScanner-" + n);
+	    _queue = queue;
+	    _groups = groups;
+	}
+
+	public void run() {
+	    while (true) {
+		ScanGroup group;
+		synchronized (_queue) {
+		    if (_queue.size() == 0) {
+			return;
+		    }
+		    group = (ScanGroup )_queue.remove(0);
+		}
+
+		for (int i = 0; i < group._ports.size(); i++) {
+		    DevicePort port = (DevicePort )group._ports.elementAt(i);
+		    synchronized (_groups) {
+			group._thread = this;
+			group._current = port;
+			group._startTime = System.currentTimeMillis();
+		    }
+
+		    scanPortLogged(port);
+
+		    // Clear interrupt of a timed-out scan before the next one
+		    Thread.interrupted();
+
+		    synchronized (_groups) {
+			if (group._abandoned) {
+			    // Rest of group was skipped, and a replacement 
+			    // thread has taken over the queue
+			    return;
+			}
+		    }
+		}
+
+		synchronized (_groups) {
+		    group._current = null;
+		    group._done = true;
+		    _groups.notifyAll();
+		}
+	    }
 	}
     }
 
@@ -843,19 +1142,34 @@ public class PortManager
 		// blowout the service cache
 		sandBox.deleteAllFiles();
 
-		boolean gotIt = false;
-		// copy the payload to the service cache
-		for ( int i = 0; i < _MAX_PUCK_READ_TRIES; ++i ) {
+		if (_jarCache != null) {
+		    // Get payload from node's jar cache, or failing that, 
+		    // the PUCK
+		    File jar = null;
+		    Exception error = null;
+		    for ( int i = 0; 
+			  i < _MAX_PUCK_READ_TRIES && jar == null; ++i ) {
+			try {
+			    jar = _jarCache.load(puck, payload._md5Checksum);
+			}
+			catch (Exception e) {
+			    _log4j.warn("Reading payload, try " + i + 
+					": " + e);
+			    error = e;
+			}
+		    }
 
-		    PuckUtils.readSiamPayload(puck, sandBox.getJarPath());
-		    gotIt = true;
-		    break;
-		}
+		    if (jar == null) {
+			throw new Exception("Failed reading payload: " + error);
+		    }
 
-		if (!gotIt) {
-		    throw new Exception("Failed reading payload");
+		    // copy the payload to the service cache
+		    FileUtils.copyFile(jar.getPath(), sandBox.getJarPath());
+		}
+		else {
+		    // copy the payload to the service cache
+		    PuckUtils.readSiamPayload(puck, sandBox.getJarPath());
 		}
-
 	    }
 	    else {
 		_log4j.info("Instrument payload has not changed");
@@ -0,0 +1,180 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Vector;
+
+import org.apache.log4j.Logger;
+
+/**
+   RemoteSerialPortSelector is the node-wide thread that services every
+   RemoteSerialPortServer session with one NIO Selector. It sleeps in
+   select() until a client connects or sends data, an instrument signals
+   data (see InstrumentConsole.setDataAvailableListener()), or a session
+   times out, so idle consoles cost nothing. Consoles whose port can't
+   signal arriving data are polled every POLL_MSEC milliseconds.
+*/
+class RemoteSerialPortSelector implements Runnable
+{
+    private static Logger _log4j =
+	Logger.getLogger(RemoteSerialPortSelector.class);
+
+    /** Polling interval for consoles that don't signal data */
+    static final int POLL_MSEC = 50;
+
+    private static RemoteSerialPortSelector _instance = null;
+
+    private Selector _selector;
+
+    /** Servers waiting to be registered with the selector */
+    private Vector _pending = new Vector();
+
+    /** Registered servers; accessed only by selector thread */
+    private Vector _sessions = new Vector();
+
+    private Thread _thread;
+
+
+    /** Return the selector thread, starting it on first use. */
+    static synchronized RemoteSerialPortSelector getInstance()
+	throws IOException
+    {
+	if (_instance == null)
+	{
+	    _instance = new RemoteSerialPortSelector();
+
+	    final RemoteSerialPortSelector selector = _instance;
+	    Metrics.gauge("remoteSerialPort.sessions", new Metrics.Gauge() {
+		    public long value() {
+			return selector.getSessionCount();
+		    }
+		});
+	}
+
+	return _instance;
+    }
+
+
+    private RemoteSerialPortSelector() throws IOException
+    {
+	_selector = Selector.open();
+
+	_thread = new Thread(this, "RemoteSerialPortSelector");
+	_thread.setDaemon(true);
+	_thread.start();
+    }
+
+
+    /** Add server's session to those serviced by the selector thread. */
+    void register(RemoteSerialPortServer server)
+    {
+	// Channels are registered by the selector thread, since register()
+	// blocks while the selector is in select()
+	_pending.add(server);
+	_selector.wakeup();
+    }
+
+
+    /** Wake the selector thread, e.g. when a session's instrument has
+	data or its server is shut down. */
+    void wakeup()
+    {
+	_selector.wakeup();
+    }
+
+
+    /** Return number of active sessions. */
+    int getSessionCount()
+    {
+	return _sessions.size() + _pending.size();
+    }
+
+
+    /** Service sessions until the node exits. */
+    public void run()
+    {
+	while (true)
+	{
+	    try
+	    {
+		registerPending();
+
+		_selector.select(selectTimeout(System.currentTimeMillis()));
+
+		Iterator it = _selector.selectedKeys().iterator();
+		while (it.hasNext())
+		{
+		    SelectionKey key = (SelectionKey)it.next();
+		    it.remove();
+
+		    RemoteSerialPortServer server =
+			(RemoteSerialPortServer)key.attachment();
+
+		    server.handleKey(key);
+		}
+
+		long now = System.currentTimeMillis();
+		for (int i = _sessions.size() - 1; i >= 0; i--)
+		{
+		    RemoteSerialPortServer server =
+			(RemoteSerialPortServer)_sessions.elementAt(i);
+
+		    if (!server.service(now))
+			_sessions.removeElementAt(i);
+		}
+	    }
+	    catch (Throwable e)
+	    {
+		// Sessions handle their own I/O errors; keep servicing the
+		// others
+		_log4j.error("run() - caught unexpected exception", e);
+	    }
+	}
+    }
+
+
+    /** Register channels of new servers. */
+    private void registerPending()
+    {
+	while (_pending.size() > 0)
+	{
+	    RemoteSerialPortServer server =
+		(RemoteSerialPortServer)_pending.remove(0);
+
+	    if (server.register(_selector, System.currentTimeMillis()))
+		_sessions.add(server);
+	}
+    }
+
+
+    /** Return time to wait in select(), until the next session deadline
+	or poll; 0 waits until woken. */
+    private long selectTimeout(long now)
+    {
+	long timeout = 0;
+
+	for (int i = 0; i < _sessions.size(); i++)
+	{
+	    RemoteSerialPortServer server =
+		(RemoteSerialPortServer)_sessions.elementAt(i);
+
+	    long wait = server.nextDeadline() - now;
+	    if (server.needsPolling() && wait > POLL_MSEC)
+		wait = POLL_MSEC;
+
+	    if (wait < 1)
+		wait = 1;
+
+	    if (timeout == 0 || wait < timeout)
+		timeout = wait;
+	}
+	return timeout;
+    }
+}
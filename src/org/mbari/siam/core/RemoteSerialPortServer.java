@@ -6,57 +6,79 @@
 package org.mbari.siam.core;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InterruptedIOException;
-import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 import org.mbari.siam.operations.utils.AnnotateService;
-import org.mbari.siam.utils.StopWatch;
 
 import org.mbari.siam.distributed.Instrument;
 import org.mbari.siam.distributed.RangeException;
 
-import org.apache.log4j.BasicConfigurator;
-import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Logger;
-import org.apache.log4j.PatternLayout;
-import org.apache.log4j.PropertyConfigurator;
-//import org.apache.log4j.net.SocketAppender;
 
 
 
-/** Base class for thread which implements remote control of serial port */
-public class RemoteSerialPortServer extends Thread 
+/** Remote control of an instrument's serial port: accepts one client 
+    connection, and bridges it to the instrument console until the client
+    disconnects, the session is idle for the server timeout, or the server
+    is shut down. Sessions don't have threads of their own; all are 
+    serviced by the RemoteSerialPortSelector thread. */
+public class RemoteSerialPortServer
 {
     private static Logger _log4j = 
 	Logger.getLogger(RemoteSerialPortServer.class);
 
+    ServerSocketChannel _serverChannel = null;
     ServerSocket _serverSocket = null;
+    SocketChannel _clientChannel = null;
     InstrumentConsole _instrumentConsole = null;
     DeviceService _deviceService = null;
     byte[] _annotationBuffer = new byte[AnnotateService.MAX_ANNOTATION_SIZE];
-    
-//testing out log4j
-//static Logger _logger = Logger.getLogger(RemoteSerialPortServer.class);
-
+    int _annotationByteCount = 0;
     
     //min and max server timeout values
     private static final int _MAX_TIMEOUT = 3600000; /* one hour */
     private static final int _MIN_TIMEOUT = 1000;    /* one second */
     
-    //maxim chars the server will send or recv on the socket at once
-    private static final int _SOCKET_WRITES_MAX = 32;
-    private static final int _SOCKET_READS_MAX = 32;
-
+    //maximum chars transferred between socket and instrument at once
+    private static final int _BUFFER_SIZE = 1024;
+
+    //session states
+    private static final int _CREATED = 0;
+    private static final int _ACCEPTING = 1;
+    private static final int _CONNECTED = 2;
+    private static final int _CLOSED = 3;
     
     //the server default timeout is one minute
     public static final int _DEFAULT_TIMEOUT = 60000; /* milliseconds */
     private int _serverTimeout = _DEFAULT_TIMEOUT; 
-    private boolean _shutdownRequest = false;
+    private volatile boolean _shutdownRequest = false;
+
+    private RemoteSerialPortSelector _selector = null;
+    private int _state = _CREATED;
+
+    //accept deadline, then time of last client input (milliseconds)
+    private long _timerStart = 0;
+
+    //true if the console signals data from the instrument
+    private boolean _eventDriven = false;
+    private volatile boolean _instrumentDataAvailable = false;
+
+    //instrument data not yet written to the socket
+    private ByteBuffer _toSocket = ByteBuffer.allocate(_BUFFER_SIZE);
+    private ByteBuffer _fromSocket = ByteBuffer.allocate(_BUFFER_SIZE);
+
+    private SelectionKey _clientKey = null;
+
+    private long _bytesToInstrument = 0;
+    private long _bytesFromInstrument = 0;
 
     public RemoteSerialPortServer(InstrumentPort instPort, int sockPort)
 	throws IOException {
@@ -87,15 +109,19 @@ public class RemoteSerialPortServer extends Thread
         throws IOException
     {
         //create the socket server
-        _serverSocket = new ServerSocket(sockPort);
+        _serverChannel = ServerSocketChannel.open();
+        _serverSocket = _serverChannel.socket();
+        _serverSocket.bind(new InetSocketAddress(sockPort));
+        _serverChannel.configureBlocking(false);
+
+        //no instrument output pending
+        _toSocket.limit(0);
 
         //create a new InstrumentConsole using instrument port
         _instrumentConsole = instPort.getInstrumentConsole();
         
         //get the device serivce reference
         _deviceService = deviceService;
-        
-//_logger.addAppender(new SocketAppender("babelfish.shore.mbari.org", 4445));
     }
 
     public int getServerPort()
@@ -129,164 +155,352 @@ public class RemoteSerialPortServer extends Thread
         _serverTimeout = timeout;
     }
 
+    /** Start waiting for a client connection. */
+    public void start() throws IOException
+    {
+        _selector = RemoteSerialPortSelector.getInstance();
+        _selector.register(this);
+    }
+
     public void shutdown()
     {
         _shutdownRequest = true;
+
+        if (_selector != null)
+            _selector.wakeup();
     }
 
-    /**
-       Wait for and accept new client connection.
-    */
-    public void run() 
+    /** Return number of bytes sent from the client to the instrument */
+    public synchronized long getBytesToInstrument()
     {
-	Socket clientSocket = null;
-        boolean socketConnected = false;
+        return _bytesToInstrument;
+    }
 
-	try 
-        {
-            _serverSocket.setSoTimeout(_serverTimeout);
-	    clientSocket = _serverSocket.accept();
-            socketConnected = true;
-	}
-        catch (InterruptedIOException e)
+    /** Return number of bytes sent from the instrument to the client */
+    public synchronized long getBytesFromInstrument()
+    {
+        return _bytesFromInstrument;
+    }
+
+    /** Return true until the session has ended */
+    public synchronized boolean isActive()
+    {
+        return _state != _CLOSED;
+    }
+
+
+    /** Register server socket with selector; called by selector 
+        thread. Returns false if the session is already over. */
+    synchronized boolean register(Selector selector, long now)
+    {
+        try 
         {
-            _log4j.error("RemoteSerialPortServer shutting down, " +
-                               "timed out waiting for client: " + e);
+            _serverChannel.register(selector, SelectionKey.OP_ACCEPT, this);
+            _state = _ACCEPTING;
+            _timerStart = now;
+            return true;
         }
         catch (IOException e)
         {
             _log4j.error("RemoteSerialPortServer shutting down, " +
-                               "got unexpected IOException while waiting " + 
-                               " for client: " + e);
+                         "got unexpected IOException while waiting " + 
+                         " for client: " + e);
+            close(true, false);
+            return false;
         }
-        finally
+    }
+
+
+    /** Return true if the instrument console must be polled for data */
+    boolean needsPolling()
+    {
+        return _state == _CONNECTED && !_eventDriven;
+    }
+
+
+    /** Return time at which session times out */
+    long nextDeadline()
+    {
+        return _timerStart + _serverTimeout;
+    }
+
+
+    /** Handle selected key of the server or client socket; called by
+        selector thread. */
+    void handleKey(SelectionKey key)
+    {
+        if (_state == _CLOSED)
+            return;
+
+        try 
         {
-            if ( !socketConnected )
-            {
-                if ( _deviceService != null)
-                    _deviceService.resume();
+            if (key.isValid() && key.isAcceptable())
+                accept(key);
 
-                return;
+            if (_state == _CONNECTED && key.isValid() && key.isReadable())
+                readSocket();
+
+            if (_state == _CONNECTED && key.isValid() && key.isWritable() &&
+                writeSocket())
+            {
+                //catch up on instrument output held back while the 
+                //socket was full
+                _instrumentDataAvailable = true;
             }
         }
+        catch (IOException e) 
+        {
+            _log4j.error("RemoteSerialPortServer shutting down, " +
+                         "got unexpected IOException: " + e);
+            close(false, false);
+        }
+    }
+
+
+    /** Check for timeouts and shutdown, and pass instrument output to
+        client; called by selector thread. Returns false once the 
+        session has ended. */
+    boolean service(long now)
+    {
+        if (_state == _CLOSED)
+            return false;
+
+        if (_shutdownRequest)
+        {
+            _log4j.debug("RemoteSerialPortServer shutting " +
+                         "down");
+            close(false, _state == _CONNECTED);
+            return false;
+        }
+
+        if (now - _timerStart > _serverTimeout)
+        {
+            if (_state == _ACCEPTING)
+                _log4j.error("RemoteSerialPortServer shutting down, " +
+                             "timed out waiting for client");
+            else
+                _log4j.error("RemoteSerialPortServer shutting " +
+                             "down, in activity timeout");
+
+            close(true, _state == _CONNECTED);
+            return false;
+        }
+
+        if (_state != _CONNECTED)
+            return true;
 
-        int annotationByteCount = 0;
         try 
         {
-            OutputStream os = clientSocket.getOutputStream();
-	    InputStream is = clientSocket.getInputStream();
+            readInstrument();
+        }
+        catch (IOException e) 
+        {
+            _log4j.error("RemoteSerialPortServer shutting down, " +
+                         "got unexpected IOException: " + e);
+            close(false, false);
+            return false;
+        }
+        return true;
+    }
+
 
-            int socketWrites = 0;
-            int socketReads = 0;
+    /** Accept the client, and stop listening for others. */
+    private void accept(SelectionKey key) throws IOException
+    {
+        SocketChannel channel = _serverChannel.accept();
+        if (channel == null)
+            return;
 
-	    int c;
-            
-            //create a running stop watch to time the session
-            StopWatch sessionTimer = new StopWatch(true);
+        key.cancel();
+        _serverChannel.close();
 
-	    for (;;) 
-            {
-                //if available read chars and push'em out
-                socketWrites = 0;
-                while ( _instrumentConsole.available() > 0 )
-                {
-                    os.write(_instrumentConsole.read());
-                    
-                    //only send _SOCKET_WRITES_MAX chars before checking for 
-                    //socket input
-                    if ( ++socketWrites >= _SOCKET_WRITES_MAX)
-                        break;
-                }
+        channel.configureBlocking(false);
+        _clientKey = channel.register(key.selector(), SelectionKey.OP_READ, 
+                                      this);
+        _clientChannel = channel;
 
-// This request is disabled, because DEBUG < INFO.
-//if ( socketWrites > 0)
-//    _logger.debug("sockWrites = " + socketWrites);
-
-                //if you got chars giv'em to the instrument
-                socketReads = 0;
-                while ( is.available() > 0) 
-                {
-                    //get a char from the input stream
-                    c = is.read();
-                    
-                    //put a byte in the annotation buffer if there is room
-                    if ( annotationByteCount < _annotationBuffer.length)
-                        _annotationBuffer[annotationByteCount++] = (byte)c;
-                    
-                    _instrumentConsole.write(c);
-                    //if the user uses the console clear the session timer
-                    sessionTimer.clear();
-
-                    //only recv _SOCKET_READS_MAX chars before checking 
-                    //for sock writes
-                    if ( ++socketReads >= _SOCKET_READS_MAX)
-                        break;
+        _eventDriven = _instrumentConsole.setDataAvailableListener(new Runnable() {
+                public void run() {
+                    _instrumentDataAvailable = true;
+                    _selector.wakeup();
                 }
-                
-                //if StopWatch expires kill the thread
-                if (sessionTimer.read() > _serverTimeout) 
-                {
-                    _log4j.error("RemoteSerialPortServer shutting " +
-                                       "down, in activity timeout");
+            });
 
-                    if ( _deviceService != null)
-                        _deviceService.resume();
+        _instrumentDataAvailable = true;
+        _timerStart = System.currentTimeMillis();
 
-                    break;
-                }
-                
-                //if StopWatch expires kill the thread
-                if (_shutdownRequest) 
-                {
-                    _log4j.debug("RemoteSerialPortServer shutting " +
-                                         "down");
-                    break;
-                }
-	    }
-	}
-	catch (IOException e) 
+        synchronized (this) 
         {
-            _log4j.error("RemoteSerialPortServer shutting down, " +
-                               "got unexpected IOException: " + e);
+            _state = _CONNECTED;
+        }
+    }
+
+
+    /** Pass client input to instrument */
+    private void readSocket() throws IOException
+    {
+        _fromSocket.clear();
+        int n = _clientChannel.read(_fromSocket);
+        if (n < 0)
+        {
+            _log4j.info("RemoteSerialPortServer shutting down, " +
+                        "client disconnected");
+            close(true, true);
             return;
-	
         }
-        finally
+        if (n == 0)
+            return;
+
+        byte[] b = _fromSocket.array();
+
+        //put bytes in the annotation buffer if there is room
+        int nAnnotate = Math.min(n, _annotationBuffer.length - 
+                                 _annotationByteCount);
+        System.arraycopy(b, 0, _annotationBuffer, _annotationByteCount, 
+                         nAnnotate);
+        _annotationByteCount += nAnnotate;
+
+        _instrumentConsole.write(b, 0, n);
+
+        //if the user uses the console clear the session timer
+        _timerStart = System.currentTimeMillis();
+
+        synchronized (this) 
+        {
+            _bytesToInstrument += n;
+        }
+    }
+
+
+    /** Pass instrument output to client, until the instrument has no 
+        more or the socket can't take more */
+    private void readInstrument() throws IOException
+    {
+        //wait for socket to take pending output
+        if (_toSocket.hasRemaining())
+            return;
+
+        if (_eventDriven && !_instrumentDataAvailable)
+            return;
+
+        //clear flag before reading, so that an event can't be missed
+        _instrumentDataAvailable = false;
+
+        for (;;)
         {
-            
-// simple info test
-//_logger.info("RemoteSerialPortServer " + this + " shutting down");
-
-            try 
-            { 
-                clientSocket.close(); 
-            } 
-            catch (Exception e) 
-            { 
-                
+            int n = Math.min(_instrumentConsole.available(), _BUFFER_SIZE);
+            if (n <= 0)
+                return;
+
+            n = _instrumentConsole.read(_toSocket.array(), 0, n);
+            if (n <= 0)
+                return;
+
+            _toSocket.clear();
+            _toSocket.limit(n);
+
+            synchronized (this) 
+            {
+                _bytesFromInstrument += n;
             }
+
+            if (!writeSocket())
+                return;
         }
+    }
 
-        
-        //if it's an InstrumentSerivce, annotate the port
-        if ( _deviceService instanceof Instrument )
+
+    /** Write pending instrument output to client; returns true if all 
+        was written, else has the selector wait for the socket to become
+        writable. */
+    private boolean writeSocket() throws IOException
+    {
+        _clientChannel.write(_toSocket);
+
+        if (_toSocket.hasRemaining())
+        {
+            _clientKey.interestOps(SelectionKey.OP_READ | 
+                                   SelectionKey.OP_WRITE);
+            return false;
+        }
+
+        _clientKey.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+
+    /** End the session. Resuming the service and annotating the 
+        instrument with the client's input are done in a separate 
+        thread, so they don't hold up other sessions. */
+    private void close(final boolean resume, boolean annotate)
+    {
+        synchronized (this) 
         {
-            // create a byte buffer the exact same size as the number 
-	    // of annotation bytes
-            byte[] b = new byte[annotationByteCount];
+            if (_state == _CLOSED)
+                return;
 
-            for (int i = 0; i < annotationByteCount; ++i)
-                b[i] = _annotationBuffer[i];
+            _state = _CLOSED;
+        }
 
-            Instrument instrument = (Instrument)_deviceService;
+        if (_clientChannel != null)
+            _instrumentConsole.setDataAvailableListener(null);
 
-	    try {
-		instrument.annotate(b);
-	    }
-	    catch (Exception e) {
-		_log4j.error(e);
-	    }
+        try 
+        { 
+            _serverChannel.close(); 
+        } 
+        catch (Exception e) 
+        { 
         }
+
+        try 
+        { 
+            if (_clientChannel != null)
+                _clientChannel.close(); 
+        } 
+        catch (Exception e) 
+        { 
+        }
+
+        _log4j.debug("RemoteSerialPortServer closed; " +
+                     getBytesToInstrument() + " bytes to instrument, " +
+                     getBytesFromInstrument() + " bytes from instrument");
+
+        final boolean annotateInstrument = 
+            annotate && (_deviceService instanceof Instrument);
+
+        if ((!resume || _deviceService == null) && !annotateInstrument)
+            return;
+
+        new Thread("RemoteSerialPortServer-close") {
+            public void run() {
+                if (resume && _deviceService != null)
+                    _deviceService.resume();
+
+                //if it's an InstrumentSerivce, annotate the port
+                if (annotateInstrument)
+                    annotate();
+            }
+        }.start();
     }
-}
 
+
+    /** Annotate instrument with client's input */
+    private void annotate()
+    {
+        // create a byte buffer the exact same size as the number 
+        // of annotation bytes
+        byte[] b = new byte[_annotationByteCount];
+
+        System.arraycopy(_annotationBuffer, 0, b, 0, _annotationByteCount);
+
+        Instrument instrument = (Instrument)_deviceService;
+
+        try {
+            instrument.annotate(b);
+        }
+        catch (Exception e) {
+            _log4j.error(e);
+        }
+    }
+}
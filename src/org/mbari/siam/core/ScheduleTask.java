@@ -417,7 +417,7 @@ public abstract class ScheduleTask implements Schedulable{
     /** Calculate time remaining to next scheduled execution */
     public long timeRemaining(){
 	if(isAbsolute())
-	    return timeRemaining(Scheduler.MAX_LOOKAHEAD_SEC);
+	    return timeRemaining(Scheduler.MAX_TIMER_LOOKAHEAD_SEC);
 	else
 	    return timeRemaining(0L);
     }
@@ -457,30 +457,32 @@ public abstract class ScheduleTask implements Schedulable{
 
 	if(isAbsolute()==true){
 	    // Look ahead lookAhead seconds to see when the
-	    // next run time occurs. If not found, then
-	    // schedule another check then.
-	    _readyAction=CHECK_TIME;
-
-	    // get calendar with selected timezone
-	    // and currentTime
-	    Calendar cal = getEntryTime();
-	    long now = cal.getTime().getTime();
-
-	    for(long i=0;i<lookAheadSeconds;i++){
-		cal.add(Calendar.SECOND,1);
-		if(isSelectedTime(cal)==true){
-		    _readyAction=RUN;
-		    break;
-		}
-	    }
-
-	    // compute time until next selected time
-	    remaining=cal.getTime().getTime()-now;
+	    // next run time occurs; if not found, report the
+	    // end of the look-ahead.
+	    remaining=absoluteTimeRemaining(lookAheadSeconds);
+	    if(remaining<0L)
+		remaining=lookAheadSeconds*1000L;
 	}
 
 	return remaining;
     }
 
+    /** Return time (ms) until next selected time of absolute schedule,
+	looking ahead at most lookAheadSeconds; -1 if none */
+    long absoluteTimeRemaining(long lookAheadSeconds){
+
+	// get calendar with selected timezone
+	// and currentTime
+	Calendar cal = getEntryTime();
+	long now = cal.getTime().getTime();
+
+	long next=_scheduleSpecifier.nextSelectedTime(cal,lookAheadSeconds);
+	if(next<0L)
+	    return -1L;
+
+	return next-now;
+    }
+
     /** "Sync"* this scheduler entry after the specified delay.
 	For relative schedules, waits delay ms and runs with 
 	it's original period from that point forward.
@@ -550,6 +552,15 @@ public abstract class ScheduleTask implements Schedulable{
 
 	if(_state==EXECUTING || _state==SUSPENDED || _state==COUNTER_EXPIRED)
 	    return;
+
+	// No more runs once the cycle counter has expired
+	if(getLongCycles()==0L){
+	    _log4j.debug("Cycle counter expired for "+get(ScheduleSpecifier.JOB));
+	    cancelTimer();
+	    setState(COUNTER_EXPIRED);
+	    return;
+	}
+
 	if(isAbsolute()){
 	    // Should the cancel be moved down to right after
 	    // the scheduling of the new timer? there may be 
@@ -557,9 +568,16 @@ public abstract class ScheduleTask implements Schedulable{
 	    // a long time...
 	    SiamTimer timerSave = _timer;
 	    setTimer(new SiamTimer());
-	    long remaining=0L;
-	    while(remaining<=0L)
-		remaining=timeRemaining();
+
+	    // Set timer for next run; if there is none in sight, 
+	    // schedule another check instead
+	    long remaining=absoluteTimeRemaining(Scheduler.MAX_TIMER_LOOKAHEAD_SEC);
+	    if(remaining>0L){
+		_readyAction=RUN;
+	    }else{
+		_readyAction=CHECK_TIME;
+		remaining=Scheduler.MAX_LOOKAHEAD_SEC*1000L;
+	    }
 	    SiamTimerTask t = new ScheduleTimerTask(this);
 	    setTimerTask(t);
 	    getTimer().schedule(t,remaining);
@@ -69,6 +69,11 @@ public class Scheduler{
     /** Max seconds to look ahead for next absolute event */
     public static final long MAX_LOOKAHEAD_SEC=3600;
 
+    /** Maximum time ahead (sec) that an absolute schedule's timer is set
+	for its next run; if it has none, its timer checks again after
+	MAX_LOOKAHEAD_SEC */
+    public static final long MAX_TIMER_LOOKAHEAD_SEC=4L*366L*86400L;
+
     // Data Members
     public static long _nextKey=1L;
 
@@ -220,7 +225,7 @@ public class Scheduler{
 
     /** Show all schedules  */
     public String showSchedule(long lookAheadSeconds){
-	return showSchedule(null,Scheduler.MAX_LOOKAHEAD_SEC);
+	return showSchedule(null,lookAheadSeconds);
     }
 
 
@@ -250,9 +255,9 @@ public class Scheduler{
 	}
     }
 
-    /** Get next Scheduled job */
+    /** Get time (ms) until next Scheduled job runs */
     public long getNextScheduledJob(){
-	return getNextScheduledJob(MAX_LOOKAHEAD_SEC);
+	return getNextScheduledJob(MAX_TIMER_LOOKAHEAD_SEC);
     }
 
     /** Get next Scheduled job */
@@ -0,0 +1,188 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import org.apache.log4j.Logger;
+
+import org.mbari.siam.distributed.SensorDataPacket;
+import org.mbari.siam.utils.BufferPool;
+
+/**
+   SensorDataPacketPool holds reusable SensorDataPackets for an instrument
+   service, so that its sampling loop needn't allocate a packet and data
+   buffer for every sample.
+   <p>
+   Packets are reference counted. acquire() returns a free packet with a
+   count of one; each other holder of the packet (a data listener queue,
+   the log writer, an event dispatcher, the service's "last sample")
+   calls retain() when it takes the packet and release() when it is done
+   with it. When the count drops to zero the packet is free, and the next
+   acquire() may refill it, so a holder must not use a packet after
+   releasing it.
+   <p>
+   If every pooled packet is in use the pool grows, up to its maximum
+   size; beyond that acquire() returns an unpooled packet, for which
+   retain() and release() do nothing.
+*/
+public class SensorDataPacketPool {
+
+    static private Logger _log4j = Logger.getLogger(SensorDataPacketPool.class);
+
+    /** Default maximum number of pooled packets */
+    public static final int DEFAULT_MAX_PACKETS = 8;
+
+    /** Log every LOG_MODULUS-th unpooled packet */
+    static final int LOG_MODULUS = 100;
+
+    private long _sourceID;
+
+    private SensorDataPacket[] _packets;
+    private int[] _refCounts;
+
+    /** Data buffer of each pooled packet, as set by setData() */
+    private byte[][] _buffers;
+
+    /** Number of packets created so far */
+    private int _nPackets = 0;
+
+    /** Number of acquire() calls that returned an unpooled packet */
+    private long _nMisses = 0;
+
+
+    /** Create pool of up to maxPackets packets from specified source. */
+    public SensorDataPacketPool(long sourceID, int maxPackets) {
+	if (maxPackets < 1) {
+	    maxPackets = 1;
+	}
+	_sourceID = sourceID;
+	_packets = new SensorDataPacket[maxPackets];
+	_refCounts = new int[maxPackets];
+	_buffers = new byte[maxPackets][];
+    }
+
+
+    /** Return a free packet, with reference count of one. Its contents
+	are those of the last sample it held. */
+    public synchronized SensorDataPacket acquire() {
+
+	for (int i = 0; i < _nPackets; i++) {
+	    if (_refCounts[i] == 0) {
+		_refCounts[i] = 1;
+		return _packets[i];
+	    }
+	}
+
+	if (_nPackets < _packets.length) {
+	    SensorDataPacket packet = new SensorDataPacket(_sourceID, 0);
+	    _packets[_nPackets] = packet;
+	    _refCounts[_nPackets] = 1;
+	    _nPackets++;
+	    return packet;
+	}
+
+	if ((_nMisses++ % LOG_MODULUS) == 0) {
+	    _log4j.warn("acquire(): all " + _nPackets +
+			" packets in use; allocating (" + _nMisses +
+			" so far)");
+	}
+	return new SensorDataPacket(_sourceID, 0);
+    }
+
+
+    /** Add a reference to packet. */
+    public synchronized void retain(SensorDataPacket packet) {
+	int i = indexOf(packet);
+	if (i >= 0) {
+	    _refCounts[i]++;
+	}
+    }
+
+
+    /** Remove a reference to packet; the packet is returned to the pool
+	when its last reference is removed. Null is ignored. */
+    public synchronized void release(SensorDataPacket packet) {
+	int i = indexOf(packet);
+	if (i < 0) {
+	    return;
+	}
+	if (_refCounts[i] <= 0) {
+	    _log4j.error("release(): packet already released");
+	    return;
+	}
+	_refCounts[i]--;
+    }
+
+
+    /** Set packet's data to the first nBytes bytes of sample. The
+	packet's data buffer is replaced (from the shared BufferPool) only
+	if its length differs from nBytes. */
+    public void setData(SensorDataPacket packet, byte[] sample, int nBytes) {
+
+	byte[] buffer;
+
+	synchronized (this) {
+	    int i = indexOf(packet);
+	    if (i < 0) {
+		buffer = new byte[nBytes];
+	    }
+	    else {
+		if (_buffers[i] == null || _buffers[i].length != nBytes) {
+		    BufferPool pool = BufferPool.getInstance();
+		    pool.release(_buffers[i]);
+		    _buffers[i] = pool.get(nBytes);
+		}
+		buffer = _buffers[i];
+	    }
+	}
+	System.arraycopy(sample, 0, buffer, 0, nBytes);
+	packet.setDataBuffer(buffer);
+    }
+
+
+    /** Return true if packet belongs to this pool. */
+    public synchronized boolean contains(SensorDataPacket packet) {
+	return indexOf(packet) >= 0;
+    }
+
+
+    /** Return number of packets created by the pool. */
+    public synchronized int size() {
+	return _nPackets;
+    }
+
+
+    /** Return number of pooled packets currently in use. */
+    public synchronized int inUse() {
+	int n = 0;
+	for (int i = 0; i < _nPackets; i++) {
+	    if (_refCounts[i] > 0) {
+		n++;
+	    }
+	}
+	return n;
+    }
+
+
+    /** Return number of unpooled packets allocated because the pool
+	was exhausted. */
+    public synchronized long getMisses() {
+	return _nMisses;
+    }
+
+
+    /** Return index of pooled packet, or -1 if packet isn't pooled. */
+    private int indexOf(SensorDataPacket packet) {
+	if (packet == null) {
+	    return -1;
+	}
+	for (int i = 0; i < _nPackets; i++) {
+	    if (_packets[i] == packet) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+}
@@ -2,6 +2,8 @@
 package org.mbari.siam.core;
 
 import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
 import gnu.io.CommPortIdentifier;
 import gnu.io.UnsupportedCommOperationException;
 
@@ -37,6 +39,9 @@ public class SerialInstrumentPort
 
     protected InstrumentPortInputStream _fromInstrument = null;
     protected InstrumentPortOutputStream _toInstrument = null;
+
+    /** Serial port on which data available events are enabled, if any */
+    private SerialPort _listenedPort = null;
     
     /** create a SerialInstrumentPort. Note that we pass in the
      serial port name in addition to the serial port object, since
@@ -101,6 +106,8 @@ public class SerialInstrumentPort
         {
             throw new InitializeException("getInputStream() failure: " + e);
         }
+
+	enableDataAvailableEvents();
         
         try {
             _toInstrument = 
@@ -135,6 +142,43 @@ public class SerialInstrumentPort
 	super.shutDown();
 	_serialPort.close();
 	_serialOpen = false;
+	_listenedPort = null;
+    }
+
+
+    /** Have the serial port signal arriving data to the input stream, 
+	so that readers block instead of polling. If the port doesn't 
+	support events, the input stream polls. */
+    protected void enableDataAvailableEvents()
+    {
+	if (_listenedPort != _serialPort) {
+	    boolean added = false;
+	    try {
+		_serialPort.addEventListener(new SerialPortEventListener() {
+			public void serialEvent(SerialPortEvent event) {
+			    InstrumentPortInputStream input = _fromInstrument;
+			    if (event.getEventType() == 
+				SerialPortEvent.DATA_AVAILABLE &&
+				input != null) {
+				input.dataAvailable();
+			    }
+			}
+		    });
+		added = true;
+		_serialPort.notifyOnDataAvailable(true);
+		_listenedPort = _serialPort;
+	    }
+	    catch (Exception e) {
+		_log4j.debug("enableDataAvailableEvents() - " + 
+			     _serialPortName + " will be polled: " + e);
+		if (added) {
+		    _serialPort.removeEventListener();
+		}
+		_listenedPort = null;
+	    }
+	}
+
+	_fromInstrument.setEventDriven(_listenedPort == _serialPort);
     }
     
 
@@ -0,0 +1,266 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.log4j.Logger;
+
+import org.mbari.puck.Puck;
+import org.mbari.siam.utils.ByteUtility;
+import org.mbari.siam.utils.PuckUtils;
+
+/**
+   ServiceJarCache keeps service jars read from PUCK payloads in one
+   node-wide directory, named by the MD5 checksum of their contents. A
+   port whose sandbox is out of date copies the jar from the cache if it
+   is there, so that an instrument moved to another port (or an identical
+   instrument) needn't have its payload read again over the PUCK's serial
+   link.
+   <p>
+   Jars are verified against their checksum as they are read from the
+   PUCK, and again when they are taken from the cache. When the cache
+   exceeds its size limit, the least recently used jars are removed.
+*/
+public class ServiceJarCache {
+
+    static private Logger _log4j = Logger.getLogger(ServiceJarCache.class);
+
+    /** Default maximum total size (bytes) of cached jars */
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    static final String JAR_SUFFIX = ".jar";
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private File _directory;
+    private long _maxBytes;
+
+    private long _hits = 0;
+    private long _misses = 0;
+
+
+    /** Create cache in specified directory, holding at most maxBytes of
+	jars. */
+    public ServiceJarCache(String directory, long maxBytes)
+	throws IOException {
+
+	_directory = new File(directory);
+	_maxBytes = maxBytes;
+
+	if (!_directory.exists() && !_directory.mkdirs()) {
+	    throw new IOException("failed to create directory " + directory);
+	}
+
+	// Remove jars left partly written
+	File[] files = _directory.listFiles();
+	for (int i = 0; files != null && i < files.length; i++) {
+	    if (files[i].getName().endsWith(TEMP_SUFFIX)) {
+		files[i].delete();
+	    }
+	}
+    }
+
+
+    /** Return cached jar with specified MD5 checksum, or null if it isn't
+	cached (or is corrupt). */
+    public synchronized File get(byte[] md5) {
+
+	File jar = entryFile(md5);
+	if (!jar.exists()) {
+	    _misses++;
+	    return null;
+	}
+
+	try {
+	    if (!MessageDigest.isEqual(md5, checksum(jar))) {
+		_log4j.error("get() - " + jar + " is corrupt; removing it");
+		jar.delete();
+		_misses++;
+		return null;
+	    }
+	}
+	catch (Exception e) {
+	    _log4j.error("get() - couldn't verify " + jar + ": " + e);
+	    _misses++;
+	    return null;
+	}
+
+	// Mark as recently used
+	jar.setLastModified(System.currentTimeMillis());
+	_hits++;
+	return jar;
+    }
+
+
+    /** Return jar with specified MD5 checksum, reading the SIAM payload
+	from puck into the cache if it isn't already cached. */
+    public File load(Puck puck, byte[] md5) throws IOException, Exception {
+
+	File jar = get(md5);
+	if (jar != null) {
+	    _log4j.info("load() - using cached jar " + jar.getName());
+	    return jar;
+	}
+
+	// Read payload outside lock, so that other ports can use the cache
+	File temp = new File(_directory,
+			     ByteUtility.bytesToHexString(md5) + "-" +
+			     System.identityHashCode(Thread.currentThread()) +
+			     TEMP_SUFFIX);
+
+	OutputStream output = new FileOutputStream(temp);
+	try {
+	    byte[] checksum = PuckUtils.readSiamPayload(puck, output);
+	    output.close();
+	    output = null;
+
+	    if (!MessageDigest.isEqual(md5, checksum)) {
+		throw new IOException("payload checksum 0x" +
+				      ByteUtility.bytesToHexString(checksum) +
+				      " doesn't match expected 0x" +
+				      ByteUtility.bytesToHexString(md5));
+	    }
+
+	    synchronized (this) {
+		jar = entryFile(md5);
+		if (!temp.renameTo(jar) && !jar.exists()) {
+		    throw new IOException("couldn't rename " + temp +
+					  " to " + jar);
+		}
+		evict(jar);
+	    }
+	}
+	finally {
+	    if (output != null) {
+		output.close();
+	    }
+	    temp.delete();
+	}
+
+	_log4j.info("load() - cached payload as " + jar.getName());
+	return jar;
+    }
+
+
+    /** Return number of lookups that found a valid cached jar. */
+    public synchronized long getHits() {
+	return _hits;
+    }
+
+
+    /** Return number of lookups that didn't find a cached jar. */
+    public synchronized long getMisses() {
+	return _misses;
+    }
+
+
+    /** Return total size (bytes) of cached jars. */
+    public synchronized long getBytes() {
+	long bytes = 0;
+	File[] jars = listJars();
+	for (int i = 0; i < jars.length; i++) {
+	    bytes += jars[i].length();
+	}
+	return bytes;
+    }
+
+
+    /** Return MD5 checksum of file's contents. */
+    public static byte[] checksum(File file)
+	throws IOException, NoSuchAlgorithmException {
+
+	InputStream input = new FileInputStream(file);
+	try {
+	    return checksum(input);
+	}
+	finally {
+	    input.close();
+	}
+    }
+
+
+    /** Return MD5 checksum of the rest of input; input isn't closed. */
+    public static byte[] checksum(InputStream input)
+	throws IOException, NoSuchAlgorithmException {
+
+	MessageDigest digest = MessageDigest.getInstance("MD5");
+	byte[] buffer = new byte[4096];
+	int nBytes;
+	while ((nBytes = input.read(buffer)) > 0) {
+	    digest.update(buffer, 0, nBytes);
+	}
+	return digest.digest();
+    }
+
+
+    /** Remove least recently used jars, other than keep, until the cache
+	is within its size limit. */
+    private void evict(File keep) {
+
+	File[] jars = listJars();
+	long bytes = 0;
+	for (int i = 0; i < jars.length; i++) {
+	    bytes += jars[i].length();
+	}
+
+	while (bytes > _maxBytes) {
+	    File oldest = null;
+	    for (int i = 0; i < jars.length; i++) {
+		if (jars[i] == null || jars[i].equals(keep)) {
+		    continue;
+		}
+		if (oldest == null ||
+		    jars[i].lastModified() < oldest.lastModified()) {
+		    oldest = jars[i];
+		}
+	    }
+	    if (oldest == null) {
+		break;
+	    }
+
+	    _log4j.info("evict() - removing " + oldest.getName());
+	    bytes -= oldest.length();
+	    oldest.delete();
+	    for (int i = 0; i < jars.length; i++) {
+		if (jars[i] == oldest) {
+		    jars[i] = null;
+		}
+	    }
+	}
+    }
+
+
+    /** Return cached jar files. */
+    private File[] listJars() {
+	File[] files = _directory.listFiles();
+	if (files == null) {
+	    return new File[0];
+	}
+	int n = 0;
+	for (int i = 0; i < files.length; i++) {
+	    if (files[i].getName().endsWith(JAR_SUFFIX)) {
+		files[n++] = files[i];
+	    }
+	}
+	File[] jars = new File[n];
+	System.arraycopy(files, 0, jars, 0, n);
+	return jars;
+    }
+
+
+    /** Return cache file for jar with specified MD5 checksum. */
+    private File entryFile(byte[] md5) {
+	return new File(_directory,
+			ByteUtility.bytesToHexString(md5) + JAR_SUFFIX);
+    }
+}
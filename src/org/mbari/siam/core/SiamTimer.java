@@ -8,11 +8,15 @@
  * 
  */
 
+
 package org.mbari.siam.core;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.Vector;
 
+import edu.emory.mathcs.backport.java.util.concurrent.ExecutorService;
+import edu.emory.mathcs.backport.java.util.concurrent.Executors;
+import edu.emory.mathcs.backport.java.util.concurrent.ThreadFactory;
+
 import org.apache.log4j.Logger;
 
 /**
@@ -20,28 +24,24 @@ import org.apache.log4j.Logger;
  * background thread.  Tasks may be scheduled for one-time execution, or for
  * repeated execution at regular intervals.
  *
- * <p>Corresponding to each <tt>Timer</tt> object is a single background
- * thread that is used to execute all of the timer's tasks, sequentially.
- * Timer tasks should complete quickly.  If a timer task takes excessive time
- * to complete, it "hogs" the timer's task execution thread.  This can, in
- * turn, delay the execution of subsequent tasks, which may "bunch up" and
- * execute in rapid succession when (and if) the offending task finally
- * completes.
+ * <p>Each <tt>Timer</tt> executes its tasks sequentially.  Timer tasks
+ * should complete quickly.  If a timer task takes excessive time to
+ * complete, it delays the execution of the timer's subsequent tasks, which
+ * may "bunch up" and execute in rapid succession when (and if) the
+ * offending task finally completes.
  *
- * <p>After the last live reference to a <tt>Timer</tt> object goes away
- * <i>and</i> all outstanding tasks have completed execution, the timer's task
- * execution thread terminates gracefully (and becomes subject to garbage
- * collection).  However, this can take arbitrarily long to occur.  By
- * default, the task execution thread does not run as a <i>daemon thread</i>,
- * so it is capable of keeping an application from terminating.  If a caller
- * wants to terminate a timer's task execution thread rapidly, the caller
- * should invoke the the timer's <tt>cancel</tt> method.
+ * <p>Timers don't have threads of their own: one dispatcher thread waits
+ * for the next task of any timer to fire, and fired tasks run on a pool of
+ * worker threads, which grows only with the number of tasks running at
+ * once.  So creating a timer is cheap, and a node's thread count doesn't
+ * grow with its schedules and leases.  While its tasks run, the worker
+ * thread takes the timer's name (see <tt>setThreadName()</tt>).
  *
- * <p>If the timer's task execution thread terminates unexpectedly, for
- * example, because its <tt>stop</tt> method is invoked, any further
+ * <p>By default a timer with scheduled or running tasks keeps the
+ * application from terminating, as a timer's non-daemon thread used to. If
+ * a timer task throws an exception, the timer is cancelled, and any further
  * attempt to schedule a task on the timer will result in an
- * <tt>IllegalStateException</tt>, as if the timer's <tt>cancel</tt>
- * method had been invoked.
+ * <tt>IllegalStateException</tt>.
  *
  * <p>This class is thread-safe: multiple threads can share a single
  * <tt>Timer</tt> object without the need for external synchronization.
@@ -62,71 +62,71 @@ import org.apache.log4j.Logger;
  * <p>Modified for SIAM by Bob Herlien, 7/1/2003.  Renamed to SiamTimer
  * (from java.utils.Timer), include it in package org.mbari.siam.core, and added
  * method forceNotify() to fix the problem with the CPU going to sleep.
+ * <p>Timers share one dispatcher thread and a worker pool (see
+ * TimerDispatcher).
  */
 
+
 public class SiamTimer {
-    /**
-     * The timer task queue.  This data structure is shared with the timer
-     * thread.  The timer produces tasks, via its various schedule calls,
-     * and the timer thread consumes, executing timer tasks as appropriate,
-     * and removing them from the queue when they're obsolete.
-     */
-    private TaskQueue queue = new TaskQueue();
     private static Logger _log4j = Logger.getLogger(SiamTimer.class);
 
     /**
-     * The timer thread.
+     * The timer task queue.  The timer produces tasks, via its various
+     * schedule calls, and the dispatcher consumes them, executing timer 
+     * tasks as appropriate, and removing them from the queue when they're
+     * obsolete.  Protected by TimerDispatcher.lock, as are the fields
+     * below.
      */
-    private TimerThread thread;
+    TaskQueue queue = new TaskQueue();
 
     /**
-     * This object causes the timer's task execution thread to exit
-     * gracefully when there are no live references to the Timer object and no
-     * tasks in the timer queue.  It is used in preference to a finalizer on
-     * Timer as such a finalizer would be susceptible to a subclass's
-     * finalizer forgetting to call it.
+     * False once the timer has been cancelled (or one of its tasks has
+     * failed); no more tasks may then be scheduled.
      */
-    private Object threadReaper = new Object() {
-        protected void finalize() throws Throwable {
-            synchronized(queue) {
-                thread.newTasksMayBeScheduled = false;
-                queue.notify(); // In case queue is empty.
-            }
-        }
-    };
+    boolean newTasksMayBeScheduled = true;
 
-    /**
-     * We maintain a static vector of all SiamTimers created, in order
-     * to recalculate the scheduled execution times on every CPU power cycle */
-    private static Vector _allTimers = new Vector();
+    /** Task being executed, or null */
+    SiamTimerTask runningTask = null;
+
+    /** Position of timer in dispatcher's heap; 0 if not in heap */
+    int heapIndex = 0;
+
+    /** True if timer is counted as keeping the application alive */
+    boolean keepsAlive = false;
+
+    /** True if timer should not prolong the life of the application */
+    private boolean _isDaemon;
+
+    /** Name of thread while it runs the timer's tasks */
+    private String _name;
+
+    private static int _nTimers = 0;
 
     /**
-     * Creates a new timer.  The associated thread does <i>not</i> run as
-     * a daemon.
+     * Creates a new timer, which does <i>not</i> run as a daemon.
      *
-     * @see Thread
      * @see #cancel()
      */
     public SiamTimer() {
-	thread = new TimerThread(queue, this);
-        thread.start();
+	this(false);
     }
 
     /**
-     * Creates a new timer whose associated thread may be specified to 
-     * run as a daemon.  A deamon thread is called for if the timer will
-     * be used to schedule repeating "maintenance activities", which must
-     * be performed as long as the application is running, but should not
-     * prolong the lifetime of the application.
+     * Creates a new timer which may be specified to run as a daemon.  A
+     * deamon timer is called for if the timer will be used to schedule
+     * repeating "maintenance activities", which must be performed as long
+     * as the application is running, but should not prolong the lifetime
+     * of the application.
      *
-     * @param isDaemon true if the associated thread should run as a daemon.
+     * @param isDaemon true if the timer should run as a daemon.
      *
-     * @see Thread
      * @see #cancel()
      */
     public SiamTimer(boolean isDaemon) {
-        thread.setDaemon(isDaemon);
-        thread.start();
+	_isDaemon = isDaemon;
+	synchronized (SiamTimer.class) {
+	    _name = "SiamTimer-" + (++_nTimers);
+	}
     }
 
 
@@ -322,15 +322,11 @@ public class SiamTimer {
      *         cancelled, timer was cancelled, or timer thread terminated.
      */
     private void sched(SiamTimerTask task, long time, long period) {
-
-	_log4j.debug("sched() - adding SiamTimerTask");
-
         if (time < 0)
             throw new IllegalArgumentException("Illegal execution time.");
-        
-	_log4j.debug("sched() - acquire queue lock");
-        synchronized(queue) {
-            if (!thread.newTasksMayBeScheduled)
+
+        synchronized(TimerDispatcher.lock) {
+            if (!newTasksMayBeScheduled)
                 throw new IllegalStateException("Timer already cancelled.");
 
             synchronized(task.lock) {
@@ -343,22 +339,15 @@ public class SiamTimer {
             }
 
             queue.add(task);
-            if (queue.getMin() == task)
-                queue.notify();
+	    TimerDispatcher.queueChanged(this);
         }
-
-	_log4j.debug("sched() - acquire _allTimers lock");
-	synchronized(_allTimers) {
-	    _log4j.debug("sched() - add to _allTimers");
-	    _allTimers.addElement(this);
-	}
     }
 
     /**
      * Terminates this timer, discarding any currently scheduled tasks.
      * Does not interfere with a currently executing task (if it exists).
-     * Once a timer has been terminated, its execution thread terminates
-     * gracefully, and no more tasks may be scheduled on it.
+     * Once a timer has been terminated, no more tasks may be scheduled 
+     * on it.
      *
      * <p>Note that calling this method from within the run method of a
      * timer task that was invoked by this timer absolutely guarantees that
@@ -369,44 +358,22 @@ public class SiamTimer {
      * calls have no effect.
      */
     public void cancel() {
-	boolean running;
-        synchronized(queue) {
-            thread.newTasksMayBeScheduled = false;
+        synchronized(TimerDispatcher.lock) {
+            newTasksMayBeScheduled = false;
             queue.clear();
-            queue.notify();  // In case queue was already empty.
-	    running = queue.taskIsRunning;
+	    TimerDispatcher.queueChanged(this);
         }
-	synchronized(_allTimers)
-	{
-	    if (!running)
-		_allTimers.removeElement(this);
-	}
     }
 
     /**
-       Force a notify() for all active SiamTimers (kept in the static
-       Vector _allTimers).  This causes the SiamTimer to recalculate the
-       time to sleep.  This function has the side-effect of looking for
-       inactive (cancelled, expired) timers and deleting them from _allTimers
+       Have the dispatcher recalculate the time to sleep until the next
+       task of any timer; call after the CPU has slept, since 
+       Object.wait(timeout) doesn't count time that passes while the CPU
+       sleeps.
      */
     public static void recalculate()
     {
-	synchronized(_allTimers)
-	{
-	    Iterator it = _allTimers.iterator();
-	
-	    while(it.hasNext())
-	    {
-		SiamTimer t = (SiamTimer)it.next();
-		synchronized(t.queue)
-		{
-		    t.queue.notify();
-		    if (t.queue.isEmpty() && !t.queue.taskIsRunning &&
-			!t.thread.newTasksMayBeScheduled)
-			it.remove();
-		}
-	    }
-	}
+	TimerDispatcher.wakeup();
     }
 
     /**
@@ -416,219 +383,427 @@ public class SiamTimer {
      */
     public static long nextScheduledTask()
     {
-	long minTaskTime = Long.MAX_VALUE;
+	return TimerDispatcher.nextScheduledTask();
+    }
+
+    /** Return true if the timer doesn't prolong the life of the 
+	application. */
+    boolean isDaemon()
+    {
+	return _isDaemon;
+    }
+
+    /** Get name of the timer's thread. */
+    public String getThreadName()
+    {
+	return _name;
+    }
+	
+    /** Set name of the timer's thread; the thread running the timer's
+	tasks takes this name while it runs them. */
+    public void setThreadName(String name) 
+	throws SecurityException {
+	_name = name;
+    }
+	
+}
+
+/**
+ * TimerDispatcher waits for the next task of any SiamTimer to fire. Like
+ * each timer's own thread used to, it removes cancelled tasks and spent
+ * non-repeating tasks from the timer's queue, and reschedules repeating
+ * tasks; it then hands the fired task to a worker thread.
+ * <p>
+ * Timers with tasks to run are kept in a heap ordered by the execution time
+ * of each timer's next task, so the next task of all is found at once. A
+ * timer leaves the heap while one of its tasks runs, so that a timer runs
+ * its tasks one at a time, and a late repeating task doesn't fire again
+ * until its previous execution is done.
+ */
+class TimerDispatcher implements Runnable {
+
+    private static Logger _log4j = Logger.getLogger(TimerDispatcher.class);
+
+    /** Worker threads exit after idling this long */
+    static final long WORKER_IDLE_MSEC = 60000;
+
+    /** Protects the heap, and the queue and state of every timer */
+    static final Object lock = new Object();
+
+    /** Timers with scheduled tasks and none running, by next task time */
+    private static TimerHeap _heap = new TimerHeap();
+
+    /** Timers running a task */
+    private static Vector _running = new Vector();
+
+    /** Number of non-daemon timers with scheduled or running tasks */
+    private static int _nKeepAlive = 0;
+
+    private static Thread _thread = null;
+    private static Thread _keepAliveThread = null;
+    private static ExecutorService _workers = null;
+
+    private static int _nWorkers = 0;
+
+
+    /** Update dispatcher after timer's queue changes (a task is added,
+	or the timer is cancelled); caller holds lock. */
+    static void queueChanged(SiamTimer timer) {
+
+	if (timer.runningTask == null) {
+	    if (timer.queue.isEmpty()) {
+		_heap.remove(timer);
+	    }
+	    else if (timer.heapIndex == 0) {
+		_heap.add(timer);
+	    }
+	    else {
+		_heap.update(timer);
+	    }
+	}
+	updateKeepAlive(timer);
+	publishWakeup();
+
+	if (_thread == null) {
+	    _thread = new Thread(new TimerDispatcher(), "SiamTimer-dispatcher");
+	    _thread.setDaemon(true);
+	    _thread.start();
+	}
+	lock.notifyAll();
+    }
+
+
+    /** Wake dispatcher, to recalculate time until the next task. */
+    static void wakeup() {
+	synchronized (lock) {
+	    lock.notifyAll();
+	}
+    }
+
+
+    /** Return number of milliseconds until the next task of any timer
+	runs; 0 if one is running now, unless it is a ScheduleTimerTask 
+	whose thread is sleeping. */
+    static long nextScheduledTask() {
+
 	long now;
-        SiamTimer timer;
-	TaskQueue queue;
-	SiamTimerTask task, minTask = null;
-	Iterator it;
-
-	synchronized(_allTimers)
-	{
-	    it = _allTimers.iterator();
-	    _log4j.debug("There are " + _allTimers.size() +
-			  " SiamTimers");
+	long minTaskTime = Long.MAX_VALUE;
+	SiamTimerTask minTask = null;
+	SiamTimerTask[] running;
+
+	synchronized (lock) {
 	    now = System.currentTimeMillis();
 
-	    while(it.hasNext())
-	    {
-		timer = (SiamTimer)it.next();
-		queue = timer.queue;
-		synchronized(queue)
-		{
-                    task = queue.getMin();
-
-		    if (queue.taskIsRunning)
-		    {
-			// The head task is executing
-			_log4j.debug(timer.getThreadName()
-				      + " is running");
-
-			if (task == null) {
-			    _log4j.warn("minTask is null");
-			}
+	    SiamTimer next = _heap.getMin();
+	    if (next != null) {
+		minTask = next.queue.getMin();
+		minTaskTime = minTask.nextExecutionTime;
+	    }
 
-			if (!(task instanceof ScheduleTimerTask)) {
-			    // Task is executing, and not a ScheduleTimerTask,
-			    // so return (indicating that task is running
-			    return(0);
-			}
-			ScheduleTimerTask scheduleTask =
-			    (ScheduleTimerTask )task;
-
-			long nextWake;
-			if ((nextWake = scheduleTask.sleepingUntil()) == 0) {
-			    // ScheduleTimerTask is executing, not sleeping - 
-			    // return 0
-			    return 0;
-			}
+	    running = new SiamTimerTask[_running.size()];
+	    for (int i = 0; i < running.length; i++) {
+		running[i] = ((SiamTimer )_running.elementAt(i)).runningTask;
+	    }
+	}
 
-			_log4j.debug("scheduleTask " + 
-				     scheduleTask._owner._name + 
-				     " sleepUntil() for " + 
-				     ((nextWake - now)/1000) + " sec");
+	// Ask running tasks when they'll wake, without holding lock
+	for (int i = 0; i < running.length; i++) {
+	    if (!(running[i] instanceof ScheduleTimerTask)) {
+		// Task is executing, and not a ScheduleTimerTask,
+		// so return (indicating that task is running)
+		return 0;
+	    }
+	    ScheduleTimerTask scheduleTask = (ScheduleTimerTask )running[i];
+	    long nextWake = scheduleTask.sleepingUntil();
+	    if (nextWake == 0) {
+		// ScheduleTimerTask is executing, not sleeping
+		return 0;
+	    }
+	    _log4j.debug("scheduleTask " + scheduleTask._owner._name + 
+			 " sleepUntil() for " + ((nextWake - now)/1000) + 
+			 " sec");
+	    if (nextWake < minTaskTime) {
+		minTaskTime = nextWake;
+		minTask = scheduleTask;
+	    }
+	}
+
+	if (minTaskTime < now) {
+	    return 0;
+	}
+
+	minTaskTime -= now;
+	if (minTask != null && _log4j.isDebugEnabled()) {
+	    String taskMnem = "";
+	    if (minTask instanceof ScheduleTimerTask) {
+		taskMnem = " (" + 
+		    ((ScheduleTimerTask )minTask)._owner.getOwnerName() + ")";
+	    }
+	    _log4j.debug(minTask.getClass().getName() + taskMnem + 
+			 " will execute in " + minTaskTime/1000 + " seconds");
+	}
+	return minTaskTime;
+    }
 
-			if (nextWake < minTaskTime) {
-			    minTaskTime = nextWake;
-			    minTask = task;
-			    if (minTaskTime < now) {
-				return 0;
-			    }
-			}
-		    }
 
-		    else if (queue.isEmpty() ||
-			!timer.thread.newTasksMayBeScheduled) {
+    /** Wait for tasks to fire, and start them. */
+    public void run() {
+        while (true) {
+	    SiamTimer timer;
+	    SiamTimerTask task;
+
+	    synchronized (lock) {
+		try {
+		    timer = _heap.getMin();
+		    if (timer == null) {
+			lock.wait();
 			continue;
 		    }
 
-		    else {
-			synchronized(task.lock) {
-			    _log4j.debug(task.getClass().getName() +
-					  " [" + timer.getThreadName() +
-					  "] scheduled in " +
-					  (task.nextExecutionTime-now)
-					  + " ms");
-			    if (task.nextExecutionTime < minTaskTime) {
-				minTaskTime = task.nextExecutionTime;
-				minTask = task;
-			    }
-			    if (minTaskTime < now) {
-				    return(0);
+		    // Look at timer's first task and do the right thing
+		    long currentTime, executionTime;
+		    boolean taskFired;
+		    task = timer.queue.getMin();
+		    synchronized (task.lock) {
+			if (task.state == SiamTimerTask.CANCELLED) {
+			    timer.queue.removeMin();
+			    queueChanged(timer);
+			    continue;  // No action required, poll again
+			}
+			currentTime = System.currentTimeMillis();
+			executionTime = task.nextExecutionTime;
+			taskFired = (executionTime <= currentTime);
+			if (taskFired) {
+			    if (task.period == 0) { // Non-repeating, remove
+				timer.queue.removeMin();
+				task.state = SiamTimerTask.EXECUTED;
+			    } else { // Repeating task, reschedule
+				timer.queue.rescheduleMin(
+				  task.period<0 ? currentTime   - task.period
+				                : executionTime + task.period);
 			    }
 			}
 		    }
+		    if (!taskFired) { // Task hasn't yet fired; wait
+			lock.wait(executionTime - currentTime);
+			continue;
+		    }
+
+		    // Timer runs no other task until this one is done
+		    _heap.remove(timer);
+		    timer.runningTask = task;
+		    _running.addElement(timer);
+		    publishWakeup();
+		}
+		catch (InterruptedException e) {
+		    continue;
 		}
 	    }
+
+	    try {
+		workers().execute(new TaskRunner(timer, task));
+	    }
+	    catch (Throwable e) {
+		_log4j.error("run() - couldn't start task: " + e);
+		taskDone(timer, false);
+	    }
 	}
+    }
 
-	minTaskTime -= now;
-	if (minTask != null) {
-	    
-	    String taskMnem = "";
 
-	    if (minTask instanceof ScheduleTimerTask) {
-		ScheduleTask scheduleTask;
-	    
-		taskMnem = " (" + 
-		    ((ScheduleTimerTask )minTask)._owner.getOwnerName() +
-		    ")";
-	    }
+    /** Publish time at which timers next need the CPU to WakeupMonitor:
+	now if a task is running (nextScheduledTask() tells whether it is a
+	sleeping ScheduleTimerTask), else the next task's time; caller
+	holds lock. */
+    private static void publishWakeup() {
+	long time = WakeupMonitor.NEVER;
+	if (_running.size() > 0) {
+	    time = WakeupMonitor.NOW;
+	}
+	else if (_heap.getMin() != null) {
+	    time = _heap.getMin().queue.getMin().nextExecutionTime;
+	}
+	WakeupMonitor.publish(TimerDispatcher.class, time);
+    }
 
-	    _log4j.debug(minTask.getClass().getName() + taskMnem + 
-			  " will execute in "
 
-			  + minTaskTime/1000 + " seconds");
+    /** Return the worker pool, creating it if necessary. */
+    private static synchronized ExecutorService workers() {
+	if (_workers == null) {
+	    _workers = Executors.newCachedThreadPool(new ThreadFactory() {
+		    public Thread newThread(Runnable runnable) {
+			Thread thread = 
+			    new Thread(runnable, 
+				       "SiamTimer-worker-" + (++_nWorkers));
+			thread.setDaemon(true);
+			return thread;
+		    }
+		});
 	}
-	return(minTaskTime);
+	return _workers;
     }
 
 
-    /** Get name of the timer's thread. */
-    public String getThreadName()
-    {
-	return(thread.getName());
+    /** Called when timer's running task is done; if it failed, the
+	timer is cancelled. */
+    static void taskDone(SiamTimer timer, boolean failed) {
+	synchronized (lock) {
+	    timer.runningTask = null;
+	    _running.removeElement(timer);
+	    if (failed) {
+		timer.newTasksMayBeScheduled = false;
+		timer.queue.clear();
+	    }
+	    queueChanged(timer);
+	}
     }
-	
-    /** Set name of the timer's thread. */
-    public void setThreadName(String name) 
-	throws SecurityException {
-	thread.setName(name);
+
+
+    /** Count timer as keeping the application alive if it isn't a daemon
+	and has tasks scheduled or running; caller holds lock. While any
+	timer is counted, a non-daemon thread waits for the count to drop
+	to zero. */
+    private static void updateKeepAlive(SiamTimer timer) {
+
+	boolean keepsAlive = !timer.isDaemon() &&
+	    (timer.runningTask != null || !timer.queue.isEmpty());
+
+	if (keepsAlive == timer.keepsAlive) {
+	    return;
+	}
+	timer.keepsAlive = keepsAlive;
+	_nKeepAlive += (keepsAlive ? 1 : -1);
+
+	if (_nKeepAlive > 0 && _keepAliveThread == null) {
+	    _keepAliveThread = new Thread("SiamTimer-keepAlive") {
+		    public void run() {
+			synchronized (lock) {
+			    while (_nKeepAlive > 0) {
+				try {
+				    lock.wait();
+				}
+				catch (InterruptedException e) {
+				}
+			    }
+			    _keepAliveThread = null;
+			}
+		    }
+		};
+	    _keepAliveThread.start();
+	}
+    }
+
+
+    /** Runs a fired task on a worker thread, under its timer's name. */
+    static class TaskRunner implements Runnable {
+
+	SiamTimer _timer;
+	SiamTimerTask _task;
+
+	TaskRunner(SiamTimer timer, SiamTimerTask task) {
+	    _timer = timer;
+	    _task = task;
+	}
+
+	public void run() {
+	    Thread thread = Thread.currentThread();
+	    String name = thread.getName();
+	    thread.setName(_timer.getThreadName());
+
+	    boolean failed = true;
+	    try {
+		_task.run();
+		failed = false;
+	    }
+	    catch (Throwable e) {
+		_log4j.error("task of timer " + _timer.getThreadName() +
+			     " failed; cancelling timer", e);
+	    }
+	    finally {
+		thread.setName(name);
+		taskDone(_timer, failed);
+	    }
+	}
     }
-	
 }
 
 /**
- * This "helper class" implements the timer's task execution thread, which
- * waits for tasks on the timer queue, executions them when they fire,
- * reschedules repeating tasks, and removes cancelled tasks and spent
- * non-repeating tasks from the queue.
+ * This class is a priority queue of SiamTimers with scheduled tasks,
+ * ordered on the nextExecutionTime of each timer's first task; it is a
+ * binary heap, like TaskQueue, but also supports removing a timer and
+ * reordering it after its first task changes.  Each timer's heapIndex is
+ * its position in the heap, or 0 if the timer isn't in the heap.
  */
-class TimerThread extends Thread {
-    /**
-     * This flag is set to false by the reaper to inform us that there
-     * are no more live references to our Timer object.  Once this flag
-     * is true and there are no more tasks in our queue, there is no
-     * work left for us to do, so we terminate gracefully.  Note that
-     * this field is protected by queue's monitor!
-     */
-    boolean newTasksMayBeScheduled = true;
+class TimerHeap {
+    private SiamTimer[] heap = new SiamTimer[32];
+    private int size = 0;
 
-    /**
-     * Our Timer's queue.  We store this reference in preference to
-     * a reference to the Timer so the reference graph remains acyclic.
-     * Otherwise, the Timer would never be garbage-collected and this
-     * thread would never go away.
-     */
-    private TaskQueue queue;
-    private SiamTimer _timer;
+    /** Return timer whose first task is next to execute, or null. */
+    SiamTimer getMin() {
+        return (size > 0 ? heap[1] : null);
+    }
 
-    TimerThread(TaskQueue queue, SiamTimer timer) {
-        this.queue = queue;
-	_timer = timer;
+    /** Add timer, which must have a scheduled task. */
+    void add(SiamTimer timer) {
+        if (++size == heap.length) {
+            SiamTimer[] newHeap = new SiamTimer[2*heap.length];
+            System.arraycopy(heap, 0, newHeap, 0, size);
+            heap = newHeap;
+        }
+        set(size, timer);
+        fixUp(size);
     }
 
-    public void run() {
-        try {
-            mainLoop();
-        } finally {
-            // Somone killed this Thread, behave as if Timer cancelled
-	    _timer.cancel();
+    /** Remove timer, if it is in the heap. */
+    void remove(SiamTimer timer) {
+        int k = timer.heapIndex;
+        if (k == 0)
+            return;
+        timer.heapIndex = 0;
+        if (k != size) {
+            set(k, heap[size]);
+            heap[size--] = null;
+            fixUp(k);
+            fixDown(k);
         }
+        else
+            heap[size--] = null;
     }
 
-    /**
-     * The main timer loop.  (See class comment.)
-     */
-    private void mainLoop() {
-        while (true) {
-            try {
-                SiamTimerTask task;
-                boolean taskFired;
-                synchronized(queue) {
-		    queue.taskIsRunning = false;
-		    // Wait for queue to become non-empty
-                    while (queue.isEmpty() && newTasksMayBeScheduled)
-                        queue.wait();
-                    if (queue.isEmpty())
-                        break; // Queue is empty and will forever remain; die
-
-                    // Queue nonempty; look at first evt and do the right thing
-                    long currentTime, executionTime;
-                    task = queue.getMin();
-                    synchronized(task.lock) {
-                        if (task.state == SiamTimerTask.CANCELLED) {
-                            queue.removeMin();
-                            continue;  // No action required, poll queue again
-                        }
-                        currentTime = System.currentTimeMillis();
-                        executionTime = task.nextExecutionTime;
-                        if (executionTime <= currentTime)
-                        	taskFired = true;
-                        else 
-                        	taskFired = false;
-                        
-                        if (taskFired) {
-                            if (task.period == 0) { // Non-repeating, remove
-                                queue.removeMin();
-                                task.state = SiamTimerTask.EXECUTED;
-                            } else { // Repeating task, reschedule
-                                queue.rescheduleMin(
-                                  task.period<0 ? currentTime   - task.period
-                                                : executionTime + task.period);
-                            }
-			    queue.taskIsRunning = true;
-                        }
-                    }
-                    if (!taskFired) // Task hasn't yet fired; wait
-                        queue.wait(executionTime - currentTime);
-                }
-
-                if (taskFired)  // Task fired; run it, holding no locks
-                    task.run();
-
-            } catch(InterruptedException e) {
-            }
+    /** Reorder timer after its first task changes. */
+    void update(SiamTimer timer) {
+        fixUp(timer.heapIndex);
+        fixDown(timer.heapIndex);
+    }
+
+    private long time(int k) {
+        return heap[k].queue.getMin().nextExecutionTime;
+    }
+
+    private void set(int k, SiamTimer timer) {
+        heap[k] = timer;
+        timer.heapIndex = k;
+    }
+
+    private void fixUp(int k) {
+        while (k > 1) {
+            int j = k >> 1;
+            if (time(j) <= time(k))
+                break;
+            SiamTimer tmp = heap[j];  set(j, heap[k]); set(k, tmp);
+            k = j;
+        }
+    }
+
+    private void fixDown(int k) {
+        int j;
+        while ((j = k << 1) <= size) {
+            if (j < size && time(j) > time(j+1))
+                j++; // j indexes smallest kid
+            if (time(k) <= time(j))
+                break;
+            SiamTimer tmp = heap[j];  set(j, heap[k]); set(k, tmp);
+            k = j;
         }
     }
 }
@@ -636,7 +811,7 @@ class TimerThread extends Thread {
 /**
  * This class represents a timer task queue: a priority queue of TimerTasks,
  * ordered on nextExecutionTime.  Each Timer object has one of these, which it
- * shares with its TimerThread.  Internally this class uses a heap, which
+ * shares with the TimerDispatcher.  Internally this class uses a heap, which
  * offers log(n) performance for the add, removeMin and rescheduleMin
  * operations, and constant time performance for the the getMin operation.
  */
@@ -657,12 +832,6 @@ class TaskQueue {
      */
     private int size = 0;
 
-    /**
-     * Indicates that the task associated with getMin() is currently 
-     * running
-     */
-    protected boolean taskIsRunning = false;
-
     /**
      * Adds a new task to the priority queue.
      */
@@ -19,6 +19,16 @@ sleep.  On wakeup, it reinitializes any circuitry necessary.
 
 This is a generic version that calls an external script to put the
 CPU to sleep.  It may be sub-classed for specific hardware.  
+<p>
+Rather than polling, the sleep thread waits on the WakeupMonitor, to
+which the SiamTimers publish when they next need the CPU, and which
+SleepRollCallListeners (and lease managers) notify when their needs
+change. It checks whether it can sleep when something changes, or when
+the earliest known deadline passes (the end of the minimum awake time,
+or the next task). Only while a SleepRollCallListener keeps the CPU
+awake does it recheck every pollSeconds, since listeners needn't
+notify. Each sleep's predicted and actual duration is kept in the sleep
+log, and recorded in Metrics.
 
 @author Bob Herlien
 */
@@ -31,7 +41,7 @@ public class SleepManager extends Thread
     public static final int DFLT_WAKEUP_TIME = 3;	 //Early wakeup time
     public static final int DFLT_MIN_SLEEP_TIME = 3;    //Min time to sleep, else stay awake
     public static final int DFLT_MIN_AWAKE_TIME = 60;   //Min time to stay awake
-    public static final int DFLT_POLL_TIME = 2;	 //How often to check if OK to sleep
+    public static final int DFLT_POLL_TIME = 2;	 //How often to recheck if rollcall keeps CPU awake
     //Delay b4 going to sleep.  This one's in milliseconds
     public static final int DFLT_SLEEP_DELAY = 500;
 
@@ -51,6 +61,7 @@ public class SleepManager extends Thread
     protected int _minAwakeTime = DFLT_MIN_AWAKE_TIME;
     protected int _sleepDelay = DFLT_SLEEP_DELAY;
     protected long _lastWakeupTime = 0;
+    protected boolean _rollCallAwake = false;
     protected Vector _sleepRollCallList;
     protected boolean _debug = true;
     protected SimpleDateFormat _dateFormatter = null;
@@ -99,12 +110,24 @@ public class SleepManager extends Thread
 	{
 	    _sleepRollCallList.add(listener);
 	}
+	rollCallChanged();
     }
 
-    /** Loop forever, polling for whether it's time to put CPU to sleep */
+    /** Called by SleepRollCallListeners (or whatever drives them) when 
+	their answer to okToSleep() may have changed, so that sleep thread 
+	checks whether it can sleep. */
+    public static void rollCallChanged()
+    {
+	WakeupMonitor.changed();
+    }
+
+    /** Loop forever, waiting for it to be time to put CPU to sleep */
     public void run()
     {
 	int	sleepTime;
+	long	sleepMsec;
+	long	version;
+	long	recheckTime;
 
 	_log4j.debug("SleepManager thread starting, enabled=" + 
 		     _sleepManagerEnabled + ", NodeManager = " + 
@@ -114,52 +137,90 @@ public class SleepManager extends Thread
 
 	while (true) {
 
-	    if (!_sleepManagerEnabled) {
-
-		    try {
-			Thread.sleep(10000);
-		    }
-		    catch (InterruptedException e) {
-		    }
-
-		    continue;
-		}
+	    // Note version before checking, so no change is missed
+	    version = WakeupMonitor.version();
+	    recheckTime = WakeupMonitor.NEVER;
 
 	    try
 	    {
-		Thread.sleep(_pollTime * 1000);
+		if (_sleepManagerEnabled) {
 
-		sleepTime = okToSuspend()-_wakeupTime-_sleepDelay/1000;
+		    Metrics.count("sleep.checks", 1);
 
-		if (sleepTime >= _minSleepTime)
-		{
-
-		    // Delay to allow file system to flush
-		    if (_sleepDelay > 0)
-			Thread.sleep(_sleepDelay);
+		    long now = System.currentTimeMillis();
+		    long minAwakeEnd = _lastWakeupTime + _minAwakeTime * 1000L;
 
-		    long start = System.currentTimeMillis();
+		    if (now < minAwakeEnd) {
+			// Guarantee _minAwakeTime
+			recheckTime = minAwakeEnd;
+		    }
+		    else if ((sleepMsec = okToSuspendMsec()) <= 0) {
+			// Something needs CPU now; a running task
+			// notifies when done, a rollcall listener may not
+			if (_rollCallAwake)
+			    recheckTime = now + _pollTime * 1000L;
+		    }
+		    else {
+			sleepTime = (int)(sleepMsec/1000)-_wakeupTime-_sleepDelay/1000;
 
-		    _log4j.info(
-				 _dateFormatter.format(new Date(start)) +
-				 " Going to sleep for " + sleepTime + " sec");
+			if (sleepTime >= _minSleepTime) {
+			    goToSleep(sleepTime);
+			    continue;
+			}
 
-		    doSuspend(sleepTime);
+			// Too soon to sleep; check again once it's happened
+			recheckTime = now + sleepMsec;
+		    }
+		}
 
-		    postSuspend();
+		WakeupMonitor.awaitChange(version, recheckTime);
 
-		    long now = System.currentTimeMillis();
-		    _lastWakeupTime = now;
-		    _log.add(new SleepLogEntry(start, sleepTime, 
-					       (int )(now - start)/1000));
-		}
 	    } catch (Exception e) {
 		_log4j.error("SleepThread.run(): ", e);
+		try {
+		    Thread.sleep(_pollTime * 1000L);
+		} catch (InterruptedException e2) {
+		}
 	    }
 	} /* while */
     } /* run() */
 
 
+    /** Put CPU to sleep for specified seconds, and log predicted and
+	actual duration */
+    protected void goToSleep(int sleepTime) throws InterruptedException
+    {
+	// Delay to allow file system to flush
+	if (_sleepDelay > 0)
+	    Thread.sleep(_sleepDelay);
+
+	long start = System.currentTimeMillis();
+	long awakeSec = 
+	    (_lastWakeupTime > 0 ? (start - _lastWakeupTime)/1000 : 0);
+
+	_log4j.info(
+		    _dateFormatter.format(new Date(start)) +
+		    " Going to sleep for " + sleepTime + " sec");
+
+	doSuspend(sleepTime);
+
+	postSuspend();
+
+	long now = System.currentTimeMillis();
+	_lastWakeupTime = now;
+	SleepLogEntry entry = new SleepLogEntry(start, sleepTime, 
+						(int )((now - start)/1000),
+						(int )awakeSec);
+	_log.add(entry);
+	_log4j.info("Slept " + entry._actualSec + " sec, predicted " + 
+		    sleepTime + " sec, after " + awakeSec + " sec awake");
+
+	Metrics.record("sleep.predictedSec", sleepTime);
+	Metrics.record("sleep.actualSec", entry._actualSec);
+	Metrics.record("sleep.awakeSec", awakeSec);
+    }
+
+
     /** Get our properties from the NodeProperties object	*/
     private void getSleepManagerProperties()
     {
@@ -247,6 +308,7 @@ public class SleepManager extends Thread
 		thisTime = listener.okToSleep();
 
 		if (thisTime <= 0) {
+		    _rollCallAwake = true;
 		    return(0);
 		}
 
@@ -260,32 +322,42 @@ public class SleepManager extends Thread
 
     /** Check to see if it's OK to suspend.
        Gets times from SleepRollCall and SiamTimer as long milliseconds,
-       and returns time to next wakeup as int seconds	*/
-    private int okToSuspend()
+       and returns time to next wakeup, or 0 if CPU must stay awake
+       (setting _rollCallAwake if a rollcall listener needs it). */
+    private long okToSuspendMsec()
     {
 	long		rollCallTime, sleepTime;
 
-	// Guarantee _minAwakeTime
-	if ((System.currentTimeMillis() - _lastWakeupTime)/1000 < _minAwakeTime)
-	    return(0);
+	_rollCallAwake = false;
+
+	// If next timer task is too soon to sleep, don't bother with the
+	// rollcall
+	long now = System.currentTimeMillis();
+	long nextTask = WakeupMonitor.earliest();
+	if ((nextTask > now) && (nextTask - now < _minSleepTime * 1000L))
+	    return(nextTask - now);
 
 	// Get earliest wakeup time from any of the rollcall listeners
 	if ((rollCallTime = doSleepRollCall()) <= 0)
 	    return(0);
 
-	// Static call checks all SiamTimers to see which is next to run
+	// Static call finds which SiamTimer is next to run
 	sleepTime = SiamTimer.nextScheduledTask();
 
 	if (rollCallTime < sleepTime)
 	    sleepTime = rollCallTime;
 
+	// Keep seconds within an int
+	if (sleepTime > Integer.MAX_VALUE * 1000L)
+	    sleepTime = Integer.MAX_VALUE * 1000L;
+
 	if (sleepTime > 0) {
 	    _log4j.debug("okToSuspend returning " + sleepTime/1000);
 	}
 
-	return((int)(sleepTime/1000));
+	return(sleepTime);
 
-    } /* okToSuspend() */
+    } /* okToSuspendMsec() */
 
 
 	
@@ -298,25 +370,35 @@ public class SleepManager extends Thread
     /** Enable or disable */
     public void set(boolean enable) {
 	_sleepManagerEnabled = enable;
+	WakeupMonitor.changed();
     }
 
 
-    /** Sleep log entry records when sleep starts, and how long it lasts. */
+    /** Sleep log entry records when sleep starts, how long it was
+	predicted to last and did last, and how long CPU was awake before
+	it. */
     public class SleepLogEntry {
 	private long _startTime;
 	private int _predictedSec;
 	private int _actualSec;
+	private int _awakeSec;
 
 	public SleepLogEntry(long startTime, int predictedSec, int actualSec) {
+	    this(startTime, predictedSec, actualSec, 0);
+	}
+
+	public SleepLogEntry(long startTime, int predictedSec, int actualSec,
+			     int awakeSec) {
 	    _startTime = startTime;
 	    _predictedSec = predictedSec;
 	    _actualSec = actualSec;
+	    _awakeSec = awakeSec;
 	}
 
 	public String toString() {
 	    return "sleep," +
 		_dateFormatter.format(new Date(_startTime)) + "," +
-		_predictedSec + "," + _actualSec;
+		_predictedSec + "," + _actualSec + "," + _awakeSec;
 	}
     }
 
@@ -349,13 +431,25 @@ public class SleepManager extends Thread
 	    StringBuffer summary = 
 		new StringBuffer("<sleepLog>\nSleep log since " + 
 				 _dateFormatter.format(new Date(_logStartTime))
-				 +  "\nstart,predictedDurSec,actualDurSec\n");
+				 +  "\nstart,predictedDurSec,actualDurSec,priorAwakeSec\n");
+
+	    long predicted = 0, actual = 0, awake = 0;
 
 	    for (int i = 0; i < _entries.size(); i++) {
 		SleepManager.SleepLogEntry entry = 
 		    (SleepManager.SleepLogEntry )_entries.elementAt(i);
 
 		summary.append(entry.toString() + "\n");
+		predicted += entry._predictedSec;
+		actual += entry._actualSec;
+		awake += entry._awakeSec;
+	    }
+
+	    summary.append("total," + _entries.size() + " sleeps," + 
+			   predicted + "," + actual + "," + awake + "\n");
+	    if (actual + awake > 0) {
+		summary.append("asleep " + (100 * actual / (actual + awake)) +
+			       "% of logged time\n");
 	    }
 	    summary.append("</sleepLog>\n");
 	    return new String(summary);
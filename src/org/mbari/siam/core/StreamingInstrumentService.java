@@ -7,12 +7,21 @@ package org.mbari.siam.core;
 
 import org.apache.log4j.Logger;
 import org.mbari.siam.distributed.*;
+import org.mbari.siam.utils.FrameRingBuffer;
 
 import java.rmi.RemoteException;
 
 /**
    StreamingInstrumentService represents an instrument that "streams" data 
    asynchronously to its serial port. 
+   <p>
+   By default each sample is read, processed and logged before the next
+   one is read. If the ingestFrames attribute is positive, a reader 
+   thread instead reads samples (with readFrame()) into a ring buffer of
+   that many frames, while the sampling thread subsamples, processes and
+   logs them (with processFrame()); so slow processing or logging doesn't
+   hold up reading. If the ring fills, frames are dropped according to
+   ingestDropPolicy, and reported as overruns.
 */
 public abstract class StreamingInstrumentService 
     extends BaseInstrumentService 
@@ -35,6 +44,19 @@ public abstract class StreamingInstrumentService
 
     // Generic streaming instrument attributes
     Attributes _streamingAttributes = new Attributes(this);
+
+    /** Time (msec) the processing stage waits for a frame before checking
+	whether it is done */
+    static final int INGEST_POLL_MSEC = 1000;
+
+    /** Time (msec) to wait for the reader thread to stop */
+    static final int INGEST_STOP_MSEC = 30000;
+
+    /** Frames dropped by ingest ring buffer, over all sessions */
+    private long _ingestOverruns = 0;
+
+    /** Receipt time of frame being processed by processing stage, or 0 */
+    private long _frameTime = 0;
 	
     /** Create new service. */
     public StreamingInstrumentService() 
@@ -87,6 +109,36 @@ public abstract class StreamingInstrumentService
 	    // turn on power
 	    managePowerWake();
 	}
+	if (_streamingAttributes.ingestFrames > 0) {
+	    acquirePipelined();
+	}
+	else {
+	    acquireSequential();
+	}
+
+	synchronized(this) {
+	    if (_streamingAttributes.burstMode) {
+		// Stop streaming
+		try {
+		    stopStreaming();
+		}
+		catch (Exception e) {
+		    String errMsg = "ERR:stopStreaming() failed: " + e;
+		    _log4j.error(errMsg);
+		    annotate(errMsg.getBytes());
+		}
+	    }
+
+	    // turn off power
+	    managePowerSleep();
+
+	    // Denote not sampling any more
+	    endDeviceAccess();
+	}
+    }
+	
+    /** Read, process and log each sample before reading the next. */
+    private void acquireSequential() {
 	// Read and block on serial port, waiting for data
 	int nSamples = 0;
 	while (!doneAcquiring(nSamples)) {
@@ -119,43 +171,250 @@ public abstract class StreamingInstrumentService
 				System.currentTimeMillis());
 	    }
 			
-	    /*
-	     * Attempt to process a packet in the InstrumentServiceBlock
-	     */
-	    try {
-		if (packet != null && getInstrumentServiceBlock() != null) {
-		    _log4j.debug("Adding packet to InstrumentServiceBlock");
-		    getInstrumentServiceBlock().processDevicePacket(packet);
+	    processServiceBlock(packet);
+
+	    // Yield to other threads...
+	    Thread.yield();
+	}
+    }
+
+
+    /** Read samples on a reader thread into a ring buffer, and process
+	them on this thread. */
+    private void acquirePipelined() {
+
+	int policy = FrameRingBuffer.DROP_OLDEST;
+	if (_streamingAttributes.ingestDropPolicy.equalsIgnoreCase("newest")) {
+	    policy = FrameRingBuffer.DROP_NEWEST;
+	}
+
+	byte[] sample = getSampleBuf();
+	final FrameRingBuffer ring = 
+	    new FrameRingBuffer(_streamingAttributes.ingestFrames,
+				sample.length, policy);
+
+	Metrics.gauge(portMetric("ingestDepth"), new Metrics.Gauge() {
+		public long value() {
+		    return ring.size();
+		}
+	    });
+
+	IngestReader reader = new IngestReader(ring, sample.length);
+	reader.start();
+
+	int nSamples = 0;
+	try {
+	    while (!doneAcquiring(nSamples)) {
+
+		int nBytes;
+		try {
+		    nBytes = ring.take(sample, INGEST_POLL_MSEC);
+		}
+		catch (InterruptedException e) {
+		    _log4j.warn("acquirePipelined() interrupted");
+		    break;
 		}
+		if (nBytes < 0) {
+		    // No frame yet; check whether done
+		    continue;
+		}
+
+		nSamples++;
+		// Subsample; skipped frames aren't processed
+		if (!saveThisSample(nSamples)) {
+		    continue;
+		}
+
+		SensorDataPacket packet = null;
+		try {
+		    packet = processIngested(sample, nBytes, ring.lastTime());
+		}
+		catch (NoDataException e) {
+		    _log4j.error(e.getMessage());
+		    _errorCache.add("tried processIngested(): " + e.getMessage(),
+				    System.currentTimeMillis());
+		}
+
+		processServiceBlock(packet);
 	    }
-	    catch (Exception e) {
-		_log4j.error("An error occured when adding a packet to the InstrumentServiceBlock", e);
+	}
+	finally {
+	    reader.finish();
+	    Metrics.remove(portMetric("ingestDepth"));
+	}
+
+	long overruns = ring.getOverruns();
+	if (overruns > 0) {
+	    synchronized (this) {
+		_ingestOverruns += overruns;
 	    }
+	    Metrics.count(portMetric("ingestOverruns"), overruns);
+	    String msg = "ingest overrun: dropped " + overruns + " of " +
+		ring.getFramesPut() + " frames (" + 
+		_streamingAttributes.ingestDropPolicy + ")";
+	    _log4j.warn(msg);
+	    _errorCache.add(msg, System.currentTimeMillis());
+	}
+    }
 
-	    // Yield to other threads...
-	    Thread.yield();
+
+    /** Process frame received at frameTime, as acquire() does after
+	reading a sample. */
+    private synchronized SensorDataPacket processIngested(byte[] sample, 
+							  int nBytes, 
+							  long frameTime)
+	throws NoDataException {
+
+	int state = getStatus();
+	if (state == Device.SUSPEND || state == Device.SAFE) {
+	    throw new NoDataException("service is suspended");
 	}
-	synchronized(this) {
-	    if (_streamingAttributes.burstMode) {
-		// Stop streaming
+
+	try {
+	    setStatusSampling();
+	    _frameTime = frameTime;
+	    return processFrame(sample, nBytes, true);
+	}
+	catch (Exception e) {
+	    setStatusError();
+	    _log4j.error("processFrame(): " + e.getMessage());
+	    throw new NoDataException(e.getMessage());
+	}
+	finally {
+	    _frameTime = 0;
+	}
+    }
+
+
+    /** Attempt to process a packet in the InstrumentServiceBlock */
+    private void processServiceBlock(SensorDataPacket packet) {
+	try {
+	    if (packet != null && getInstrumentServiceBlock() != null) {
+		_log4j.debug("Adding packet to InstrumentServiceBlock");
+		getInstrumentServiceBlock().processDevicePacket(packet);
+	    }
+	}
+	catch (Exception e) {
+	    _log4j.error("An error occured when adding a packet to the InstrumentServiceBlock", e);
+	}
+    }
+
+
+    /** Return number of frames dropped by the ingest ring buffer, over
+	all sessions. */
+    public synchronized long getIngestOverruns() {
+	return _ingestOverruns;
+    }
+
+
+    /** Return receipt time of frame being processed, if any; else the
+	current time. */
+    protected long sampleTime() {
+	if (_frameTime != 0) {
+	    return _frameTime;
+	}
+	return super.sampleTime();
+    }
+
+
+    /** Read a sample (frame) from the instrument; called by the ingest
+	reader thread. By default, calls readSample(). Since it runs 
+	concurrently with processFrame(), it must not change state that 
+	processing depends on (e.g. the record type); such parsing belongs 
+	in processFrame(). */
+    protected int readFrame(byte[] frame) throws Exception {
+	return readSample(frame);
+    }
+
+
+    /** Validate, process and (if logSample) log sample of nBytes bytes;
+	called with the sample read by readSample(), or a frame read by 
+	readFrame(). */
+    protected synchronized SensorDataPacket processFrame(byte[] sample, 
+							 int nBytes,
+							 boolean logSample)
+	throws Exception {
+
+	validateSample(sample, nBytes);
+			
+	// Process the sample, generate TimeStampedData object
+	// (By default, base class' processSample() just
+	// puts raw data in output object)
+	if (_log4j.isDebugEnabled()) {
+	    _log4j.debug(_serviceName + 
+			 ": calling processSample() \n");
+	}
+	SensorDataPacket dataPacket = processSample(sample, nBytes);
+			
+	// Allow sub-class to deal w/instrument after sampling
+	// complete
+	postSample();
+			
+	if (logSample) {
+	    _errorCache.flush();
+	    logPacket(dataPacket);
+	}
+			
+	setStatusOk();
+
+	return dataPacket;
+    }
+
+
+    /** Reader stage of the ingest pipeline: reads frames into the ring 
+	until finished. */
+    class IngestReader extends Thread {
+
+	FrameRingBuffer _ring;
+	byte[] _frame;
+	volatile boolean _done = false;
+
+	IngestReader(FrameRingBuffer ring, int maxFrameBytes) {
+	    super("IngestReader-" + _serviceName);
+	    _ring = ring;
+	    _frame = new byte[maxFrameBytes];
+	}
+
+	public void run() {
+	    while (!_done) {
 		try {
-		    stopStreaming();
+		    int nBytes = readFrame(_frame);
+		    if (nBytes > 0) {
+			_ring.put(_frame, nBytes, System.currentTimeMillis());
+		    }
+		    else if (!_done) {
+			_log4j.error("readFrame(): no bytes read");
+		    }
 		}
 		catch (Exception e) {
-		    String errMsg = "ERR:stopStreaming() failed: " + e;
-		    _log4j.error(errMsg);
-		    annotate(errMsg.getBytes());
+		    if (_done) {
+			break;
+		    }
+		    _log4j.error("readFrame() failed: " + e.getMessage());
+		    _errorCache.add("tried readFrame(): " + e.getMessage(),
+				    System.currentTimeMillis());
+		    Thread.yield();
 		}
 	    }
+	}
 
-	    // turn off power
-	    managePowerSleep();
-
-	    // Denote not sampling any more
-	    endDeviceAccess();
+	/** Stop reading, and wait for a frame being read to complete (or
+	    time out), so that the caller can use the port. */
+	void finish() {
+	    _done = true;
+	    interrupt();
+	    try {
+		join(INGEST_STOP_MSEC);
+	    }
+	    catch (InterruptedException e) {
+	    }
+	    if (isAlive()) {
+		_log4j.warn("IngestReader didn't stop within " + 
+			    INGEST_STOP_MSEC + " msec");
+	    }
 	}
     }
-	
+
     /** Return true if done acquiring. */
     protected boolean doneAcquiring(int nSamples) {
 		
@@ -203,7 +462,9 @@ public abstract class StreamingInstrumentService
 
 	// Check for SUSPENDED or SAFE state
 	int state = getStatus();
-	_log4j.debug("acquire() - state=" + state);
+	if (_log4j.isDebugEnabled()) {
+	    _log4j.debug("acquire() - state=" + state);
+	}
 	if (state == Device.SUSPEND) {
 	    throw new NoDataException("service is suspended");
 	}
@@ -213,7 +474,9 @@ public abstract class StreamingInstrumentService
 		
 	try {
 	    // Read raw sample from instrument
-	    _log4j.debug(_serviceName + ": calling readSample()\n");
+	    if (_log4j.isDebugEnabled()) {
+		_log4j.debug(_serviceName + ": calling readSample()\n");
+	    }
 	    setStatusSampling();
 			
 	    int nBytes = readSample(getSampleBuf());
@@ -222,26 +485,8 @@ public abstract class StreamingInstrumentService
 		throw new NoDataException("No bytes read");
 	    }
 			
-	    validateSample(getSampleBuf(), nBytes);
-			
-	    // Process the sample, generate TimeStampedData object
-	    // (By default, base class' processSample() just
-	    // puts raw data in output object)
-	    _log4j.debug(_serviceName + 
-			 ": calling processSample() \n");
 	    SensorDataPacket dataPacket = 
-		processSample(getSampleBuf(), nBytes);
-			
-	    // Allow sub-class to deal w/instrument after sampling
-	    // complete
-	    postSample();
-			
-	    if (logSample) {
-		_errorCache.flush();
-		logPacket(dataPacket);
-	    }
-			
-	    setStatusOk();
+		processFrame(getSampleBuf(), nBytes, logSample);
 			
 	    // Don't really need to send every packet
 	    // to the console, except for debugging.
@@ -320,6 +565,28 @@ public abstract class StreamingInstrumentService
 		
 	/** Instrument should stream only while service is sampling. */
 	public boolean burstMode = true;
+
+	/** Frames buffered between reader thread and processing; 0 reads
+	    and processes each sample in turn, without a reader thread. */
+	public int ingestFrames = 0;
+
+	/** Frame to drop when the ingest buffer is full: "oldest" or 
+	    "newest" */
+	public String ingestDropPolicy = "oldest";
+
+	/** Check attribute values. */
+	public void checkValues() throws InvalidPropertyException {
+	    super.checkValues();
+
+	    if (ingestFrames < 0) {
+		throw new InvalidPropertyException("ingestFrames must be >= 0");
+	    }
+	    if (!ingestDropPolicy.equalsIgnoreCase("oldest") &&
+		!ingestDropPolicy.equalsIgnoreCase("newest")) {
+		throw new InvalidPropertyException("ingestDropPolicy must be " +
+						   "\"oldest\" or \"newest\"");
+	    }
+	}
     }        
 	
 }
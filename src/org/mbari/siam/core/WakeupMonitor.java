@@ -0,0 +1,139 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.core;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+   WakeupMonitor tracks when the node next needs the CPU awake, so that
+   SleepManager can wait for something to change instead of polling.
+   Sources (e.g. the SiamTimers) publish the time at which they next need
+   the CPU; earliest() returns the earliest of these. Sources whose needs
+   can't be expressed as a time (e.g. a SleepRollCallListener that just
+   changed its answer) call changed().
+   <p>
+   Every publish() or changed() advances the version number and wakes
+   threads in awaitChange(), which returns when the version differs from
+   the one the caller last saw, or at a deadline.
+*/
+public class WakeupMonitor
+{
+    /** Time published by a source that needs the CPU now */
+    public static final long NOW = 0;
+
+    /** Time published by a source that doesn't need the CPU */
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private static Object _lock = new Object();
+
+    /** Published times (Long), by source */
+    private static Hashtable _times = new Hashtable();
+
+    private static long _earliest = NEVER;
+
+    private static long _version = 0;
+
+
+    /** Publish time (msec since epoch; NOW or NEVER) at which source next
+	needs the CPU awake. */
+    public static void publish(Object source, long time)
+    {
+	synchronized (_lock) {
+	    Long previous = (Long )_times.put(source, new Long(time));
+	    if (previous != null && previous.longValue() == time) {
+		return;
+	    }
+
+	    if (time <= _earliest) {
+		_earliest = time;
+	    }
+	    else if (previous != null && previous.longValue() == _earliest) {
+		// Source may have held the minimum
+		recomputeEarliest();
+	    }
+	    changed();
+	}
+    }
+
+
+    /** Remove time published by source. */
+    public static void withdraw(Object source)
+    {
+	synchronized (_lock) {
+	    if (_times.remove(source) != null) {
+		recomputeEarliest();
+		changed();
+	    }
+	}
+    }
+
+
+    /** Note that the CPU's wakeup requirements may have changed. */
+    public static void changed()
+    {
+	synchronized (_lock) {
+	    _version++;
+	    _lock.notifyAll();
+	}
+    }
+
+
+    /** Return earliest published time, or NEVER if none. */
+    public static long earliest()
+    {
+	synchronized (_lock) {
+	    return _earliest;
+	}
+    }
+
+
+    /** Return version number, which changes whenever a published time
+	changes or changed() is called. */
+    public static long version()
+    {
+	synchronized (_lock) {
+	    return _version;
+	}
+    }
+
+
+    /** Wait until version differs from specified version, or until
+	deadline (msec since epoch; NEVER waits indefinitely); return true
+	if version changed. */
+    public static boolean awaitChange(long version, long deadline)
+	throws InterruptedException
+    {
+	synchronized (_lock) {
+	    while (_version == version) {
+		long wait = deadline - System.currentTimeMillis();
+		if (deadline == NEVER) {
+		    wait = 0;
+		}
+		else if (wait <= 0) {
+		    return false;
+		}
+		_lock.wait(wait);
+	    }
+	    return true;
+	}
+    }
+
+
+    /** Find minimum of published times; caller holds _lock. */
+    private static void recomputeEarliest()
+    {
+	long earliest = NEVER;
+	Enumeration e = _times.elements();
+	while (e.hasMoreElements()) {
+	    long time = ((Long )e.nextElement()).longValue();
+	    if (time < earliest) {
+		earliest = time;
+	    }
+	}
+	_earliest = earliest;
+    }
+}
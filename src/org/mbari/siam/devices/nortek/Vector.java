@@ -341,22 +341,6 @@ public class Vector extends Aquadopp
         // If we get here, we've got a sample...
         _nowStreaming = true;
         
-        switch (DataStructure.id(sample))
-	{
-	  case DataStructure.ID_VECTOR_SYSTEM_DATA:
-            _systemData.setBytes(sample);
-	    setRecordType(RECORDTYPE_SYSTEM);
-            _log4j.debug("readSample(): got system data");
-	      break;
-
-	  case DataStructure.ID_VECTOR_VELOCITY_DATA:
-            _velocityData.setBytes(sample);
-	    setRecordType(RECORDTYPE_DEFAULT);
-            _log4j.debug("readSample(): got velocity data");
-	      break;
-
-        }
-
         return nBytes;
     }
 
@@ -370,13 +354,33 @@ public class Vector extends Aquadopp
 	_avgStartTime = now;
     }
 
-    /** Override acquire() in order to calculate averages */
-    protected synchronized SensorDataPacket acquire(boolean logSample)
-	throws NoDataException
+    /** Override processFrame() in order to parse the sample and calculate 
+     * averages. Parsing is done here rather than in readSample(), since
+     * with ingestFrames set, samples are read on a separate thread.
+     */
+    protected synchronized SensorDataPacket processFrame(byte[] sample, 
+							 int nBytes,
+							 boolean logSample)
+	throws Exception
     {
-	SensorDataPacket packet = super.acquire(logSample);
-	byte[] sample = packet.dataBuffer();
-	long curTime = System.currentTimeMillis();
+        switch (DataStructure.id(sample))
+	{
+	  case DataStructure.ID_VECTOR_SYSTEM_DATA:
+            _systemData.setBytes(sample);
+	    setRecordType(RECORDTYPE_SYSTEM);
+            _log4j.debug("processFrame(): got system data");
+	      break;
+
+	  case DataStructure.ID_VECTOR_VELOCITY_DATA:
+            _velocityData.setBytes(sample);
+	    setRecordType(RECORDTYPE_DEFAULT);
+            _log4j.debug("processFrame(): got velocity data");
+	      break;
+
+        }
+
+	SensorDataPacket packet = super.processFrame(sample, nBytes, logSample);
+	long curTime = sampleTime();
 	
 	if ((_attributes.avgVelocitySecs > 0) && 
 	    (DataStructure.id(sample) == DataStructure.ID_VECTOR_VELOCITY_DATA))
@@ -595,45 +595,56 @@ public class WorkhorseADCP extends PolledInstrumentService
                 throw new InterruptedException("readUntilDelay() interrupted");
             }
 
-            ///////////////////////////////////////////////////////////
-            // Read one byte at a time - this might be VERY
-            // inefficient, depending on whether input is buffered!
-            //
-            if (instream.available() > 0) {
+            // Read the 4-byte header, then as much of the rest of the
+            // ensemble as is available, in bulk
+            int nAvailable = instream.available();
+            if (nAvailable > 0) {
 
-                outbuf[bytesRead++] = (byte) instream.read();
-
-                t0 = System.currentTimeMillis();
-
-                if (bytesRead == 2) { // We now have header and data source id
-                    if (outbuf[0] != HEADER_ID) {
-                        _log4j.debug("readUntilDelay() - bad header id");
-                        throw new Exception("Bad header id");
-                    }
-                    if (outbuf[1] != SOURCE_ID) {
-                        _log4j.debug("readUntilDelay() - bad id");
-                        throw new Exception("Bad source id");
-                    }
-                }
-                else if (bytesRead == 4) { // We now have packet size bytes
-                    pktLength = mkInt(outbuf[2], outbuf[3]) + 2;// 2 for the
-                    // first 2 bytes
-                    // not included
-                    // in size bytes
-                }
-                else if (bytesRead > 4 && bytesRead == pktLength) {
-                    _log4j.debug("readUntilDelay() - return #1");
-                    return bytesRead;
-                }
+                int len = (bytesRead < 4 ? 4 : pktLength) - bytesRead;
+                len = Math.min(len, nAvailable);
 
                 // if end of buffer, then packet too long
-
-                if (bytesRead > outbuf.length) {
+                if (bytesRead + len > outbuf.length) {
                     _log4j.debug("readUntilDelay() - throw exception");
                     throw new Exception("Output buf in instrument driver "
                             + "exceeded (buffer max length is " + outbuf.length
                             + ")");
                 }
+
+                int nRead = instream.read(outbuf, bytesRead, len);
+                if (nRead > 0) {
+                    int prevBytesRead = bytesRead;
+                    bytesRead += nRead;
+
+                    t0 = System.currentTimeMillis();
+
+                    if (prevBytesRead < 2 && bytesRead >= 2) { 
+                        // We now have header and data source id
+                        if (outbuf[0] != HEADER_ID) {
+                            _log4j.debug("readUntilDelay() - bad header id");
+                            throw new Exception("Bad header id");
+                        }
+                        if (outbuf[1] != SOURCE_ID) {
+                            _log4j.debug("readUntilDelay() - bad id");
+                            throw new Exception("Bad source id");
+                        }
+                    }
+                    if (prevBytesRead < 4 && bytesRead == 4) { 
+                        // We now have packet size bytes
+                        pktLength = mkInt(outbuf[2], outbuf[3]) + 2;// 2 for the
+                        // first 2 bytes
+                        // not included
+                        // in size bytes
+                        if (pktLength <= 4) {
+                            _log4j.debug("readUntilDelay() - bad length");
+                            throw new Exception("Bad packet length");
+                        }
+                    }
+                    else if (bytesRead > 4 && bytesRead == pktLength) {
+                        _log4j.debug("readUntilDelay() - return #1");
+                        return bytesRead;
+                    }
+                }
             }
             else {
                 //Thread.yield();
@@ -141,6 +141,20 @@ public interface Node extends RemoteService {
     boolean summarizing(long deviceID) 
 	throws RemoteException, DeviceNotFound;
 
+    /** Acknowledge that the caller has stored nPackets packets from
+	specified device, with keys from firstKey through lastKey, that it
+	retrieved with getDevicePackets(). If these are all the packets
+	the device logged since those previously acknowledged, the device
+	may compact its log through lastKey.
+	<p>
+	This method was added to the node protocol with log compaction. 
+	Nodes that predate it reject the call with an UnmarshalException; 
+	callers must then stop acknowledging packets to that node, which
+	then keeps all its packets. */
+    public void packetsRetrieved(long deviceID, long firstKey, long lastKey,
+				 int nPackets)
+	throws RemoteException, DeviceNotFound;
+
     /** Suspend service (if any) associated with specified port. */
     public void suspendService(byte[] portName) 
 	throws RemoteException,
@@ -310,6 +324,12 @@ public interface Node extends RemoteService {
     /** Return byte string with node health/status information. */
     public byte[] getStatus(boolean logPacket) throws RemoteException;
 
+    /** Return report of node performance metrics (per-port I/O, sample
+	and log latencies, queue depths); if logPacket is true, also write
+	it to the node log. Metrics are recorded only if enabled by node
+	property "Metrics.enabled". */
+    public byte[] getMetrics(boolean logPacket) throws RemoteException;
+
     /** Shutdown all services and exits the SIAM application. */
     public void exitApplication() throws RemoteException;
 
@@ -13,6 +13,10 @@ import org.apache.log4j.Logger;
  */
 abstract public class PacketFilter implements Serializable {
 
+    // Serialized form is unchanged since first release; keep
+    // compatible with filters sent by earlier portal versions
+    private static final long serialVersionUID = -5763103411069884920L;
+
     /** Log4j logger */
     protected static Logger _log4j = Logger.getLogger(PacketFilter.class);
 
@@ -56,6 +60,12 @@ abstract public class PacketFilter implements Serializable {
 
     }
 
+    /** Return true if specified packet type (SENSORDATA_FLAG, 
+	METADATA_FLAG, DEVICEMESSAGE_FLAG or SUMMARY_FLAG) is filtered. */
+    protected boolean filteredType(int typeFlag) {
+	return (typeFlag & _filteredTypeFlags) != 0;
+    }
+
     /** Return string representation */
     public String toString() {
 	StringBuffer buf = new StringBuffer();
@@ -14,6 +14,10 @@ public class PacketSubsampler
     extends PacketFilter
     implements Serializable {
 
+    // Serialized form is unchanged since first release; keep
+    // compatible with filters sent by earlier portal versions
+    private static final long serialVersionUID = 5616390077901990924L;
+
     /** Number of packets to skip between subsamples. _skipInterval of 0 means
      to sample every packet. _skipInterval of -1 means to never sample. */
     protected int _skipInterval = 0;
@@ -41,25 +45,23 @@ public class PacketSubsampler
     public boolean pass(DevicePacket packet) {
 
 	if (filteredType(packet)) {
+	    return sample();
+	}
+	else {
+	    // This packet type is not filtered.
+	    return true;
+	}
+    }
 
-	    if (_skipInterval < 0) {
-		// Negative skip interval means never sample
-		return false;
-	    }
-
-	    if (_skipInterval == 0) {
-		// Skip interval of 0 means never skip any packets
-		return true;
-	    }
-
-	    // Keeping track of total packets processed, return true if
-	    // we've hit the skip interval
-	    if ((_currentCount++ % (_skipInterval + 1)) == 0) {
-		return true;
-	    }
-	    else {
-		return false;
-	    }
+
+    /** Same as pass(DevicePacket), for a packet of the specified type
+	(SENSORDATA_FLAG, METADATA_FLAG, DEVICEMESSAGE_FLAG or 
+	SUMMARY_FLAG); lets a log apply the filter without reading the 
+	packet. Valid only if typeOnly() returns true. */
+    public boolean passType(int typeFlag) {
+
+	if (filteredType(typeFlag)) {
+	    return sample();
 	}
 	else {
 	    // This packet type is not filtered.
@@ -68,6 +70,47 @@ public class PacketSubsampler
     }
 
 
+    /** Return true if passType() returns the same result for every 
+	packet of the specified type, without changing the filter state;
+	i.e. the type is not filtered, or is always or never sampled. */
+    public boolean statelessType(int typeFlag) {
+	return (!filteredType(typeFlag) || _skipInterval <= 0);
+    }
+
+
+    /** Return true if pass() depends only on packet type, so that 
+	passType() may be used instead. Subclasses may filter on packet 
+	contents. */
+    public boolean typeOnly() {
+	return getClass() == PacketSubsampler.class;
+    }
+
+
+    /** Return true if the current packet of a filtered type should be
+	sampled. */
+    private boolean sample() {
+
+	if (_skipInterval < 0) {
+	    // Negative skip interval means never sample
+	    return false;
+	}
+
+	if (_skipInterval == 0) {
+	    // Skip interval of 0 means never skip any packets
+	    return true;
+	}
+
+	// Keeping track of total packets processed, return true if
+	// we've hit the skip interval
+	if ((_currentCount++ % (_skipInterval + 1)) == 0) {
+	    return true;
+	}
+	else {
+	    return false;
+	}
+    }
+
+
     /** Print string representation */
     public String toString() {
 	return "types: " + super.toString() + 
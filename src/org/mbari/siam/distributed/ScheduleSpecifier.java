@@ -23,6 +23,10 @@ import org.apache.log4j.Logger;
  */
 public class ScheduleSpecifier implements Serializable, Importable {
 
+    /** Serial version ID, pinned to the value computed for the pre-change
+	class, so serialized specifiers stay compatible */
+    private static final long serialVersionUID = -8067362918012716901L;
+
     public static final String DEFAULT_SCHEDULE_NAME = "Default";
 
     // Constants
@@ -1389,6 +1393,141 @@ public class ScheduleSpecifier implements Serializable, Importable {
 	return true;
     }
 
+    /**
+     * Return time (msec, in the frame of calendar from) of the first 
+     * selected second after from, looking ahead no more than maxSeconds; 
+     * return -1 if there is none, or if the cycle count has expired. 
+     * Milliseconds of from are kept, so the result is a whole number of
+     * seconds after from.
+     * <p>
+     * Rather than test every second, each field skips to its next
+     * selected value: unselected months and days are skipped whole,
+     * then the hour, minute and second masks are searched for the
+     * nearest selected value, carrying into the next larger field when
+     * none remains.
+     */
+    public long nextSelectedTime(Calendar from, long maxSeconds) {
+
+	if (_longCycles == 0L)
+	    return -1L;
+
+	Calendar cal = (Calendar) from.clone();
+	long limit = cal.getTime().getTime() + maxSeconds * MS_PER_SECOND;
+
+	cal.add(Calendar.SECOND, 1);
+
+	long position;
+	while ((position = cal.getTime().getTime()) <= limit) {
+
+	    if (!_bMonths[cal.get(Calendar.MONTH)]) {
+		// Skip to start of next month
+		cal.set(Calendar.DAY_OF_MONTH, 1);
+		cal.add(Calendar.MONTH, 1);
+		startOfDay(cal, position);
+		continue;
+	    }
+
+	    if (!isSelectedDay(cal)) {
+		cal.add(Calendar.DAY_OF_MONTH, 1);
+		startOfDay(cal, position);
+		continue;
+	    }
+
+	    int hour = cal.get(Calendar.HOUR_OF_DAY);
+	    int next = nextSelected(_bHours, hour);
+	    if (next < 0) {
+		cal.add(Calendar.DAY_OF_MONTH, 1);
+		startOfDay(cal, position);
+		continue;
+	    }
+	    if (next != hour) {
+		// Check again, in case the hour is skipped (e.g. by DST)
+		cal.set(Calendar.HOUR_OF_DAY, next);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		earliestAfter(cal, position);
+		continue;
+	    }
+
+	    int minute = cal.get(Calendar.MINUTE);
+	    next = nextSelected(_bMinutes, minute);
+	    if (next < 0) {
+		cal.add(Calendar.HOUR_OF_DAY, 1);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		earliestAfter(cal, position);
+		continue;
+	    }
+	    if (next != minute) {
+		cal.set(Calendar.MINUTE, next);
+		cal.set(Calendar.SECOND, 0);
+	    }
+
+	    next = nextSelected(_bSeconds, cal.get(Calendar.SECOND));
+	    if (next < 0) {
+		cal.add(Calendar.MINUTE, 1);
+		cal.set(Calendar.SECOND, 0);
+		earliestAfter(cal, position);
+		continue;
+	    }
+	    cal.set(Calendar.SECOND, next);
+	    earliestAfter(cal, position);
+
+	    long time = cal.getTime().getTime();
+	    return (time <= limit ? time : -1L);
+	}
+	return -1L;
+    }
+
+    /** Return true if calendar's day is selected by the month, day of
+	year, day of month and day of week masks. */
+    private boolean isSelectedDay(Calendar calendar) {
+	return _bMonths[calendar.get(Calendar.MONTH)]
+	    && _bDaysOfYear[calendar.get(Calendar.DAY_OF_YEAR) - 1]
+	    && _bDaysOfMonth[calendar.get(Calendar.DAY_OF_MONTH) - 1]
+	    && _bDaysOfWeek[calendar.get(Calendar.DAY_OF_WEEK) - 1];
+    }
+
+    /** Set calendar's time of day to midnight, keeping milliseconds; 
+	see earliestAfter(). */
+    private static void startOfDay(Calendar calendar, long after) {
+	calendar.set(Calendar.HOUR_OF_DAY, 0);
+	calendar.set(Calendar.MINUTE, 0);
+	calendar.set(Calendar.SECOND, 0);
+	earliestAfter(calendar, after);
+    }
+
+    /** Calendar fields set to a local time that occurs twice (when 
+	daylight saving time ends) resolve to the later occurrence; move
+	calendar to the earlier one, unless that is before time after. */
+    private static void earliestAfter(Calendar calendar, long after) {
+	int savings = calendar.getTimeZone().getDSTSavings();
+	if (savings <= 0)
+	    return;
+
+	long time = calendar.getTime().getTime() - savings;
+	if (time < after)
+	    return;
+
+	Calendar earlier = (Calendar) calendar.clone();
+	earlier.setTime(new Date(time));
+	if (earlier.get(Calendar.DAY_OF_YEAR) == calendar.get(Calendar.DAY_OF_YEAR)
+	    && earlier.get(Calendar.HOUR_OF_DAY) == calendar.get(Calendar.HOUR_OF_DAY)
+	    && earlier.get(Calendar.MINUTE) == calendar.get(Calendar.MINUTE)
+	    && earlier.get(Calendar.SECOND) == calendar.get(Calendar.SECOND))
+	    calendar.setTime(earlier.getTime());
+    }
+
+    /** Return index of first selected element of mask at or after 
+	start, or -1 if there is none. */
+    private static int nextSelected(boolean[] mask, int start) {
+	for (int i = start; i < mask.length; i++) {
+	    if (mask[i])
+		return i;
+	}
+	return -1;
+    }
+
     /** Compute period of execution (for relative schedules) */
     public void computePeriod() {
 	_period = 0L;
@@ -123,6 +123,9 @@ public class FOCENodeConfigurator implements NodeConfigurator
 				  properties.getDeviceLogDirectory(),
 				  nullFilters,
 				  (long )(3600000 * properties.getDataShelfLifeHours()));
+
+	// Index any records written but not indexed before a power loss
+	log.recover();
 	return(log);
     }
 
@@ -12,6 +12,7 @@ import java.rmi.RemoteException;
 import java.net.InetAddress;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
+import java.rmi.ServerException;
 import java.rmi.UnmarshalException;
 import java.text.DateFormat;
 import java.util.Date;
@@ -181,6 +182,10 @@ public class PortalConnection {
     /** Used to send DevicePacketSets to DistributeWorker */
     Vector _distributePacketSets = new Vector();
 
+    /** False once the target node has rejected packetsRetrieved(), i.e.
+	it predates that part of the node protocol */
+    boolean _nodeAcksRetrieved = true;
+
     /** Where to log the data */
     String _logDirectoryBase;
 
@@ -716,7 +721,8 @@ public class PortalConnection {
 					latest = packetStats._latestPacketTime;
 					
 					_targetDeviceID=deviceID[i];
-					packetSet = retrieveData(deviceID[i], latest + 1,
+					long firstKey = latest + 1;
+					packetSet = retrieveData(deviceID[i], firstKey,
 											 Long.MAX_VALUE);
 					
 					totalPackets += packetSet._packets.size();
@@ -755,7 +761,7 @@ public class PortalConnection {
 						// Save data
 						synchronized(_distributePacketSets) {
 							_log4j.debug("adding packet set for deviceID "+deviceID[i]+"");
-							_distributePacketSets.add(new DistributePacketSet(deviceID[i], packetSet));
+							_distributePacketSets.add(new DistributePacketSet(deviceID[i], firstKey, packetSet));
 						}
 						synchronized(_distributeWorker) {
 							try {
@@ -904,11 +910,14 @@ public class PortalConnection {
     class DistributePacketSet
     {
 	long		_deviceID;
+	long		_firstKey;
 	DevicePacketSet _packetSet;
 
-	DistributePacketSet(long deviceID, DevicePacketSet packetSet)
+	DistributePacketSet(long deviceID, long firstKey, 
+			    DevicePacketSet packetSet)
 	{
 	    _deviceID = deviceID;
+	    _firstKey = firstKey;
 	    _packetSet = packetSet;
 	}
     }
@@ -962,7 +971,7 @@ public class PortalConnection {
 				{
 				    distPacketSet = (DistributePacketSet)(i.next());
 					_log4j.debug("calling save and distribute for deviceID "+distPacketSet._deviceID);
-				    saveAndDistributeData(distPacketSet._deviceID, distPacketSet._packetSet);
+				    saveAndDistributeData(distPacketSet._deviceID, distPacketSet._firstKey, distPacketSet._packetSet);
 				}
 				//_log4j.debug("nulling workerPacketSets and yielding");
 			    workerPacketSets = null;
@@ -976,7 +985,8 @@ public class PortalConnection {
 	    return _working;
 	}
 
-	void saveAndDistributeData(long deviceID, DevicePacketSet packetSet)
+	void saveAndDistributeData(long deviceID, long firstKey,
+				   DevicePacketSet packetSet)
 	{
 		if (packetSet._packets != null) {
 			
@@ -987,6 +997,9 @@ public class PortalConnection {
 				saveData(deviceID, packetSet._packets);
 				//getSession().notify(new PortalEvent(this,PortalEvent.SAVE_DATA_END));
 				
+				// Node may compact packets once they're saved here
+				acknowledgeRetrieved(deviceID, firstKey, packetSet._packets);
+				
 			} catch (Exception e) {
 				
 				//getSession().notify(new PortalEvent(this,PortalEvent.EXCEPTION,e));
@@ -1286,6 +1299,7 @@ public class PortalConnection {
 	_log4j.debug("Looking for node server stub at " + nodeURL);
 
 	_targetNode = null;
+	_nodeAcksRetrieved = true;
 
 	try {
 	    _targetNode = (MOOSNode) Naming.lookup(nodeURL);
@@ -1343,6 +1357,48 @@ public class PortalConnection {
 	}
     }
 
+    /**
+     * Acknowledge to node that packets from specified device, retrieved
+     * with keys starting at firstKey, have been saved. Failure is logged 
+     * but not fatal; the node then simply keeps the packets. Nodes that 
+     * don't support acknowledgements are detected on the first call,
+     * and not called again until the connection is reestablished. */
+    protected void acknowledgeRetrieved(long deviceID, long firstKey,
+					Vector packets) {
+
+	MOOSNode node = _targetNode;
+	if (!_nodeAcksRetrieved || node == null || packets.size() == 0) {
+	    return;
+	}
+
+	long lastKey = Long.MIN_VALUE;
+	for (int i = 0; i < packets.size(); i++) {
+	    DevicePacket packet = (DevicePacket )packets.elementAt(i);
+	    if (packet == null) {
+		// Not all packets were saved
+		return;
+	    }
+	    lastKey = Math.max(lastKey, packet.systemTime());
+	}
+
+	try {
+	    node.packetsRetrieved(deviceID, firstKey, lastKey, packets.size());
+	}
+	catch (Exception e) {
+	    if (e instanceof UnmarshalException ||
+		(e instanceof ServerException && 
+		 ((ServerException )e).detail instanceof UnmarshalException)) {
+		// Node predates packetsRetrieved()
+		_log4j.info("Node " + _targetNodeName + 
+			    " doesn't accept retrieval acknowledgements");
+		_nodeAcksRetrieved = false;
+		return;
+	    }
+	    _log4j.warn("packetsRetrieved() failed for device " + deviceID +
+			": " + e);
+	}
+    }
+
     /**
      * Retrieve data from specified device, within specified time-window. */
     protected DevicePacketSet retrieveData(long deviceID, long startTime,
@@ -0,0 +1,164 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.operations.utils;
+
+import org.mbari.siam.core.DeviceLog;
+import org.mbari.siam.core.DevicePacketCodec;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.PropertyConfigurator;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.ConsoleAppender;
+
+/**
+ <p>
+ Copy a SIAM device log into a new log, writing its records in the
+ specified record format ("compact" or "serialized"). Existing logs
+ remain readable in either format, so conversion is optional; it is
+ mainly useful to shrink archived logs, or to produce a serialized
+ copy for tools that read the data file directly.
+ </p>
+ <p>
+ Filtering options are the same as for LogSplitter, and the same
+ restrictions on the output directory apply.
+ </p>
+
+ @see org.mbari.siam.operations.utils.LogSplitter
+ @see org.mbari.siam.core.DevicePacketCodec
+ */
+public class LogConverter extends LogSplitter {
+	
+    /** Log4j logger */
+    protected static Logger _log4j = Logger.getLogger(LogConverter.class);
+	
+	// command line options
+	/** Output record format (String) */
+	protected static final String OPT_FORMAT  ="-format";
+	
+	/** Output record format */
+	int _recordFormat=DevicePacketCodec.COMPACT_FORMAT;
+	
+	/** No-arg Constructor */
+	public LogConverter(){
+		super();
+	}
+	
+	/** Create the output log, using the configured record format.
+	 Packets are written in batches, since the output log is
+	 closed (and its index synced) when conversion completes.
+	 */
+	protected DeviceLog createOutputLog(long deviceID, String directory)
+	throws Exception{
+		DeviceLog log=super.createOutputLog(deviceID,directory);
+		log.setRecordFormat(_recordFormat);
+		log.enableGroupCommit(256,0,DeviceLog.SYNC_NONE);
+		return log;
+	}
+	
+	/** Print use message.
+	 Appends to base class method output.
+	 */
+	public void printUsage(){
+		super.printUsage();
+		System.err.println("LogConverter options:");
+		System.err.println("");
+		System.err.println(" "+LogConverter.OPT_FORMAT+"          output record format: compact (default) or serialized");
+		System.err.println("");
+		return;
+	}
+	
+	/** Process application-specific command line options.
+	 Handles LogSplitter options, plus the record format option.
+	 
+	 @param args command line argument array
+	 @param index argument to process
+	 @return total number of arguments used
+	 */
+	public int processCustomOption(String[] args,int index)
+	throws Exception{
+		
+		int optionCount=super.processCustomOption(args,index);
+		if(optionCount>0){
+			return optionCount;
+		}
+		
+		// Maximum number of 'option' tokens in args (last two args are
+		// mandatory)
+		int maxOptionTokens = args.length - 2;
+		int i=index;
+		
+		if (args[i].equals(LogConverter.OPT_FORMAT) && i < maxOptionTokens - 1) {
+			String format=args[++i];
+			
+			if(_log4j.isDebugEnabled()){
+				_log4j.debug("parsing format["+format+"]");
+			}
+			_recordFormat=DevicePacketCodec.parseFormat(format);
+			optionCount+=2;
+		}
+		
+		// return number of arguments processed
+		return optionCount;
+	}
+	
+	/** Main entry point for LogConverter. */
+    public static void main(String[] args) {
+		/*
+		 * Set up a simple configuration that logs on the console. 
+		 * See LogSplitter.main().
+		 */
+		PropertyConfigurator.configure(System.getProperties());
+		PatternLayout layout = new PatternLayout("%r %-5p %x %c{1} [%t]: %m%n");
+		BasicConfigurator.configure(new ConsoleAppender(layout));
+		
+		// Create log utility
+		LogConverter util=new LogConverter();
+		
+		// Check command line options and print use message
+		// if not enough options
+		if (args.length < 4) {
+			util.printUsage();
+			return;
+		}
+		
+		try{
+			// Configure log utility using 
+			// command line options
+			if(util.configure(args)==false){
+				// if configuration fails, 
+				// print use message and exit
+				util.printUsage();
+				return;			
+			}
+		}catch (Exception e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		
+		try {
+			// get utility configuration
+			LogUtilityConfig config=util.getConfiguration();
+			// get device log
+			DeviceLog log=new DeviceLog(config.getDeviceID(),config.getLogDirectory());
+			log.setMappedIndex(true);
+			
+			if (config.getVerbose()) {
+				// print configuration
+				System.out.println("Configuration:\n"+util.getConfiguration());
+			}
+			
+			// copy packets, per configuration options
+			util.processLog(log,util,true);
+			util.closeOutputLog();
+			log.close();
+			
+		} catch (Exception e) {
+			System.err.println(e);
+		}		
+    }
+	
+}
@@ -145,7 +145,7 @@ public class LogSplitter extends LogUtility {
 			if(_log4j.isDebugEnabled()){
 				_log4j.debug("creating log ["+dataFileName+"]");
 			}
-			_outputLog=new DeviceLog(deviceID,outputDirectory.getPath());
+			_outputLog=createOutputLog(deviceID,outputDirectory.getPath());
 		}
 		
 		// append the packet to the log
@@ -153,6 +153,25 @@ public class LogSplitter extends LogUtility {
 		_outputLog.appendPacket(packet,false,false);
 	}
 	
+	/** Create the output log. Subclasses may override to configure
+	 the log before packets are appended.
+	 
+	 @param deviceID device ID of output log
+	 @param directory output log directory
+	 */
+	protected DeviceLog createOutputLog(long deviceID, String directory)
+	throws Exception{
+		return new DeviceLog(deviceID,directory);
+	}
+	
+	/** Close the output log, if it was created. */
+	public void closeOutputLog()
+	throws Exception{
+		if(_outputLog!=null){
+			_outputLog.close();
+		}
+	}
+	
 	/** Print use message.
 	 Appends to base class method output.
 	 */
@@ -284,6 +303,7 @@ public class LogSplitter extends LogUtility {
 			
 			// do utility action, per configuration options
 			util.processLog(log,util,true);
+			util.closeOutputLog();
 			
 		} catch (Exception e) {
 			System.err.println(e);
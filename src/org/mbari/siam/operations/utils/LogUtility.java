@@ -21,6 +21,7 @@ import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
 import org.mbari.siam.core.DeviceLog;
+import org.mbari.siam.core.DeviceLogChecker;
 import org.mbari.siam.core.DeviceLogIterator;
 import org.mbari.siam.utils.TimeUtils;
 import org.mbari.siam.operations.portal.PacketStats;
@@ -137,6 +138,9 @@ In addition to formatting flags, it is possible to filter multiple packet types,
  -verbose          verbose output (for debug)<br>
  -check            check logs and summarize<br>
  -repair           attempt to repair corrupt log<br>
+ -upgrade          record packet types and sizes in log index<br>
+ -resume           resume interrupted check (with -check or -repair)<br>
+ -threads <n>      number of threads used by check (default: one per processor)<br>
  -age              display age (seconds) of latest packet in log<br>
  
  -start <time>     show records after <time><br>
@@ -372,6 +376,12 @@ public class LogUtility{// implements SpecifierParser{
 	protected static final String OPT_CHECK  ="-check";
 	/** command line option: (index repair action flag) */
 	protected static final String OPT_REPAIR ="-repair";
+	/** command line option: (index column upgrade action flag) */
+	protected static final String OPT_UPGRADE ="-upgrade";
+	/** command line option: (resume interrupted check action flag) */
+	protected static final String OPT_RESUME ="-resume";
+	/** command line option: (specify number of check threads) */
+	protected static final String OPT_THREADS ="-threads";
 	/** command line option: (specify global output format string) */
 	protected static final String OPT_FORMAT ="-format";
 	/** command line option: (specify override metadata format string) */
@@ -559,6 +569,7 @@ public class LogUtility{// implements SpecifierParser{
 	 LogUtilityConfig instance.
 	 If the config instance defines a start time, the log iterator
 	 will start at that time. Otherwise, it will start at the beginning of the log.
+	 The iterator reads the log sequentially (see DeviceLogIterator.setReadAhead()).
 	 
 	 @param log     DeviceLog instance
 	 @param config  LogUtilityConfig instance (indicates log location device ID and filter options)
@@ -573,7 +584,9 @@ public class LogUtility{// implements SpecifierParser{
 			logIterator = new DeviceLogIterator(log,startTime);
 		}else{
 			logIterator = new DeviceLogIterator(log);
-		}		
+		}
+		// Whole logs are scanned in order; read them sequentially
+		logIterator.setReadAhead(DeviceLogIterator.DEFAULT_READ_AHEAD_BYTES);
 		return logIterator;
 	}
 	
@@ -947,6 +960,29 @@ public class LogUtility{// implements SpecifierParser{
 		log.check(log,repair);
     }
 	
+	/** Check device log and repair (reconstruct index file) if true,
+	 printing progress to stderr
+	 
+	 @param log DeviceLog instance to check
+	 @param repair Repair index file if true, just check otherwise
+	 @param threads number of threads that read the log (0: one per processor)
+	 @param resume continue an interrupted check if true
+	 
+	 */
+	public static void check(DeviceLog log,boolean repair,int threads,boolean resume){
+		DeviceLogChecker checker=new DeviceLogChecker(log,repair);
+		if(threads>0){
+			checker.setThreads(threads);
+		}
+		checker.setResume(resume);
+		checker.setProgress(System.err);
+		try{
+			checker.check();
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+    }
+	
     /** Return true if byte is printable.
 	 
 	 @param character byte to evaluate
@@ -1130,6 +1166,12 @@ public class LogUtility{// implements SpecifierParser{
 		boolean doCheck=false;
 		// perform log index repair flag
 		boolean doRepair=false;
+		// perform log index column upgrade flag
+		boolean doUpgrade=false;
+		// resume interrupted log check flag
+		boolean doResume=false;
+		// number of log check threads (0: one per processor)
+		int checkThreads=0;
 		
 		// verbose application output 
 		boolean verbose=false;
@@ -1214,6 +1256,22 @@ public class LogUtility{// implements SpecifierParser{
 				// parse log repair option
 				doRepair=true;
 				doCheck=true;
+			}else if (args[i].equals(LogUtility.OPT_UPGRADE)){
+				// parse index upgrade option
+				doUpgrade=true;
+			}else if (args[i].equals(LogUtility.OPT_RESUME)){
+				// parse resume check option
+				doResume=true;
+				doCheck=true;
+			}else if (args[i].equals(LogUtility.OPT_THREADS) && i < maxOptionTokens-1) {
+				// parse number of check threads
+				try {
+					checkThreads=Integer.parseInt(args[++i]);
+				}
+				catch (NumberFormatException e) {
+					System.err.println("Invalid number of threads; integer required");
+					usageError = true;
+				}
 			}else if (args[i].equals(LogUtility.OPT_SKIP) && i < maxOptionTokens-1) {
 				// parse skip interval
 				try {
@@ -1400,6 +1458,9 @@ public class LogUtility{// implements SpecifierParser{
 		config.setDoCalcAge(doCalcAge);
 		config.setDoCheck(doCheck);
 		config.setDoRepair(doRepair);
+		config.setDoUpgrade(doUpgrade);
+		config.setDoResume(doResume);
+		config.setCheckThreads(checkThreads);
 		config.setVerbose(verbose);
 		
 		// return successfully
@@ -1420,6 +1481,9 @@ public class LogUtility{// implements SpecifierParser{
 		System.err.println(" "+LogUtility.OPT_VERBOSE+"            verbose output (for debug)");
 		System.err.println(" "+LogUtility.OPT_CHECK+"              check logs and summarize");
 		System.err.println(" "+LogUtility.OPT_REPAIR+"             attempt to repair corrupt log");
+		System.err.println(" "+LogUtility.OPT_UPGRADE+"            record packet types and sizes in log index");
+		System.err.println(" "+LogUtility.OPT_RESUME+"             resume interrupted check (with -check or -repair)");
+		System.err.println(" "+LogUtility.OPT_THREADS+" <n>        number of threads used by check (default: one per processor)");
 		System.err.println(" "+LogUtility.OPT_AGE+"                display age (seconds) of latest packet in log");
 		
 		System.err.println(" "+LogUtility.OPT_START+" <time>       show records after <time>");
@@ -1514,6 +1578,8 @@ public class LogUtility{// implements SpecifierParser{
 			LogUtilityConfig config=util.getConfiguration();
 			// create DeviceLog instance
 			DeviceLog log=new DeviceLog(config.getDeviceID(),config.getLogDirectory());
+			// Shore-side logs can be large; search the index in memory
+			log.setMappedIndex(true);
 			
 			if (config.getVerbose()) {
 				// print configuration (verbose output mode)
@@ -1532,7 +1598,15 @@ public class LogUtility{// implements SpecifierParser{
 			if(config.getDoCheck()){
 				// do log index integrity check (optional repair)
 				// and return
-				util.check(log,config.getDoRepair());
+				util.check(log,config.getDoRepair(),
+						   config.getCheckThreads(),config.getDoResume());
+				return;
+			}
+			
+			if(config.getDoUpgrade()){
+				// record packet types and sizes in index entries
+				// written by earlier versions, and return
+				System.out.println("updated "+log.upgradeIndexColumns()+" index entries");
 				return;
 			}
 			
@@ -73,6 +73,9 @@ import org.apache.log4j.Level;
  # Utility actions<br>
  doCheck      Action flag: do index integrity check<br>
  doRepair     Action flag: repair index file if errors are found<br>
+ doUpgrade    Action flag: record packet types and sizes in index<br>
+ doResume     Action flag: resume interrupted check<br>
+ checkThreads Number of threads used by check (0: one per processor)<br>
  doCalcAge    Action flag: return age of most recent record in the log file<br>
  </code>
  <p>
@@ -150,6 +153,12 @@ public class LogUtilityConfig {
 	boolean _doCheck=false;
 	/** Log index repair check flag */
 	boolean _doRepair=false;
+	/** Log index column upgrade flag */
+	boolean _doUpgrade=false;
+	/** Resume interrupted check flag */
+	boolean _doResume=false;
+	/** Number of log check threads (0: one per processor) */
+	int _checkThreads=0;
 	/** Data buffer formatting flags (logical OR) */
 	int _formatFlags=ASCII_ALL;
 	/** Verbose output flag */
@@ -253,6 +262,12 @@ public class LogUtilityConfig {
 	public void setDoCheck(boolean doCheck){_doCheck=doCheck;}
 	/** Set log index repair flag */
 	public void setDoRepair(boolean doRepair){_doRepair=doRepair;}
+	/** Set log index column upgrade flag */
+	public void setDoUpgrade(boolean doUpgrade){_doUpgrade=doUpgrade;}
+	/** Set resume interrupted check flag */
+	public void setDoResume(boolean doResume){_doResume=doResume;}
+	/** Set number of log check threads (0: one per processor) */
+	public void setCheckThreads(int checkThreads){_checkThreads=checkThreads;}
 	/** Set log age calculation flag */
 	public void setDoCalcAge(boolean doCalcAge){_doCalcAge=doCalcAge;}
 	
@@ -288,6 +303,12 @@ public class LogUtilityConfig {
 	public boolean getDoCheck(){return _doCheck;}
 	/** Get log index repair flag */
 	public boolean getDoRepair(){return _doRepair;}
+	/** Get log index column upgrade flag */
+	public boolean getDoUpgrade(){return _doUpgrade;}
+	/** Get resume interrupted check flag */
+	public boolean getDoResume(){return _doResume;}
+	/** Get number of log check threads (0: one per processor) */
+	public int getCheckThreads(){return _checkThreads;}
 	/** Get log age calculation flag */
 	public boolean getDoCalcAge(){return _doCalcAge;}
 	
@@ -433,6 +454,9 @@ public class LogUtilityConfig {
 		_stringBuffer.append("doCalcAge:"+_doCalcAge+del);
 		_stringBuffer.append("doCheck:"+_doCheck+del);
 		_stringBuffer.append("doRepair:"+_doRepair+del);
+		_stringBuffer.append("doUpgrade:"+_doUpgrade+del);
+		_stringBuffer.append("doResume:"+_doResume+del);
+		_stringBuffer.append("checkThreads:"+_checkThreads+del);
 		_stringBuffer.append("formatFlags:0x"+Integer.toHexString(_formatFlags)+del);
 		_stringBuffer.append("sdformat:["+_sdformat+"]"+del);
 		_stringBuffer.append("mdformat:["+_mdformat+"]"+del);
@@ -0,0 +1,45 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.operations.utils;
+
+import org.mbari.siam.distributed.Node;
+
+/**
+   Print node's performance metrics report, and optionally write it to
+   the node log.
+ */
+public class NodeMetrics extends NodeUtility {
+
+    boolean _logPacket = false;
+
+    public void processCustomOption(String[] args, int index) 
+	throws InvalidOption {
+	if (args[index].equals("-log")) {
+	    _logPacket = true;
+	}
+	else {
+	    throw new InvalidOption("invalid option: " + args[index]);
+	}
+    }
+
+    /** Get and print node metrics. */
+    public void processNode(Node node) 
+	throws Exception {
+	byte[] report = node.getMetrics(_logPacket);
+	System.out.println(new String(report));
+    }
+
+    /** Print usage message. */
+    public void printUsage() {
+	System.err.println("NodeMetrics nodeURL [-log]");
+    }
+
+    public static void main(String[] args) {
+	NodeMetrics metrics = new NodeMetrics();
+	metrics.processArguments(args);
+	metrics.run();
+    }
+}
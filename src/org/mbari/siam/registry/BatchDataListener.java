@@ -0,0 +1,29 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.registry;
+
+import org.mbari.siam.distributed.PacketParser;
+import org.mbari.siam.distributed.DevicePacket;
+
+/** BatchDataListener is an InstrumentDataListener that takes the data
+    records queued for it in batches, rather than one call per record.
+    Its single-record dataCallback() isn't called by the RegistryEntry.
+ */
+
+public interface BatchDataListener extends InstrumentDataListener
+{
+    /** Callback for data records that arrived since the last callback,
+	oldest first. As with dataCallback(), the service may reuse the
+	packets once this method returns.
+	@param sensorData - SensorDataPackets that instrument logged
+	@param fields - Result of passing each packet to
+	PacketParser.parseFields(); an element is null if the packet
+	couldn't be parsed or the DeviceService has no parser.
+    */
+    public void dataCallback(DevicePacket[] sensorData, 
+			     PacketParser.Field[][] fields);
+
+} /* class BatchDataListener */
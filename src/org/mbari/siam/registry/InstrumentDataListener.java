@@ -16,7 +16,9 @@ import org.mbari.siam.distributed.DevicePacket;
 
 public interface InstrumentDataListener
 {
-    /** Callback for new data record
+    /** Callback for new data record. The service may reuse sensorData
+	for a later sample once this method returns, so listeners that keep
+	the packet must copy it.
 	@param sensorData - SensorDataPacket that instrument logged
 	@param fields - Result of passing sensorData to PacketParser.parseFields()
 	if registered DeviceService is an instanceof BaseInstrumentService.  Else null.
@@ -5,6 +5,7 @@ home directory.
 */
 package org.mbari.siam.registry;
 
+import java.util.Hashtable;
 import java.util.Vector;
 import java.util.Iterator;
 
@@ -39,6 +40,10 @@ import org.mbari.siam.distributed.DuplicateIdException;
     implementing the {@link org.mbari.siam.registry.InstrumentDataListener
     InstrumentDataListener} interface, and registering with the <b>registerDataCallback()</b>
     method.
+    <p>
+    Entries are looked up by registry name (ignoring case) or ID in hash
+    tables. Data callbacks run on a pool of threads shared by all entries
+    (see RegistryEntry.setCallbackThreads()).
 
     @author Bob Herlien
  */
@@ -48,6 +53,10 @@ public class InstrumentRegistry implements ServiceListener
     protected static Logger _log4j = Logger.getLogger(InstrumentRegistry.class);
 
     protected Vector _entries = new Vector();
+    /** Entries by lower-case registry name */
+    protected Hashtable _entriesByName = new Hashtable();
+    /** Entries by ID */
+    protected Hashtable _entriesById = new Hashtable();
     protected Vector _listeners = new Vector();
     protected Vector _deferredListeners = new Vector();
     private static InstrumentRegistry _registry = null;
@@ -76,31 +85,16 @@ public class InstrumentRegistry implements ServiceListener
     /** Find a RegistryEntry by registryName String */
     public RegistryEntry findEntry(String registryName)
     {
-	Iterator it = _entries.iterator();
-	RegistryEntry entry;
+	if (registryName == null)
+	    return(null);
 
-	while(it.hasNext())
-	{
-	    entry = (RegistryEntry)it.next();
-	    if (entry.equals(registryName))
-		return(entry);
-	}
-	return(null);
+	return((RegistryEntry)_entriesByName.get(registryName.toLowerCase()));
     }
 
     /** Find a RegistryEntry by instrument ID */
     public RegistryEntry findEntry(long id)
     {
-	Iterator it = _entries.iterator();
-	RegistryEntry entry;
-
-	while(it.hasNext())
-	{
-	    entry = (RegistryEntry)it.next();
-	    if (entry.equals(id))
-		return(entry);
-	}
-	return(null);
+	return((RegistryEntry)_entriesById.get(new Long(id)));
     }
 
     /** Find a DeviceService by registryName String */
@@ -114,7 +108,8 @@ public class InstrumentRegistry implements ServiceListener
     /** Add a RegistryEntry				*/
     public synchronized void add(RegistryEntry entry) throws DuplicateIdException
     {
-	if (_entries.contains(entry))
+	if ((findEntry(entry.getId()) != null) ||
+	    (findEntry(entry.registryName()) != null))
 	    throw new DuplicateIdException("RegistryEntry already exists for Instrument ID "
 					   + entry.getId());
 
@@ -143,8 +138,9 @@ public class InstrumentRegistry implements ServiceListener
 	    }
 	}
 
-	entry.start();
 	_entries.add(entry);
+	_entriesByName.put(entry.registryName().toLowerCase(), entry);
+	_entriesById.put(new Long(entry.getId()), entry);
 
 	Iterator it = _listeners.iterator();
 
@@ -204,6 +200,10 @@ public class InstrumentRegistry implements ServiceListener
 	{
 	    entry.close();
 	    _entries.remove(entry);
+	    if (findEntry(entry.registryName()) == entry)
+		_entriesByName.remove(entry.registryName().toLowerCase());
+	    if (findEntry(entry.getId()) == entry)
+		_entriesById.remove(new Long(entry.getId()));
 
 	    if (entry._dataListeners.size() > 0)
 	    {
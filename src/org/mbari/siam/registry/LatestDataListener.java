@@ -0,0 +1,18 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.registry;
+
+/** LatestDataListener is an InstrumentDataListener that needs only the
+    latest data record of its instrument (e.g. a control loop input). If
+    records arrive faster than the listener handles them, its dataCallback()
+    is called only with the newest; and if all of a RegistryEntry's
+    listeners are LatestDataListeners, the entry queues only the newest
+    record, rather than dropping new records when its queue is full.
+ */
+
+public interface LatestDataListener extends InstrumentDataListener
+{
+} /* class LatestDataListener */
@@ -8,10 +8,17 @@ package org.mbari.siam.registry;
 import java.util.Vector;
 import java.util.Iterator;
 
+import edu.emory.mathcs.backport.java.util.concurrent.LinkedBlockingQueue;
+import edu.emory.mathcs.backport.java.util.concurrent.ThreadFactory;
+import edu.emory.mathcs.backport.java.util.concurrent.ThreadPoolExecutor;
+import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+
 import org.apache.log4j.Logger;
 
 import org.mbari.siam.core.DeviceService;
 import org.mbari.siam.core.BaseInstrumentService;
+import org.mbari.siam.core.Metrics;
+import org.mbari.siam.distributed.DevicePacket;
 import org.mbari.siam.distributed.SensorDataPacket;
 import org.mbari.siam.distributed.InvalidDataException;
 import org.mbari.siam.distributed.PacketParser;
@@ -19,17 +26,33 @@ import org.mbari.siam.distributed.PacketParser;
 /** RegistryEntry encapsulates one registrant in the InstrumentRegistry.
     It includes the ability to receive callbacks when the Instrument that it represents
     posts new data.
+    <p>
+    Entries don't have threads of their own. While an entry has data queued,
+    it runs on a thread from a pool shared by all entries (see
+    setCallbackThreads()), calling its listeners with each record in turn;
+    so each listener sees its instrument's records in order. Listeners may
+    instead take records in batches (BatchDataListener), or only the
+    latest record (LatestDataListener).
 
     @author Bob Herlien
  */
 
-public class RegistryEntry extends Thread
+public class RegistryEntry implements Runnable
 {
     protected static Logger _log4j = Logger.getLogger(RegistryEntry.class);
 
     protected static final int MAX_QUEUE_SIZE = 20;
     protected static final int LOG_MODULUS = 20;
 
+    /** Default number of threads that call InstrumentDataListeners */
+    public static final int DEFAULT_CALLBACK_THREADS = 4;
+
+    /** Idle callback threads exit after this many seconds */
+    protected static final long CALLBACK_IDLE_SEC = 60;
+
+    /** Threads that call InstrumentDataListeners, shared by all entries */
+    protected static ThreadPoolExecutor _executor = createExecutor();
+
     protected DeviceService _service;
     protected String _regName;
     protected long _isiId = 0;
@@ -38,6 +61,10 @@ public class RegistryEntry extends Thread
 
     protected Vector _dataListeners = new Vector();
     protected Vector _dataPackets = new Vector();
+    /** Packets being delivered; swapped with _dataPackets */
+    protected Vector _delivering = new Vector();
+    /** True while entry is queued or running on a callback thread */
+    protected boolean _scheduled = false;
     protected boolean _running = true;
     protected int     _pktsDropped = 0;
 
@@ -54,6 +81,48 @@ public class RegistryEntry extends Thread
 	_log4j.debug("Created " + toString());
     }
 
+    /** Set number of threads that call InstrumentDataListeners, for all
+	entries (default DEFAULT_CALLBACK_THREADS). */
+    public static void setCallbackThreads(int nThreads)
+    {
+	if (nThreads < 1)
+	    throw new IllegalArgumentException("nThreads must be positive");
+
+	synchronized (_executor) {
+	    if (nThreads > _executor.getMaximumPoolSize()) {
+		_executor.setMaximumPoolSize(nThreads);
+		_executor.setCorePoolSize(nThreads);
+	    }
+	    else {
+		_executor.setCorePoolSize(nThreads);
+		_executor.setMaximumPoolSize(nThreads);
+	    }
+	}
+    }
+
+    /** Create pool of callback threads, which exit when idle */
+    private static ThreadPoolExecutor createExecutor()
+    {
+	ThreadPoolExecutor executor = 
+	    new ThreadPoolExecutor(DEFAULT_CALLBACK_THREADS, 
+				   DEFAULT_CALLBACK_THREADS,
+				   CALLBACK_IDLE_SEC, TimeUnit.SECONDS,
+				   new LinkedBlockingQueue(),
+				   new ThreadFactory() {
+				       int _nThreads = 0;
+
+				       public synchronized Thread newThread(Runnable r) {
+					   Thread thread = 
+					       new Thread(r, "RegistryCallback-" + 
+							  (++_nThreads));
+					   thread.setDaemon(true);
+					   return thread;
+				       }
+				   });
+	executor.allowCoreThreadTimeOut(true);
+	return executor;
+    }
+
     /** Get the DeviceService represented by this entry	*/
     public DeviceService getService()
     {
@@ -98,90 +167,188 @@ public class RegistryEntry extends Thread
     /** Call back the InstrumentDataListeners	*/
     public synchronized void callDataListeners(SensorDataPacket newData)
     {
-	if (_dataPackets.size() >= MAX_QUEUE_SIZE) {
+	if (!_running)
+	    return;
+
+	if (latestOnly()) {
+	    // Listeners need only the newest packet
+	    for (int i = 0; i < _dataPackets.size(); i++) {
+		releaseSample((SensorDataPacket)_dataPackets.elementAt(i));
+		Metrics.count("registry.coalesced", 1);
+	    }
+	    _dataPackets.clear();
+	}
+	else if (_dataPackets.size() >= MAX_QUEUE_SIZE) {
+	    Metrics.count("registry.dropped", 1);
 	    if ((_pktsDropped++ % LOG_MODULUS) == 0) {
 		_log4j.warn("callDataListeners for " + _regName +
 			    ": Dropping data packet due to queue size = " + 
 			    _dataPackets.size() + " Total dropped = " + _pktsDropped);
 		}
-	    }
-	else {
-	    _dataPackets.add(newData);
+	    return;
+	}
+
+	// Hold pooled packet until listeners have been called
+	retainSample(newData);
+	_dataPackets.add(newData);
+
+	if (!_scheduled) {
+	    _scheduled = true;
 	    try {
-		notify();
-	    } catch(Exception e) {
-		_log4j.error("Exception in notify(): " + e);
+		_executor.execute(this);
+	    } catch (Exception e) {
+		_scheduled = false;
+		_log4j.error("callDataListeners for " + _regName + 
+			     ": couldn't schedule callback: " + e);
 	    }
 	}
     }
 
-    /** run() method for thread.  This thread actually calls the InstrumentDataListeners
-	when new data arrives.
+    /** Return true if all listeners are LatestDataListeners */
+    protected boolean latestOnly()
+    {
+	synchronized (_dataListeners) {
+	    for (int i = 0; i < _dataListeners.size(); i++) {
+		if (!(_dataListeners.elementAt(i) instanceof LatestDataListener))
+		    return(false);
+	    }
+	    return(_dataListeners.size() > 0);
+	}
+    }
+
+    /** run() method for callback thread.  Calls the InstrumentDataListeners
+	with the packets queued, until the queue is empty.
     */
     public void run()
     {
-	SensorDataPacket sensorData;
-	Iterator it;
-	PacketParser.Field[] fields;
-	
-	while(_running)
+	Vector packets;
+
+	while (true)
 	{
 	    synchronized(this)
 	    {
-		while ((_dataPackets.size() == 0) && _running)
-		{
-		    try {
-			wait(2000);
-		    } catch (InterruptedException e) {
-		    } catch (Exception e) {
-			_log4j.warn("Exception in run().wait()" + e);
-		    }
+		if ((_dataPackets.size() == 0) || !_running) {
+		    _scheduled = false;
+		    return;
 		}
 
-		if (!_running)
-		    return;
+		// Take all queued packets
+		packets = _dataPackets;
+		_dataPackets = _delivering;
+		_delivering = packets;
+	    }
+
+	    if (_log4j.isDebugEnabled()) {
+		_log4j.debug("Calling DataListeners for " + _serviceName + 
+			     " with " + packets.size() + " packets");
+	    }
+
+	    try {
+		deliver(packets);
+	    } catch (Throwable e) {
+		_log4j.error("Exception in dataCallback() for " + _regName + ":  " + e);
+	    }
+
+	    for (int i = 0; i < packets.size(); i++)
+		releaseSample((SensorDataPacket)packets.elementAt(i));
+	    packets.clear();
+	}	
+    }
+
+    /** Call listeners with packets: each packet in turn, the batch or
+	the last packet, as each listener requires. */
+    protected void deliver(Vector packets)
+    {
+	Object[] listeners = _dataListeners.toArray();
+	int nPackets = packets.size();
+	PacketParser.Field[][] fields = new PacketParser.Field[nPackets][];
+	boolean[] parsed = new boolean[nPackets];
+
+	for (int i = 0; i < nPackets; i++)
+	{
+	    SensorDataPacket sensorData = (SensorDataPacket)packets.elementAt(i);
+
+	    for (int j = 0; j < listeners.length; j++)
+	    {
+		if ((listeners[j] instanceof BatchDataListener) ||
+		    ((listeners[j] instanceof LatestDataListener) && 
+		     (i < nPackets - 1)))
+		    continue;
 
 		try {
-		    sensorData = (SensorDataPacket)_dataPackets.firstElement();
-		    _dataPackets.remove(0);
+		    ((InstrumentDataListener)listeners[j]).dataCallback(sensorData, 
+									parseFields(packets, fields, 
+										    parsed, i));
 		} catch (Exception e) {
-		    _log4j.error("Exception in getting _dataPacket: " + e);
-		    continue;
+		    _log4j.error("Exception in dataCallback() for " + _regName + ":  " + e);
 		}
 	    }
+	}
+
+	DevicePacket[] batch = null;
+
+	for (int j = 0; j < listeners.length; j++)
+	{
+	    if (!(listeners[j] instanceof BatchDataListener))
+		continue;
+
+	    if (batch == null) {
+		batch = new DevicePacket[nPackets];
+		packets.copyInto(batch);
+		for (int i = 0; i < nPackets; i++)
+		    parseFields(packets, fields, parsed, i);
+	    }
 
-	    fields = null;
+	    try {
+		((BatchDataListener)listeners[j]).dataCallback(batch, fields);
+	    } catch (Exception e) {
+		_log4j.error("Exception in dataCallback() for " + _regName + ":  " + e);
+	    }
+	}
+    }
 
+    /** Return fields of i'th packet, parsing it if not already parsed */
+    protected PacketParser.Field[] parseFields(Vector packets, 
+					       PacketParser.Field[][] fields,
+					       boolean[] parsed, int i)
+    {
+	if (!parsed[i]) {
+	    parsed[i] = true;
 	    if (_parser != null) {
 		try {
-		    fields = _parser.parseFields(sensorData);
+		    fields[i] = _parser.parseFields((SensorDataPacket)packets.elementAt(i));
 		} catch (Exception e) {
 		    _log4j.error("Error parsing packet: " + e);
 		}
 	    }
-		
-	    _log4j.debug("Calling DataListeners for " + _serviceName);
+	}
+	return(fields[i]);
+    }
 
-	    it = _dataListeners.iterator();
+    /** Add reference to packet, if it belongs to the service's pool */
+    protected void retainSample(SensorDataPacket packet)
+    {
+	if (_service instanceof BaseInstrumentService) {
+	    ((BaseInstrumentService)_service).retainSample(packet);
+	}
+    }
 
-	    while (it.hasNext())
-		try {
-		    ((InstrumentDataListener)(it.next())).dataCallback(sensorData, fields);
-		} catch (Exception e) {
-		    _log4j.error("Exception in dataCallback() for " + _regName + ":  " + e);
-		}
-	}	
+    /** Remove reference added by retainSample() */
+    protected void releaseSample(SensorDataPacket packet)
+    {
+	if (_service instanceof BaseInstrumentService) {
+	    ((BaseInstrumentService)_service).releaseSample(packet);
+	}
     }
 
-    /** close() method forces the thread to exit	*/
+    /** close() method discards queued data and stops callbacks	*/
     public synchronized void close()
     {
 	_running = false;
-	try {
-	    notify();
-	} catch(Exception e) {
-	    _log4j.error("Exception in notify(): " + e);
+	for (int i = 0; i < _dataPackets.size(); i++) {
+	    releaseSample((SensorDataPacket)_dataPackets.elementAt(i));
 	}
+	_dataPackets.clear();
     }
 
     /** Object equals for Vector.contains(), or if String,
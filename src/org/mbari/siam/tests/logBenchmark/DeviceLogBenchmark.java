@@ -0,0 +1,553 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.tests.logBenchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Vector;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+import org.mbari.siam.core.DeviceLog;
+import org.mbari.siam.core.DeviceLogIterator;
+import org.mbari.siam.core.DevicePacketCodec;
+import org.mbari.siam.core.FilteredDeviceLog;
+import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.PacketFilter;
+import org.mbari.siam.distributed.PacketSubsampler;
+import org.mbari.siam.distributed.SensorDataPacket;
+
+/**
+   DeviceLogBenchmark measures the throughput of the DeviceLog storage
+   engine (DeviceLog, FilteredDeviceLog, DeviceLogIndex and
+   DeviceLogIterator) on synthetic logs generated in a temporary
+   directory, so that runs before and after a change can be compared.
+   <p>
+   Each benchmark is run as a trial of warmup iterations followed by
+   measurement iterations of fixed duration; the score is the mean
+   throughput over the measurement iterations, in operations per second,
+   with a 99.9% confidence interval. Results are printed, and written
+   as JSON in the layout used by JMH, so that the usual JMH result
+   tools can compare runs.
+   <p>
+   Usage:
+<pre>
+   DeviceLogBenchmark [-wi n] [-i n] [-t msec] [-b name] [-o file.json]
+                      [-dir directory]
+
+   -wi n      warmup iterations (default 3)
+   -i n       measurement iterations (default 5)
+   -t msec    duration of each iteration (default 1000)
+   -b name    run only benchmarks whose name contains name
+   -o file    write JSON results to file
+   -dir dir   directory for temporary logs (default java.io.tmpdir)
+</pre>
+   Run with "ant benchmark.devicelog".
+*/
+public class DeviceLogBenchmark {
+
+    /** Log4j logger */
+    static private Logger _log4j = Logger.getLogger(DeviceLogBenchmark.class);
+
+    /** Packets in logs used by retrieval benchmarks */
+    static final int LOG_PACKETS = 100000;
+
+    /** Payload bytes of packets in logs used by retrieval benchmarks */
+    static final int LOG_PAYLOAD_BYTES = 64;
+
+    /** Every METADATA_INTERVAL-th packet is a metadata packet */
+    static final int METADATA_INTERVAL = 1000;
+
+    int _warmupIterations = 3;
+    int _iterations = 5;
+    long _iterationMsec = 1000;
+    String _include = null;
+    String _outputFile = null;
+    File _directory = new File(System.getProperty("java.io.tmpdir"));
+
+    /** JSON results of benchmarks run */
+    Vector _results = new Vector();
+
+
+    /** Return all benchmarks. */
+    Vector benchmarks() {
+	Vector benchmarks = new Vector();
+
+	int[] payloadBytes = {16, 256, 4096};
+	for (int i = 0; i < payloadBytes.length; i++) {
+	    benchmarks.addElement(new Append(payloadBytes[i],
+					     DevicePacketCodec.SERIALIZED_FORMAT));
+	    benchmarks.addElement(new Append(payloadBytes[i],
+					     DevicePacketCodec.COMPACT_FORMAT));
+	}
+
+	benchmarks.addElement(new GetPackets(10));
+	benchmarks.addElement(new GetPackets(1000));
+
+	benchmarks.addElement(new FilteredGetPackets("metadata",
+	    new PacketFilter[] {
+		new PacketSubsampler(-1, ~DevicePacket.METADATA_FLAG)}));
+
+	benchmarks.addElement(new FilteredGetPackets("subsample10",
+	    new PacketFilter[] {
+		new PacketSubsampler(9, DevicePacket.SENSORDATA_FLAG)}));
+
+	benchmarks.addElement(new IteratorScan(0));
+	benchmarks.addElement(new IteratorScan(DeviceLogIterator.DEFAULT_READ_AHEAD_BYTES));
+
+	benchmarks.addElement(new GetLastPacket());
+
+	return benchmarks;
+    }
+
+
+    /** Run benchmarks selected by options. */
+    void run() throws Exception {
+
+	Vector benchmarks = benchmarks();
+	for (int i = 0; i < benchmarks.size(); i++) {
+	    LogBenchmark benchmark = (LogBenchmark )benchmarks.elementAt(i);
+	    if (_include != null && benchmark.name().indexOf(_include) < 0) {
+		continue;
+	    }
+	    runTrial(benchmark);
+	}
+
+	if (_outputFile != null) {
+	    PrintWriter output = new PrintWriter(new FileWriter(_outputFile));
+	    output.println("[");
+	    for (int i = 0; i < _results.size(); i++) {
+		output.print(_results.elementAt(i));
+		output.println(i < _results.size() - 1 ? "," : "");
+	    }
+	    output.println("]");
+	    output.close();
+	    System.out.println("Wrote results to " + _outputFile);
+	}
+    }
+
+
+    /** Run warmup and measurement iterations of benchmark. */
+    void runTrial(LogBenchmark benchmark) throws Exception {
+
+	File directory = createDirectory();
+	try {
+	    System.out.println("# " + label(benchmark));
+	    benchmark.setUp(directory);
+
+	    for (int i = 0; i < _warmupIterations; i++) {
+		double score = iteration(benchmark);
+		System.out.println("warmup " + (i + 1) + ": " +
+				   format(score) + " ops/s");
+	    }
+
+	    double[] scores = new double[_iterations];
+	    for (int i = 0; i < _iterations; i++) {
+		scores[i] = iteration(benchmark);
+		System.out.println("iteration " + (i + 1) + ": " +
+				   format(scores[i]) + " ops/s");
+	    }
+	    benchmark.tearDown();
+
+	    double mean = mean(scores);
+	    double error = error(scores, mean);
+	    System.out.println(label(benchmark) + ": " + format(mean) +
+			       " +- " + format(error) + " ops/s");
+	    System.out.println("");
+
+	    _results.addElement(toJSON(benchmark, scores, mean, error));
+	}
+	finally {
+	    deleteDirectory(directory);
+	}
+    }
+
+
+    /** Return benchmark name and parameters, for printing. */
+    static String label(LogBenchmark benchmark) {
+	if (benchmark.params().length() == 0) {
+	    return benchmark.name();
+	}
+	return benchmark.name() + " " + benchmark.params();
+    }
+
+
+    /** Run operations for one iteration; return operations per second. */
+    double iteration(LogBenchmark benchmark) throws Exception {
+	long start = System.currentTimeMillis();
+	long end = start + _iterationMsec;
+	long nOperations = 0;
+	long now;
+	do {
+	    benchmark.operation();
+	    nOperations++;
+	    now = System.currentTimeMillis();
+	} while (now < end);
+
+	return 1000. * nOperations / (now - start);
+    }
+
+
+    static double mean(double[] values) {
+	double sum = 0;
+	for (int i = 0; i < values.length; i++) {
+	    sum += values[i];
+	}
+	return sum / values.length;
+    }
+
+
+    /** Return half-width of 99.9% confidence interval of mean. */
+    static double error(double[] values, double mean) {
+	int n = values.length;
+	if (n < 2) {
+	    return Double.NaN;
+	}
+	double sum = 0;
+	for (int i = 0; i < n; i++) {
+	    sum += (values[i] - mean) * (values[i] - mean);
+	}
+	double stdDev = Math.sqrt(sum / (n - 1));
+	return studentT999(n - 1) * stdDev / Math.sqrt(n);
+    }
+
+
+    /** Return two-sided 99.9% quantile of Student's t distribution with
+	specified degrees of freedom. */
+    static double studentT999(int df) {
+	double[] t = {636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408,
+		      5.041, 4.781, 4.587, 4.437, 4.318, 4.221, 4.140, 4.073,
+		      4.015, 3.965, 3.922, 3.883, 3.850};
+	if (df <= t.length) {
+	    return t[df - 1];
+	}
+	else if (df <= 30) {
+	    return 3.646;
+	}
+	return 3.291;
+    }
+
+
+    /** Return JMH-style JSON result of benchmark. */
+    String toJSON(LogBenchmark benchmark, double[] scores, double mean,
+		  double error) {
+
+	StringBuffer json = new StringBuffer();
+	json.append("    {\n");
+	json.append("        \"benchmark\" : \"" + getClass().getName() +
+		    "." + benchmark.name() + "\",\n");
+	json.append("        \"mode\" : \"thrpt\",\n");
+	json.append("        \"threads\" : 1,\n");
+	json.append("        \"forks\" : 1,\n");
+	json.append("        \"jvm\" : \"" +
+		    escape(System.getProperty("java.home")) + "\",\n");
+	json.append("        \"jdkVersion\" : \"" +
+		    System.getProperty("java.version") + "\",\n");
+	json.append("        \"warmupIterations\" : " + _warmupIterations +
+		    ",\n");
+	json.append("        \"warmupTime\" : \"" + _iterationMsec +
+		    " ms\",\n");
+	json.append("        \"measurementIterations\" : " + _iterations +
+		    ",\n");
+	json.append("        \"measurementTime\" : \"" + _iterationMsec +
+		    " ms\",\n");
+
+	json.append("        \"params\" : {");
+	String params = benchmark.params();
+	int start = 0;
+	while (start < params.length()) {
+	    int end = params.indexOf(',', start);
+	    if (end < 0) {
+		end = params.length();
+	    }
+	    String param = params.substring(start, end);
+	    int equals = param.indexOf('=');
+	    if (start > 0) {
+		json.append(",");
+	    }
+	    json.append("\n            \"" + param.substring(0, equals) +
+			"\" : \"" + param.substring(equals + 1) + "\"");
+	    start = end + 1;
+	}
+	json.append(params.length() > 0 ? "\n        },\n" : "},\n");
+
+	json.append("        \"primaryMetric\" : {\n");
+	json.append("            \"score\" : " + mean + ",\n");
+	json.append("            \"scoreError\" : " +
+		    (Double.isNaN(error) ? "\"NaN\"" : "" + error) + ",\n");
+	if (!Double.isNaN(error)) {
+	    json.append("            \"scoreConfidence\" : [ " +
+			(mean - error) + ", " + (mean + error) + " ],\n");
+	}
+	json.append("            \"scoreUnit\" : \"ops/s\",\n");
+	json.append("            \"rawData\" : [ [ ");
+	for (int i = 0; i < scores.length; i++) {
+	    json.append((i > 0 ? ", " : "") + scores[i]);
+	}
+	json.append(" ] ]\n");
+	json.append("        },\n");
+	json.append("        \"secondaryMetrics\" : {}\n");
+	json.append("    }");
+	return json.toString();
+    }
+
+
+    static String escape(String value) {
+	StringBuffer escaped = new StringBuffer();
+	for (int i = 0; i < value.length(); i++) {
+	    char c = value.charAt(i);
+	    if (c == '"' || c == '\\') {
+		escaped.append('\\');
+	    }
+	    escaped.append(c);
+	}
+	return escaped.toString();
+    }
+
+
+    static String format(double value) {
+	return "" + Math.round(value * 10) / 10.;
+    }
+
+
+    /** Create empty directory for a trial. */
+    File createDirectory() throws IOException {
+	File directory = File.createTempFile("devicelog", ".bench", _directory);
+	directory.delete();
+	if (!directory.mkdir()) {
+	    throw new IOException("can't create " + directory);
+	}
+	return directory;
+    }
+
+
+    static void deleteDirectory(File directory) {
+	File[] files = directory.listFiles();
+	for (int i = 0; files != null && i < files.length; i++) {
+	    files[i].delete();
+	}
+	directory.delete();
+    }
+
+
+    /** Append packets with payload of specified size. */
+    static class Append extends LogBenchmark {
+	int _payloadBytes;
+	int _format;
+	DeviceLog _log;
+	SensorDataPacket _packet;
+	long _key = FIRST_KEY;
+
+	Append(int payloadBytes, int format) {
+	    _payloadBytes = payloadBytes;
+	    _format = format;
+	}
+
+	public String name() {
+	    return "append";
+	}
+
+	public String params() {
+	    return "payloadBytes=" + _payloadBytes + ",format=" +
+		(_format == DevicePacketCodec.COMPACT_FORMAT ?
+		 "compact" : "serialized");
+	}
+
+	public void setUp(File directory) throws Exception {
+	    _log = new DeviceLog(DEVICE_ID, directory.getPath());
+	    _log.setRecordFormat(_format);
+	    _packet = sensorDataPacket(_payloadBytes);
+	}
+
+	public void operation() {
+	    _packet.setSystemTime(_key++);
+	    _log.appendPacket(_packet, true, true);
+	}
+
+	public void tearDown() throws Exception {
+	    _log.close();
+	}
+    }
+
+
+    /** Base of retrieval benchmarks; reads a log of LOG_PACKETS packets,
+	without the recent-packet cache. */
+    static abstract class Retrieval extends LogBenchmark {
+	FilteredDeviceLog _log;
+
+	public void setUp(File directory) throws Exception {
+	    createLog(directory, LOG_PACKETS, LOG_PAYLOAD_BYTES,
+		      METADATA_INTERVAL).close();
+	    _log = new FilteredDeviceLog(DEVICE_ID, directory.getPath());
+	    _log.setCacheBytes(0);
+	}
+
+	public void tearDown() throws Exception {
+	    _log.close();
+	}
+
+	/** Return key of random packet that has at least nPackets packets
+	    after it. */
+	long randomKey(int nPackets) {
+	    return FIRST_KEY + 1000L * _random.nextInt(LOG_PACKETS - nPackets);
+	}
+    }
+
+
+    /** Retrieve window of consecutive packets starting at random key. */
+    static class GetPackets extends Retrieval {
+	int _window;
+
+	GetPackets(int window) {
+	    _window = window;
+	}
+
+	public String name() {
+	    return "getPackets";
+	}
+
+	public String params() {
+	    return "window=" + _window;
+	}
+
+	public void operation() throws Exception {
+	    long start = randomKey(_window);
+	    _log.getPackets(start, start + 1000L * (_window - 1), _window);
+	}
+    }
+
+
+    /** Retrieve packets of a 10000-packet window that pass filters. */
+    static class FilteredGetPackets extends Retrieval {
+	String _filterName;
+	PacketFilter[] _filters;
+
+	FilteredGetPackets(String filterName, PacketFilter[] filters) {
+	    _filterName = filterName;
+	    _filters = filters;
+	}
+
+	public String name() {
+	    return "filteredGetPackets";
+	}
+
+	public String params() {
+	    return "filter=" + _filterName;
+	}
+
+	public void operation() throws Exception {
+	    long start = randomKey(10000);
+	    for (int i = 0; i < _filters.length; i++) {
+		_filters[i].reset();
+	    }
+	    _log.getPackets(start, start + 1000L * 9999, 10000, _filters,
+			    false);
+	}
+    }
+
+
+    /** Iterate through all packets of the log. */
+    static class IteratorScan extends Retrieval {
+	int _readAheadBytes;
+
+	IteratorScan(int readAheadBytes) {
+	    _readAheadBytes = readAheadBytes;
+	}
+
+	public String name() {
+	    return "iteratorScan";
+	}
+
+	public String params() {
+	    return "readAheadBytes=" + _readAheadBytes;
+	}
+
+	public void operation() {
+	    DeviceLogIterator iterator = new DeviceLogIterator(_log);
+	    if (_readAheadBytes > 0) {
+		iterator.setReadAhead(_readAheadBytes);
+	    }
+	    while (iterator.hasNext()) {
+		iterator.next();
+	    }
+	    iterator.close();
+	}
+    }
+
+
+    /** Get the most recently logged packet. */
+    static class GetLastPacket extends Retrieval {
+
+	public String name() {
+	    return "getLastPacket";
+	}
+
+	public void operation() throws Exception {
+	    _log.getLastPacket();
+	}
+    }
+
+
+    static void printUsage() {
+	System.err.println("usage: DeviceLogBenchmark [-wi n] [-i n] " +
+			   "[-t msec] [-b name] [-o file.json] " +
+			   "[-dir directory]");
+    }
+
+
+    public static void main(String[] args) {
+
+	BasicConfigurator.configure(new ConsoleAppender(new PatternLayout("%r %-5p %x %c{1} [%t]: %m%n")));
+	Logger.getRootLogger().setLevel(Level.WARN);
+
+	DeviceLogBenchmark benchmark = new DeviceLogBenchmark();
+	try {
+	    for (int i = 0; i < args.length; i++) {
+		if (args[i].equals("-wi") && i < args.length - 1) {
+		    benchmark._warmupIterations = Integer.parseInt(args[++i]);
+		}
+		else if (args[i].equals("-i") && i < args.length - 1) {
+		    benchmark._iterations = Integer.parseInt(args[++i]);
+		}
+		else if (args[i].equals("-t") && i < args.length - 1) {
+		    benchmark._iterationMsec = Long.parseLong(args[++i]);
+		}
+		else if (args[i].equals("-b") && i < args.length - 1) {
+		    benchmark._include = args[++i];
+		}
+		else if (args[i].equals("-o") && i < args.length - 1) {
+		    benchmark._outputFile = args[++i];
+		}
+		else if (args[i].equals("-dir") && i < args.length - 1) {
+		    benchmark._directory = new File(args[++i]);
+		}
+		else {
+		    printUsage();
+		    System.exit(1);
+		}
+	    }
+	}
+	catch (NumberFormatException e) {
+	    printUsage();
+	    System.exit(1);
+	}
+
+	try {
+	    benchmark.run();
+	}
+	catch (Exception e) {
+	    _log4j.error("benchmark failed", e);
+	    System.exit(1);
+	}
+	System.exit(0);
+    }
+}
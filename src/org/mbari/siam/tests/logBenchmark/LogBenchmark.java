@@ -0,0 +1,104 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.tests.logBenchmark;
+
+import java.io.File;
+import java.util.Random;
+
+import org.mbari.siam.core.DeviceLog;
+import org.mbari.siam.core.FilteredDeviceLog;
+import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.MetadataPacket;
+import org.mbari.siam.distributed.SensorDataPacket;
+
+/**
+   LogBenchmark is one benchmark run by <code>DeviceLogBenchmark</code>.
+   setUp() is called once per trial with an empty temporary directory,
+   then operation() is called repeatedly in timed iterations, then
+   tearDown() is called. Throughput is reported in operations per
+   second, so each operation should do a fixed amount of work.
+
+   @see DeviceLogBenchmark
+*/
+public abstract class LogBenchmark {
+
+    /** Device ID of generated logs */
+    public static final long DEVICE_ID = 1999;
+
+    /** Key of first packet in generated logs; keys are 1 second apart */
+    public static final long FIRST_KEY = 1000000000000L;
+
+    /** Random numbers for benchmarks; seeded so runs are repeatable */
+    protected Random _random = new Random(1);
+
+    /** Return benchmark name, e.g. "getPackets". */
+    public abstract String name();
+
+    /** Return benchmark parameters as "name=value" pairs separated by
+	commas, or "" if none. */
+    public String params() {
+	return "";
+    }
+
+    /** Prepare the benchmark, using files in directory. */
+    public abstract void setUp(File directory) throws Exception;
+
+    /** Perform one operation. */
+    public abstract void operation() throws Exception;
+
+    /** Release resources of the benchmark. */
+    public abstract void tearDown() throws Exception;
+
+
+    /** Return sensor data packet with payload of specified size. */
+    public static SensorDataPacket sensorDataPacket(int payloadBytes) {
+	SensorDataPacket packet = new SensorDataPacket(DEVICE_ID, payloadBytes);
+	byte[] data = new byte[payloadBytes];
+	for (int i = 0; i < data.length; i++) {
+	    data[i] = (byte )('0' + i % 10);
+	}
+	packet.setDataBuffer(data);
+	return packet;
+    }
+
+
+    /** Return metadata packet with payload of specified size. */
+    public static MetadataPacket metadataPacket(int payloadBytes) {
+	return new MetadataPacket(DEVICE_ID, "benchmark".getBytes(),
+				  new byte[payloadBytes]);
+    }
+
+
+    /** Create log in directory holding nPackets packets of the specified
+	payload size, with keys 1 second apart starting at FIRST_KEY;
+	every metadataInterval-th packet is a metadata packet, the rest
+	are sensor data packets. */
+    public static FilteredDeviceLog createLog(File directory, int nPackets,
+					      int payloadBytes,
+					      int metadataInterval)
+	throws Exception {
+
+	FilteredDeviceLog log =
+	    new FilteredDeviceLog(DEVICE_ID, directory.getPath());
+
+	// Batch appends so that large logs are generated quickly
+	log.enableGroupCommit(1000, 0, DeviceLog.SYNC_NONE);
+
+	SensorDataPacket data = sensorDataPacket(payloadBytes);
+	MetadataPacket metadata = metadataPacket(payloadBytes);
+
+	for (int i = 0; i < nPackets; i++) {
+	    DevicePacket packet =
+		(i % metadataInterval == 0 ? (DevicePacket )metadata : data);
+
+	    packet.setSystemTime(FIRST_KEY + 1000L * i);
+	    log.appendPacket(packet, true, true);
+	}
+	log.flush();
+	log.disableGroupCommit();
+	return log;
+    }
+}
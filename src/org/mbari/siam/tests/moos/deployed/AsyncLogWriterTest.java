@@ -0,0 +1,230 @@
+/*
+Copyright 2013 MBARI, all rights reserved.
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.tests.moos.deployed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Vector;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.mbari.siam.core.AsyncLogWriter;
+import org.mbari.siam.core.DeviceLog;
+import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.DevicePacketSet;
+import org.mbari.siam.distributed.SensorDataPacket;
+
+/**
+JUnit test of AsyncLogWriter: with the writer held up, a full queue must
+make log() wait (BLOCK) or discard the packet (DISCARD), and packets
+whose append fails must be reported to logFailed(), not packetLogged().
+ */
+public class AsyncLogWriterTest extends TestCase
+{
+    static final long DEVICE_ID = 4343;
+
+    File _dir;
+
+    public AsyncLogWriterTest(String methodName) {
+	super(methodName);
+    }
+
+    public void setUp() throws Exception {
+	_dir = new File(System.getProperty("java.io.tmpdir"),
+			"AsyncLogWriterTest");
+	_dir.mkdirs();
+	deleteFiles();
+    }
+
+    public void tearDown() {
+	deleteFiles();
+	_dir.delete();
+    }
+
+    public void testDiscard() throws Exception {
+
+	AsyncLogWriter writer =
+	    new AsyncLogWriter(2, 1, AsyncLogWriter.DISCARD);
+	DeviceLog log = new DeviceLog(DEVICE_ID, _dir.getPath());
+	GateCallback gate = new GateCallback();
+
+	fillQueue(writer, log, gate);
+
+	// Queue is full
+	assertFalse(writer.log(log, packet(3), gate));
+	assertEquals(1, writer.getPacketsDiscarded());
+
+	gate.open();
+	assertTrue(writer.flush(5000));
+	assertEquals(3, writer.getPacketsWritten());
+	assertLogged(log, 3);
+	assertEquals(3, gate._logged.size());
+	log.close();
+    }
+
+    public void testBlock() throws Exception {
+
+	final AsyncLogWriter writer =
+	    new AsyncLogWriter(2, 1, AsyncLogWriter.BLOCK);
+	final DeviceLog log = new DeviceLog(DEVICE_ID, _dir.getPath());
+	final GateCallback gate = new GateCallback();
+
+	fillQueue(writer, log, gate);
+
+	final boolean[] queued = new boolean[1];
+	Thread logger = new Thread() {
+		public void run() {
+		    queued[0] = writer.log(log, packet(3), gate);
+		}
+	    };
+	logger.start();
+
+	// Queue is full; log() waits
+	logger.join(500);
+	assertTrue("log() didn't wait for room", logger.isAlive());
+
+	gate.open();
+	logger.join(5000);
+	assertFalse(logger.isAlive());
+	assertTrue(queued[0]);
+
+	assertTrue(writer.flush(5000));
+	assertEquals(0, writer.getPacketsDiscarded());
+	assertLogged(log, 4);
+	log.close();
+    }
+
+    /** A failed append is reported to its own packets' callbacks only */
+    public void testLogFailed() throws Exception {
+
+	AsyncLogWriter writer = new AsyncLogWriter(10, 10, AsyncLogWriter.BLOCK);
+	DeviceLog log = new DeviceLog(DEVICE_ID, _dir.getPath());
+	DeviceLog failingLog = new FailingLog(DEVICE_ID + 1, _dir.getPath());
+	GateCallback gate = new GateCallback();
+	GateCallback failed = new GateCallback();
+	failed.open();
+
+	// Hold up the writer, so that the next packets form one batch
+	assertTrue(writer.log(log, packet(0), gate));
+	gate.awaitClosed();
+	assertTrue(writer.log(failingLog, packet(1), failed));
+	assertTrue(writer.log(log, packet(2), gate));
+
+	gate.open();
+	assertTrue(writer.flush(5000));
+
+	assertEquals(0, failed._logged.size());
+	assertEquals(1, failed._failed.size());
+	assertEquals(1, ((DevicePacket )failed._failed.elementAt(0)).systemTime());
+	assertEquals(2, gate._logged.size());
+	assertEquals(0, gate._failed.size());
+	assertEquals(1, writer.getPacketsFailed());
+	assertLogged(log, 2);
+	log.close();
+    }
+
+    /** Queue packet the writer will be held up on, then fill the queue
+	of capacity 2 behind it. */
+    void fillQueue(AsyncLogWriter writer, DeviceLog log, GateCallback gate)
+	throws Exception {
+
+	assertTrue(writer.log(log, packet(0), gate));
+	gate.awaitClosed();
+	assertTrue(writer.log(log, packet(1), gate));
+	assertTrue(writer.log(log, packet(2), gate));
+	assertEquals(2, writer.getQueueDepth());
+    }
+
+    /** Check that log holds n packets, numbered in the order logged. */
+    void assertLogged(DeviceLog log, int n) throws Exception {
+	DevicePacketSet set = log.getPackets(0, Long.MAX_VALUE, n + 1);
+	assertEquals(n, set._packets.size());
+	for (int i = 0; i < n; i++) {
+	    DevicePacket packet = (DevicePacket )set._packets.elementAt(i);
+	    assertEquals(i, packet.sequenceNo());
+	}
+    }
+
+    SensorDataPacket packet(long time) {
+	SensorDataPacket packet = new SensorDataPacket(DEVICE_ID, 0);
+	packet.setSystemTime(time);
+	packet.setDataBuffer(("packet " + time).getBytes());
+	return packet;
+    }
+
+    void deleteFiles() {
+	File[] files = _dir.listFiles();
+	for (int i = 0; files != null && i < files.length; i++) {
+	    files[i].delete();
+	}
+    }
+
+    public static Test suite() {
+	TestSuite suite = new TestSuite();
+	suite.addTest(new AsyncLogWriterTest("testDiscard"));
+	suite.addTest(new AsyncLogWriterTest("testBlock"));
+	suite.addTest(new AsyncLogWriterTest("testLogFailed"));
+	return suite;
+    }
+
+
+    /** Callback that records packets, and holds up the writer thread
+	in packetLogged() until opened. */
+    static class GateCallback implements AsyncLogWriter.Callback {
+
+	Vector _logged = new Vector();
+	Vector _failed = new Vector();
+	boolean _open = false;
+	boolean _closed = false;
+
+	public synchronized void packetLogged(DevicePacket packet) {
+	    _logged.addElement(packet);
+	    _closed = !_open;
+	    notifyAll();
+	    while (!_open) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException e) {
+		    return;
+		}
+	    }
+	}
+
+	public synchronized void logFailed(DevicePacket packet,
+					   Exception failure) {
+	    _failed.addElement(packet);
+	}
+
+	synchronized void open() {
+	    _open = true;
+	    notifyAll();
+	}
+
+	/** Wait until the writer is held up. */
+	synchronized void awaitClosed() throws InterruptedException {
+	    long deadline = System.currentTimeMillis() + 5000;
+	    while (!_closed && System.currentTimeMillis() < deadline) {
+		wait(1000);
+	    }
+	    assertTrue("writer didn't call packetLogged()", _closed);
+	}
+    }
+
+
+    /** Log whose appends fail */
+    static class FailingLog extends DeviceLog {
+
+	FailingLog(long deviceID, String directory) throws IOException {
+	    super(deviceID, directory);
+	}
+
+	public synchronized void appendPackets(DevicePacket[] packets,
+					       int nPackets) {
+	    throw new IllegalStateException("appendPackets() failed");
+	}
+    }
+}
@@ -0,0 +1,255 @@
+/*
+Copyright 2013 MBARI, all rights reserved.
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.tests.moos.deployed;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.mbari.siam.core.DeviceLog;
+import org.mbari.siam.core.DevicePacketCodec;
+import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.DevicePacketSet;
+import org.mbari.siam.distributed.SensorDataPacket;
+
+/**
+JUnit test of DeviceLog group commit, memory-mapped index reads and
+recover(): batched packets must be readable once flushed, and records
+that reached the data file without being indexed must be restored by
+recover() (but not by a log opened only to be read).
+ */
+public class DeviceLogRecoveryTest extends TestCase
+{
+    static final long DEVICE_ID = 4242;
+
+    /** Index files of segment 0 */
+    static final String[] INDEX_SUFFIXES = {".idx", ".col", ".bkt"};
+
+    File _dir;
+
+    public DeviceLogRecoveryTest(String methodName) {
+	super(methodName);
+    }
+
+    public void setUp() throws Exception {
+	_dir = new File(System.getProperty("java.io.tmpdir"),
+			"DeviceLogRecoveryTest");
+	_dir.mkdirs();
+	deleteFiles();
+    }
+
+    public void tearDown() {
+	deleteFiles();
+	_dir.delete();
+    }
+
+    /** Packets in a group-commit batch reach the files only when the
+	batch fills or is flushed. */
+    public void testGroupCommit() throws Exception {
+
+	DeviceLog log = new DeviceLog(DEVICE_ID, _dir.getPath());
+	log.enableGroupCommit(10, 0, DeviceLog.SYNC_ON_FLUSH);
+
+	for (int i = 0; i < 25; i++) {
+	    log.appendPacket(packet(1000 + i, ("packet " + i).getBytes()));
+	}
+
+	// Another reader sees only the two full batches
+	DeviceLog reader = new DeviceLog(DEVICE_ID, _dir.getPath());
+	assertEquals(20, reader.nPackets());
+	reader.close();
+
+	log.flush();
+	reader = new DeviceLog(DEVICE_ID, _dir.getPath());
+	assertEquals(25, reader.nPackets());
+	assertPackets(reader, 1000, 25);
+	reader.close();
+
+	log.close();
+    }
+
+    /** appendPackets() writes pre-numbered packets in order. */
+    public void testAppendPackets() throws Exception {
+
+	DeviceLog log = new DeviceLog(DEVICE_ID, _dir.getPath());
+	DevicePacket[] packets = new DevicePacket[5];
+	for (int i = 0; i < packets.length; i++) {
+	    packets[i] = packet(1000 + i, ("packet " + i).getBytes());
+	    log.assignSequenceNos(packets[i]);
+	}
+	log.appendPackets(packets, packets.length);
+	log.close();
+
+	log = new DeviceLog(DEVICE_ID, _dir.getPath());
+	DevicePacketSet set = log.getPackets(0, Long.MAX_VALUE, 100);
+	assertEquals(packets.length, set._packets.size());
+	for (int i = 0; i < packets.length; i++) {
+	    DevicePacket packet = (DevicePacket )set._packets.elementAt(i);
+	    assertEquals(packets[i].sequenceNo(), packet.sequenceNo());
+	    assertEquals(packets[i].systemTime(), packet.systemTime());
+	}
+	log.close();
+    }
+
+    /** Searches through the mapped index find what unmapped searches
+	find. */
+    public void testMappedIndex() throws Exception {
+
+	DeviceLog log = new DeviceLog(DEVICE_ID, _dir.getPath());
+	for (int i = 0; i < 200; i++) {
+	    // Pairs of packets share a timestamp
+	    log.appendPacket(packet(1000 + (i / 2) * 10, new byte[] {1}));
+	}
+	log.close();
+
+	DeviceLog plain = new DeviceLog(DEVICE_ID, _dir.getPath());
+	DeviceLog mapped = new DeviceLog(DEVICE_ID, _dir.getPath());
+	mapped.setMappedIndex(true);
+	assertTrue(mapped.mappedIndexEnabled());
+
+	long[][] ranges = {{0, Long.MAX_VALUE}, {1005, 1255}, {1010, 1010},
+			   {1995, 5000}, {0, 999}};
+	for (int i = 0; i < ranges.length; i++) {
+	    long start = ranges[i][0];
+	    long end = ranges[i][1];
+	    assertEquals(plain.nPackets(start, end),
+			 mapped.nPackets(start, end));
+	    assertEquals(plain.nBytes(start, end), mapped.nBytes(start, end));
+	}
+	assertEquals(plain.getLastPacket().sequenceNo(),
+		     mapped.getLastPacket().sequenceNo());
+	plain.close();
+	mapped.close();
+    }
+
+    /** recover() restores records written to the data file but not
+	indexed, in either record format, including records whose data
+	contain the sync pattern. */
+    public void testRecover() throws Exception {
+	recover(DevicePacketCodec.SERIALIZED_FORMAT);
+	deleteFiles();
+	recover(DevicePacketCodec.COMPACT_FORMAT);
+    }
+
+    void recover(int format) throws Exception {
+
+	DeviceLog log = new DeviceLog(DEVICE_ID, _dir.getPath());
+	log.setRecordFormat(format);
+	log.appendPacket(packet(1000, "first".getBytes()));
+	log.close();
+
+	// Save index files as they were before the "lost" packets
+	for (int i = 0; i < INDEX_SUFFIXES.length; i++) {
+	    copy(indexFile(INDEX_SUFFIXES[i]),
+		 new File(_dir, "saved" + INDEX_SUFFIXES[i]));
+	}
+
+	byte[][] data = {"second".getBytes(),
+			 {1, 2, 0xB, 0xB, 0xB, 0xB, 3, 4, 0xB, 0xB, 0xB, 0xB},
+			 "fourth".getBytes()};
+	log = new DeviceLog(DEVICE_ID, _dir.getPath());
+	log.setRecordFormat(format);
+	for (int i = 0; i < data.length; i++) {
+	    log.appendPacket(packet(2000 + i, data[i]));
+	}
+	log.close();
+
+	// Lose the index entries, as if power failed after the data was
+	// written; leave unjournaled garbage at the end of the index
+	for (int i = 0; i < INDEX_SUFFIXES.length; i++) {
+	    copy(new File(_dir, "saved" + INDEX_SUFFIXES[i]),
+		 indexFile(INDEX_SUFFIXES[i]));
+	}
+	RandomAccessFile file = new RandomAccessFile(indexFile(".idx"), "rw");
+	file.seek(file.length());
+	file.write(new byte[100]);
+	file.close();
+	long indexLength = indexFile(".idx").length();
+
+	// Readers neither recover nor truncate
+	log = new DeviceLog(DEVICE_ID, _dir.getPath());
+	assertEquals(1, log.nPackets());
+	assertEquals(indexLength, indexFile(".idx").length());
+
+	assertEquals(data.length, log.recover());
+	assertTrue(indexFile(".idx").length() < indexLength);
+	DevicePacketSet set = log.getPackets(0, Long.MAX_VALUE, 100);
+	assertEquals(1 + data.length, set._packets.size());
+	for (int i = 0; i < data.length; i++) {
+	    SensorDataPacket packet =
+		(SensorDataPacket )set._packets.elementAt(i + 1);
+	    assertEquals(2000 + i, packet.systemTime());
+	    assertEquals(i + 1, packet.sequenceNo());
+	    assertTrue(Arrays.equals(data[i], packet.dataBuffer()));
+	}
+
+	// Nothing more to recover
+	assertEquals(0, log.recover());
+	log.close();
+    }
+
+    /** Check that log holds n packets with consecutive timestamps from
+	firstTime. */
+    void assertPackets(DeviceLog log, long firstTime, int n)
+	throws Exception {
+
+	DevicePacketSet set = log.getPackets(0, Long.MAX_VALUE, n + 1);
+	assertEquals(n, set._packets.size());
+	for (int i = 0; i < n; i++) {
+	    DevicePacket packet = (DevicePacket )set._packets.elementAt(i);
+	    assertEquals(firstTime + i, packet.systemTime());
+	    assertEquals(i, packet.sequenceNo());
+	}
+    }
+
+    SensorDataPacket packet(long time, byte[] data) {
+	SensorDataPacket packet = new SensorDataPacket(DEVICE_ID, 0);
+	packet.setSystemTime(time);
+	packet.setDataBuffer(data);
+	return packet;
+    }
+
+    File indexFile(String suffix) {
+	return new File(_dir, DEVICE_ID + "_0" + suffix);
+    }
+
+    void copy(File from, File to) throws IOException {
+	if (!from.exists()) {
+	    to.delete();
+	    return;
+	}
+	FileInputStream input = new FileInputStream(from);
+	FileOutputStream output = new FileOutputStream(to);
+	byte[] buf = new byte[4096];
+	int n;
+	while ((n = input.read(buf)) > 0) {
+	    output.write(buf, 0, n);
+	}
+	input.close();
+	output.close();
+    }
+
+    void deleteFiles() {
+	File[] files = _dir.listFiles();
+	for (int i = 0; files != null && i < files.length; i++) {
+	    files[i].delete();
+	}
+    }
+
+    public static Test suite() {
+	TestSuite suite = new TestSuite();
+	suite.addTest(new DeviceLogRecoveryTest("testGroupCommit"));
+	suite.addTest(new DeviceLogRecoveryTest("testAppendPackets"));
+	suite.addTest(new DeviceLogRecoveryTest("testMappedIndex"));
+	suite.addTest(new DeviceLogRecoveryTest("testRecover"));
+	return suite;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+Copyright 2013 MBARI, all rights reserved.
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.tests.moos.deployed;
+
+import java.util.Arrays;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.mbari.siam.core.DeviceLog;
+import org.mbari.siam.core.DevicePacketCodec;
+import org.mbari.siam.distributed.DeviceMessagePacket;
+import org.mbari.siam.distributed.DevicePacket;
+import org.mbari.siam.distributed.MetadataPacket;
+import org.mbari.siam.distributed.SensorDataPacket;
+import org.mbari.siam.distributed.SummaryPacket;
+
+/**
+JUnit test of DevicePacketCodec: packets must decode to what was encoded,
+in either record format, and packet classes without a compact layout
+must fall back to Java serialization.
+ */
+public class DevicePacketCodecTest extends TestCase
+{
+    static final long SOURCE_ID = 1234;
+
+    public DevicePacketCodecTest(String methodName) {
+	super(methodName);
+    }
+
+    public void testSensorDataRoundTrip() throws Exception {
+
+	DevicePacketCodec codec = new DevicePacketCodec();
+	int[] formats = {DevicePacketCodec.SERIALIZED_FORMAT,
+			 DevicePacketCodec.COMPACT_FORMAT};
+
+	for (int i = 0; i < formats.length; i++) {
+	    SensorDataPacket packet = new SensorDataPacket(SOURCE_ID, 0);
+	    packet.setDataBuffer("23.5,34.1,1.2\r\n".getBytes());
+	    setHeader(packet);
+
+	    int length = codec.encode(packet, formats[i]);
+	    assertEquals(formats[i],
+			 DevicePacketCodec.recordFormat(codec.getBuffer(), 0,
+							length));
+
+	    SensorDataPacket decoded = (SensorDataPacket )
+		decode(codec, length, SensorDataPacket.class);
+	    assertHeaderEquals(packet, decoded);
+	    assertTrue(Arrays.equals(packet.dataBuffer(), decoded.dataBuffer()));
+	}
+    }
+
+    public void testCompactTypesRoundTrip() throws Exception {
+
+	DevicePacketCodec codec = new DevicePacketCodec();
+
+	MetadataPacket metadata =
+	    new MetadataPacket(SOURCE_ID, "cause".getBytes(),
+			       "<metadata/>".getBytes());
+	setHeader(metadata);
+	int length = codec.encode(metadata, DevicePacketCodec.COMPACT_FORMAT);
+	assertEquals(DevicePacketCodec.COMPACT_FORMAT,
+		     DevicePacketCodec.recordFormat(codec.getBuffer(), 0, length));
+	MetadataPacket decodedMetadata = (MetadataPacket )
+	    decode(codec, length, MetadataPacket.class);
+	assertHeaderEquals(metadata, decodedMetadata);
+	assertTrue(Arrays.equals(metadata.cause(), decodedMetadata.cause()));
+	assertTrue(Arrays.equals(metadata.getBytes(),
+				 decodedMetadata.getBytes()));
+
+	DeviceMessagePacket message = new DeviceMessagePacket(SOURCE_ID);
+	message.setMessage(5000, "power on".getBytes());
+	setHeader(message);
+	length = codec.encode(message, DevicePacketCodec.COMPACT_FORMAT);
+	DeviceMessagePacket decodedMessage = (DeviceMessagePacket )
+	    decode(codec, length, DeviceMessagePacket.class);
+	assertHeaderEquals(message, decodedMessage);
+	assertTrue(Arrays.equals(message.getMessage(),
+				 decodedMessage.getMessage()));
+
+	SummaryPacket summary = new SummaryPacket(SOURCE_ID);
+	summary.setData(6000, "mean=3.2".getBytes());
+	setHeader(summary);
+	length = codec.encode(summary, DevicePacketCodec.COMPACT_FORMAT);
+	SummaryPacket decodedSummary = (SummaryPacket )
+	    decode(codec, length, SummaryPacket.class);
+	assertHeaderEquals(summary, decodedSummary);
+	assertTrue(Arrays.equals(summary.getData(), decodedSummary.getData()));
+    }
+
+    /** Subclasses of compact packet classes must be serialized, so that
+	they decode to their own class. */
+    public void testSubclassIsSerialized() throws Exception {
+
+	DevicePacketCodec codec = new DevicePacketCodec();
+	TaggedPacket packet = new TaggedPacket();
+	packet.setDataBuffer("data".getBytes());
+	packet._tag = "tag";
+	setHeader(packet);
+
+	int length = codec.encode(packet, DevicePacketCodec.COMPACT_FORMAT);
+	assertEquals(DevicePacketCodec.SERIALIZED_FORMAT,
+		     DevicePacketCodec.recordFormat(codec.getBuffer(), 0, length));
+
+	TaggedPacket decoded = (TaggedPacket )
+	    decode(codec, length, TaggedPacket.class);
+	assertHeaderEquals(packet, decoded);
+	assertEquals("tag", decoded._tag);
+    }
+
+    /** The codec's buffer is reused; a short record must not pick up
+	bytes of a longer one encoded before it. */
+    public void testBufferReuse() throws Exception {
+
+	DevicePacketCodec codec = new DevicePacketCodec();
+
+	SensorDataPacket big = new SensorDataPacket(SOURCE_ID, 0);
+	byte[] bigData = new byte[5000];
+	Arrays.fill(bigData, (byte )'x');
+	big.setDataBuffer(bigData);
+	setHeader(big);
+	int bigLength = codec.encode(big, DevicePacketCodec.COMPACT_FORMAT);
+
+	SensorDataPacket small = new SensorDataPacket(SOURCE_ID, 0);
+	small.setDataBuffer("y".getBytes());
+	setHeader(small);
+	int smallLength = codec.encode(small, DevicePacketCodec.COMPACT_FORMAT);
+	assertTrue(smallLength < bigLength);
+	assertEquals(smallLength, codec.getLength());
+
+	SensorDataPacket decoded = (SensorDataPacket )
+	    decode(codec, smallLength, SensorDataPacket.class);
+	assertTrue(Arrays.equals(small.dataBuffer(), decoded.dataBuffer()));
+    }
+
+    /** Records are decoded from their body if the sync pattern is
+	missing. */
+    public void testDecodeBody() throws Exception {
+
+	DevicePacketCodec codec = new DevicePacketCodec();
+	SensorDataPacket packet = new SensorDataPacket(SOURCE_ID, 0);
+	packet.setDataBuffer("body".getBytes());
+	setHeader(packet);
+
+	int length = codec.encode(packet, DevicePacketCodec.COMPACT_FORMAT);
+	int syncLength = DeviceLog.SYNC_PATTERN.length;
+	SensorDataPacket decoded = (SensorDataPacket )
+	    DevicePacketCodec.decodeBody(codec.getBuffer(), syncLength,
+					 length - syncLength);
+	assertHeaderEquals(packet, decoded);
+	assertTrue(Arrays.equals(packet.dataBuffer(), decoded.dataBuffer()));
+    }
+
+    /** Set every header field to a distinct value. */
+    void setHeader(DevicePacket packet) {
+	packet.setSystemTime(1357000000123L);
+	packet.setSequenceNo(42);
+	packet.setMetadataRef(17);
+	packet.setParentId(99);
+	packet.setRecordType(3);
+    }
+
+    /** Decode record in codec's buffer, and check its class. */
+    DevicePacket decode(DevicePacketCodec codec, int length, Class c)
+	throws Exception {
+
+	// Decode from a copy at an offset, as DeviceLog reads records
+	byte[] record = new byte[length + 10];
+	System.arraycopy(codec.getBuffer(), 0, record, 10, length);
+
+	DevicePacket packet = DevicePacketCodec.decode(record, 10, length);
+	assertEquals(c, packet.getClass());
+	return packet;
+    }
+
+    void assertHeaderEquals(DevicePacket expected, DevicePacket actual) {
+	assertEquals(expected.sourceID(), actual.sourceID());
+	assertEquals(expected.systemTime(), actual.systemTime());
+	assertEquals(expected.sequenceNo(), actual.sequenceNo());
+	assertEquals(expected.metadataRef(), actual.metadataRef());
+	assertEquals(expected.getParentId(), actual.getParentId());
+	assertEquals(expected.getRecordType(), actual.getRecordType());
+    }
+
+    public static Test suite() {
+	TestSuite suite = new TestSuite();
+	suite.addTest(new DevicePacketCodecTest("testSensorDataRoundTrip"));
+	suite.addTest(new DevicePacketCodecTest("testCompactTypesRoundTrip"));
+	suite.addTest(new DevicePacketCodecTest("testSubclassIsSerialized"));
+	suite.addTest(new DevicePacketCodecTest("testBufferReuse"));
+	suite.addTest(new DevicePacketCodecTest("testDecodeBody"));
+	return suite;
+    }
+
+
+    /** SensorDataPacket subclass, which has no compact layout */
+    public static class TaggedPacket extends SensorDataPacket {
+	String _tag;
+
+	public TaggedPacket() {
+	    super(SOURCE_ID, 0);
+	}
+    }
+}
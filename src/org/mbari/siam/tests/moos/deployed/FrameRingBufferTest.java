@@ -0,0 +1,180 @@
+/*
+Copyright 2013 MBARI, all rights reserved.
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.tests.moos.deployed;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.mbari.siam.utils.FrameRingBuffer;
+
+/**
+JUnit test of FrameRingBuffer: frames must come out whole and in order
+as the ring wraps, each drop policy must drop the frames it says it
+does, and a consumer racing a DROP_OLDEST producer must never see a
+torn frame.
+ */
+public class FrameRingBufferTest extends TestCase
+{
+    static final int MAX_FRAME_BYTES = 64;
+
+    public FrameRingBufferTest(String methodName) {
+	super(methodName);
+    }
+
+    /** Frames of varying length, put and taken around the ring many
+	times, at varying queue depths */
+    public void testWrap() throws Exception {
+
+	FrameRingBuffer ring =
+	    new FrameRingBuffer(4, MAX_FRAME_BYTES, FrameRingBuffer.DROP_NEWEST);
+	byte[] buf = new byte[MAX_FRAME_BYTES];
+	int put = 0;
+	int taken = 0;
+
+	for (int round = 0; round < 40; round++) {
+	    int depth = round % ring.getCapacity() + 1;
+	    while (put - taken < depth) {
+		assertTrue(ring.put(frame(put), frameLength(put), 1000 + put));
+		put++;
+	    }
+	    assertEquals(depth, ring.size());
+	    while (taken < put) {
+		assertFrame(taken, buf, ring.take(buf, 1000));
+		assertEquals(1000 + taken, ring.lastTime());
+		taken++;
+	    }
+	    assertEquals(0, ring.size());
+	}
+	assertEquals(put, ring.getFramesPut());
+	assertEquals(0, ring.getOverruns());
+    }
+
+    public void testDropNewest() throws Exception {
+
+	FrameRingBuffer ring =
+	    new FrameRingBuffer(4, MAX_FRAME_BYTES, FrameRingBuffer.DROP_NEWEST);
+	for (int i = 0; i < 4; i++) {
+	    assertTrue(ring.put(frame(i), frameLength(i), i));
+	}
+	assertFalse(ring.put(frame(4), frameLength(4), 4));
+	assertEquals(1, ring.getOverruns());
+	assertEquals(5, ring.getFramesPut());
+
+	byte[] buf = new byte[MAX_FRAME_BYTES];
+	for (int i = 0; i < 4; i++) {
+	    assertFrame(i, buf, ring.take(buf, 1000));
+	}
+	assertEquals(0, ring.size());
+    }
+
+    public void testDropOldest() throws Exception {
+
+	FrameRingBuffer ring =
+	    new FrameRingBuffer(4, MAX_FRAME_BYTES, FrameRingBuffer.DROP_OLDEST);
+	for (int i = 0; i < 4; i++) {
+	    assertTrue(ring.put(frame(i), frameLength(i), i));
+	}
+	assertFalse(ring.put(frame(4), frameLength(4), 4));
+	assertFalse(ring.put(frame(5), frameLength(5), 5));
+	assertEquals(2, ring.getOverruns());
+	assertEquals(6, ring.getFramesPut());
+	assertEquals(4, ring.size());
+
+	byte[] buf = new byte[MAX_FRAME_BYTES];
+	for (int i = 2; i < 6; i++) {
+	    assertFrame(i, buf, ring.take(buf, 1000));
+	}
+    }
+
+    public void testTakeTimeout() throws Exception {
+
+	FrameRingBuffer ring =
+	    new FrameRingBuffer(4, MAX_FRAME_BYTES, FrameRingBuffer.DROP_NEWEST);
+	long start = System.currentTimeMillis();
+	assertEquals(-1, ring.take(new byte[MAX_FRAME_BYTES], 100));
+	assertTrue(System.currentTimeMillis() - start >= 90);
+    }
+
+    /** Consumer taking frames while a faster producer overwrites the
+	oldest ones */
+    public void testConcurrentDropOldest() throws Exception {
+
+	final int nFrames = 20000;
+	final FrameRingBuffer ring =
+	    new FrameRingBuffer(8, MAX_FRAME_BYTES, FrameRingBuffer.DROP_OLDEST);
+
+	Thread producer = new Thread() {
+		public void run() {
+		    for (int i = 0; i < nFrames; i++) {
+			ring.put(frame(i), frameLength(i), i);
+		    }
+		}
+	    };
+	producer.start();
+
+	byte[] buf = new byte[MAX_FRAME_BYTES];
+	int nTaken = 0;
+	int last = -1;
+	// The newest frame is never dropped
+	while (last < nFrames - 1) {
+	    int length = ring.take(buf, 5000);
+	    assertTrue("consumer starved", length >= 0);
+	    int sequence = sequence(buf);
+	    assertTrue("frame " + sequence + " after " + last, sequence > last);
+	    assertFrame(sequence, buf, length);
+	    last = sequence;
+	    nTaken++;
+	}
+	producer.join();
+
+	assertEquals(nFrames, ring.getFramesPut());
+	assertEquals(nFrames, nTaken + ring.getOverruns());
+    }
+
+    /** Return frame with specified sequence number: the number, then
+	bytes equal to its low byte. */
+    static byte[] frame(int sequence) {
+	byte[] frame = new byte[frameLength(sequence)];
+	for (int i = 0; i < 4; i++) {
+	    frame[i] = (byte )(sequence >> (24 - 8 * i));
+	}
+	for (int i = 4; i < frame.length; i++) {
+	    frame[i] = (byte )sequence;
+	}
+	return frame;
+    }
+
+    static int frameLength(int sequence) {
+	return 4 + sequence % (MAX_FRAME_BYTES - 4);
+    }
+
+    static int sequence(byte[] frame) {
+	int sequence = 0;
+	for (int i = 0; i < 4; i++) {
+	    sequence = (sequence << 8) | (frame[i] & 0xff);
+	}
+	return sequence;
+    }
+
+    void assertFrame(int sequence, byte[] buf, int length) {
+	assertEquals(frameLength(sequence), length);
+	byte[] expected = frame(sequence);
+	for (int i = 0; i < length; i++) {
+	    assertEquals("frame " + sequence + " byte " + i,
+			 expected[i], buf[i]);
+	}
+    }
+
+    public static Test suite() {
+	TestSuite suite = new TestSuite();
+	suite.addTest(new FrameRingBufferTest("testWrap"));
+	suite.addTest(new FrameRingBufferTest("testDropNewest"));
+	suite.addTest(new FrameRingBufferTest("testDropOldest"));
+	suite.addTest(new FrameRingBufferTest("testTakeTimeout"));
+	suite.addTest(new FrameRingBufferTest("testConcurrentDropOldest"));
+	return suite;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+Copyright 2013 MBARI, all rights reserved.
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.tests.moos.deployed;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.mbari.siam.distributed.ScheduleSpecifier;
+
+/**
+JUnit test of ScheduleSpecifier.nextSelectedTime(), which skips to each
+field's next selected value: its result must match a search of every
+second with isSelectedTime(), for random field masks and start times,
+including start times just before daylight saving time changes.
+ */
+public class ScheduleSpecifierTest extends TestCase
+{
+    /** Look-ahead of each search, in seconds */
+    static final long MAX_SECONDS = 2 * ScheduleSpecifier.S_PER_DAY;
+
+    /** Zones of the calendars searched */
+    static final String[] ZONES = {"GMT", "GMT+05:30", "America/Los_Angeles"};
+
+    /** Daylight saving time changes in America/Los_Angeles, 2013 */
+    static final long[] DST_CHANGES = {1362909600000L, 1383469200000L};
+
+    public ScheduleSpecifierTest(String methodName) {
+	super(methodName);
+    }
+
+    public void testNextSelectedTime() throws Exception {
+
+	Random random = new Random(20130310);
+	long yearStart = 1356998400000L;
+
+	for (int i = 0; i < 400; i++) {
+	    ScheduleSpecifier spec = randomSpec(random);
+
+	    Calendar from =
+		new GregorianCalendar(TimeZone.getTimeZone(ZONES[i % ZONES.length]));
+	    long start;
+	    if (i % 2 == 0) {
+		// Within a day before a DST change
+		start = DST_CHANGES[random.nextInt(DST_CHANGES.length)] -
+		    (long )random.nextInt((int )ScheduleSpecifier.MS_PER_DAY);
+	    }
+	    else {
+		start = yearStart +
+		    (long )(random.nextDouble() * 365 * ScheduleSpecifier.MS_PER_DAY);
+	    }
+	    from.setTime(new Date(start));
+
+	    assertEquals("spec " + i + " from " + start + " in " +
+			 from.getTimeZone().getID(),
+			 search(spec, from, MAX_SECONDS),
+			 spec.nextSelectedTime(from, MAX_SECONDS));
+	}
+    }
+
+    /** Local times that are skipped, or occur twice, when DST starts
+	or ends */
+    public void testDaylightSavingTime() throws Exception {
+
+	Calendar from =
+	    new GregorianCalendar(TimeZone.getTimeZone("America/Los_Angeles"));
+
+	// 02:30 doesn't occur on 10 March 2013
+	ScheduleSpecifier spec = timeOfDay(2, 30, 0);
+	from.setTime(new Date(DST_CHANGES[0] - ScheduleSpecifier.MS_PER_HOUR));
+	assertEquals(DST_CHANGES[0] + ScheduleSpecifier.MS_PER_DAY -
+		     ScheduleSpecifier.MS_PER_HOUR / 2,
+		     spec.nextSelectedTime(from, MAX_SECONDS));
+
+	// 01:30 occurs twice on 3 November 2013; the first is selected
+	spec = timeOfDay(1, 30, 0);
+	from.setTime(new Date(DST_CHANGES[1] - 2 * ScheduleSpecifier.MS_PER_HOUR));
+	assertEquals(DST_CHANGES[1] - ScheduleSpecifier.MS_PER_HOUR / 2,
+		     spec.nextSelectedTime(from, MAX_SECONDS));
+    }
+
+    public void testLimits() throws Exception {
+
+	Calendar from = new GregorianCalendar(TimeZone.getTimeZone("GMT"));
+	from.setTime(new Date(1356998400500L));
+
+	// Result keeps from's milliseconds
+	ScheduleSpecifier spec = timeOfDay(0, 0, 10);
+	assertEquals(1356998410500L, spec.nextSelectedTime(from, 10));
+	assertEquals(-1L, spec.nextSelectedTime(from, 9));
+
+	// Expired cycle count
+	spec.setLongCycles(0);
+	assertEquals(-1L, spec.nextSelectedTime(from, MAX_SECONDS));
+    }
+
+    /** Return first selected time after from, by testing every second. */
+    long search(ScheduleSpecifier spec, Calendar from, long maxSeconds) {
+	Calendar calendar = (Calendar )from.clone();
+	long start = from.getTime().getTime();
+	for (long i = 1; i <= maxSeconds; i++) {
+	    calendar.setTime(new Date(start + i * ScheduleSpecifier.MS_PER_SECOND));
+	    if (spec.isSelectedTime(calendar)) {
+		return calendar.getTime().getTime();
+	    }
+	}
+	return -1L;
+    }
+
+    /** Return absolute spec with random masks; day masks are mostly
+	selected, time masks sparsely, so most specs run within the
+	look-ahead. */
+    ScheduleSpecifier randomSpec(Random random) {
+	ScheduleSpecifier spec = new ScheduleSpecifier();
+	spec.setBAbsolute(true);
+	spec.setBMonths(mask(random, ScheduleSpecifier.MAX_MONTH + 1, 0.9));
+	spec.setBDaysOfMonth(mask(random, ScheduleSpecifier.MAX_DAY_OF_MONTH,
+				  0.8));
+	spec.setBDaysOfYear(mask(random, ScheduleSpecifier.MAX_DAY_OF_YEAR + 1,
+				 0.95));
+	spec.setBDaysOfWeek(mask(random, ScheduleSpecifier.MAX_DAY_OF_WEEK,
+				 0.7));
+	spec.setBHours(mask(random, ScheduleSpecifier.MAX_HOUR + 1, 0.2));
+	spec.setBMinutes(mask(random, ScheduleSpecifier.MAX_MINUTE + 1, 0.1));
+	spec.setBSeconds(mask(random, ScheduleSpecifier.MAX_SECOND + 1, 0.1));
+	return spec;
+    }
+
+    /** Return spec selecting one time of every day. */
+    ScheduleSpecifier timeOfDay(int hour, int minute, int second) {
+	ScheduleSpecifier spec = new ScheduleSpecifier();
+	spec.setBAbsolute(true);
+	spec.setBMonths(mask(ScheduleSpecifier.MAX_MONTH + 1, -1));
+	spec.setBDaysOfMonth(mask(ScheduleSpecifier.MAX_DAY_OF_MONTH, -1));
+	spec.setBDaysOfYear(mask(ScheduleSpecifier.MAX_DAY_OF_YEAR + 1, -1));
+	spec.setBDaysOfWeek(mask(ScheduleSpecifier.MAX_DAY_OF_WEEK, -1));
+	spec.setBHours(mask(ScheduleSpecifier.MAX_HOUR + 1, hour));
+	spec.setBMinutes(mask(ScheduleSpecifier.MAX_MINUTE + 1, minute));
+	spec.setBSeconds(mask(ScheduleSpecifier.MAX_SECOND + 1, second));
+	return spec;
+    }
+
+    /** Return mask with each element selected with probability p. */
+    boolean[] mask(Random random, int length, double p) {
+	boolean[] mask = new boolean[length];
+	for (int i = 0; i < length; i++) {
+	    mask[i] = (random.nextDouble() < p);
+	}
+	return mask;
+    }
+
+    /** Return mask selecting only element selected, or all elements if
+	selected is negative. */
+    boolean[] mask(int length, int selected) {
+	boolean[] mask = new boolean[length];
+	for (int i = 0; i < length; i++) {
+	    mask[i] = (selected < 0 || i == selected);
+	}
+	return mask;
+    }
+
+    public static Test suite() {
+	TestSuite suite = new TestSuite();
+	suite.addTest(new ScheduleSpecifierTest("testNextSelectedTime"));
+	suite.addTest(new ScheduleSpecifierTest("testDaylightSavingTime"));
+	suite.addTest(new ScheduleSpecifierTest("testLimits"));
+	return suite;
+    }
+}
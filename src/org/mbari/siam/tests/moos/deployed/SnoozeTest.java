@@ -0,0 +1,190 @@
+/*
+Copyright 2013 MBARI, all rights reserved.
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.tests.moos.deployed;
+
+import java.rmi.RemoteException;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.log4j.Logger;
+import org.mbari.siam.core.BaseInstrumentService;
+import org.mbari.siam.core.ScheduleTask;
+import org.mbari.siam.core.SiamTimer;
+import org.mbari.siam.core.WakeupMonitor;
+import org.mbari.siam.distributed.Device;
+import org.mbari.siam.distributed.PowerPolicy;
+import org.mbari.siam.distributed.ScheduleSpecifier;
+import org.mbari.siam.distributed.SensorDataPacket;
+
+/**
+JUnit test of snooze() while a service's sampler task is running: the
+SleepManager, which waits for WakeupMonitor changes while a task runs,
+must be told when the task starts and stops snoozing, and the timers
+must then report the snooze's end as the next time the CPU is needed.
+ */
+public class SnoozeTest extends TestCase
+{
+    /** Log4j logger */
+    static private Logger _log4j = Logger.getLogger(SnoozeTest.class);
+
+    static final int SNOOZE_SEC = 2;
+
+    public SnoozeTest(String methodName) {
+	super(methodName);
+    }
+
+    public void testSnoozeWhileSampling() throws Exception {
+
+	SnoozingInstrument service = new SnoozingInstrument();
+	ScheduleTask task =
+	    service.createTask(service.getDefaultSampleScheduleName(),
+			       new ScheduleSpecifier(60000), service);
+	service.setSamplerTask(task);
+
+	try {
+	    // Start sampler task; it waits until released
+	    task.sync(0);
+	    service.awaitSampling(5000);
+
+	    // Sampler task is running and not sleeping, so the CPU is
+	    // needed now; this is the version SleepManager waits on
+	    assertEquals(0, SiamTimer.nextScheduledTask());
+	    long version = WakeupMonitor.version();
+
+	    service.releaseSampler();
+
+	    // snooze() must wake SleepManager, and the CPU may then sleep
+	    // until the snooze is over
+	    assertTrue("snooze() didn't notify WakeupMonitor",
+		       WakeupMonitor.awaitChange(version,
+						 System.currentTimeMillis() +
+						 SNOOZE_SEC * 500));
+	    assertTrue(service.sleepingUntil(task) > 0);
+	    long untilMsec = SiamTimer.nextScheduledTask();
+	    assertTrue("next task in " + untilMsec + " msec",
+		       untilMsec > 0 && untilMsec <= SNOOZE_SEC * 1000);
+
+	    // End of snooze must be published too
+	    version = WakeupMonitor.version();
+	    assertTrue("end of snooze() didn't notify WakeupMonitor",
+		       WakeupMonitor.awaitChange(version,
+						 System.currentTimeMillis() +
+						 SNOOZE_SEC * 2000));
+	    service.awaitDone(SNOOZE_SEC * 2000);
+	    assertEquals(0, service.sleepingUntil(task));
+	}
+	finally {
+	    if (task.getTimer() != null) {
+		task.getTimer().cancel();
+	    }
+	}
+    }
+
+    public static Test suite() {
+	TestSuite suite = new TestSuite();
+	suite.addTest(new SnoozeTest("testSnoozeWhileSampling"));
+	return suite;
+    }
+
+
+    /** Service whose sampler task snoozes once it is released. */
+    static class SnoozingInstrument extends BaseInstrumentService {
+
+	boolean _sampling = false;
+	boolean _released = false;
+	boolean _done = false;
+
+	SnoozingInstrument() throws RemoteException {
+	    super();
+	}
+
+	void setSamplerTask(ScheduleTask task) {
+	    _defaultSamplerTask = task;
+	}
+
+	public void doScheduledTask(ScheduleTask task) {
+	    try {
+		synchronized (this) {
+		    _sampling = true;
+		    notifyAll();
+		    while (!_released) {
+			wait();
+		    }
+		}
+		snooze(SNOOZE_SEC);
+	    }
+	    catch (InterruptedException e) {
+		_log4j.error("doScheduledTask() interrupted");
+	    }
+	    synchronized (this) {
+		_done = true;
+		notifyAll();
+	    }
+	}
+
+	synchronized void awaitSampling(long msec)
+	    throws InterruptedException {
+	    long deadline = System.currentTimeMillis() + msec;
+	    while (!_sampling && System.currentTimeMillis() < deadline) {
+		wait(msec);
+	    }
+	    assertTrue("sampler task didn't run", _sampling);
+	}
+
+	synchronized void releaseSampler() {
+	    _released = true;
+	    notifyAll();
+	}
+
+	synchronized void awaitDone(long msec) throws InterruptedException {
+	    long deadline = System.currentTimeMillis() + msec;
+	    while (!_done && System.currentTimeMillis() < deadline) {
+		wait(msec);
+	    }
+	    assertTrue("snooze() didn't return", _done);
+	}
+
+	protected SensorDataPacket acquire(boolean logSample) {
+	    return null;
+	}
+
+	protected PowerPolicy initInstrumentPowerPolicy() {
+	    return PowerPolicy.NEVER;
+	}
+
+	protected PowerPolicy initCommunicationPowerPolicy() {
+	    return PowerPolicy.NEVER;
+	}
+
+	protected int initInstrumentStartDelay() {
+	    return 0;
+	}
+
+	protected int initCurrentLimit() {
+	    return 1000;
+	}
+
+	protected byte[] initSampleTerminator() {
+	    return "\r\n".getBytes();
+	}
+
+	protected byte[] initPromptString() {
+	    return ">".getBytes();
+	}
+
+	protected int initMaxSampleBytes() {
+	    return 32;
+	}
+
+	protected ScheduleSpecifier createDefaultSampleSchedule() {
+	    return null;
+	}
+
+	public int test() {
+	    return Device.OK;
+	}
+    }
+}
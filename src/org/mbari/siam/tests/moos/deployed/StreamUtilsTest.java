@@ -0,0 +1,191 @@
+/*
+Copyright 2013 MBARI, all rights reserved.
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.tests.moos.deployed;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.mbari.siam.distributed.TimeoutException;
+import org.mbari.siam.utils.DataAvailableWaiter;
+import org.mbari.siam.utils.StreamUtils;
+
+/**
+JUnit test of StreamUtils.readUntil() and skipUntil(): terminators must
+be found even when they overlap a partial match or arrive split across
+reads, bytes after the terminator must be left in the stream whether or
+not it supports mark/reset, and an interrupted wait must not be
+swallowed.
+ */
+public class StreamUtilsTest extends TestCase
+{
+    public StreamUtilsTest(String methodName) {
+	super(methodName);
+    }
+
+    /** Terminator with a repeated prefix, after a partial match */
+    public void testRepeatedPrefix() throws Exception {
+
+	InputStream input = new ByteArrayInputStream("aaab rest".getBytes());
+	byte[] buf = new byte[32];
+
+	assertEquals(1, StreamUtils.readUntil(input, buf, "aab".getBytes(),
+					      1000));
+	assertEquals('a', buf[0]);
+	assertEquals(" rest", remaining(input));
+    }
+
+    /** Terminator that overlaps itself, after a partial match */
+    public void testOverlappingTerminator() throws Exception {
+
+	byte[] terminator = "\r\n\r\n".getBytes();
+	byte[] buf = new byte[32];
+
+	InputStream input =
+	    new ByteArrayInputStream("x\r\n\r\r\n\r\ny".getBytes());
+	assertEquals(4, StreamUtils.readUntil(input, buf, terminator, 1000));
+	assertEquals("x\r\n\r", new String(buf, 0, 4));
+	assertEquals("y", remaining(input));
+
+	// Same, from a stream without mark/reset
+	FeedStream feed = new FeedStream();
+	feed.feed("x\r\n\r\r\n\r\ny");
+	assertEquals(4, StreamUtils.readUntil(feed, buf, terminator, 1000));
+	assertEquals("y", remaining(feed));
+    }
+
+    /** Terminator split across reads, with input arriving while
+	readUntil() waits for it */
+    public void testSplitTerminator() throws Exception {
+
+	final FeedStream feed = new FeedStream();
+	final String[] pieces = {"12", "3\r", "\nZ"};
+
+	Thread producer = new Thread() {
+		public void run() {
+		    try {
+			for (int i = 0; i < pieces.length; i++) {
+			    Thread.sleep(100);
+			    feed.feed(pieces[i]);
+			}
+		    }
+		    catch (InterruptedException e) {
+		    }
+		}
+	    };
+	producer.start();
+
+	byte[] buf = new byte[32];
+	assertEquals(3, StreamUtils.readUntil(feed, buf, "\r\n".getBytes(),
+					      5000));
+	assertEquals("123", new String(buf, 0, 3));
+	producer.join();
+	assertEquals("Z", remaining(feed));
+    }
+
+    public void testSkipUntil() throws Exception {
+
+	byte[] terminator = "$$$".getBytes();
+
+	InputStream input =
+	    new ByteArrayInputStream("junk$$junk$$$end".getBytes());
+	assertEquals(10, StreamUtils.skipUntil(input, terminator, 1000));
+	assertEquals("end", remaining(input));
+
+	FeedStream feed = new FeedStream();
+	feed.feed("junk$$junk$$$end");
+	assertEquals(10, StreamUtils.skipUntil(feed, terminator, 1000));
+	assertEquals("end", remaining(feed));
+    }
+
+    public void testTimeout() throws Exception {
+
+	FeedStream feed = new FeedStream();
+	feed.feed("no terminator");
+	try {
+	    StreamUtils.readUntil(feed, new byte[32], "\n".getBytes(), 200);
+	    fail("readUntil() didn't time out");
+	}
+	catch (TimeoutException e) {
+	}
+    }
+
+    /** An interrupt while waiting for input ends the read, and leaves
+	the thread interrupted. */
+    public void testInterrupt() throws Exception {
+
+	FeedStream feed = new FeedStream();
+	Thread.currentThread().interrupt();
+	try {
+	    StreamUtils.readUntil(feed, new byte[32], "\n".getBytes(), 5000);
+	    fail("readUntil() ignored interrupt");
+	}
+	catch (InterruptedIOException e) {
+	    assertTrue("interrupt status was cleared", Thread.interrupted());
+	}
+	finally {
+	    Thread.interrupted();
+	}
+    }
+
+    /** Return bytes remaining in input, as a String. */
+    String remaining(InputStream input) throws IOException {
+	StringBuffer buf = new StringBuffer();
+	while (input.available() > 0) {
+	    buf.append((char )input.read());
+	}
+	return buf.toString();
+    }
+
+    public static Test suite() {
+	TestSuite suite = new TestSuite();
+	suite.addTest(new StreamUtilsTest("testRepeatedPrefix"));
+	suite.addTest(new StreamUtilsTest("testOverlappingTerminator"));
+	suite.addTest(new StreamUtilsTest("testSplitTerminator"));
+	suite.addTest(new StreamUtilsTest("testSkipUntil"));
+	suite.addTest(new StreamUtilsTest("testTimeout"));
+	suite.addTest(new StreamUtilsTest("testInterrupt"));
+	return suite;
+    }
+
+
+    /** Stream, without mark/reset, of bytes fed by another thread;
+	like a serial port stream, readers can wait for input. */
+    static class FeedStream extends InputStream
+	implements DataAvailableWaiter {
+
+	StringBuffer _bytes = new StringBuffer();
+
+	synchronized void feed(String bytes) {
+	    _bytes.append(bytes);
+	    notifyAll();
+	}
+
+	public synchronized int available() {
+	    return _bytes.length();
+	}
+
+	public synchronized int read() {
+	    if (_bytes.length() == 0) {
+		return -1;
+	    }
+	    char c = _bytes.charAt(0);
+	    _bytes.deleteCharAt(0);
+	    return c;
+	}
+
+	public synchronized boolean waitForData(long timeoutMsec)
+	    throws InterruptedException {
+	    if (_bytes.length() == 0) {
+		wait(timeoutMsec);
+	    }
+	    return _bytes.length() > 0;
+	}
+    }
+}
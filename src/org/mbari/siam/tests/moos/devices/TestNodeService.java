@@ -189,6 +189,13 @@ public class TestNodeService
 	_log4j.info("Instrument service URL: " + _serviceURL);
     }
 
+    /** Acknowledge retrieved packets; test service does not compact. */
+    public void packetsRetrieved(long deviceID, long firstKey, long lastKey,
+				 int nPackets)
+	throws DeviceNotFound, RemoteException {
+	getDevice(deviceID);
+    }
+
     /** Return true if specified device can supply Summary packets. */
     public boolean summarizing(long deviceID) 
 	throws DeviceNotFound, RemoteException {
@@ -734,6 +741,11 @@ public class TestNodeService
 	throw new RemoteException("getStatus() not implemented");
     }
 
+    /** Return report of node performance metrics. */
+    public byte[] getMetrics(boolean logPacket) throws RemoteException {
+	throw new RemoteException("getMetrics() not implemented");
+    }
+
     /** Shutdown all services and exits the SIAM application. */
     public void exitApplication() throws RemoteException {
 	throw new RemoteException("exitApplication() not implemented");
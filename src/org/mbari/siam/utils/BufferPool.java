@@ -0,0 +1,147 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+   BufferPool keeps released byte arrays for reuse, so that services which
+   repeatedly need buffers of the same sizes (e.g. sample buffers of
+   instrument services) don't allocate a new array each time. Buffers are
+   pooled by exact length, at most maxPerSize of each length and at most
+   MAX_LENGTHS different lengths, and are held by soft references so that
+   the garbage collector can reclaim them when memory is short. A length
+   is dropped from the pool as soon as it holds no buffers, whether they
+   were taken or reclaimed, so that lengths which aren't requested again
+   don't accumulate.
+   <p>
+   A buffer must not be used after it is released.
+*/
+public class BufferPool
+{
+    /** Default maximum number of pooled buffers of each length */
+    public static final int DEFAULT_MAX_PER_SIZE = 4;
+
+    /** Maximum number of different lengths pooled; buffers of other
+	lengths are then not pooled */
+    public static final int MAX_LENGTHS = 64;
+
+    /** Shared pool */
+    private static BufferPool _instance = null;
+
+    /** Vector of BufferRefs to free buffers, keyed by Integer length */
+    private Hashtable _free = new Hashtable();
+
+    /** BufferRefs cleared by the garbage collector */
+    private ReferenceQueue _cleared = new ReferenceQueue();
+
+    private int _maxPerSize;
+
+    /** Create pool holding up to maxPerSize buffers of each length */
+    public BufferPool(int maxPerSize)
+    {
+	_maxPerSize = maxPerSize;
+    }
+
+    /** Return the shared pool. */
+    public synchronized static BufferPool getInstance()
+    {
+	if (_instance == null) {
+	    _instance = new BufferPool(DEFAULT_MAX_PER_SIZE);
+	}
+	return _instance;
+    }
+
+    /** Return a buffer of exactly the specified length; contents are
+	undefined. */
+    public byte[] get(int length)
+    {
+	synchronized (this) {
+	    expunge();
+	    Vector free = (Vector )_free.get(new Integer(length));
+	    while (free != null && free.size() > 0) {
+		SoftReference ref = (SoftReference )free.lastElement();
+		free.removeElementAt(free.size() - 1);
+		byte[] buffer = (byte[] )ref.get();
+		if (free.size() == 0) {
+		    _free.remove(new Integer(length));
+		}
+		if (buffer != null) {
+		    return buffer;
+		}
+	    }
+	}
+	return new byte[length];
+    }
+
+    /** Return buffer to the pool; null is ignored. */
+    public void release(byte[] buffer)
+    {
+	if (buffer == null) {
+	    return;
+	}
+
+	synchronized (this) {
+	    expunge();
+	    Integer key = new Integer(buffer.length);
+	    Vector free = (Vector )_free.get(key);
+	    if (free == null) {
+		if (_free.size() >= MAX_LENGTHS || _maxPerSize <= 0) {
+		    return;
+		}
+		free = new Vector();
+		_free.put(key, free);
+	    }
+
+	    for (int i = 0; i < free.size(); i++) {
+		if (((SoftReference )free.elementAt(i)).get() == buffer) {
+		    // Already released
+		    return;
+		}
+	    }
+
+	    if (free.size() < _maxPerSize) {
+		free.addElement(new BufferRef(buffer, key, _cleared));
+	    }
+	}
+    }
+
+    /** Return number of lengths for which buffers are pooled. */
+    public synchronized int nLengths()
+    {
+	expunge();
+	return _free.size();
+    }
+
+    /** Remove references cleared by the garbage collector, and lengths
+	left without buffers. */
+    private void expunge()
+    {
+	BufferRef ref;
+	while ((ref = (BufferRef )_cleared.poll()) != null) {
+	    Vector free = (Vector )_free.get(ref._key);
+	    if (free != null && free.removeElement(ref) && free.size() == 0) {
+		_free.remove(ref._key);
+	    }
+	}
+    }
+
+    /** Soft reference to a free buffer, which remembers its length key
+	so that it can be removed once cleared. */
+    private static class BufferRef extends SoftReference
+    {
+	Integer _key;
+
+	BufferRef(byte[] buffer, Integer key, ReferenceQueue queue)
+	{
+	    super(buffer, queue);
+	    _key = key;
+	}
+    }
+}
@@ -0,0 +1,28 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.utils;
+
+import java.io.IOException;
+
+/**
+   DataAvailableWaiter is implemented by input streams that can block
+   the caller until input arrives (e.g. on a serial port "data available"
+   event), so that readers such as StreamUtils.readUntil() need not poll
+   available() and sleep.
+
+   @see StreamUtils
+*/
+public interface DataAvailableWaiter
+{
+    /** Block until at least one byte can be read without blocking, or
+	until timeoutMsec milliseconds elapse. Implementations may return
+	early; callers should check available() and wait again if needed.
+	@param timeoutMsec maximum time to wait, in milliseconds
+	@return true if data is available
+    */
+    public boolean waitForData(long timeoutMsec)
+	throws IOException, InterruptedException;
+}
@@ -0,0 +1,201 @@
+/*
+Copyright 2013 MBARI, all rights reserved. 
+For license and copyright details, see COPYRIGHT.TXT in the SIAM project
+home directory.
+*/
+package org.mbari.siam.utils;
+
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
+
+/**
+   FrameRingBuffer passes frames (e.g. raw instrument samples) from one
+   producer thread to one consumer thread through a fixed ring of
+   preallocated frame buffers, without locking; the consumer only
+   synchronizes to sleep while the ring is empty.
+   <p>
+   When the ring is full, put() drops either the new frame (DROP_NEWEST)
+   or the oldest queued frame (DROP_OLDEST), and counts it as an overrun.
+   To drop the oldest frame the producer advances the head index with
+   compare-and-set, as the consumer does when it takes a frame; so a
+   consumer that loses that race discards the frame it copied, which the
+   producer may have been overwriting.
+*/
+public class FrameRingBuffer
+{
+    /** When full, drop the frame being put */
+    public static final int DROP_NEWEST = 0;
+
+    /** When full, drop the oldest queued frame */
+    public static final int DROP_OLDEST = 1;
+
+    private byte[][] _frames;
+    private int[] _lengths;
+    private long[] _times;
+    private int _capacity;
+    private int _policy;
+
+    /** Index of next frame to take */
+    private AtomicLong _head = new AtomicLong(0);
+
+    /** Index of next frame to put; advanced only by producer */
+    private volatile long _tail = 0;
+
+    /** Number of frames dropped */
+    private AtomicLong _overruns = new AtomicLong(0);
+
+    /** Time of last frame taken */
+    private long _lastTime = 0;
+
+    /** Consumer waits on _lock while ring is empty */
+    private Object _lock = new Object();
+    private volatile boolean _waiting = false;
+
+
+    /** Create ring of capacity frames, each up to maxFrameBytes long,
+	with specified drop policy (DROP_NEWEST or DROP_OLDEST). */
+    public FrameRingBuffer(int capacity, int maxFrameBytes, int policy)
+    {
+	if (capacity < 1) {
+	    throw new IllegalArgumentException("capacity must be positive");
+	}
+	_capacity = capacity;
+	_policy = (policy == DROP_NEWEST ? DROP_NEWEST : DROP_OLDEST);
+	_frames = new byte[capacity][maxFrameBytes];
+	_lengths = new int[capacity];
+	_times = new long[capacity];
+    }
+
+
+    /** Append first length bytes of frame, received at time; called only
+	by the producer. Returns false if a frame (this one or the oldest)
+	was dropped. */
+    public boolean put(byte[] frame, int length, long time)
+    {
+	long tail = _tail;
+	boolean dropped = false;
+
+	while (tail - _head.get() >= _capacity) {
+	    if (_policy == DROP_NEWEST) {
+		_overruns.incrementAndGet();
+		return false;
+	    }
+	    long head = _head.get();
+	    if (tail - head >= _capacity && _head.compareAndSet(head, head + 1)) {
+		_overruns.incrementAndGet();
+		dropped = true;
+	    }
+	}
+
+	int slot = (int )(tail % _capacity);
+	System.arraycopy(frame, 0, _frames[slot], 0, length);
+	_lengths[slot] = length;
+	_times[slot] = time;
+
+	// Publish the frame
+	_tail = tail + 1;
+
+	if (_waiting) {
+	    synchronized (_lock) {
+		_lock.notifyAll();
+	    }
+	}
+	return !dropped;
+    }
+
+
+    /** Copy oldest frame into buffer, which must hold the largest frame;
+	called only by the consumer. If the ring is empty, wait up to
+	timeoutMsec (0 waits indefinitely) for a frame. Returns frame
+	length, or -1 if no frame arrived. */
+    public int take(byte[] buffer, long timeoutMsec)
+	throws InterruptedException
+    {
+	while (true) {
+	    long head = _head.get();
+	    if (head >= _tail) {
+		if (!waitForFrame(timeoutMsec)) {
+		    return -1;
+		}
+		continue;
+	    }
+
+	    int slot = (int )(head % _capacity);
+	    int length = _lengths[slot];
+	    long time = _times[slot];
+	    System.arraycopy(_frames[slot], 0, buffer, 0, length);
+
+	    if (_head.compareAndSet(head, head + 1)) {
+		_lastTime = time;
+		return length;
+	    }
+	    // Producer dropped this frame while we copied it; take the next
+	}
+    }
+
+
+    /** Return time at which last frame taken was put. */
+    public long lastTime()
+    {
+	return _lastTime;
+    }
+
+
+    /** Return number of queued frames. */
+    public int size()
+    {
+	return (int )(_tail - _head.get());
+    }
+
+
+    /** Return maximum number of queued frames. */
+    public int getCapacity()
+    {
+	return _capacity;
+    }
+
+
+    /** Return number of frames put, including dropped frames. */
+    public long getFramesPut()
+    {
+	return _tail + (_policy == DROP_NEWEST ? _overruns.get() : 0);
+    }
+
+
+    /** Return number of frames dropped because the ring was full. */
+    public long getOverruns()
+    {
+	return _overruns.get();
+    }
+
+
+    /** Wait until ring is not empty, or timeoutMsec elapse (0 waits
+	indefinitely); return true if a frame is available. */
+    private boolean waitForFrame(long timeoutMsec)
+	throws InterruptedException
+    {
+	long deadline = System.currentTimeMillis() + timeoutMsec;
+
+	synchronized (_lock) {
+	    _waiting = true;
+	    try {
+		// Check after setting _waiting, so that a put() can't be
+		// missed. A notify may be left from a put() whose frame was
+		// already taken, so wait again until the timeout expires
+		while (_head.get() >= _tail) {
+		    long wait = 0;
+		    if (timeoutMsec > 0) {
+			wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+			    break;
+			}
+		    }
+		    _lock.wait(wait);
+		}
+	    }
+	    finally {
+		_waiting = false;
+	    }
+	}
+	return _head.get() < _tail;
+    }
+}
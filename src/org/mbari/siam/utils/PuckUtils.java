@@ -10,11 +10,12 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
 import gnu.io.SerialPort;
 import org.apache.log4j.Logger;
 import org.mbari.puck.Puck;
 import org.mbari.puck.Payload;
-import com.Ostermiller.util.MD5;
 
 /**
    PuckUtils is a utility class that includes static constants and methods 
@@ -32,42 +33,74 @@ public class PuckUtils {
 
 
     /** Read SIAM payload from PUCK on specified serial port and write to
-	specified output file. */
+	specified output file; throw IOException if its checksum doesn't 
+	match the payload tag's checksum. */
     public static void readSiamPayload(Puck puck,
 				       String outputFileName) 
 	throws IOException, Exception {
 
+	OutputStream output = new FileOutputStream(outputFileName);
+	try {
+	    readSiamPayload(puck, output);
+	}
+	finally {
+	    output.close();
+	}
+    }
+
+
+    /** Read SIAM payload from PUCK and write it to output, computing its
+	MD5 checksum as it is read. Return the checksum; throw IOException
+	if it doesn't match the payload tag's checksum. */
+    public static byte[] readSiamPayload(Puck puck, OutputStream output) 
+	throws IOException, Exception {
+
 	puck.setPuckMode(5);
 
 	int baud = puck.setFastBaud();
         _log4j.info("readSiamPayload():Puck baudrate set to " + baud + "\n");
 
-	Payload.Descriptor payload = 
-	    Payload.extract(puck, Payload.MBARI_SIAM, outputFileName);
+	Payload.InputStream input = new Payload.InputStream(puck);
 
-	// Get checksum from payload tag
-	byte[] md5Checksum = payload.getMd5Checksum();
+	Payload.Descriptor payload = null;
+	while ((payload = Payload.getNextDescriptor(input)) != null) {
+	    if (payload.getType().equals(Payload.MBARI_SIAM)) {
+		break;
+	    }
+	}
+	if (payload == null) {
+	    throw new Exception("Couldn't find " + Payload.MBARI_SIAM + 
+				" payload");
+	}
 
-	// Compute actual payload file checksum
-	byte[] md5ChecksumCalc = MD5.getHash(new File(outputFileName));
+	MessageDigest digest = MessageDigest.getInstance("MD5");
+	byte[] buffer = new byte[1024];
+	int remaining = payload.getSize();
+	while (remaining > 0) {
+	    int nBytes = input.read(buffer, 0, 
+				    Math.min(buffer.length, remaining));
+	    if (nBytes < 0) {
+		throw new IOException("Premature end of payload section, after "
+				      + (payload.getSize() - remaining) + 
+				      " bytes");
+	    }
+	    digest.update(buffer, 0, nBytes);
+	    output.write(buffer, 0, nBytes);
+	    remaining -= nBytes;
+	}
 
+	byte[] md5Checksum = payload.getMd5Checksum();
+	byte[] md5ChecksumCalc = digest.digest();
 
-	// Compare checksum from tag with actual payload file checksum
-        for (int i = 0; i < md5Checksum.length; ++i) {
-            if (md5Checksum[i] != md5ChecksumCalc[i]) {
-		_log4j.error("Jar file MD5 mismatch");
-		_log4j.error("Read MD5     : 0x"
-			     + ByteUtility.bytesToHexString(md5Checksum) + 
-			     "\n");
-		_log4j.error("Computed MD5 : 0x"
-			     + ByteUtility.bytesToHexString(md5ChecksumCalc) +
-			     "\n");
-		break;
-	    }
+	if (!MessageDigest.isEqual(md5Checksum, md5ChecksumCalc)) {
+	    throw new IOException("Jar file MD5 mismatch: read 0x" + 
+				  ByteUtility.bytesToHexString(md5Checksum) +
+				  ", computed 0x" + 
+				  ByteUtility.bytesToHexString(md5ChecksumCalc));
 	}
 
         _log4j.debug("readSiamPayload() completed\n");
-        return;
+	return md5ChecksumCalc;
     }
 
 
@@ -65,6 +65,7 @@ import org.apache.log4j.Logger;
  * @author Warren Levy <warrenl@cygnus.com>
  */
 public class SiamBufferedInputStream extends FilterInputStream
+    implements DataAvailableWaiter
 {
 
     /** Log4j logger */
@@ -397,6 +398,24 @@ public class SiamBufferedInputStream extends FilterInputStream
   }
 
 
+    /** Return immediately if bytes are buffered; otherwise wait on the
+	subordinate stream if it is a DataAvailableWaiter, or poll. */
+    public boolean waitForData(long timeoutMsec)
+	throws IOException, InterruptedException {
+
+	synchronized (this) {
+	    if (count - pos > 0)
+		return true;
+	}
+
+	if (in instanceof DataAvailableWaiter)
+	    return ((DataAvailableWaiter )in).waitForData(timeoutMsec);
+
+	StopWatch.delay((int )Math.min(timeoutMsec, StreamUtils.POLL_MSEC));
+	return available() > 0;
+    }
+
+
     /** Read and discard all available characters. */
     public void flush() 
 	throws IOException {
@@ -5,8 +5,10 @@
 /****************************************************************************/
 package org.mbari.siam.utils;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import org.apache.log4j.Logger;
 import org.mbari.siam.distributed.TimeoutException;
 
@@ -18,11 +20,32 @@ public class StreamUtils
     /** Log4j logger */
     static Logger _logger = Logger.getLogger(StreamUtils.class);
 
+    /** Polling interval for streams that are not DataAvailableWaiters */
+    static final int POLL_MSEC = 50;
+
+    /** Longest single wait for input on a DataAvailableWaiter */
+    static final long MAX_WAIT_MSEC = 1000;
+
+    /** Size of scratch buffer used by skipUntil() */
+    static final int SKIP_BUFFER_SIZE = 256;
+
+    /** Most bytes read after a mark(); kept below the default 
+	SiamBufferedInputStream buffer size so the mark doesn't grow it */
+    static final int MAX_MARKED_READ = 1024;
+
     /** Read characters from input stream into buffer, until specified
-	terminator is encountered. 
+	terminator is encountered. Bytes following the terminator are
+	left in the stream.
+	<p>
+	Input is read in bulk: as much as is available if the stream 
+	supports mark/reset (unused bytes are pushed back), otherwise no more
+	than could complete the terminator. If no input is available,
+	a DataAvailableWaiter stream is waited on, and other streams are 
+	polled.
 	@param instream input stream
 	@param outbuf output buffer
 	@param terminator terminator character string
+	@return number of bytes read, excluding terminator
     */
     public static int readUntil(InputStream instream, 
                                 byte[] outbuf, 
@@ -30,112 +53,101 @@ public class StreamUtils
                                 long timeout) 
 	throws TimeoutException, NullPointerException, IOException, Exception 
     {
-	//total bytesRead less the terminator length
+        //total bytes read, including any partial terminator
         int bytesRead = 0;
-        //elapsed time out the read
+        //elapsed time of the read
 	long elapsed = 0;
-        //total loops used while reading bytes
-        int loopCount = 0;
-        // index into terminator
-        int termIndex = 0;
-        // single shote timeout boost 
+        // single shot timeout boost 
         boolean timeoutIncreased = false;
         
         // throw exception if any bad args
         checkReadUntilArgs(instream, outbuf, terminator);
-        
-	// try 
-	// {
-            //capture the start time of readUnil
-            long t0 = System.currentTimeMillis();
+
+        TerminatorMatcher matcher = new TerminatorMatcher(terminator);
+        boolean markSupported = instream.markSupported();
+
+        //capture the start time of readUntil
+        long t0 = System.currentTimeMillis();
             
-            //read until we receive terminator, exceed outbuf, or time out
-            while (true) 
+        //read until we receive terminator, exceed outbuf, or time out
+        while (true) 
+        {
+            int available = instream.available();
+            int nRead = 0;
+
+            if (available > 0) 
             {
-                ++loopCount;
-                
-                if (instream.available() > 0) 
+                int len = Math.min(available, outbuf.length - bytesRead);
+                if (markSupported)
                 {
-                    byte c = (byte)instream.read();
-                    outbuf[bytesRead++] = c;
-                    
-                    if (c == terminator[termIndex])
-                    {
-                        termIndex++;
-                    }
-                    else
-                    {
-                        termIndex = 0;
+                    len = Math.min(len, MAX_MARKED_READ);
+                    instream.mark(len);
+                }
+                else
+                    len = Math.min(len, matcher.minBytesToMatch());
 
-                        //this may be the start of the terminator as well
-                        if (c == terminator[0])
-                            termIndex++;
-                    }
-                     
-                    //if the termIndex is the same size as the 
-                    //terminator you got it 
-                    if (termIndex == terminator.length)
-                        return (bytesRead - terminator.length);
-                    
-                    if (bytesRead >= outbuf.length) 
+                nRead = instream.read(outbuf, bytesRead, len);
+            }
+
+            if (nRead > 0)
+            {
+                int end = bytesRead + nRead;
+                for (int i = bytesRead; i < end; i++)
+                {
+                    if (matcher.match(outbuf[i]))
                     {
-                        throw new Exception("readUntil() outbuf exceeded, " +
-                                            "outbuf length is " + 
-                                            outbuf.length + " bytes");
+                        if (i + 1 < end)
+                        {
+                            // push back bytes following the terminator
+                            instream.reset();
+                            skipFully(instream, i + 1 - bytesRead);
+                        }
+                        return (i + 1 - terminator.length);
                     }
-
                 }
-                else
+                bytesRead = end;
+                    
+                if (bytesRead >= outbuf.length) 
                 {
-                    //Thread.yield();
-                    StopWatch.delay(50);
+                    throw new Exception("readUntil() outbuf exceeded, " +
+                                        "outbuf length is " + 
+                                        outbuf.length + " bytes");
                 }
+            }
+            else
+            {
+                waitForData(instream, 
+                            timeout - (System.currentTimeMillis() - t0));
+            }
 
-                elapsed = System.currentTimeMillis() - t0;
+            elapsed = System.currentTimeMillis() - t0;
 
-                if (elapsed > timeout)
+            if (elapsed > timeout)
+            {
+                if ((instream.available() > 0) && !timeoutIncreased)
                 {
-                    if ((instream.available() > 0) && !timeoutIncreased)
-                    {
-                        timeoutIncreased = true;
-                        //give the the method 10% of timeout more time to get
-                        //the bytes
-                        timeout = elapsed + (timeout / 10);
-			// _logger.debug("*** readUntil timeout increased");
-                        // _logger.debug("instream.available() = " + instream.available());
-                        // _logger.debug("timeout = " + timeout);
-                    }
-                    else
-                    {
-			String msg="readUntil() Timed out after "+
-			    (System.currentTimeMillis()-t0)+" ms"+
-			    " outbuf.len="+outbuf.length+
-			    " avail: "+instream.available()+
-			    " read: "+bytesRead;
-                        throw new TimeoutException(msg);
-                    }
+                    timeoutIncreased = true;
+                    //give the the method 10% of timeout more time to get
+                    //the bytes
+                    timeout = elapsed + (timeout / 10);
+                }
+                else
+                {
+                    String msg="readUntil() Timed out after "+
+                        (System.currentTimeMillis()-t0)+" ms"+
+                        " outbuf.len="+outbuf.length+
+                        " avail: "+instream.available()+
+                        " read: "+bytesRead;
+                    throw new TimeoutException(msg);
                 }
             }
-	    // }
-	/*
-        finally 
-        {
-            //set this to one for debugging info
-            // _logger.debug("*** leaving readUntil()");
-             _logger.debug("bytesRead = " + bytesRead);
-             _logger.debug("instream.available() = " + instream.available());
-             _logger.debug("outbuf.length = " + outbuf.length);
-             _logger.debug("elapsed = " + elapsed);
-             _logger.debug("timeoutIncreased = " + timeoutIncreased);
-             _logger.debug("loopCount = " + loopCount);
         }
-	*/
     }
 
 
     /** Read characters from input stream into buffer, until specified
 	terminator is encountered, maxBytes are received, or timeout 
-	milliseconds elapse.
+	milliseconds elapse. Input is read as in readUntil().
 	Note that it is possible to ignore timeout and/or maxBytes by setting
 	them to 0. 
 	@param instream input stream
@@ -154,94 +166,90 @@ public class StreamUtils
 	int bytesSkipped = 0;
 	// Elapsed time
 	long elapsed = 0;
-        //number of loops to skip over chars
-        int loopCount = 0;
-        // index into terminator
-        int termIndex = 0;
-        // single shote timeout boost 
+        // single shot timeout boost 
         boolean timeoutIncreased = false;
 
         // throw exception if any bad args
         checkSkipUntilArgs(instream, terminator);
-        
-        try 
-        {
-            //capture the start time of skipUntil
-            long t0 = System.currentTimeMillis();
+
+        TerminatorMatcher matcher = new TerminatorMatcher(terminator);
+        boolean markSupported = instream.markSupported();
+        byte[] buf = new byte[SKIP_BUFFER_SIZE];
+
+        //capture the start time of skipUntil
+        long t0 = System.currentTimeMillis();
             
-            //read until we receive terminator, reach maxBytes, or time out
-            while (true) 
-            {
-                ++loopCount;
+        //read until we receive terminator, reach maxBytes, or time out
+        while (true) 
+        {
+            int available = instream.available();
+            int nRead = 0;
 
-                if (instream.available() > 0)
+            if (available > 0)
+            {
+                int len = Math.min(available, buf.length);
+                if (maxBytes > 0)
+                    len = Math.min(len, maxBytes - bytesSkipped);
+                if (markSupported)
                 {
-                    byte c = (byte)instream.read();
-                
-                    if (c == terminator[termIndex])
-                    {
-                        termIndex++;
-                    }
-                    else
-                    {
-                        termIndex = 0;
-
-                        //this may be the start of the terminator as well
-                        if (c == terminator[0])
-                            termIndex++;
-                    }
-                     
-                    bytesSkipped++;
-                    
-                    //if the termIndex is the same size as the 
-                    //terminator you got it 
-                    if (termIndex == terminator.length)
-                        return (bytesSkipped - terminator.length);
+                    len = Math.min(len, MAX_MARKED_READ);
+                    instream.mark(len);
                 }
                 else
+                    len = Math.min(len, matcher.minBytesToMatch());
+
+                nRead = instream.read(buf, 0, len);
+            }
+
+            if (nRead > 0)
+            {
+                for (int i = 0; i < nRead; i++)
                 {
-                    //Thread.yield();
-                    StopWatch.delay(50);
+                    if (matcher.match(buf[i]))
+                    {
+                        if (i + 1 < nRead)
+                        {
+                            // push back bytes following the terminator
+                            instream.reset();
+                            skipFully(instream, i + 1);
+                        }
+                        return (bytesSkipped + i + 1 - terminator.length);
+                    }
                 }
+                bytesSkipped += nRead;
+            }
+            else
+            {
+                waitForData(instream, (timeout > 0 ? 
+                    timeout - (System.currentTimeMillis() - t0) : 
+                    MAX_WAIT_MSEC));
+            }
 
-                //if maxBytes were specified, checkem
-                if (maxBytes > 0)
-                    if (bytesSkipped >= maxBytes) 
-                        throw new Exception("SkipUntil() Exceeded maxBytes" );
+            //if maxBytes were specified, checkem
+            if (maxBytes > 0)
+                if (bytesSkipped >= maxBytes) 
+                    throw new Exception("SkipUntil() Exceeded maxBytes" );
                                
-                // Check timeout; exit if expired
-                if(timeout > 0)
+            // Check timeout; exit if expired
+            if(timeout > 0)
+            {
+                elapsed = System.currentTimeMillis() - t0;
+                if (elapsed > timeout)
                 {
-                    elapsed = System.currentTimeMillis() - t0;
-                    if (elapsed > timeout)
+                    if ((instream.available() > 0) && !timeoutIncreased)
                     {
-                        if ((instream.available() > 0) && !timeoutIncreased)
-                        {
-                            timeoutIncreased = true;
-                            //give the the method 10% of timeout more 
-                            //time to get the bytes
-                            timeout = elapsed + (timeout / 10);
-                            // _logger.debug("*** skipUntil timeout increased");
-                            // _logger.debug("instream.available() = " + instream.available());
-                            // _logger.debug("timeout = " + timeout);
-                        }
-                        else
-                        {
-                            throw new TimeoutException("SkipUntil() Timed out");
-                        }
+                        timeoutIncreased = true;
+                        //give the the method 10% of timeout more 
+                        //time to get the bytes
+                        timeout = elapsed + (timeout / 10);
+                    }
+                    else
+                    {
+                        throw new TimeoutException("SkipUntil() Timed out");
                     }
                 }
             }
         }
-        finally 
-        {
-            // _logger.debug("*** leaving skipUntil()");
-            // _logger.debug("bytesSkipped = " + bytesSkipped);
-            // _logger.debug("instream.available() = " + instream.available());
-            // _logger.debug("elapsed = " + elapsed);
-            // _logger.debug("timeoutIncreased = " + timeoutIncreased);
-            // _logger.debug("loopCount = " + loopCount);
-        }
     }
 
     /** Skip streaming characters until specified terminator is encountered or 
@@ -327,30 +335,33 @@ public class StreamUtils
         int bytesRead = 0;
         // elapsed time out the read
 	long elapsed = 0;
-        // index into terminator
-        int termIndex = 0;
         // single shot timeout boost 
         boolean timeoutIncreased = false;
         
-	// capture the start time of readUnil
+	// capture the start time of readBytes
 	long t0 = System.currentTimeMillis();
            
 	// read until we receive nBytes bytes, or time out
 	while (bytesRead < nBytes) {
-                
-	    if (instream.available() > 0) {
-		byte c = (byte)instream.read();
-		outbuf[startIndex + bytesRead] = c;
-		bytesRead++;
+
+	    int available = instream.available();
+	    int nRead = 0;
+
+	    if (available > 0) {
+		nRead = instream.read(outbuf, startIndex + bytesRead,
+				      Math.min(available, nBytes - bytesRead));
+	    }
+
+	    if (nRead > 0) {
+		bytesRead += nRead;
 
 		if (bytesRead >= outbuf.length) {
 		    return bytesRead;
 		}
-
 	    }
 	    else {
-		//Thread.yield();
-		StopWatch.delay(50);
+		waitForData(instream, 
+			    timeout - (System.currentTimeMillis() - t0));
 	    }
 
 	    elapsed = System.currentTimeMillis() - t0;
@@ -371,5 +382,107 @@ public class StreamUtils
 
 	return bytesRead;
     }
-}
 
+
+    /** Wait up to maxWait msec for input on instream; returns early if
+	input arrives on a DataAvailableWaiter stream. Other streams are
+	polled. Throws InterruptedIOException, with the thread's interrupt
+	status set, if interrupted while waiting. */
+    private static void waitForData(InputStream instream, long maxWait)
+	throws IOException
+    {
+        if (maxWait < 1)
+            maxWait = 1;
+
+        if (instream instanceof DataAvailableWaiter)
+        {
+            try
+            {
+                ((DataAvailableWaiter )instream).waitForData(
+                    Math.min(maxWait, MAX_WAIT_MSEC));
+            }
+            catch (InterruptedException e)
+            {
+                // Leave the thread interrupted for the caller's caller
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("waitForData() interrupted");
+            }
+        }
+        else
+        {
+            StopWatch.delay((int )Math.min(maxWait, POLL_MSEC));
+        }
+    }
+
+
+    /** Skip exactly n bytes of instream. */
+    private static void skipFully(InputStream instream, long n)
+	throws IOException
+    {
+        while (n > 0)
+        {
+            long skipped = instream.skip(n);
+            if (skipped <= 0)
+            {
+                if (instream.read() < 0)
+                    throw new EOFException("skipFully() end of stream");
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+
+    /** Incremental Knuth-Morris-Pratt matcher for a terminator string.
+	Unlike restarting at the first terminator byte on a mismatch, it
+	finds terminators with repeated prefixes, e.g. "aab" in "aaab". */
+    static class TerminatorMatcher
+    {
+        private byte[] _pattern;
+        // _failure[i] is length of longest proper prefix of 
+        // _pattern[0..i] that is also a suffix of it
+        private int[] _failure;
+        // number of terminator bytes currently matched
+        private int _matched = 0;
+
+        TerminatorMatcher(byte[] pattern)
+        {
+            _pattern = pattern;
+            _failure = new int[pattern.length];
+            int k = 0;
+            for (int i = 1; i < pattern.length; i++)
+            {
+                while (k > 0 && pattern[i] != pattern[k])
+                    k = _failure[k - 1];
+                if (pattern[i] == pattern[k])
+                    k++;
+                _failure[i] = k;
+            }
+        }
+
+        /** Consume next input byte; return true if it completes the
+            terminator. */
+        boolean match(byte c)
+        {
+            while (_matched > 0 && c != _pattern[_matched])
+                _matched = _failure[_matched - 1];
+
+            if (c == _pattern[_matched])
+                _matched++;
+
+            if (_matched == _pattern.length)
+            {
+                _matched = _failure[_matched - 1];
+                return true;
+            }
+            return false;
+        }
+
+        /** Return minimum number of input bytes that could complete the
+            terminator. */
+        int minBytesToMatch()
+        {
+            return Math.max(1, _pattern.length - _matched);
+        }
+    }
+}
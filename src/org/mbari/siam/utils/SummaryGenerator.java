@@ -180,6 +180,7 @@ public class SummaryGenerator {
         
         // Iterate through SIAM packets in input log
         DeviceLogIterator iterator = new DeviceLogIterator(input);
+        iterator.setReadAhead(DeviceLogIterator.DEFAULT_READ_AHEAD_BYTES);
         while (iterator.hasNext()) {
             DevicePacket packet = (DevicePacket) (iterator.next());
             